@@ -0,0 +1,135 @@
+package com.example.rcubed;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Random;
+
+import org.bson.BsonBinaryReader;
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.codecs.Decoder;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.Encoder;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.types.ObjectId;
+
+/**
+ * Test data shared by the benchmarks.
+ * 
+ * Everything is built from a fixed seed, so every run (and every fork) measures exactly the same data.
+ */
+public class BenchmarkData
+{
+  /**
+   * The seed all the test data is built from.
+   */
+  public static final long SEED = 42;
+
+  /**
+   * Used to round trip documents through BSON.
+   */
+  private static final DocumentCodec CODEC = new DocumentCodec();
+
+  /**
+   * Build a list of names, the sort of thing found in a tag or friends list.
+   * 
+   * @param prefix  Prefix of every name.
+   * @param count   The number of names.
+   */
+  public static ArrayList<String> createNames(String prefix, int count)
+  {
+    ArrayList<String> names = new ArrayList<String>(count);
+
+    for (int i = 0; i < count; i++)
+    {
+      names.add(prefix + i);
+    }
+
+    return names;
+  }
+
+  /**
+   * Build a photo as it would be after being read from the database.
+   * 
+   * @param random    Source of the photo's timestamp.
+   * @param tagCount  The number of tags on the photo.
+   */
+  public static Photo createPhoto(Random random, int tagCount)
+  {
+    Photo photo = new Photo();
+
+    photo.setId(new ObjectId().toString());
+    photo.setGFSPhotoId(new ObjectId());
+    photo.setGFSRenditionId(Photo.Rendition.THUMBNAIL, new ObjectId());
+    photo.setGFSRenditionId(Photo.Rendition.PREVIEW, new ObjectId());
+    photo.setContentHash(ImageUpload.getContentHash(new byte[] { (byte) random.nextInt() }));
+    photo.setOwner("owner");
+    photo.setTitle("A photo with a reasonably descriptive title");
+    photo.setTags(createNames("tag", tagCount));
+    photo.setCommentCount(random.nextInt(100));
+    // Whole seconds within the last year or so, the resolution timestamps are stored at.
+    photo.setTimeStamp(new Date(1000L * (1435000000 + random.nextInt(31536000))));
+    photo.setVisibility(Photo.VisibilityValues[random.nextInt(Photo.VisibilityValues.length)]);
+
+    return photo;
+  }
+
+  /**
+   * Build a user as it would be after being read from the database.
+   * 
+   * @param friendCount  The number of friends the user has.
+   */
+  public static User createUser(int friendCount)
+  {
+    User user = new User("user", null);
+
+    user.setId(new ObjectId().toString());
+    user.setFriends(createNames("friend", friendCount));
+
+    return user;
+  }
+
+  /**
+   * Round trip a document through BSON, so it holds exactly the types the driver hands back from a query rather than
+   * the ones it was built with.
+   * 
+   * @param doc  The document.
+   * 
+   * @return A copy of the document, as read from the database.
+   */
+  public static Document asStored(Document doc)
+  {
+    return decode(CODEC, encode(CODEC, doc));
+  }
+
+  /**
+   * Write a value to BSON, the way the driver does when storing a document.
+   * 
+   * @param encoder  The codec to write it with.
+   * @param value    The value.
+   * 
+   * @return The BSON.
+   */
+  public static <T> byte[] encode(Encoder<T> encoder, T value)
+  {
+    BasicOutputBuffer buffer = new BasicOutputBuffer();
+    encoder.encode(new BsonBinaryWriter(buffer), value, EncoderContext.builder().isEncodingCollectibleDocument(true)
+        .build());
+
+    return buffer.toByteArray();
+  }
+
+  /**
+   * Read a value from BSON, the way the driver does when reading a document.
+   * 
+   * @param decoder  The codec to read it with.
+   * @param bson     The BSON.
+   */
+  public static <T> T decode(Decoder<T> decoder, byte[] bson)
+  {
+    return decoder.decode(new BsonBinaryReader(ByteBuffer.wrap(bson)), DecoderContext.builder().build());
+  }
+}
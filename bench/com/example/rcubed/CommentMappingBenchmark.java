@@ -0,0 +1,62 @@
+package com.example.rcubed;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of reading a photo's comments from their Mongo Db documents (MongoDbDAOPhoto.createComment()), by the number
+ * of comments read.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CommentMappingBenchmark
+{
+  @Param({ "0", "10", "100", "1000", "10000" })
+  public int commentCount;
+
+  private ArrayList<Document> docs;
+
+  @Setup
+  public void setUp()
+  {
+    ObjectId photoId = new ObjectId();
+    docs = new ArrayList<Document>(commentCount);
+
+    for (int i = 0; i < commentCount; i++)
+    {
+      Document doc = MongoDbDAOPhoto.createCommentDoc(photoId, "friend" + i, "Comment number " + i, 1435000000000L + i);
+      docs.add(BenchmarkData.asStored(doc));
+    }
+  }
+
+  @Benchmark
+  public ArrayList<Comment> createComments()
+  {
+    ArrayList<Comment> comments = new ArrayList<Comment>(docs.size());
+
+    for (Document doc : docs)
+    {
+      comments.add(MongoDbDAOPhoto.createComment(doc));
+    }
+
+    return comments;
+  }
+}
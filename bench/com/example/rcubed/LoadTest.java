@@ -0,0 +1,623 @@
+package com.example.rcubed;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.imageio.ImageIO;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+import com.mongodb.client.MongoDatabase;
+
+/**
+ * Closed loop load test of the DAOs, simulating people using the photo album.
+ *
+ * Each simulated user logs in, then browses albums, the feed and tags, comments, adds friends and uploads photos, in
+ * roughly the mix LoginView and AlbumView make those calls, pausing for a think time between each one. After a number
+ * of actions they log out and back in again. Because every user waits for each call to finish before thinking and
+ * making the next one, the load offered drops as the DAOs slow down - raise the number of users until the latencies
+ * start to climb to find how many sessions one node can serve.
+ *
+ * Usage: LoadTest [options]
+ *
+ *   -users N        Number of simulated users, each on its own thread (default 50).
+ *   -duration S     Seconds to measure for (default 60).
+ *   -warmup S       Seconds to run before measuring (default 10).
+ *   -think MS       Mean think time between actions, in milliseconds (default 1000). Think times are exponentially
+ *                   distributed around the mean, so the users don't fall into step.
+ *   -session N      Actions per session before logging out and in again (default 50).
+ *   -photos N       Photos each user starts with (default 20).
+ *   -mongo URI      Run against Mongo Db, e.g. mongodb://localhost/RcubedLoadTest. Use a scratch database, users and
+ *                   photos are added to it. Without this the in memory DAOs are used.
+ *
+ * At the end the throughput and latency percentiles of each operation are printed. Failed calls are counted as
+ * errors and not included in the latencies.
+ */
+public class LoadTest
+{
+  /**
+   * The operations measured, in the order they are reported.
+   */
+  private static final String OP_LOGIN = "login";
+  private static final String OP_OWN_ALBUM = "getPhotos (own)";
+  private static final String OP_FRIEND_ALBUM = "getPhotos (friend)";
+  private static final String OP_TAG = "getPhotos (tag)";
+  private static final String OP_NEXT_PAGE = "getPhotos (next page)";
+  private static final String OP_FEED = "getFeed";
+  private static final String OP_COMMENT = "addComment";
+  private static final String OP_ADD_FRIEND = "addFriend";
+  private static final String OP_UPLOAD = "upload";
+
+  private static final String[] OPERATIONS = { OP_LOGIN, OP_OWN_ALBUM, OP_FRIEND_ALBUM, OP_TAG, OP_NEXT_PAGE,
+      OP_FEED, OP_COMMENT, OP_ADD_FRIEND, OP_UPLOAD };
+
+  /**
+   * Relative frequency of each action once logged in (logging in happens once per session).
+   */
+  private static final String[] ACTIONS = { OP_OWN_ALBUM, OP_FRIEND_ALBUM, OP_TAG, OP_NEXT_PAGE, OP_FEED, OP_COMMENT,
+      OP_ADD_FRIEND, OP_UPLOAD };
+  private static final int[] ACTION_WEIGHTS = { 20, 25, 10, 10, 10, 15, 5, 5 };
+
+  /**
+   * Same page size as the album view.
+   */
+  private static final int PAGE_SIZE = 20;
+
+  /**
+   * The tags photos are given. Skewed, so some are common and some rare.
+   */
+  private static final String[] TAGS = { "holiday", "family", "cats", "food", "beach", "party", "snow", "sunset" };
+
+  /**
+   * The number of distinct images uploaded. Uploads beyond this share stored images, as identical photos do.
+   */
+  private static final int IMAGE_COUNT = 32;
+
+  /**
+   * Latencies and errors for each operation.
+   */
+  private static class Results
+  {
+    private final LinkedHashMap<String, LatencyHistogram> latencies = new LinkedHashMap<String, LatencyHistogram>();
+    private final LinkedHashMap<String, LongAdder> errors = new LinkedHashMap<String, LongAdder>();
+
+    private Results()
+    {
+      for (String operation : OPERATIONS)
+      {
+        latencies.put(operation, new LatencyHistogram());
+        errors.put(operation, new LongAdder());
+      }
+    }
+  }
+
+  /**
+   * Test settings.
+   */
+  private int userCount = 50;
+  private int durationSeconds = 60;
+  private int warmupSeconds = 10;
+  private int meanThinkMillis = 1000;
+  private int sessionLength = 50;
+  private int photosPerUser = 20;
+  private String mongoUri = null;
+
+  private UserDAO userDAO;
+  private PhotoDAO photoDAO;
+  private MongoClient mongoClient;
+  private MongoDbDAOFactory daos;
+  private byte[][] images;
+
+  /**
+   * Where latencies are being recorded. Replaced at the end of the warm up, so only the measured period is reported.
+   */
+  private volatile Results results = new Results();
+
+  /**
+   * Set when the test is over.
+   */
+  private volatile boolean stopping = false;
+
+  public static void main(String[] args) throws Exception
+  {
+    LoadTest test = new LoadTest();
+    test.parseArguments(args);
+    test.run();
+  }
+
+  /**
+   * Read the settings from the command line.
+   */
+  private void parseArguments(String[] args)
+  {
+    for (int i = 0; i + 1 < args.length; i += 2)
+    {
+      String value = args[i + 1];
+
+      switch (args[i])
+      {
+        case "-users":
+          userCount = Integer.parseInt(value);
+          break;
+        case "-duration":
+          durationSeconds = Integer.parseInt(value);
+          break;
+        case "-warmup":
+          warmupSeconds = Integer.parseInt(value);
+          break;
+        case "-think":
+          meanThinkMillis = Integer.parseInt(value);
+          break;
+        case "-session":
+          sessionLength = Integer.parseInt(value);
+          break;
+        case "-photos":
+          photosPerUser = Integer.parseInt(value);
+          break;
+        case "-mongo":
+          mongoUri = value;
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown option: " + args[i]);
+      }
+    }
+
+    if (args.length % 2 != 0)
+    {
+      throw new IllegalArgumentException("Missing value for option: " + args[args.length - 1]);
+    }
+  }
+
+  /**
+   * Set up the DAOs and data, run the simulated users, and report.
+   */
+  private void run() throws Exception
+  {
+    images = createImages();
+    createDAOs();
+
+    System.out.println("Loading " + userCount + " users with " + photosPerUser + " photos each...");
+    loadData();
+
+    System.out.println("Running " + userCount + " users, think time " + meanThinkMillis + "ms, warm up "
+        + warmupSeconds + "s, measuring " + durationSeconds + "s...");
+
+    ArrayList<Thread> threads = new ArrayList<Thread>(userCount);
+
+    for (int i = 0; i < userCount; i++)
+    {
+      String username = getUsername(i);
+      Thread thread = new Thread(() -> simulateUser(username), "rcubed-load-" + i);
+      thread.setDaemon(true);
+      threads.add(thread);
+      thread.start();
+    }
+
+    Thread.sleep(TimeUnit.SECONDS.toMillis(warmupSeconds));
+    results = new Results();
+
+    long start = System.nanoTime();
+    Thread.sleep(TimeUnit.SECONDS.toMillis(durationSeconds));
+    Results measured = results;
+    long elapsed = System.nanoTime() - start;
+
+    stopping = true;
+
+    for (Thread thread : threads)
+    {
+      thread.join(TimeUnit.SECONDS.toMillis(30));
+    }
+
+    report(measured, elapsed);
+
+    if (daos != null)
+    {
+      daos.shutdown();
+      mongoClient.close();
+    }
+  }
+
+  /**
+   * Create the DAOs under test. The Mongo Db ones are built by the same factory as the servlet uses, with its default
+   * settings, so the caches, comment buffer and metrics are all in place as they are in the app.
+   */
+  private void createDAOs()
+  {
+    if (mongoUri != null)
+    {
+      MongoClientURI uri = new MongoClientURI(mongoUri);
+      String databaseName = (uri.getDatabase() != null) ? uri.getDatabase() : "RcubedLoadTest";
+
+      mongoClient = new MongoClient(uri);
+      MongoDatabase database = mongoClient.getDatabase(databaseName);
+
+      daos = new MongoDbDAOFactory(database, mongoClient.getDB(databaseName));
+      daos.create();
+
+      for (String problem : daos.ensureIndexes())
+      {
+        System.out.println("Index problem: " + problem);
+      }
+
+      userDAO = daos.getUserDAO();
+      photoDAO = daos.getPhotoDAO();
+      System.out.println("Using Mongo Db database " + databaseName + ".");
+    }
+    else
+    {
+      InMemoryUserDAO memoryUserDAO = new InMemoryUserDAO();
+      InMemoryPhotoDAO memoryPhotoDAO = new InMemoryPhotoDAO();
+      memoryPhotoDAO.setUserDAO(memoryUserDAO);
+
+      userDAO = memoryUserDAO;
+      photoDAO = memoryPhotoDAO;
+      System.out.println("Using the in memory DAOs.");
+    }
+  }
+
+  /**
+   * Create the users and their first photos. Each user starts with a few friends.
+   */
+  private void loadData()
+  {
+    Random random = new Random(BenchmarkData.SEED);
+
+    for (int i = 0; i < userCount; i++)
+    {
+      User user = userDAO.getUser(photoDAO, getUsername(i));
+
+      if (user == null)
+      {
+        user = new User(getUsername(i), photoDAO);
+        userDAO.insertUser(user);
+      }
+
+      for (int j = 0; j < 5 && userCount > 1; j++)
+      {
+        userDAO.addFriend(user, getUsername(random.nextInt(userCount)));
+      }
+
+      ArrayList<Photo> photos = new ArrayList<Photo>(photosPerUser);
+
+      for (int j = 0; j < photosPerUser; j++)
+      {
+        photos.add(new Photo(user.getUsername(), "Photo " + j, pickTags(random), pickVisibility(random),
+            images[random.nextInt(images.length)]));
+      }
+
+      photoDAO.insertPhotos(photos);
+    }
+  }
+
+  /**
+   * One simulated user: log in, then act and think until the end of the session, and repeat until the test is over.
+   */
+  private void simulateUser(String username)
+  {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+
+    while (!stopping)
+    {
+      // The login view looks the user up, and creates them if they're new.
+      User user = call(OP_LOGIN, () ->
+      {
+        User found = userDAO.getUser(photoDAO, username);
+
+        if (found == null)
+        {
+          found = new User(username, photoDAO);
+          userDAO.insertUser(found);
+        }
+
+        return found;
+      });
+
+      // What's on display in the album view.
+      List<Photo> onDisplay = new ArrayList<Photo>();
+      ResultPage<Photo> lastPage = null;
+      User albumOwner = user;
+      String albumTag = null;
+
+      for (int i = 0; i < sessionLength && user != null && !stopping; i++)
+      {
+        think(random);
+
+        String action = pickAction(random);
+        ResultPage<Photo> page = null;
+
+        switch (action)
+        {
+          case OP_OWN_ALBUM:
+            albumOwner = user;
+            albumTag = null;
+            page = showAlbum(action, user, albumOwner, albumTag, null);
+            break;
+
+          case OP_FRIEND_ALBUM:
+            if (!user.getFriends().isEmpty())
+            {
+              String friend = user.getFriends().get(random.nextInt(user.getFriends().size()));
+
+              // The album view looks the owner up before showing their album, so that's part of the time too.
+              User[] owner = new User[1];
+              page = call(action, () ->
+              {
+                owner[0] = userDAO.getUser(photoDAO, friend);
+                return (owner[0] != null) ? getAlbumPage(user, owner[0], null, null) : null;
+              });
+
+              if (owner[0] != null)
+              {
+                albumOwner = owner[0];
+                albumTag = null;
+              }
+            }
+            break;
+
+          case OP_TAG:
+            albumTag = TAGS[pickSkewed(random, TAGS.length)];
+            page = showAlbum(action, user, albumOwner, albumTag, null);
+            break;
+
+          case OP_NEXT_PAGE:
+            if (lastPage != null && lastPage.hasMore())
+            {
+              page = showAlbum(action, user, albumOwner, albumTag, lastPage.getContinuationToken());
+            }
+            break;
+
+          case OP_FEED:
+            page = call(action, () -> photoDAO.getFeed(user, PAGE_SIZE, null));
+            break;
+
+          case OP_COMMENT:
+            if (!onDisplay.isEmpty())
+            {
+              Photo photo = onDisplay.get(random.nextInt(onDisplay.size()));
+              call(action, () -> photoDAO.addComment(user, photo, "Nice one! " + random.nextInt(1000)));
+            }
+            break;
+
+          case OP_ADD_FRIEND:
+            String newFriend = getUsername(random.nextInt(userCount));
+            call(action, () -> userDAO.addFriend(user, newFriend));
+            break;
+
+          case OP_UPLOAD:
+            Photo newPhoto = new Photo(user.getUsername(), "Upload", pickTags(random), pickVisibility(random), null);
+            byte[] imageData = images[random.nextInt(images.length)];
+            call(action, () -> upload(newPhoto, imageData));
+            break;
+        }
+
+        if (page != null)
+        {
+          onDisplay = page.getItems();
+          lastPage = page;
+        }
+      }
+    }
+  }
+
+  /**
+   * Fetch a page of an album, as the album view does.
+   */
+  private ResultPage<Photo> showAlbum(String operation, User viewer, User owner, String tag, String continuationToken)
+  {
+    return call(operation, () -> getAlbumPage(viewer, owner, tag, continuationToken));
+  }
+
+  /**
+   * Get a page of an album, without measuring it.
+   */
+  private ResultPage<Photo> getAlbumPage(User viewer, User owner, String tag, String continuationToken)
+  {
+    return photoDAO.getPhotos(owner.getUsername(), tag, viewer.getAllowedVisibility(owner), PAGE_SIZE,
+        continuationToken);
+  }
+
+  /**
+   * Upload a photo the way PhotoReceiver does, streaming the image in chunks.
+   */
+  private boolean upload(Photo photo, byte[] imageData) throws IOException
+  {
+    ImageUpload upload = photoDAO.beginImageUpload("upload.jpg", "image/jpeg");
+    OutputStream out = upload.getOutputStream();
+
+    for (int offset = 0; offset < imageData.length; offset += 8192)
+    {
+      out.write(imageData, offset, Math.min(8192, imageData.length - offset));
+    }
+
+    return photoDAO.insertPhoto(photo, upload);
+  }
+
+  /**
+   * A DAO call being measured.
+   */
+  private interface Call<T>
+  {
+    T run() throws Exception;
+  }
+
+  /**
+   * Make a DAO call and record how long it took.
+   *
+   * @param operation  The operation the call is counted under.
+   * @param call       The call.
+   *
+   * @return The result of the call, or null if it failed.
+   */
+  private <T> T call(String operation, Call<T> call)
+  {
+    Results recordTo = results;
+    T result = null;
+    long start = System.nanoTime();
+
+    try
+    {
+      result = call.run();
+      recordTo.latencies.get(operation).record(System.nanoTime() - start);
+    }
+    catch (Exception ex)
+    {
+      recordTo.errors.get(operation).increment();
+    }
+
+    return result;
+  }
+
+  /**
+   * Pause for a think time, exponentially distributed around the mean.
+   */
+  private void think(Random random)
+  {
+    long millis = (long) (-Math.log(1 - random.nextDouble()) * meanThinkMillis);
+
+    try
+    {
+      Thread.sleep(millis);
+    }
+    catch (InterruptedException ex)
+    {
+      stopping = true;
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Pick the next action, by ACTION_WEIGHTS.
+   */
+  private static String pickAction(Random random)
+  {
+    int pick = random.nextInt(Arrays.stream(ACTION_WEIGHTS).sum());
+    int i = 0;
+
+    while (pick >= ACTION_WEIGHTS[i])
+    {
+      pick -= ACTION_WEIGHTS[i];
+      i++;
+    }
+
+    return ACTIONS[i];
+  }
+
+  /**
+   * Pick a number from 0 to n - 1, with lower numbers more likely (each about twice as likely as the next).
+   */
+  private static int pickSkewed(Random random, int n)
+  {
+    int pick = 0;
+
+    while (pick < n - 1 && random.nextBoolean())
+    {
+      pick++;
+    }
+
+    return pick;
+  }
+
+  /**
+   * Pick one or two tags.
+   */
+  private static ArrayList<String> pickTags(Random random)
+  {
+    ArrayList<String> tags = new ArrayList<String>();
+    tags.add(TAGS[pickSkewed(random, TAGS.length)]);
+
+    if (random.nextBoolean())
+    {
+      String second = TAGS[pickSkewed(random, TAGS.length)];
+
+      if (!tags.contains(second))
+      {
+        tags.add(second);
+      }
+    }
+
+    return tags;
+  }
+
+  /**
+   * Pick a visibility. Most photos are shared with friends or everyone.
+   */
+  private static Photo.Visibility pickVisibility(Random random)
+  {
+    int pick = random.nextInt(10);
+
+    return (pick < 2) ? Photo.Visibility.PRIVATE : (pick < 6) ? Photo.Visibility.FRIENDS : Photo.Visibility.PUBLIC;
+  }
+
+  private static String getUsername(int i)
+  {
+    return "loadtest" + i;
+  }
+
+  /**
+   * Create the images uploaded. Camera sized, so uploads and renditions cost what real ones do.
+   */
+  private static byte[][] createImages() throws IOException
+  {
+    Random random = new Random(BenchmarkData.SEED);
+    byte[][] created = new byte[IMAGE_COUNT][];
+
+    for (int i = 0; i < IMAGE_COUNT; i++)
+    {
+      BufferedImage image = new BufferedImage(1600, 1200, BufferedImage.TYPE_INT_RGB);
+      Graphics2D graphics = image.createGraphics();
+
+      for (int j = 0; j < 50; j++)
+      {
+        graphics.setColor(new Color(random.nextInt(0x1000000)));
+        graphics.fillRect(random.nextInt(1600), random.nextInt(1200), random.nextInt(400), random.nextInt(300));
+      }
+
+      graphics.dispose();
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      ImageIO.write(image, "jpg", out);
+      created[i] = out.toByteArray();
+    }
+
+    return created;
+  }
+
+  /**
+   * Print the throughput and latencies of each operation.
+   */
+  private static void report(Results measured, long elapsedNanos)
+  {
+    double seconds = elapsedNanos / 1e9;
+    double totalThroughput = 0;
+
+    System.out.println();
+    System.out.println(String.format("%-22s %9s %9s %9s %9s %9s %9s %7s", "operation", "count", "ops/s", "p50 ms",
+        "p99 ms", "p999 ms", "max ms", "errors"));
+
+    for (Map.Entry<String, LatencyHistogram> entry : measured.latencies.entrySet())
+    {
+      LatencyHistogram latencies = entry.getValue();
+      double throughput = latencies.getCount() / seconds;
+      totalThroughput += throughput;
+
+      System.out.println(String.format("%-22s %9d %9.1f %9.3f %9.3f %9.3f %9.3f %7d", entry.getKey(), latencies
+          .getCount(), throughput, latencies.getPercentile(50) / 1e6, latencies.getPercentile(99) / 1e6, latencies
+          .getPercentile(99.9) / 1e6, latencies.getMax() / 1e6, measured.errors.get(entry.getKey()).sum()));
+    }
+
+    System.out.println(String.format("%-22s %9s %9.1f", "total", "", totalThroughput));
+  }
+}
@@ -0,0 +1,73 @@
+package com.example.rcubed;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.codecs.DocumentCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mongodb.MongoClient;
+
+/**
+ * Cost of reading and writing a single photo as BSON, through a Document (DocumentCodec with
+ * MongoDbDAOPhoto.convertToDoc() and MongoDbDAOPhoto.createPhoto()) and directly with PhotoCodec, by the number of
+ * tags on the photo. Run with the GC profiler to compare allocation per photo.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PhotoCodecBenchmark
+{
+  @Param({ "0", "10", "100", "1000", "10000" })
+  public int tagCount;
+
+  private final DocumentCodec documentCodec = new DocumentCodec();
+  private final PhotoCodec photoCodec = new PhotoCodec(MongoClient.getDefaultCodecRegistry(), null);
+
+  private Photo photo;
+  private byte[] bson;
+
+  @Setup
+  public void setUp()
+  {
+    photo = BenchmarkData.createPhoto(new Random(BenchmarkData.SEED), tagCount);
+    bson = BenchmarkData.encode(photoCodec, photo);
+  }
+
+  @Benchmark
+  public byte[] writeDocument()
+  {
+    return BenchmarkData.encode(documentCodec, MongoDbDAOPhoto.convertToDoc(photo));
+  }
+
+  @Benchmark
+  public byte[] writeCodec()
+  {
+    return BenchmarkData.encode(photoCodec, photo);
+  }
+
+  @Benchmark
+  public Photo readDocument()
+  {
+    return MongoDbDAOPhoto.createPhoto(BenchmarkData.decode(documentCodec, bson), null);
+  }
+
+  @Benchmark
+  public Photo readCodec()
+  {
+    return BenchmarkData.decode(photoCodec, bson);
+  }
+}
@@ -0,0 +1,55 @@
+package com.example.rcubed;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of mapping a single photo to and from its Mongo Db document (MongoDbDAOPhoto.convertToDoc() and
+ * MongoDbDAOPhoto.createPhoto()), by the number of tags on the photo.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PhotoMappingBenchmark
+{
+  @Param({ "0", "10", "100", "1000", "10000" })
+  public int tagCount;
+
+  private Photo photo;
+  private Document doc;
+
+  @Setup
+  public void setUp()
+  {
+    photo = BenchmarkData.createPhoto(new Random(BenchmarkData.SEED), tagCount);
+    doc = BenchmarkData.asStored(MongoDbDAOPhoto.convertToDoc(photo));
+  }
+
+  @Benchmark
+  public Document convertToDoc()
+  {
+    return MongoDbDAOPhoto.convertToDoc(photo);
+  }
+
+  @Benchmark
+  public Photo createPhoto()
+  {
+    return MongoDbDAOPhoto.createPhoto(doc, null);
+  }
+}
@@ -0,0 +1,65 @@
+package com.example.rcubed;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of sorting an album by date with PhotoDateComparator, by the number of photos.
+ * 
+ * Each sort works on a fresh copy of the same shuffled album. The cost of the copy alone is measured by copyOnly, so
+ * it can be taken off.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PhotoSortBenchmark
+{
+  @Param({ "0", "10", "100", "1000", "10000" })
+  public int photoCount;
+
+  private Photo[] photos;
+  private PhotoDateComparator comparator = new PhotoDateComparator();
+
+  @Setup
+  public void setUp()
+  {
+    Random random = new Random(BenchmarkData.SEED);
+    photos = new Photo[photoCount];
+
+    for (int i = 0; i < photoCount; i++)
+    {
+      photos[i] = BenchmarkData.createPhoto(random, 3);
+    }
+  }
+
+  @Benchmark
+  public Photo[] copyOnly()
+  {
+    return Arrays.copyOf(photos, photos.length);
+  }
+
+  @Benchmark
+  public Photo[] sort()
+  {
+    Photo[] sorted = Arrays.copyOf(photos, photos.length);
+    Arrays.sort(sorted, comparator);
+
+    return sorted;
+  }
+}
@@ -0,0 +1,38 @@
+package com.example.rcubed;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, so every result comes with its allocation rate (gc.alloc.rate.norm is the
+ * number of bytes allocated per operation).
+ * 
+ * The benchmarks need the "bench" Ivy configuration on the classpath as well as the application's own. JMH's
+ * annotation processor generates the benchmark harness when the bench folder is compiled, which javac does without
+ * being asked (in Eclipse, enable annotation processing for the project and add jmh-generator-annprocess to the
+ * factory path).
+ * 
+ * Any arguments are passed on to JMH, for example "PhotoMappingBenchmark -p tagCount=100" to run a single benchmark
+ * at a single size, or "-rf json -rff results.json" to keep the results for comparing against a later run.
+ */
+public class RunBenchmarks
+{
+  public static void main(String[] args) throws RunnerException, CommandLineOptionException
+  {
+    CommandLineOptions commandLine = new CommandLineOptions(args);
+    ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine).addProfiler(GCProfiler.class);
+
+    // Everything, unless particular benchmarks were asked for.
+    if (commandLine.getIncludes().isEmpty())
+    {
+      options.include(RunBenchmarks.class.getPackage().getName() + ".*Benchmark");
+    }
+
+    new Runner(options.build()).run();
+  }
+}
@@ -0,0 +1,73 @@
+package com.example.rcubed;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bson.codecs.DocumentCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of reading and writing a single user as BSON, through a Document (DocumentCodec with
+ * MongoDbDAOUser.convertToDoc() and MongoDbDAOUser.createUser()) and directly with UserCodec, by the length of their
+ * friends list.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UserCodecBenchmark
+{
+  @Param({ "0", "10", "100", "1000", "10000" })
+  public int friendCount;
+
+  private final DocumentCodec documentCodec = new DocumentCodec();
+  private final UserCodec userCodec = new UserCodec();
+
+  private User user;
+  private byte[] bson;
+
+  @Setup
+  public void setUp()
+  {
+    user = BenchmarkData.createUser(friendCount);
+    bson = BenchmarkData.encode(userCodec, user);
+  }
+
+  @Benchmark
+  public byte[] writeDocument()
+  {
+    return BenchmarkData.encode(documentCodec, MongoDbDAOUser.convertToDoc(user));
+  }
+
+  @Benchmark
+  public byte[] writeCodec()
+  {
+    return BenchmarkData.encode(userCodec, user);
+  }
+
+  /**
+   * Both reads include building the user's friends index.
+   */
+  @Benchmark
+  public User readDocument()
+  {
+    return MongoDbDAOUser.createUser(null, BenchmarkData.decode(documentCodec, bson));
+  }
+
+  @Benchmark
+  public User readCodec()
+  {
+    return BenchmarkData.decode(userCodec, bson);
+  }
+}
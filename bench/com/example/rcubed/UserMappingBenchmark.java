@@ -0,0 +1,57 @@
+package com.example.rcubed;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of mapping a single user to and from their Mongo Db document (MongoDbDAOUser.convertToDoc() and
+ * MongoDbDAOUser.createUser()), by the length of their friends list.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UserMappingBenchmark
+{
+  @Param({ "0", "10", "100", "1000", "10000" })
+  public int friendCount;
+
+  private User user;
+  private Document doc;
+
+  @Setup
+  public void setUp()
+  {
+    user = BenchmarkData.createUser(friendCount);
+    doc = BenchmarkData.asStored(MongoDbDAOUser.convertToDoc(user));
+  }
+
+  @Benchmark
+  public Document convertToDoc()
+  {
+    return MongoDbDAOUser.convertToDoc(user);
+  }
+
+  /**
+   * Includes building the user's friends index.
+   */
+  @Benchmark
+  public User createUser()
+  {
+    return MongoDbDAOUser.createUser(null, doc);
+  }
+}
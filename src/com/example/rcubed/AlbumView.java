@@ -2,24 +2,28 @@ package com.example.rcubed;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 
 import com.vaadin.data.Item;
 import com.vaadin.data.util.IndexedContainer;
 import com.vaadin.data.validator.EmailValidator;
 import com.vaadin.navigator.View;
 import com.vaadin.navigator.ViewChangeListener.ViewChangeEvent;
+import com.vaadin.server.ExternalResource;
 import com.vaadin.server.Page;
-import com.vaadin.server.StreamResource;
+import com.vaadin.server.VaadinServlet;
 import com.vaadin.server.VaadinSession;
 import com.vaadin.ui.Button;
 import com.vaadin.ui.Button.ClickEvent;
+import com.vaadin.ui.Component;
 import com.vaadin.ui.CustomComponent;
 import com.vaadin.ui.Grid;
 import com.vaadin.ui.GridLayout;
 import com.vaadin.ui.HorizontalLayout;
 import com.vaadin.ui.Image;
 import com.vaadin.ui.Label;
+import com.vaadin.ui.Link;
 import com.vaadin.ui.Notification;
 import com.vaadin.ui.Panel;
 import com.vaadin.ui.TextField;
@@ -35,6 +39,8 @@ public class AlbumView extends CustomComponent implements View
 {
   UserDAO daoUser;
   PhotoDAO daoPhoto;
+  AsyncUserDAO asyncUserDAO;
+  AsyncPhotoDAO asyncPhotoDAO;
   User user;
 
   /**
@@ -51,8 +57,11 @@ public class AlbumView extends CustomComponent implements View
   TextField tagSearch = new TextField();
   TextField friendSearch = new TextField();
   Button getPhotos = new Button("Get Photos!");
+  Button getFeed = new Button("Friends' Feed");
 
   Panel photoPanel = new Panel();
+  VerticalLayout photoList;
+  Button morePhotos = new Button("More Photos");
 
   Grid friendsList = new Grid();
   IndexedContainer friendsContainer = new IndexedContainer();
@@ -72,9 +81,28 @@ public class AlbumView extends CustomComponent implements View
   private DateFormat dateFormat;
 
   /**
-   * Custom comparator for sorting photos by their upload time.
+   * The servlet context path, needed to build image URLs.
    */
-  private PhotoDateComparator pdc;
+  private String contextPath;
+
+  /**
+   * Number of photos fetched from the database each time the user asks for more.
+   */
+  private static final int PHOTO_PAGE_SIZE = 20;
+
+  /**
+   * Number of comments shown under a photo at first, and fetched each time the user asks for more.
+   */
+  private static final int COMMENT_PAGE_SIZE = 3;
+
+  /**
+   * State of the photo search currently on display. The feed is on display if feedMode is set, otherwise the photos of
+   * photoOwner.
+   */
+  private boolean feedMode;
+  private User photoOwner;
+  private String photoTag;
+  private String nextPageToken;
 
   /**
    * Constructor
@@ -84,9 +112,11 @@ public class AlbumView extends CustomComponent implements View
     // Get persistent state objects from the session.
     daoUser = (UserDAO) VaadinSession.getCurrent().getAttribute("userDAO");
     daoPhoto = (PhotoDAO) VaadinSession.getCurrent().getAttribute("photoDAO");
+    asyncUserDAO = (AsyncUserDAO) VaadinSession.getCurrent().getAttribute("asyncUserDAO");
+    asyncPhotoDAO = (AsyncPhotoDAO) VaadinSession.getCurrent().getAttribute("asyncPhotoDAO");
     user = (User) VaadinSession.getCurrent().getAttribute("user");
 
-    if ((user == null) || (daoUser == null) || (daoPhoto == null))
+    if ((user == null) || (daoUser == null) || (daoPhoto == null) || (asyncUserDAO == null) || (asyncPhotoDAO == null))
     {
       // Something has gone wrong with the login process - return the user to the login view.
       getUI().getNavigator().navigateTo(LoginView.NAME);
@@ -97,8 +127,7 @@ public class AlbumView extends CustomComponent implements View
     // set the date format to use.
     dateFormat = new SimpleDateFormat(DATE_FORMAT_STRING);
 
-    // Insantiate the photo comparator.
-    pdc = new PhotoDateComparator();
+    contextPath = VaadinServlet.getCurrent().getServletContext().getContextPath();
 
     // Make this view take up the full browser window space
     setSizeFull();
@@ -114,6 +143,7 @@ public class AlbumView extends CustomComponent implements View
       {
         // "Logout" the user
         getSession().setAttribute("user", null);
+        getSession().getSession().setAttribute(ImageServlet.SESSION_USERNAME, null);
 
         // Return to Login View.
         getUI().getNavigator().navigateTo(LoginView.NAME);
@@ -140,95 +170,58 @@ public class AlbumView extends CustomComponent implements View
       {
         // Work out who's photos to get. If there is a value in the friend search field then we use that.
         // If that field is empty, then we get the current user's photos.
-        User owner = ((friendSearch.getValue() == null) || ("".equals(friendSearch.getValue()))) ? user : daoUser
-            .getUser(daoPhoto, friendSearch.getValue());
+        CompletableFuture<User> owner = ((friendSearch.getValue() == null) || ("".equals(friendSearch.getValue())))
+            ? CompletableFuture.completedFuture(user) : asyncUserDAO.getUser(daoPhoto, friendSearch.getValue());
 
-        if (owner != null)
+        ((RcubedUI) getUI()).accessWhenDone(owner, photosOwner ->
         {
-          // Display the Photos in the UI.
-          ArrayList<Photo> photos = user.getPhotos(owner, tagSearch.getValue());
-          VerticalLayout photoList = new VerticalLayout();
-          photoList.setSpacing(true);
-          photos.sort(pdc);
-
-          for (Photo photo : photos)
+          if (photosOwner != null)
           {
-            // Create a UI image resource from the photo's image data.
-            // Grid layout has one column. We begin with 1 row, because we don't know exactly how many we need and the
-            // grid layout is clever enough to extend itself every time a new component is added.
-            GridLayout imageDataContainer = new GridLayout(1, 1);
-            imageDataContainer.setMargin(true);
-            imageDataContainer.setWidth("100%");
-
-            // Add the Photo's Meta Data
-            imageDataContainer.addComponent(new Label("Title: " + photo.getTitle()));
-            imageDataContainer.addComponent(new Label("Upload Date: " + dateFormat.format(photo.getTimeStamp())));
-
-            // The tags are present as a caption on the photo rather than a Label for no particular reason.
-            Image photoInUI = new Image(photo.getTags().toString(), new StreamResource(photo, photo.getId()));
-
-            // Add the image data to the parent UI container.
-            imageDataContainer.addComponent(photoInUI);
-
-            // Scale the image to fit the container.
-            photoInUI.setWidth("100%");
-
-            // Add the new comment box and button.
-            HorizontalLayout newCommentContainer = new HorizontalLayout();
-            TextField newComment = new TextField();
-            newComment.setInputPrompt("<Add new comment>");
-
-            Button addComment = new Button("Add");
-
-            addComment.addClickListener(new Button.ClickListener()
-            {
-              @Override
-              public void buttonClick(ClickEvent event)
-              {
-                if (newComment.getValue() != null && !"".equals(newComment.getValue()))
-                {
-                  daoPhoto.addComment(user, photo, newComment.getValue());
-
-                  // Add the new comment to the UI.
-                  imageDataContainer.addComponent(new Label(newComment.getValue()));
-
-                  // Clear the comment box
-                  newComment.setValue("");
-                }
-              }
-            });
+            // Start a new search from the newest photo.
+            feedMode = false;
+            photoOwner = photosOwner;
+            photoTag = tagSearch.getValue();
 
-            newCommentContainer.addComponent(newComment);
-            newCommentContainer.addComponent(addComment);
-
-            imageDataContainer.addComponent(newCommentContainer);
+            showFirstPage();
+          }
+          else
+          {
+            // Owner is null. That can only happen if some text was in the friend search bar that didn't match a user
+            // of our system. Give some indication to the user that there's been a problem.
+            new Notification("Unknown user: ." + friendSearch.getValue(), Notification.Type.WARNING_MESSAGE)
+                .show(Page.getCurrent());
+          }
+        });
+      }
+    });
 
-            // Add each comment as a new label below the photo.
-            // The comments are ordered by their insertion into the database. We don't explicitly set their
-            // chronological order the way we do for the photos themselves.
-            for (String comment : photo.getComments())
-            {
-              imageDataContainer.addComponent(new Label(comment));
-            }
+    // Configure the feed button.
+    getFeed.addClickListener(new Button.ClickListener()
+    {
+      @Override
+      public void buttonClick(ClickEvent event)
+      {
+        // Show the newest photos from all of the user's friends.
+        feedMode = true;
+        photoOwner = null;
+        photoTag = null;
 
-            // Add the Image and all its associated data to the container.
-            photoList.addComponent(imageDataContainer);
-          }
+        showFirstPage();
+      }
+    });
 
-          // Set the Photo Panel's content - this will replace any existing photos.
-          photoPanel.setContent(photoList);
-        }
-        else
-        {
-          // Owner is null. That can only happen if some text was in the friend search bar that didn't match a user of
-          // our system. Give some indication to the user that there's been a problem.
-          new Notification("Unknown user: ." + friendSearch.getValue(), Notification.Type.WARNING_MESSAGE).show(Page
-              .getCurrent());
-        }
+    // Configure the more photos button. Only visible while the current search has more pages.
+    morePhotos.setVisible(false);
+    morePhotos.addClickListener(new Button.ClickListener()
+    {
+      @Override
+      public void buttonClick(ClickEvent event)
+      {
+        showNextPage();
       }
     });
 
-    HorizontalLayout photoSearchBar = new HorizontalLayout(tagSearch, getPhotos);
+    HorizontalLayout photoSearchBar = new HorizontalLayout(tagSearch, getPhotos, getFeed);
     photoSearchBar.setSpacing(true);
 
     // Friends list.
@@ -256,34 +249,39 @@ public class AlbumView extends CustomComponent implements View
       public void buttonClick(ClickEvent event)
       {
         String newFriendName = newFriend.getValue();
+        RcubedUI ui = (RcubedUI) getUI();
 
         // Check if the input name is valid, and is not the user.
         if (newFriend.isValid() && !user.getUsername().equals(newFriendName))
         {
           // Check if name being added is a user of our system.
-          User friend = daoUser.getUser(daoPhoto, newFriendName);
-
-          if (friend != null)
+          ui.accessWhenDone(asyncUserDAO.getUser(daoPhoto, newFriendName), friend ->
           {
-            // Add the friend to this user (backend only).
-            daoUser.addFriend(user, newFriendName);
-
-            // Add the friend to the frontend container.
-            Item newItem = friendsContainer.getItem(friendsContainer.addItem());
-            newItem.getItemProperty("Friends").setValue(newFriendName);
+            if (friend != null)
+            {
+              // Add the friend to this user (backend only), then to the frontend container once that's done.
+              ui.accessWhenDone(asyncUserDAO.addFriend(user, newFriendName), added ->
+              {
+                if (added)
+                {
+                  Item newItem = friendsContainer.getItem(friendsContainer.addItem());
+                  newItem.getItemProperty("Friends").setValue(newFriendName);
+                }
 
-            // Reset the input field.
-            newFriend.setValue("");
-          }
-          else
-          {
-            // Send an error response indicating unknown user.
-            new Notification("Unable to add " + newFriendName + ": Unknown user.", Notification.Type.ERROR_MESSAGE)
-                .show(Page.getCurrent());
+                // Reset the input field.
+                newFriend.setValue("");
+              });
+            }
+            else
+            {
+              // Send an error response indicating unknown user.
+              new Notification("Unable to add " + newFriendName + ": Unknown user.", Notification.Type.ERROR_MESSAGE)
+                  .show(Page.getCurrent());
 
-            // Return focus to the username field.
-            newFriend.focus();
-          }
+              // Return focus to the username field.
+              newFriend.focus();
+            }
+          });
         }
       }
     });
@@ -303,10 +301,22 @@ public class AlbumView extends CustomComponent implements View
 
           // Removing a non existent ex-friend doesn't cause any problems (according to the method comments).
           // But that shouldn't be possible because we require a user selection.
-          daoUser.removeFriend(user, (String) exFriend.getItemProperty("Friends").getValue());
+          CompletableFuture<Boolean> removed = asyncUserDAO.removeFriend(user, (String) exFriend.getItemProperty(
+              "Friends").getValue());
 
-          // Now remove him from front end container.
-          friendsContainer.removeItem(selectedFriend);
+          // Now remove him from front end container, if he's gone from the back end.
+          ((RcubedUI) getUI()).accessWhenDone(removed, success ->
+          {
+            if (success)
+            {
+              friendsContainer.removeItem(selectedFriend);
+            }
+            else
+            {
+              new Notification("Unable to remove friend, please try again.", Notification.Type.ERROR_MESSAGE).show(
+                  Page.getCurrent());
+            }
+          });
         }
         else
         {
@@ -322,8 +332,10 @@ public class AlbumView extends CustomComponent implements View
     photoPanel.setWidth(500, Unit.PIXELS);
     photoPanel.setHeight(500, Unit.PIXELS);
 
-    HorizontalLayout mainWindow = new HorizontalLayout(photoPanel, friendBar);
-    mainWindow.setExpandRatio(photoPanel, 3);
+    VerticalLayout photoColumn = new VerticalLayout(photoPanel, morePhotos);
+
+    HorizontalLayout mainWindow = new HorizontalLayout(photoColumn, friendBar);
+    mainWindow.setExpandRatio(photoColumn, 3);
     mainWindow.setExpandRatio(friendBar, 1);
 
     // New Photo Upload section.
@@ -341,6 +353,7 @@ public class AlbumView extends CustomComponent implements View
     newPhoto = new Upload("Upload new photo.", photoRec);
     newPhoto.setCaption("Upload");
     newPhoto.addSucceededListener(photoRec);
+    newPhoto.addFailedListener(photoRec);
 
     VerticalLayout uploadBox = new VerticalLayout(newPhoto, newTitle, newTags);
     uploadBox.setSpacing(true);
@@ -354,6 +367,315 @@ public class AlbumView extends CustomComponent implements View
     setCompositionRoot(mainLayout);
   }
 
+  /**
+   * Replace the photos on display with the first page of the current photo search.
+   */
+  private void showFirstPage()
+  {
+    nextPageToken = null;
+
+    photoList = new VerticalLayout();
+    photoList.setSpacing(true);
+
+    showNextPage();
+
+    // Set the Photo Panel's content - this will replace any existing photos.
+    photoPanel.setContent(photoList);
+  }
+
+  /**
+   * Fetch the next page of the current photo search and add it to the photo list.
+   * 
+   * An album only needs summaries for its listing, the full photo is fetched if the user opens a photo's comments. The
+   * feed comes back as full photos, which are kept rather than fetched again.
+   */
+  private void showNextPage()
+  {
+    // Hidden until the page arrives, so the same page can't be asked for twice.
+    morePhotos.setVisible(false);
+    VerticalLayout pageList = photoList;
+
+    // Photos come back from the database newest first, so there's no need to sort them here.
+    if (feedMode)
+    {
+      ((RcubedUI) getUI()).accessWhenDone(asyncPhotoDAO.getFeed(user, PHOTO_PAGE_SIZE, nextPageToken),
+          page -> showPage(pageList, page, photo -> createPhotoComponent(new PhotoSummary(photo), photo)));
+    }
+    else
+    {
+      ((RcubedUI) getUI()).accessWhenDone(asyncPhotoDAO.getPhotoSummaries(photoOwner.getUsername(), photoTag, user
+          .getAllowedVisibility(photoOwner), PHOTO_PAGE_SIZE, nextPageToken),
+          page -> showPage(pageList, page, summary -> createPhotoComponent(summary, null)));
+    }
+  }
+
+  /**
+   * Add a page of photos to the photo list.
+   * 
+   * @param pageList         The photo list the page was fetched for.
+   * @param page             The page.
+   * @param createComponent  Builds the component displaying each photo on the page.
+   */
+  private <T> void showPage(VerticalLayout pageList, ResultPage<T> page, Function<T, Component> createComponent)
+  {
+    // Drop the page if a new search has been started in the meantime.
+    if (pageList == photoList)
+    {
+      for (T photo : page.getItems())
+      {
+        photoList.addComponent(createComponent.apply(photo));
+      }
+
+      nextPageToken = page.getContinuationToken();
+      morePhotos.setVisible(page.hasMore());
+    }
+  }
+
+  /**
+   * Build the UI components displaying a single photo along with its meta data and latest comments.
+   * 
+   * @param summary  The photo to display.
+   * @param photo    The full photo, if it has already been fetched (may be null).
+   * 
+   * @return The container holding the photo.
+   */
+  private GridLayout createPhotoComponent(PhotoSummary summary, Photo photo)
+  {
+    // Create a UI image resource from the photo's image data.
+    // Grid layout has one column. We begin with 1 row, because we don't know exactly how many we need and the
+    // grid layout is clever enough to extend itself every time a new component is added.
+    GridLayout imageDataContainer = new GridLayout(1, 1);
+    imageDataContainer.setMargin(true);
+    imageDataContainer.setWidth("100%");
+
+    // Add the Photo's Meta Data
+    imageDataContainer.addComponent(new Label("Title: " + summary.getTitle()));
+    imageDataContainer.addComponent(new Label("Upload Date: " + dateFormat.format(summary.getTimeStamp())));
+
+    // The tags are present as a caption on the photo rather than a Label for no particular reason.
+    // The preview rendition is the smallest that fills the photo panel, the original is only fetched if the user
+    // follows the link below it. Images are served by the image servlet so the browser can cache them.
+    Image photoInUI = new Image(summary.getTags().toString(), new ExternalResource(ImageServlet.getImageUrl(
+        contextPath, summary.getId(), Photo.Rendition.PREVIEW)));
+
+    // Add the image data to the parent UI container.
+    imageDataContainer.addComponent(photoInUI);
+
+    // Scale the image to fit the container.
+    photoInUI.setWidth("100%");
+
+    // Link to the full size image, opened in a new window.
+    Link original = new Link("View original", new ExternalResource(ImageServlet.getImageUrl(contextPath, summary
+        .getId(), Photo.Rendition.ORIGINAL)));
+    original.setTargetName("_blank");
+    imageDataContainer.addComponent(original);
+
+    // The latest few comments are shown with the photo, older ones as the user asks for them.
+    imageDataContainer.addComponent(createCommentsComponent(summary, photo));
+
+    return imageDataContainer;
+  }
+
+  /**
+   * Build the UI components displaying a photo's comments, with a box to add a new one.
+   * 
+   * @param summary  The photo.
+   * @param photo    The full photo, if it has already been fetched (may be null).
+   * 
+   * @return The container holding the comments.
+   */
+  private VerticalLayout createCommentsComponent(PhotoSummary summary, Photo photo)
+  {
+    VerticalLayout commentsContainer = new VerticalLayout();
+
+    // The comments go below the new comment box, newest first.
+    CommentList commentList = new CommentList(summary, photo);
+
+    // Add the new comment box and button.
+    HorizontalLayout newCommentContainer = new HorizontalLayout();
+    TextField newComment = new TextField();
+    newComment.setInputPrompt("<Add new comment>");
+
+    Button addComment = new Button("Add");
+
+    addComment.addClickListener(new Button.ClickListener()
+    {
+      @Override
+      public void buttonClick(ClickEvent event)
+      {
+        String comment = newComment.getValue();
+
+        if (comment != null && !"".equals(comment))
+        {
+          // Adding a comment is what needs the full photo, so in an album it's only fetched then.
+          ((RcubedUI) getUI()).accessWhenDone(commentList.getPhoto(), loaded ->
+          {
+            if (loaded != null)
+            {
+              commentList.setPhoto(loaded);
+              addComment(commentList, loaded, newComment, comment);
+            }
+            else
+            {
+              new Notification("This photo has been deleted.", Notification.Type.WARNING_MESSAGE).show(Page
+                  .getCurrent());
+            }
+          });
+        }
+      }
+    });
+
+    newCommentContainer.addComponent(newComment);
+    newCommentContainer.addComponent(addComment);
+
+    commentsContainer.addComponent(newCommentContainer);
+    commentsContainer.addComponent(commentList);
+
+    return commentsContainer;
+  }
+
+  /**
+   * Store a new comment, and add it to the top of the list once it has been stored. If it wasn't, it stays in the
+   * comment box so the user can try again.
+   * 
+   * @param commentList  The photo's comments.
+   * @param photo        The photo.
+   * @param newComment   The comment box.
+   * @param comment      The comment.
+   */
+  private void addComment(CommentList commentList, Photo photo, TextField newComment, String comment)
+  {
+    ((RcubedUI) getUI()).accessWhenDone(asyncPhotoDAO.addComment(user, photo, comment), added ->
+    {
+      if (added)
+      {
+        commentList.showNewComment(user.getUsername(), comment);
+
+        // Clear the comment box
+        newComment.setValue("");
+      }
+      else
+      {
+        new Notification("Unable to add comment, please try again.", Notification.Type.ERROR_MESSAGE).show(Page
+            .getCurrent());
+      }
+    });
+  }
+
+  /**
+   * The comments on a photo, newest first. Only the latest few are fetched to begin with, older ones a page at a time
+   * as the user asks for them.
+   */
+  private class CommentList extends VerticalLayout
+  {
+    private static final long serialVersionUID = 1L;
+
+    private String photoId;
+    private Photo photo;
+    private String nextPageToken;
+    private VerticalLayout comments = new VerticalLayout();
+    private Button moreComments = new Button("More Comments");
+
+    /**
+     * Constructor. Starts fetching the first page of comments.
+     *
+     * @param summary  The photo the comments are on.
+     * @param photo    The full photo, if it has already been fetched (may be null).
+     */
+    public CommentList(PhotoSummary summary, Photo photo)
+    {
+      this.photoId = summary.getId();
+      this.photo = photo;
+      this.nextPageToken = null;
+
+      moreComments.setVisible(false);
+      moreComments.addClickListener(new Button.ClickListener()
+      {
+        @Override
+        public void buttonClick(ClickEvent event)
+        {
+          showNextPage();
+        }
+      });
+
+      addComponent(comments);
+      addComponent(moreComments);
+
+      // Most photos have no comments, don't ask for them.
+      if (summary.getCommentCount() > 0)
+      {
+        showNextPage();
+      }
+    }
+
+    /**
+     * Get the full photo, fetching it the first time it is needed.
+     *
+     * @return The photo, or null if it has been deleted.
+     */
+    public CompletableFuture<Photo> getPhoto()
+    {
+      CompletableFuture<Photo> fullPhoto;
+
+      if (photo != null)
+      {
+        fullPhoto = CompletableFuture.completedFuture(photo);
+      }
+      else
+      {
+        fullPhoto = asyncPhotoDAO.getPhoto(photoId);
+      }
+
+      return fullPhoto;
+    }
+
+    /**
+     * Keep the full photo once it has been fetched, so it isn't fetched again for the next comment.
+     *
+     * @param photo  The photo.
+     */
+    public void setPhoto(Photo photo)
+    {
+      this.photo = photo;
+    }
+
+    /**
+     * Add a comment that has just been left to the top of the list.
+     *
+     * @param author  The username of the user who left the comment.
+     * @param text    The comment itself.
+     */
+    public void showNewComment(String author, String text)
+    {
+      comments.addComponentAsFirst(new Label(author + ": " + text));
+    }
+
+    /**
+     * Fetch the next page of comments and add it to the bottom of the list.
+     */
+    private void showNextPage()
+    {
+      // Hidden until the page arrives, so the same page can't be asked for twice.
+      moreComments.setVisible(false);
+
+      // The album view's UI, the list may not be attached yet.
+      RcubedUI ui = (RcubedUI) AlbumView.this.getUI();
+
+      ui.accessWhenDone(asyncPhotoDAO.getComments(photoId, COMMENT_PAGE_SIZE, nextPageToken), page ->
+      {
+        for (Comment comment : page.getItems())
+        {
+          // Some very old comments were stored without an author.
+          String author = (comment.getAuthor() == null) ? "" : comment.getAuthor() + ": ";
+          comments.addComponent(new Label(author + comment.getText()));
+        }
+
+        nextPageToken = page.getContinuationToken();
+        moreComments.setVisible(page.hasMore());
+      });
+    }
+  }
+
   @Override
   public void enter(ViewChangeEvent event)
   {
@@ -0,0 +1,54 @@
+package com.example.rcubed;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Base class for the asynchronous DAOs, which run the calls of an ordinary DAO on a separate, bounded thread pool so
+ * the thread handling the request doesn't sit waiting for the database.
+ */
+public abstract class AsyncDAO
+{
+  /**
+   * The thread pool the DAO calls are run on.
+   */
+  private Executor executor;
+
+  /**
+   * Constructor
+   * 
+   * @param executor  The thread pool to run the DAO calls on. Should be bounded, so a slow database makes callers fail
+   *                  fast rather than queue up without limit.
+   */
+  protected AsyncDAO(Executor executor)
+  {
+    this.executor = executor;
+  }
+
+  /**
+   * Run a DAO call on the thread pool.
+   * 
+   * @param call  The DAO call.
+   * 
+   * @return The eventual result of the call. Completes exceptionally if the call throws, or if the thread pool is too
+   *         busy to accept it.
+   */
+  protected <T> CompletableFuture<T> submit(Supplier<T> call)
+  {
+    CompletableFuture<T> result;
+
+    try
+    {
+      result = CompletableFuture.supplyAsync(call, executor);
+    }
+    catch (RejectedExecutionException ex)
+    {
+      result = new CompletableFuture<T>();
+      result.completeExceptionally(ex);
+    }
+
+    return result;
+  }
+}
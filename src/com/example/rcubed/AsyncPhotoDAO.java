@@ -0,0 +1,174 @@
+package com.example.rcubed;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Asynchronous version of PhotoDAO. Each call runs on a thread pool and returns straight away with a future for its
+ * result.
+ * 
+ * Uploads are started through the underlying DAO (see getPhotoDAO()), because the upload has to start writing straight
+ * away.
+ */
+public class AsyncPhotoDAO extends AsyncDAO
+{
+  /**
+   * The DAO doing the actual work.
+   */
+  private PhotoDAO photoDAO;
+
+  /**
+   * Constructor
+   * 
+   * @param photoDAO  The DAO doing the actual work.
+   * @param executor  The thread pool to run the calls on.
+   */
+  public AsyncPhotoDAO(PhotoDAO photoDAO, Executor executor)
+  {
+    super(executor);
+    this.photoDAO = photoDAO;
+  }
+
+  /**
+   * Get the DAO doing the actual work, for callers that need an answer straight away.
+   */
+  public PhotoDAO getPhotoDAO()
+  {
+    return photoDAO;
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.insertPhoto(Photo photo)
+   */
+  public CompletableFuture<Boolean> insertPhoto(Photo photo)
+  {
+    return submit(() -> photoDAO.insertPhoto(photo));
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.insertPhoto(Photo photo, ImageUpload upload)
+   */
+  public CompletableFuture<Boolean> insertPhoto(Photo photo, ImageUpload upload)
+  {
+    return submit(() -> photoDAO.insertPhoto(photo, upload));
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.insertPhotos(List<Photo> photos)
+   */
+  public CompletableFuture<boolean[]> insertPhotos(List<Photo> photos)
+  {
+    return submit(() -> photoDAO.insertPhotos(photos));
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.deletePhoto(User user, Photo photo)
+   */
+  public CompletableFuture<Boolean> deletePhoto(User user, Photo photo)
+  {
+    return submit(() -> photoDAO.deletePhoto(user, photo));
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.addTag(User user, Photo photo, String newTag)
+   */
+  public CompletableFuture<Boolean> addTag(User user, Photo photo, String newTag)
+  {
+    return submit(() -> photoDAO.addTag(user, photo, newTag));
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.removeTag(User user, Photo photo, String exTag)
+   */
+  public CompletableFuture<Boolean> removeTag(User user, Photo photo, String exTag)
+  {
+    return submit(() -> photoDAO.removeTag(user, photo, exTag));
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.addComment(User user, Photo photo, String newComment)
+   */
+  public CompletableFuture<Boolean> addComment(User user, Photo photo, String newComment)
+  {
+    return submit(() -> photoDAO.addComment(user, photo, newComment));
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.changeVisibility(User user, Photo photo, Photo.Visibility newVisibility)
+   */
+  public CompletableFuture<Boolean> changeVisibility(User user, Photo photo, Photo.Visibility newVisibility)
+  {
+    return submit(() -> photoDAO.changeVisibility(user, photo, newVisibility));
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.getPhoto(String photoId)
+   */
+  public CompletableFuture<Photo> getPhoto(String photoId)
+  {
+    return submit(() -> photoDAO.getPhoto(photoId));
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.getPhotos(String owner, String tag, Photo.Visibility allowedVisibility)
+   */
+  public CompletableFuture<ArrayList<Photo>> getPhotos(String owner, String tag, Photo.Visibility allowedVisibility)
+  {
+    return submit(() -> photoDAO.getPhotos(owner, tag, allowedVisibility));
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.getPhotos(String owner, String tag, Photo.Visibility allowedVisibility,
+   * int pageSize, String continuationToken)
+   */
+  public CompletableFuture<ResultPage<Photo>> getPhotos(String owner, String tag, Photo.Visibility allowedVisibility,
+      int pageSize, String continuationToken)
+  {
+    return submit(() -> photoDAO.getPhotos(owner, tag, allowedVisibility, pageSize, continuationToken));
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.getPhotoSummaries(String owner, String tag, Photo.Visibility allowedVisibility,
+   * int pageSize, String continuationToken)
+   */
+  public CompletableFuture<ResultPage<PhotoSummary>> getPhotoSummaries(String owner, String tag,
+      Photo.Visibility allowedVisibility, int pageSize, String continuationToken)
+  {
+    return submit(() -> photoDAO.getPhotoSummaries(owner, tag, allowedVisibility, pageSize,
+        continuationToken));
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.getFeed(User viewer, int pageSize, String continuationToken)
+   */
+  public CompletableFuture<ResultPage<Photo>> getFeed(User viewer, int pageSize, String continuationToken)
+  {
+    return submit(() -> photoDAO.getFeed(viewer, pageSize, continuationToken));
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.getComments(String photoId, int pageSize, String continuationToken)
+   */
+  public CompletableFuture<ResultPage<Comment>> getComments(String photoId, int pageSize, String continuationToken)
+  {
+    return submit(() -> photoDAO.getComments(photoId, pageSize, continuationToken));
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.getImage(Photo photo)
+   */
+  public CompletableFuture<byte[]> getImage(Photo photo)
+  {
+    return submit(() -> photoDAO.getImage(photo));
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.openImage(Photo photo, Photo.Rendition rendition)
+   */
+  public CompletableFuture<PhotoImage> openImage(Photo photo, Photo.Rendition rendition)
+  {
+    return submit(() -> photoDAO.openImage(photo, rendition));
+  }
+}
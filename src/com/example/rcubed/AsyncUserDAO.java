@@ -0,0 +1,93 @@
+package com.example.rcubed;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Asynchronous version of UserDAO. Each call runs on a thread pool and returns straight away with a future for its
+ * result.
+ */
+public class AsyncUserDAO extends AsyncDAO
+{
+  /**
+   * The DAO doing the actual work.
+   */
+  private UserDAO userDAO;
+
+  /**
+   * Constructor
+   * 
+   * @param userDAO   The DAO doing the actual work.
+   * @param executor  The thread pool to run the calls on.
+   */
+  public AsyncUserDAO(UserDAO userDAO, Executor executor)
+  {
+    super(executor);
+    this.userDAO = userDAO;
+  }
+
+  /**
+   * Get the DAO doing the actual work, for callers that need an answer straight away.
+   */
+  public UserDAO getUserDAO()
+  {
+    return userDAO;
+  }
+
+  /**
+   * See com.example.rcubed.UserDAO.insertUser(User user)
+   */
+  public CompletableFuture<Boolean> insertUser(User user)
+  {
+    return submit(() -> userDAO.insertUser(user));
+  }
+
+  /**
+   * See com.example.rcubed.UserDAO.getUser(PhotoDAO photoDAO, String username)
+   */
+  public CompletableFuture<User> getUser(PhotoDAO photoDAO, String username)
+  {
+    return submit(() -> userDAO.getUser(photoDAO, username));
+  }
+
+  /**
+   * See com.example.rcubed.UserDAO.deleteUser(User user)
+   */
+  public CompletableFuture<Boolean> deleteUser(User user)
+  {
+    return submit(() -> userDAO.deleteUser(user));
+  }
+
+  /**
+   * See com.example.rcubed.UserDAO.addFriend(User user, String newFriend)
+   */
+  public CompletableFuture<Boolean> addFriend(User user, String newFriend)
+  {
+    return submit(() -> userDAO.addFriend(user, newFriend));
+  }
+
+  /**
+   * See com.example.rcubed.UserDAO.removeFriend(User user, String exFriend)
+   */
+  public CompletableFuture<Boolean> removeFriend(User user, String exFriend)
+  {
+    return submit(() -> userDAO.removeFriend(user, exFriend));
+  }
+
+  /**
+   * See com.example.rcubed.UserDAO.isFriend(String username, String candidate)
+   */
+  public CompletableFuture<Boolean> isFriend(String username, String candidate)
+  {
+    return submit(() -> userDAO.isFriend(username, candidate));
+  }
+
+  /**
+   * See com.example.rcubed.UserDAO.getFollowers(String username)
+   */
+  public CompletableFuture<ArrayList<String>> getFollowers(String username)
+  {
+    return submit(() -> userDAO.getFollowers(username));
+  }
+}
@@ -0,0 +1,319 @@
+package com.example.rcubed;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * UserDAO that keeps recently used users in memory in front of another UserDAO.
+ * 
+ * Users are cached by username. Every change made through this DAO invalidates the cached copy, and a lookup that
+ * raced with a change doesn't cache what it read. Cached copies expire after a fixed time so that changes made by other
+ * servers are picked up eventually.
+ * 
+ * The cache holds a snapshot of each user rather than the User object itself, and getUser() always returns a new User.
+ * User objects are modified by the DAO calls, and sessions must not see each other's changes half made.
+ */
+public class CachingUserDAO implements UserDAO
+{
+  /**
+   * Snapshot of a user as read from the database.
+   */
+  private static class CachedUser
+  {
+    private final String id;
+    private final String username;
+    private final ArrayList<String> friends;
+    private final long loadedAt;
+
+    private CachedUser(User user, long loadedAt)
+    {
+      this.id = user.getId();
+      this.username = user.getUsername();
+      this.friends = new ArrayList<String>(user.getFriends());
+      this.loadedAt = loadedAt;
+    }
+  }
+
+  /**
+   * The DAO that actually talks to the database.
+   */
+  private final UserDAO userDAO;
+
+  /**
+   * Cached users in least to most recently used order.
+   */
+  private final LinkedHashMap<String, CachedUser> users;
+
+  /**
+   * How long a cached user can be used for, in milliseconds.
+   */
+  private final long ttlMillis;
+
+  /**
+   * Bumped whenever a user is invalidated, so a lookup that was reading the user at the time knows not to cache it.
+   * Striped by username rather than kept per user so it takes a fixed amount of memory - a lookup that shares a stripe
+   * with an invalidated user just isn't cached. Guarded by the users lock.
+   */
+  private static final int GENERATION_STRIPES = 64;
+  private final long[] generations = new long[GENERATION_STRIPES];
+
+  /**
+   * Statistics.
+   */
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  /**
+   * Constructor
+   * 
+   * @param userDAO     The DAO to cache.
+   * @param maxEntries  The maximum number of users to cache.
+   * @param ttlMillis   How long a cached user can be used for, in milliseconds.
+   */
+  public CachingUserDAO(UserDAO userDAO, int maxEntries, long ttlMillis)
+  {
+    this.userDAO = userDAO;
+    this.ttlMillis = ttlMillis;
+
+    // Access ordered, dropping the least recently used user once we're over the limit.
+    this.users = new LinkedHashMap<String, CachedUser>(16, 0.75f, true)
+    {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedUser> eldest)
+      {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * @see com.example.rcubed.UserDAO#insertUser(com.example.rcubed.User)
+   */
+  @Override
+  public boolean insertUser(User user)
+  {
+    boolean success = userDAO.insertUser(user);
+
+    if (success)
+    {
+      // We know exactly what's in the database now.
+      store(user);
+    }
+
+    return success;
+  }
+
+  /**
+   * @see com.example.rcubed.UserDAO#getUser(com.example.rcubed.PhotoDAO, java.lang.String)
+   */
+  @Override
+  public User getUser(PhotoDAO photoDAO, String username)
+  {
+    CachedUser cached;
+
+    synchronized (users)
+    {
+      cached = users.get(username);
+
+      if (cached != null && System.currentTimeMillis() - cached.loadedAt > ttlMillis)
+      {
+        // Too old to trust.
+        users.remove(username);
+        cached = null;
+      }
+    }
+
+    User user;
+
+    if (cached != null)
+    {
+      hits.increment();
+
+      user = new User(photoDAO);
+      user.setId(cached.id);
+      user.setUsername(cached.username);
+      user.setFriends(new ArrayList<String>(cached.friends));
+    }
+    else
+    {
+      misses.increment();
+
+      // Taken before reading, so a change made while we read is noticed.
+      long generation = getGeneration(username);
+
+      user = userDAO.getUser(photoDAO, username);
+
+      if (user != null)
+      {
+        storeIfUnchanged(user, generation);
+      }
+    }
+
+    return user;
+  }
+
+  /**
+   * @see com.example.rcubed.UserDAO#deleteUser(com.example.rcubed.User)
+   */
+  @Override
+  public boolean deleteUser(User user)
+  {
+    // Invalidate whatever happens, the delete may have worked even if the call reports an error.
+    boolean success = userDAO.deleteUser(user);
+    invalidate(user.getUsername());
+
+    return success;
+  }
+
+  /**
+   * @see com.example.rcubed.UserDAO#addFriend(com.example.rcubed.User, java.lang.String)
+   */
+  @Override
+  public boolean addFriend(User user, String newFriend)
+  {
+    boolean success = userDAO.addFriend(user, newFriend);
+    invalidate(user.getUsername());
+
+    return success;
+  }
+
+  /**
+   * @see com.example.rcubed.UserDAO#removeFriend(com.example.rcubed.User, java.lang.String)
+   */
+  @Override
+  public boolean removeFriend(User user, String exFriend)
+  {
+    boolean success = userDAO.removeFriend(user, exFriend);
+    invalidate(user.getUsername());
+
+    return success;
+  }
+
+  /**
+   * @see com.example.rcubed.UserDAO#isFriend(java.lang.String, java.lang.String)
+   */
+  @Override
+  public boolean isFriend(String username, String candidate)
+  {
+    return userDAO.isFriend(username, candidate);
+  }
+
+  /**
+   * @see com.example.rcubed.UserDAO#getFollowers(java.lang.String)
+   */
+  @Override
+  public ArrayList<String> getFollowers(String username)
+  {
+    return userDAO.getFollowers(username);
+  }
+
+  /**
+   * Remove a user from the cache, so the next lookup goes to the database.
+   * 
+   * @param username  The name of the user.
+   */
+  public void invalidate(String username)
+  {
+    synchronized (users)
+    {
+      users.remove(username);
+      generations[stripe(username)]++;
+    }
+  }
+
+  /**
+   * Get the number of users currently cached.
+   */
+  public int getSize()
+  {
+    synchronized (users)
+    {
+      return users.size();
+    }
+  }
+
+  /**
+   * Get the number of lookups answered from the cache.
+   */
+  public long getHitCount()
+  {
+    return hits.sum();
+  }
+
+  /**
+   * Get the number of lookups that had to go to the database.
+   */
+  public long getMissCount()
+  {
+    return misses.sum();
+  }
+
+  /**
+   * Get the fraction of lookups answered from the cache (0 if there haven't been any).
+   */
+  public double getHitRate()
+  {
+    long hitCount = hits.sum();
+    long total = hitCount + misses.sum();
+
+    return (total == 0) ? 0.0 : (double) hitCount / total;
+  }
+
+  /**
+   * Add a snapshot of the user to the cache.
+   */
+  private void store(User user)
+  {
+    CachedUser cached = new CachedUser(user, System.currentTimeMillis());
+
+    synchronized (users)
+    {
+      users.put(user.getUsername(), cached);
+    }
+  }
+
+  /**
+   * Add a snapshot of the user to the cache, unless the user has been invalidated since it was read.
+   * 
+   * @param user        The user as read.
+   * @param generation  The user's generation from before it was read.
+   */
+  private void storeIfUnchanged(User user, long generation)
+  {
+    CachedUser cached = new CachedUser(user, System.currentTimeMillis());
+
+    synchronized (users)
+    {
+      if (generations[stripe(user.getUsername())] == generation)
+      {
+        users.put(user.getUsername(), cached);
+      }
+    }
+  }
+
+  /**
+   * Get the current generation of a user.
+   */
+  private long getGeneration(String username)
+  {
+    synchronized (users)
+    {
+      return generations[stripe(username)];
+    }
+  }
+
+  /**
+   * Pick the generation stripe for a username.
+   */
+  private static int stripe(String username)
+  {
+    int hash = username.hashCode();
+    hash ^= (hash >>> 16);
+
+    return hash & (GENERATION_STRIPES - 1);
+  }
+}
@@ -0,0 +1,136 @@
+package com.example.rcubed;
+
+import java.util.Date;
+
+/**
+ * A comment left by a user on a photo.
+ */
+public class Comment
+{
+  /**
+   * The unique id that identifies this comment in the database.
+   */
+  private String id;
+
+  /**
+   * The database object id of the photo the comment is on.
+   */
+  private String photoId;
+
+  /**
+   * The username of the user who left the comment.
+   */
+  private String author;
+
+  /**
+   * The comment itself.
+   */
+  private String text;
+
+  /**
+   * The time the comment was left.
+   */
+  private Date timestamp;
+
+  /**
+   * Empty Constructor.
+   */
+  public Comment()
+  {
+    this.id = null;
+    this.photoId = null;
+    this.author = null;
+    this.text = null;
+    this.timestamp = null;
+  }
+
+  /**
+   * Set the database object id.
+   *
+   * @param id
+   */
+  public void setId(String id)
+  {
+    this.id = id;
+  }
+
+  /**
+   * Set the database object id of the photo the comment is on.
+   *
+   * @param photoId
+   */
+  public void setPhotoId(String photoId)
+  {
+    this.photoId = photoId;
+  }
+
+  /**
+   * Set the author.
+   *
+   * @param author
+   */
+  public void setAuthor(String author)
+  {
+    this.author = author;
+  }
+
+  /**
+   * Set the text of the comment.
+   *
+   * @param text
+   */
+  public void setText(String text)
+  {
+    this.text = text;
+  }
+
+  /**
+   * Set the time the comment was left.
+   *
+   * @param timestamp
+   */
+  public void setTimeStamp(Date timestamp)
+  {
+    this.timestamp = timestamp;
+  }
+
+  /**
+   * Get the database object id of the comment.
+   */
+  public String getId()
+  {
+    return id;
+  }
+
+  /**
+   * Get the database object id of the photo the comment is on.
+   */
+  public String getPhotoId()
+  {
+    return photoId;
+  }
+
+  /**
+   * Get the username of the user who left the comment.
+   */
+  public String getAuthor()
+  {
+    return author;
+  }
+
+  /**
+   * Get the text of the comment.
+   */
+  public String getText()
+  {
+    return text;
+  }
+
+  /**
+   * Get the time the comment was left.
+   */
+  public Date getTimeStamp()
+  {
+    return timestamp;
+  }
+}
@@ -0,0 +1,423 @@
+package com.example.rcubed;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.in;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.result.UpdateResult;
+
+/**
+ * Write behind buffer for photo comments.
+ *
+ * Comments are held in memory and written in batches: one insert of all of a photo's pending comments, and one update
+ * of the photo's comment count. A popular photo then costs two writes per batch rather than two per comment. Batches
+ * are written every flush interval, or straight away once a photo has a full batch waiting.
+ *
+ * A batch that fails to write is kept and retried with the next flush, ahead of any comments added since. Each comment
+ * is retried up to a limit, counting only the writes it was part of, so a comment added just after a failure gets as
+ * many tries as any other. Anything still pending when the buffer is shut down is written before shutdown returns.
+ * Comments are only lost if the server dies without being shut down, or the database stays unavailable through every
+ * retry.
+ */
+public class CommentWriteBuffer
+{
+  private static final Logger LOGGER = Logger.getLogger(CommentWriteBuffer.class.getName());
+
+  /**
+   * The number of times a comment is retried before it is given up on.
+   */
+  public static final int MAX_RETRIES = 5;
+
+  /**
+   * A comment waiting to be written.
+   */
+  private static class PendingComment
+  {
+    /**
+     * The comment document.
+     */
+    private final Document doc;
+
+    /**
+     * The number of writes this comment was part of that failed.
+     */
+    private int failures = 0;
+
+    private PendingComment(Document doc)
+    {
+      this.doc = doc;
+    }
+  }
+
+  /**
+   * The collection holding the photos.
+   */
+  private MongoCollection<Document> photos;
+
+  /**
+   * The collection holding the comments.
+   */
+  private MongoCollection<Document> comments;
+
+  /**
+   * The number of comments for one photo that triggers an immediate write.
+   */
+  private int maxBatchSize;
+
+  /**
+   * The comments waiting to be written, by photo id, oldest first. Guarded by its own lock.
+   */
+  private LinkedHashMap<ObjectId, ArrayList<PendingComment>> pending;
+
+  /**
+   * Runs the writes. A single thread, so the batches for a photo are always written in order.
+   */
+  private ScheduledExecutorService writer;
+
+  /**
+   * Statistics.
+   */
+  private AtomicLong writeCount;
+  private AtomicLong commentCount;
+  private AtomicLong failureCount;
+  private AtomicLong droppedCount;
+
+  /**
+   * Constructor. Starts writing batches straight away.
+   *
+   * @param photos         The collection holding the photos.
+   * @param comments       The collection holding the comments.
+   * @param flushInterval  The longest a comment waits before being written, in milliseconds.
+   * @param maxBatchSize   The number of comments for one photo that triggers an immediate write.
+   */
+  public CommentWriteBuffer(MongoCollection<Document> photos, MongoCollection<Document> comments, long flushInterval,
+      int maxBatchSize)
+  {
+    this.photos = photos;
+    this.comments = comments;
+    this.maxBatchSize = maxBatchSize;
+    this.pending = new LinkedHashMap<ObjectId, ArrayList<PendingComment>>();
+    this.writeCount = new AtomicLong();
+    this.commentCount = new AtomicLong();
+    this.failureCount = new AtomicLong();
+    this.droppedCount = new AtomicLong();
+
+    this.writer = Executors.newSingleThreadScheduledExecutor(task ->
+    {
+      // Daemon thread, so a forgotten shutdown() can't keep the JVM alive.
+      Thread thread = new Thread(task, "rcubed-comments");
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    writer.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Queue a comment to be added to a photo.
+   *
+   * @param photoId  The id of the photo.
+   * @param comment  The comment document (see MongoDbDAOPhoto.createCommentDoc()), with its id already assigned.
+   */
+  public void add(ObjectId photoId, Document comment)
+  {
+    boolean batchFull;
+
+    synchronized (pending)
+    {
+      ArrayList<PendingComment> photoComments = pending.get(photoId);
+
+      if (photoComments == null)
+      {
+        photoComments = new ArrayList<PendingComment>();
+        pending.put(photoId, photoComments);
+      }
+
+      photoComments.add(new PendingComment(comment));
+
+      // At least rather than exactly, a failed batch put back ahead of newer comments can already be over the size.
+      batchFull = (photoComments.size() >= maxBatchSize);
+    }
+
+    if (batchFull)
+    {
+      try
+      {
+        writer.execute(() -> flush(photoId));
+      }
+      catch (RejectedExecutionException ex)
+      {
+        // Shutting down, the comment is left for the final flush.
+      }
+    }
+  }
+
+  /**
+   * Write the pending comments of every photo.
+   */
+  public void flush()
+  {
+    ArrayList<ObjectId> photoIds;
+
+    synchronized (pending)
+    {
+      photoIds = new ArrayList<ObjectId>(pending.keySet());
+    }
+
+    for (ObjectId photoId : photoIds)
+    {
+      flush(photoId);
+    }
+  }
+
+  /**
+   * Write the pending comments of one photo.
+   *
+   * @param photoId  The id of the photo.
+   */
+  private void flush(ObjectId photoId)
+  {
+    ArrayList<PendingComment> batch;
+
+    synchronized (pending)
+    {
+      batch = pending.remove(photoId);
+    }
+
+    if (batch != null)
+    {
+      ArrayList<Document> docs = getDocs(batch);
+
+      try
+      {
+        insertComments(docs);
+
+        // Then count them, all in one update.
+        Document inc = new Document(MongoDbDAOPhoto.KEY_COMMENT_COUNT, docs.size());
+        UpdateResult result = photos.updateOne(new Document(MongoDbDAOPhoto.KEY_ID, photoId),
+            new Document("$inc", inc));
+
+        if (result.getMatchedCount() == 0)
+        {
+          // The photo has been deleted in the meantime, the comments go with it.
+          comments.deleteMany(and(eq(MongoDbDAOPhoto.KEY_PHOTO_ID, photoId), in(MongoDbDAOPhoto.KEY_ID,
+              getIds(docs))));
+        }
+
+        writeCount.incrementAndGet();
+        commentCount.addAndGet(docs.size());
+      }
+      catch (RuntimeException ex)
+      {
+        // Most likely a MongoException. Anything else is treated the same way rather than let it stop the scheduled
+        // flushes.
+        failureCount.incrementAndGet();
+
+        // Only the comments that have used up their own retries are given up on.
+        ArrayList<PendingComment> retry = new ArrayList<PendingComment>(batch.size());
+        int dropped = 0;
+
+        for (PendingComment comment : batch)
+        {
+          comment.failures++;
+
+          if (comment.failures > MAX_RETRIES)
+          {
+            dropped++;
+          }
+          else
+          {
+            retry.add(comment);
+          }
+        }
+
+        if (dropped > 0)
+        {
+          droppedCount.addAndGet(dropped);
+          LOGGER.log(Level.SEVERE, "Dropped " + dropped + " comments on photo " + photoId + " after "
+              + (MAX_RETRIES + 1) + " failed writes each", ex);
+        }
+
+        if (!retry.isEmpty())
+        {
+          requeue(photoId, retry);
+        }
+      }
+    }
+  }
+
+  /**
+   * Get the documents of a batch of pending comments.
+   *
+   * @param batch  The pending comments.
+   */
+  private static ArrayList<Document> getDocs(ArrayList<PendingComment> batch)
+  {
+    ArrayList<Document> docs = new ArrayList<Document>(batch.size());
+
+    for (PendingComment comment : batch)
+    {
+      docs.add(comment.doc);
+    }
+
+    return docs;
+  }
+
+  /**
+   * Insert a batch of comments.
+   *
+   * A batch that is being retried may already have been inserted, if it was the count that failed. The comments have
+   * their ids assigned up front, so any already inserted are rejected as duplicates and can be ignored.
+   *
+   * @param batch  The comment documents.
+   */
+  private void insertComments(ArrayList<Document> batch)
+  {
+    try
+    {
+      comments.insertMany(batch, new InsertManyOptions().ordered(false));
+    }
+    catch (MongoBulkWriteException ex)
+    {
+      for (BulkWriteError error : ex.getWriteErrors())
+      {
+        if (ErrorCategory.fromErrorCode(error.getCode()) != ErrorCategory.DUPLICATE_KEY)
+        {
+          throw ex;
+        }
+      }
+    }
+  }
+
+  /**
+   * Get the ids of a batch of comments.
+   *
+   * @param batch  The comment documents.
+   */
+  private static ArrayList<ObjectId> getIds(ArrayList<Document> batch)
+  {
+    ArrayList<ObjectId> ids = new ArrayList<ObjectId>(batch.size());
+
+    for (Document comment : batch)
+    {
+      ids.add(comment.getObjectId(MongoDbDAOPhoto.KEY_ID));
+    }
+
+    return ids;
+  }
+
+  /**
+   * Put the comments of a batch that failed to write back in the queue, ahead of any comments added to the photo since.
+   * The newer comments keep their own failure counts.
+   *
+   * @param photoId  The id of the photo.
+   * @param batch    The comments to retry.
+   */
+  private void requeue(ObjectId photoId, ArrayList<PendingComment> batch)
+  {
+    synchronized (pending)
+    {
+      ArrayList<PendingComment> newer = pending.get(photoId);
+
+      if (newer != null)
+      {
+        batch.addAll(newer);
+      }
+
+      pending.put(photoId, batch);
+    }
+  }
+
+  /**
+   * Stop the background writes and write everything still pending. Comments added after this has been called are not
+   * written.
+   */
+  public void shutdown()
+  {
+    writer.shutdown();
+
+    try
+    {
+      // Let any write in progress finish, so the final flush doesn't race it.
+      writer.awaitTermination(1, TimeUnit.MINUTES);
+    }
+    catch (InterruptedException ex)
+    {
+      Thread.currentThread().interrupt();
+    }
+
+    // Failed batches are requeued until they run out of retries, so this always finishes.
+    while (getPendingCount() > 0)
+    {
+      flush();
+    }
+  }
+
+  /**
+   * Get the number of comments waiting to be written.
+   */
+  public int getPendingCount()
+  {
+    int count = 0;
+
+    synchronized (pending)
+    {
+      for (ArrayList<PendingComment> photoComments : pending.values())
+      {
+        count += photoComments.size();
+      }
+    }
+
+    return count;
+  }
+
+  /**
+   * Get the number of batches written.
+   */
+  public long getWriteCount()
+  {
+    return writeCount.get();
+  }
+
+  /**
+   * Get the number of comments written.
+   */
+  public long getCommentCount()
+  {
+    return commentCount.get();
+  }
+
+  /**
+   * Get the number of batches that failed to write (and were retried or dropped).
+   */
+  public long getFailureCount()
+  {
+    return failureCount.get();
+  }
+
+  /**
+   * Get the number of comments given up on after failing to write MAX_RETRIES times.
+   */
+  public long getDroppedCount()
+  {
+    return droppedCount.get();
+  }
+}
@@ -0,0 +1,49 @@
+package com.example.rcubed;
+
+/**
+ * Management interface of the statistics kept for one DAO method, as published over JMX (see DaoMetrics).
+ *
+ * Latencies cover the whole call, including calls that failed, and are reported in milliseconds.
+ */
+public interface DaoMethodMXBean
+{
+  /**
+   * Get the number of calls made.
+   */
+  public abstract long getCallCount();
+
+  /**
+   * Get the number of calls that failed with an exception.
+   */
+  public abstract long getErrorCount();
+
+  /**
+   * Get the number of bytes of image data read or written by the calls. 0 for methods that don't move image data.
+   */
+  public abstract long getBytesTransferred();
+
+  /**
+   * Get the mean latency.
+   */
+  public abstract double getMeanLatencyMillis();
+
+  /**
+   * Get the median latency.
+   */
+  public abstract double getLatency50thPercentileMillis();
+
+  /**
+   * Get the 99th percentile latency.
+   */
+  public abstract double getLatency99thPercentileMillis();
+
+  /**
+   * Get the 99.9th percentile latency.
+   */
+  public abstract double getLatency999thPercentileMillis();
+
+  /**
+   * Get the highest latency.
+   */
+  public abstract double getMaxLatencyMillis();
+}
@@ -0,0 +1,118 @@
+package com.example.rcubed;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics for one DAO method: calls, errors, bytes transferred and a histogram of latencies.
+ *
+ * Lock free, so recording adds next to nothing to the calls being measured however many threads are making them.
+ */
+public class DaoMethodMetrics implements DaoMethodMXBean
+{
+  private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+  /**
+   * The name of the method.
+   */
+  private final String method;
+
+  /**
+   * Statistics.
+   */
+  private final LatencyHistogram latencies = new LatencyHistogram();
+  private final LongAdder errors = new LongAdder();
+  private final LongAdder bytes = new LongAdder();
+
+  /**
+   * Constructor
+   *
+   * @param method  The name of the method.
+   */
+  public DaoMethodMetrics(String method)
+  {
+    this.method = method;
+  }
+
+  /**
+   * Get the name of the method.
+   */
+  public String getMethod()
+  {
+    return method;
+  }
+
+  /**
+   * Record one call.
+   *
+   * @param nanos   How long the call took, in nanoseconds.
+   * @param failed  Did the call fail with an exception?
+   */
+  public void record(long nanos, boolean failed)
+  {
+    latencies.record(nanos);
+
+    if (failed)
+    {
+      errors.increment();
+    }
+  }
+
+  /**
+   * Count image data read or written.
+   *
+   * @param count  The number of bytes.
+   */
+  public void addBytes(long count)
+  {
+    bytes.add(count);
+  }
+
+  @Override
+  public long getCallCount()
+  {
+    return latencies.getCount();
+  }
+
+  @Override
+  public long getErrorCount()
+  {
+    return errors.sum();
+  }
+
+  @Override
+  public long getBytesTransferred()
+  {
+    return bytes.sum();
+  }
+
+  @Override
+  public double getMeanLatencyMillis()
+  {
+    return latencies.getMean() / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getLatency50thPercentileMillis()
+  {
+    return latencies.getPercentile(50) / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getLatency99thPercentileMillis()
+  {
+    return latencies.getPercentile(99) / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getLatency999thPercentileMillis()
+  {
+    return latencies.getPercentile(99.9) / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getMaxLatencyMillis()
+  {
+    return latencies.getMax() / NANOS_PER_MILLI;
+  }
+}
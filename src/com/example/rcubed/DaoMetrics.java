@@ -0,0 +1,171 @@
+package com.example.rcubed;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.function.Supplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The per method statistics kept by one instrumented DAO (see InstrumentedPhotoDAO, InstrumentedUserDAO).
+ *
+ * Each method's statistics can be published as an MBean named
+ * "com.example.rcubed:type=<DAO>,context=<context path>,method=<method>", so they show up in JConsole, VisualVM or
+ * anything else that reads JMX. The context path keeps the names of two copies of the app in one container apart.
+ */
+public class DaoMetrics
+{
+  /**
+   * The JMX domain the MBeans are registered under.
+   */
+  public static final String JMX_DOMAIN = "com.example.rcubed";
+
+  /**
+   * The DAO being measured, e.g. "PhotoDAO".
+   */
+  private final String type;
+
+  /**
+   * The statistics, by method name. Never changed after construction, so safe to read from any thread.
+   */
+  private final HashMap<String, DaoMethodMetrics> methods = new HashMap<String, DaoMethodMetrics>();
+
+  /**
+   * The MBeans registered by register(), and the server they were registered with.
+   */
+  private final ArrayList<ObjectName> registered = new ArrayList<ObjectName>();
+  private MBeanServer server;
+
+  /**
+   * Constructor
+   *
+   * @param type     The DAO being measured.
+   * @param methods  The names of the methods measured.
+   */
+  public DaoMetrics(String type, String... methods)
+  {
+    this.type = type;
+
+    for (String method : methods)
+    {
+      this.methods.put(method, new DaoMethodMetrics(method));
+    }
+  }
+
+  /**
+   * Get the DAO being measured.
+   */
+  public String getType()
+  {
+    return type;
+  }
+
+  /**
+   * Get the statistics for one method.
+   *
+   * @param method  The name of the method.
+   *
+   * @throws IllegalArgumentException if the method isn't measured.
+   */
+  public DaoMethodMetrics get(String method)
+  {
+    DaoMethodMetrics metrics = methods.get(method);
+
+    if (metrics == null)
+    {
+      throw new IllegalArgumentException("No metrics for " + type + "." + method);
+    }
+
+    return metrics;
+  }
+
+  /**
+   * Get the statistics for every method.
+   */
+  public Collection<DaoMethodMetrics> getAll()
+  {
+    return methods.values();
+  }
+
+  /**
+   * Make a call, recording how long it took and whether it failed.
+   *
+   * @param metrics  The statistics to record the call in.
+   * @param call     The call.
+   *
+   * @return Whatever the call returned. Exceptions thrown by the call are passed on.
+   */
+  public static <T> T time(DaoMethodMetrics metrics, Supplier<T> call)
+  {
+    long start = System.nanoTime();
+    boolean failed = true;
+
+    try
+    {
+      T result = call.get();
+      failed = false;
+      return result;
+    }
+    finally
+    {
+      metrics.record(System.nanoTime() - start, failed);
+    }
+  }
+
+  /**
+   * Publish the statistics as MBeans.
+   *
+   * @param server       The MBean server to register them with, normally ManagementFactory.getPlatformMBeanServer().
+   * @param contextPath  The context path of the web app ("" for the root), to tell copies of the app deployed in the
+   *                     same JVM apart.
+   *
+   * @throws JMException if an MBean could not be registered (e.g. the same app has already registered one with the
+   *                     same name). Any already registered are left registered.
+   */
+  public synchronized void register(MBeanServer server, String contextPath) throws JMException
+  {
+    this.server = server;
+
+    for (DaoMethodMetrics metrics : methods.values())
+    {
+      // Quoted, as a context path can contain characters that aren't allowed in a name as they are.
+      ObjectName name = new ObjectName(JMX_DOMAIN + ":type=" + type + ",context=" + ObjectName.quote(contextPath)
+          + ",method=" + metrics.getMethod());
+
+      server.registerMBean(metrics, name);
+      registered.add(name);
+    }
+  }
+
+  /**
+   * Remove the MBeans published by register().
+   *
+   * @throws JMException if an MBean could not be unregistered. The rest are still unregistered.
+   */
+  public synchronized void unregister() throws JMException
+  {
+    JMException failure = null;
+
+    for (ObjectName name : registered)
+    {
+      try
+      {
+        server.unregisterMBean(name);
+      }
+      catch (JMException ex)
+      {
+        failure = ex;
+      }
+    }
+
+    registered.clear();
+
+    if (failure != null)
+    {
+      throw failure;
+    }
+  }
+}
@@ -0,0 +1,356 @@
+package com.example.rcubed;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In memory copy of who has who on their friends list, indexed in both directions.
+ * 
+ * Each username is given a small int id, and each user's friends (forward edges) and the users who have them as a
+ * friend (reverse edges, i.e. followers) are held as sorted int arrays. A friend check is then a binary search and
+ * neither direction needs a database query.
+ * 
+ * The graph is loaded when the application starts and kept up to date by the UserDAO mutation methods, so it only
+ * reflects changes made through this server.
+ */
+public class FriendGraph
+{
+  /**
+   * Shared empty adjacency list.
+   */
+  private static final int[] NO_EDGES = new int[0];
+
+  /**
+   * Username to id, and id to username.
+   */
+  private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+  private final ArrayList<String> names = new ArrayList<String>();
+
+  /**
+   * Adjacency lists, indexed by id. friends[a] contains b if a has b on their friends list, and followers[b] then
+   * contains a. Both are kept sorted.
+   */
+  private int[][] friends = new int[16][];
+  private int[][] followers = new int[16][];
+
+  /**
+   * Many readers (every visibility check) and few writers (friend list changes).
+   */
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+  /**
+   * Replace a user's friends list.
+   * 
+   * @param username     The user.
+   * @param friendsList  The names on their friends list.
+   */
+  public void setFriends(String username, Collection<String> friendsList)
+  {
+    lock.writeLock().lock();
+
+    try
+    {
+      int user = idFor(username);
+
+      // Build the new list in one go, rather than inserting each friend into a growing sorted array.
+      int[] newFriends = new int[friendsList.size()];
+      int count = 0;
+
+      for (String friendName : friendsList)
+      {
+        newFriends[count++] = idFor(friendName);
+      }
+
+      Arrays.sort(newFriends);
+      newFriends = dedupe(newFriends);
+
+      // Only the followers of friends added or removed need patching, found by walking both sorted lists together.
+      int[] oldFriends = friends[user];
+      int oldIndex = 0;
+      int newIndex = 0;
+
+      while (oldIndex < oldFriends.length || newIndex < newFriends.length)
+      {
+        if (newIndex == newFriends.length
+            || (oldIndex < oldFriends.length && oldFriends[oldIndex] < newFriends[newIndex]))
+        {
+          int friend = oldFriends[oldIndex++];
+          followers[friend] = remove(followers[friend], user);
+        }
+        else if (oldIndex == oldFriends.length || newFriends[newIndex] < oldFriends[oldIndex])
+        {
+          int friend = newFriends[newIndex++];
+          followers[friend] = insert(followers[friend], user);
+        }
+        else
+        {
+          oldIndex++;
+          newIndex++;
+        }
+      }
+
+      friends[user] = newFriends;
+    }
+    finally
+    {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Record that a user has added a name to their friends list.
+   * 
+   * @param username  The user.
+   * @param friend    The name added.
+   */
+  public void addFriend(String username, String friend)
+  {
+    lock.writeLock().lock();
+
+    try
+    {
+      addEdge(idFor(username), idFor(friend));
+    }
+    finally
+    {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Record that a user has removed a name from their friends list.
+   * 
+   * @param username  The user.
+   * @param exFriend  The name removed.
+   */
+  public void removeFriend(String username, String exFriend)
+  {
+    lock.writeLock().lock();
+
+    try
+    {
+      Integer user = ids.get(username);
+      Integer friend = ids.get(exFriend);
+
+      if (user != null && friend != null)
+      {
+        friends[user] = remove(friends[user], friend);
+        followers[friend] = remove(followers[friend], user);
+      }
+    }
+    finally
+    {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Does a user have a name on their friends list?
+   * 
+   * @param username   The user whose friends list is checked.
+   * @param candidate  The name to look for.
+   */
+  public boolean isFriend(String username, String candidate)
+  {
+    lock.readLock().lock();
+
+    try
+    {
+      Integer user = ids.get(username);
+      Integer friend = ids.get(candidate);
+
+      return (user != null) && (friend != null) && (Arrays.binarySearch(friends[user], friend) >= 0);
+    }
+    finally
+    {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Get the names on a user's friends list.
+   * 
+   * @param username  The user.
+   */
+  public ArrayList<String> getFriends(String username)
+  {
+    lock.readLock().lock();
+
+    try
+    {
+      Integer user = ids.get(username);
+
+      return toNames((user != null) ? friends[user] : NO_EDGES);
+    }
+    finally
+    {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Get the users who have a name on their friends list.
+   * 
+   * @param username  The name to look for.
+   */
+  public ArrayList<String> getFollowers(String username)
+  {
+    lock.readLock().lock();
+
+    try
+    {
+      Integer user = ids.get(username);
+
+      return toNames((user != null) ? followers[user] : NO_EDGES);
+    }
+    finally
+    {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Get the number of usernames known to the graph (users plus names on friends lists).
+   */
+  public int getNameCount()
+  {
+    lock.readLock().lock();
+
+    try
+    {
+      return names.size();
+    }
+    finally
+    {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Get the id for a name, assigning a new one if needed. Must hold the write lock.
+   */
+  private int idFor(String name)
+  {
+    Integer id = ids.get(name);
+
+    if (id == null)
+    {
+      id = names.size();
+      ids.put(name, id);
+      names.add(name);
+
+      if (id == friends.length)
+      {
+        friends = Arrays.copyOf(friends, id * 2);
+        followers = Arrays.copyOf(followers, id * 2);
+      }
+
+      friends[id] = NO_EDGES;
+      followers[id] = NO_EDGES;
+    }
+
+    return id;
+  }
+
+  /**
+   * Add an edge in both directions. Must hold the write lock.
+   */
+  private void addEdge(int user, int friend)
+  {
+    friends[user] = insert(friends[user], friend);
+    followers[friend] = insert(followers[friend], user);
+  }
+
+  /**
+   * Convert a list of ids to names. Must hold the read lock.
+   */
+  private ArrayList<String> toNames(int[] edges)
+  {
+    ArrayList<String> result = new ArrayList<String>(edges.length);
+
+    for (int id : edges)
+    {
+      result.add(names.get(id));
+    }
+
+    return result;
+  }
+
+  /**
+   * Add a value to a sorted array (if not already present).
+   * 
+   * @return The new array, or the same array if the value was already there.
+   */
+  private static int[] insert(int[] sorted, int value)
+  {
+    int index = Arrays.binarySearch(sorted, value);
+
+    if (index >= 0)
+    {
+      return sorted;
+    }
+
+    index = -(index + 1);
+
+    int[] result = new int[sorted.length + 1];
+    System.arraycopy(sorted, 0, result, 0, index);
+    result[index] = value;
+    System.arraycopy(sorted, index, result, index + 1, sorted.length - index);
+
+    return result;
+  }
+
+  /**
+   * Drop repeated values from a sorted array.
+   * 
+   * @return The new array, or the same array if there were no repeats.
+   */
+  private static int[] dedupe(int[] sorted)
+  {
+    if (sorted.length == 0)
+    {
+      return NO_EDGES;
+    }
+
+    int count = 1;
+
+    for (int i = 1; i < sorted.length; i++)
+    {
+      if (sorted[i] != sorted[count - 1])
+      {
+        sorted[count++] = sorted[i];
+      }
+    }
+
+    return (count == sorted.length) ? sorted : Arrays.copyOf(sorted, count);
+  }
+
+  /**
+   * Remove a value from a sorted array (if present).
+   * 
+   * @return The new array, or the same array if the value wasn't there.
+   */
+  private static int[] remove(int[] sorted, int value)
+  {
+    int index = Arrays.binarySearch(sorted, value);
+
+    if (index < 0)
+    {
+      return sorted;
+    }
+
+    if (sorted.length == 1)
+    {
+      return NO_EDGES;
+    }
+
+    int[] result = new int[sorted.length - 1];
+    System.arraycopy(sorted, 0, result, 0, index);
+    System.arraycopy(sorted, index + 1, result, index, sorted.length - index - 1);
+
+    return result;
+  }
+}
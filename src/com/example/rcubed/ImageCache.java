@@ -0,0 +1,85 @@
+package com.example.rcubed;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+
+/**
+ * A cache of image data, shared by every session, keyed by the id the image is stored under in the database.
+ * 
+ * Stored images never change once written, so entries only need to be removed when the image itself is deleted.
+ */
+public interface ImageCache
+{
+  /**
+   * Look up an image.
+   * 
+   * @param imageId  The id of the image in the database.
+   * 
+   * @return The image, or null if it isn't cached. The image's stream must be closed once it has been read. The data
+   *         is only held for the caller once the stream is opened, and if the image has been evicted by then opening
+   *         it fails with an IOException.
+   */
+  public abstract PhotoImage get(Object imageId);
+
+  /**
+   * Add an image to the cache, evicting others if needed to make room.
+   * 
+   * @param imageId  The id of the image in the database.
+   * @param image    The image. Its data must be held in memory.
+   */
+  public abstract void put(Object imageId, PhotoImage image);
+
+  /**
+   * Add an image to the cache straight from a stream, evicting others if needed to make room.
+   * 
+   * Used when the image is read from the database, so it never has to be held in a byte array on the way in (unless
+   * that is how the cache keeps it anyway).
+   * 
+   * @param imageId      The id of the image in the database.
+   * @param in           Stream over the image data. Read to the end if the image is added, and not closed.
+   * @param length       The size of the image in bytes.
+   * @param md5          MD5 hash of the image data.
+   * @param uploadDate   The time the image was stored.
+   * @param contentType  MIME type of the image (may be null).
+   * 
+   * @return The cached image, to be read in place of the stream as if it had been returned by get(), or null if it
+   *         couldn't be cached, in which case nothing has been read from the stream.
+   * 
+   * @throws IOException if the stream can't be read. Nothing is cached.
+   */
+  public abstract PhotoImage put(Object imageId, InputStream in, long length, String md5, Date uploadDate,
+      String contentType) throws IOException;
+
+  /**
+   * Remove an image from the cache (if present).
+   * 
+   * @param imageId  The id of the image in the database.
+   */
+  public abstract void remove(Object imageId);
+
+  /**
+   * Get the size in bytes of the largest image the cache will hold. Bigger images are never cached.
+   */
+  public abstract long getMaxEntryBytes();
+
+  /**
+   * Get the total size in bytes of the images currently cached.
+   */
+  public abstract long getSizeBytes();
+
+  /**
+   * Get the number of lookups that found the image in the cache.
+   */
+  public abstract long getHitCount();
+
+  /**
+   * Get the number of lookups that did not find the image in the cache.
+   */
+  public abstract long getMissCount();
+
+  /**
+   * Get the number of images evicted to make room for others.
+   */
+  public abstract long getEvictionCount();
+}
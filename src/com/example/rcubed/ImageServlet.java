@@ -0,0 +1,373 @@
+package com.example.rcubed;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import com.example.rcubed.Photo.Visibility;
+
+/**
+ * Serves photo images straight out of the database, independently of any Vaadin session.
+ * 
+ * Images are addressed by photo id - /images/<photo id>?size=thumbnail|preview|original - so the URL of an image never
+ * changes and the browser can cache it. Conditional requests are answered from the stored MD5 (ETag) and upload time
+ * (Last-Modified) without reading the image data, and single byte ranges are supported.
+ */
+@SuppressWarnings("serial")
+@WebServlet(value = "/images/*")
+public class ImageServlet extends HttpServlet
+{
+  /**
+   * The path this servlet is mapped to, relative to the context root.
+   */
+  public static final String IMAGE_PATH = "/images";
+
+  /**
+   * Query parameter selecting the rendition to serve. Defaults to the original.
+   */
+  public static final String PARAM_SIZE = "size";
+
+  /**
+   * HTTP session attribute holding the name of the logged in user, used for the visibility check.
+   */
+  public static final String SESSION_USERNAME = "rcubed.username";
+
+  /**
+   * How long (in seconds) the browser may use its copy of an image before checking back with us.
+   */
+  private static final int MAX_AGE = 3600;
+
+  /**
+   * Size of the buffer used to copy the image to the response.
+   */
+  private static final int BUFFER_SIZE = 32 * 1024;
+
+  /**
+   * Build the URL of an image.
+   * 
+   * @param contextPath  The servlet context path.
+   * @param photo        The photo.
+   * @param rendition    The rendition wanted.
+   */
+  public static String getImageUrl(String contextPath, Photo photo, Photo.Rendition rendition)
+  {
+    return getImageUrl(contextPath, photo.getId(), rendition);
+  }
+
+  /**
+   * Build the URL of an image.
+   * 
+   * @param contextPath  The servlet context path.
+   * @param photoId      The id of the photo.
+   * @param rendition    The rendition wanted.
+   */
+  public static String getImageUrl(String contextPath, String photoId, Photo.Rendition rendition)
+  {
+    return contextPath + IMAGE_PATH + "/" + photoId + "?" + PARAM_SIZE + "=" + rendition.name().toLowerCase();
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+  {
+    PhotoDAO photoDAO = (PhotoDAO) getServletContext().getAttribute(RcubedUI.Servlet.ATTRIBUTE_PHOTO_DAO);
+    UserDAO userDAO = (UserDAO) getServletContext().getAttribute(RcubedUI.Servlet.ATTRIBUTE_USER_DAO);
+
+    if (photoDAO == null || userDAO == null)
+    {
+      // The application hasn't finished starting up (or is shutting down).
+      response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      return;
+    }
+
+    // Work out what's being asked for.
+    String photoId = (request.getPathInfo() != null) ? request.getPathInfo().substring(1) : "";
+    Photo.Rendition rendition = parseRendition(request.getParameter(PARAM_SIZE));
+
+    if (rendition == null)
+    {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+      return;
+    }
+
+    Photo photo = photoDAO.getPhoto(photoId);
+
+    // Photos the requester isn't allowed to see are reported as missing, so we don't give away that they exist.
+    if (photo == null || !isVisibleTo(photo, getViewer(request), photoDAO, userDAO))
+    {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+
+    // Only the image's details are looked up here, the data isn't read unless there is a body to send.
+    PhotoImage image = photoDAO.openImage(photo, rendition);
+
+    if (image == null)
+    {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+
+    sendImage(request, response, photo, image);
+  }
+
+  /**
+   * Write the image (or the appropriate not modified/partial response) to the client.
+   */
+  private void sendImage(HttpServletRequest request, HttpServletResponse response, Photo photo, PhotoImage image)
+      throws IOException
+  {
+    String etag = "\"" + image.getMD5() + "\"";
+    long lastModified = (image.getUploadDate() != null) ? image.getUploadDate().getTime() : -1;
+    long length = image.getLength();
+
+    // Only public photos may be kept by shared caches.
+    response.setHeader("Cache-Control", ((photo.getVisibility() == Visibility.PUBLIC) ? "public" : "private")
+        + ", max-age=" + MAX_AGE);
+    response.setHeader("ETag", etag);
+    response.setHeader("Accept-Ranges", "bytes");
+
+    if (lastModified >= 0)
+    {
+      response.setDateHeader("Last-Modified", lastModified);
+    }
+
+    if (isNotModified(request, etag, lastModified))
+    {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+
+    // Default to sending the whole image.
+    long start = 0;
+    long end = length - 1;
+
+    String range = request.getHeader("Range");
+    String ifRange = request.getHeader("If-Range");
+
+    // A range only applies if the client's partial copy is of the same image we have now.
+    if (range != null && (ifRange == null || ifRange.equals(etag)))
+    {
+      long[] bounds = parseRange(range, length);
+
+      if (bounds == null)
+      {
+        response.setHeader("Content-Range", "bytes */" + length);
+        response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        return;
+      }
+
+      if (bounds.length == 2)
+      {
+        start = bounds[0];
+        end = bounds[1];
+
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+      }
+    }
+
+    if (image.getContentType() != null)
+    {
+      response.setContentType(image.getContentType());
+    }
+
+    response.setHeader("Content-Length", Long.toString(end - start + 1));
+
+    try (InputStream in = image.getInputStream())
+    {
+      copy(in, response.getOutputStream(), start, end - start + 1);
+    }
+  }
+
+  /**
+   * Can the client use the copy it already has?
+   */
+  private static boolean isNotModified(HttpServletRequest request, String etag, long lastModified)
+  {
+    boolean notModified = false;
+    String ifNoneMatch = request.getHeader("If-None-Match");
+
+    if (ifNoneMatch != null)
+    {
+      // If-None-Match takes precedence over If-Modified-Since when both are present.
+      for (String candidate : ifNoneMatch.split(","))
+      {
+        candidate = candidate.trim();
+
+        if (candidate.equals(etag) || candidate.equals("*") || candidate.equals("W/" + etag))
+        {
+          notModified = true;
+        }
+      }
+    }
+    else if (lastModified >= 0)
+    {
+      long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+
+      // HTTP dates only have one second resolution.
+      notModified = (ifModifiedSince >= 0) && (lastModified / 1000 <= ifModifiedSince / 1000);
+    }
+
+    return notModified;
+  }
+
+  /**
+   * Parse a Range header.
+   * 
+   * Only a single byte range is supported. Anything else (multiple ranges, other units) is ignored and the whole image
+   * is sent, which the spec allows.
+   * 
+   * @param range   The Range header value.
+   * @param length  The size of the image.
+   * 
+   * @return {start, end} (inclusive) for a satisfiable range, an empty array if the header should be ignored, or null
+   *         if the range can't be satisfied.
+   */
+  private static long[] parseRange(String range, long length)
+  {
+    long[] bounds = new long[0];
+
+    if (range.startsWith("bytes=") && range.indexOf(',') < 0)
+    {
+      String spec = range.substring("bytes=".length()).trim();
+      int dash = spec.indexOf('-');
+
+      try
+      {
+        if (dash == 0)
+        {
+          // Suffix range - the last N bytes.
+          long suffix = Long.parseLong(spec.substring(1));
+          bounds = (suffix > 0 && length > 0) ? new long[] { Math.max(0, length - suffix), length - 1 } : null;
+        }
+        else if (dash > 0)
+        {
+          long start = Long.parseLong(spec.substring(0, dash));
+          String endSpec = spec.substring(dash + 1);
+          long end = "".equals(endSpec) ? length - 1 : Math.min(Long.parseLong(endSpec), length - 1);
+
+          bounds = (start < length && start <= end) ? new long[] { start, end } : null;
+        }
+      }
+      catch (NumberFormatException ex)
+      {
+        // Malformed - ignore it.
+        bounds = new long[0];
+      }
+    }
+
+    return bounds;
+  }
+
+  /**
+   * Copy part of the image to the response.
+   */
+  private static void copy(InputStream in, OutputStream out, long offset, long count) throws IOException
+  {
+    // Skip up to the start of the range. GridFS only fetches the chunks we actually read.
+    while (offset > 0)
+    {
+      long skipped = in.skip(offset);
+
+      if (skipped <= 0)
+      {
+        throw new IOException("Unexpected end of image data");
+      }
+
+      offset -= skipped;
+    }
+
+    byte[] buffer = new byte[BUFFER_SIZE];
+
+    while (count > 0)
+    {
+      int read = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+
+      if (read < 0)
+      {
+        throw new IOException("Unexpected end of image data");
+      }
+
+      out.write(buffer, 0, read);
+      count -= read;
+    }
+  }
+
+  /**
+   * Get the name of the user making the request, or null if nobody is logged in.
+   */
+  private static String getViewer(HttpServletRequest request)
+  {
+    HttpSession session = request.getSession(false);
+
+    return (session != null) ? (String) session.getAttribute(SESSION_USERNAME) : null;
+  }
+
+  /**
+   * Convert the size parameter to a rendition.
+   * 
+   * @return The rendition, or null if the parameter is not a valid rendition name.
+   */
+  private static Photo.Rendition parseRendition(String size)
+  {
+    Photo.Rendition rendition = Photo.Rendition.ORIGINAL;
+
+    if (size != null)
+    {
+      try
+      {
+        rendition = Photo.Rendition.valueOf(size.toUpperCase());
+      }
+      catch (IllegalArgumentException ex)
+      {
+        rendition = null;
+      }
+    }
+
+    return rendition;
+  }
+
+  /**
+   * Apply the same visibility rules as User.getPhotos().
+   * 
+   * @param photo   The photo being requested.
+   * @param viewer  The name of the user requesting it (null if nobody is logged in).
+   */
+  private static boolean isVisibleTo(Photo photo, String viewer, PhotoDAO photoDAO, UserDAO userDAO)
+  {
+    boolean visible;
+
+    if (photo.getVisibility() == Visibility.PUBLIC)
+    {
+      // Anybody can see public photos.
+      visible = true;
+    }
+    else if (viewer == null)
+    {
+      visible = false;
+    }
+    else if (viewer.equals(photo.getOwner()))
+    {
+      // The owner can see all their own photos.
+      visible = true;
+    }
+    else if (photo.getVisibility() == Visibility.FRIENDS)
+    {
+      // Friends only photos can be seen by anyone on the owner's friends list.
+      visible = userDAO.isFriend(photo.getOwner(), viewer);
+    }
+    else
+    {
+      visible = false;
+    }
+
+    return visible;
+  }
+}
@@ -0,0 +1,183 @@
+package com.example.rcubed;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * An image being written to the database as it is uploaded, so the upload never has to be held in memory.
+ *
+ * Created by PhotoDAO.beginImageUpload(). Once everything has been written the upload is either attached to a photo
+ * with PhotoDAO.insertPhoto(Photo, ImageUpload) or thrown away with PhotoDAO.abortImageUpload().
+ */
+public class ImageUpload
+{
+  /**
+   * The hash used to spot identical images.
+   */
+  public static final String CONTENT_HASH_ALGORITHM = "SHA-256";
+
+  /**
+   * Hash a complete image.
+   * 
+   * @param data  The image data.
+   * 
+   * @return The hash, as a hex string.
+   */
+  public static String getContentHash(byte[] data)
+  {
+    return toHex(createContentDigest().digest(data));
+  }
+
+  /**
+   * Create a digest for CONTENT_HASH_ALGORITHM.
+   */
+  private static MessageDigest createContentDigest()
+  {
+    try
+    {
+      return MessageDigest.getInstance(CONTENT_HASH_ALGORITHM);
+    }
+    catch (NoSuchAlgorithmException ex)
+    {
+      // Every JVM has to provide SHA-256.
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  /**
+   * Convert a hash to a hex string.
+   */
+  static String toHex(byte[] hash)
+  {
+    StringBuilder hex = new StringBuilder(hash.length * 2);
+
+    for (byte b : hash)
+    {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+      hex.append(Character.forDigit(b & 0xf, 16));
+    }
+
+    return hex.toString();
+  }
+
+  /**
+   * The id the image is being stored under.
+   */
+  private Object imageId;
+
+  /**
+   * Stream writing the image data to the database.
+   */
+  private OutputStream stream;
+
+  /**
+   * Has the stream been closed?
+   */
+  private boolean closed;
+
+  /**
+   * Hashes the image data as it is written.
+   */
+  private MessageDigest digest;
+
+  /**
+   * The hash of the image data, once the stream has been closed.
+   */
+  private String contentHash;
+
+  /**
+   * The number of bytes written so far.
+   */
+  private long length;
+
+  /**
+   * Constructor
+   *
+   * @param imageId  The id the image is being stored under.
+   * @param out      Stream writing the image data to the database. Closing it completes the image.
+   */
+  public ImageUpload(Object imageId, OutputStream out)
+  {
+    this.imageId = imageId;
+    this.closed = false;
+    this.digest = createContentDigest();
+    this.contentHash = null;
+    this.length = 0;
+
+    // Closing more than once is harmless, whoever gets there first (the upload or the DAO) completes the image.
+    this.stream = new FilterOutputStream(new DigestOutputStream(out, digest))
+    {
+      @Override
+      public void write(int b) throws IOException
+      {
+        this.out.write(b);
+        length++;
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException
+      {
+        // FilterOutputStream writes a byte at a time otherwise.
+        this.out.write(b, off, len);
+        length += len;
+      }
+
+      @Override
+      public void close() throws IOException
+      {
+        if (!closed)
+        {
+          closed = true;
+          contentHash = toHex(digest.digest());
+          super.close();
+        }
+      }
+    };
+  }
+
+  /**
+   * Get the id the image is being stored under.
+   */
+  public Object getImageId()
+  {
+    return imageId;
+  }
+
+  /**
+   * Get the hash of the image data (see getContentHash(byte[])). Null until the upload has been closed.
+   */
+  public String getContentHash()
+  {
+    return contentHash;
+  }
+
+  /**
+   * Get the number of bytes of image data written so far.
+   */
+  public long getLength()
+  {
+    return length;
+  }
+
+  /**
+   * Get the stream the image data should be written to.
+   */
+  public OutputStream getOutputStream()
+  {
+    return stream;
+  }
+
+  /**
+   * Finish writing the image.
+   *
+   * @throws IOException  If the last of the image data could not be written.
+   */
+  public void close() throws IOException
+  {
+    stream.close();
+  }
+}
@@ -0,0 +1,1138 @@
+package com.example.rcubed;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import org.bson.types.ObjectId;
+
+import com.example.rcubed.Photo.Visibility;
+
+/**
+ * PhotoDAO that keeps every photo, image and comment in memory, for tests, demos and benchmarks that shouldn't need a
+ * database.
+ *
+ * Photos are indexed by id, by owner (sorted newest first, so album pages are read straight off the index) and by tag.
+ * Behaves the same as MongoDbDAOPhoto: only the owner can change a photo, queries apply the same visibility rules,
+ * identical images are shared, renditions are generated on insert, and pages use the same continuation tokens.
+ *
+ * Safe to use from any number of threads. Each stored photo is guarded by its own lock, and callers only ever see
+ * copies of it. Nothing is persisted.
+ */
+public class InMemoryPhotoDAO implements PhotoDAO
+{
+  /**
+   * Position of a photo or comment in a page: newest first, ties broken by id (also newest first). Same order as the
+   * Mongo Db queries.
+   */
+  private static class PageKey implements Comparable<PageKey>
+  {
+    private final long time;
+    private final ObjectId id;
+
+    private PageKey(long time, ObjectId id)
+    {
+      this.time = time;
+      this.id = id;
+    }
+
+    @Override
+    public int compareTo(PageKey other)
+    {
+      int order = Long.compare(other.time, time);
+
+      return (order != 0) ? order : other.id.compareTo(id);
+    }
+  }
+
+  /**
+   * A photo as stored. Guarded by its own lock.
+   */
+  private static class StoredPhoto
+  {
+    private final PageKey key;
+    private final Photo photo;
+    private boolean deleted;
+
+    private StoredPhoto(PageKey key, Photo photo)
+    {
+      this.key = key;
+      this.photo = photo;
+      this.deleted = false;
+    }
+  }
+
+  /**
+   * A distinct stored image and the number of photos sharing it. Guarded by the lock on contents.
+   */
+  private static class Content
+  {
+    private final Object imageId;
+    private final Object thumbnailId;
+    private final Object previewId;
+    private int refs;
+
+    private Content(Photo photo)
+    {
+      this.imageId = photo.getGFSPhotoId();
+      this.thumbnailId = photo.getGFSRenditionId(Photo.Rendition.THUMBNAIL);
+      this.previewId = photo.getGFSRenditionId(Photo.Rendition.PREVIEW);
+      this.refs = 1;
+    }
+  }
+
+  /**
+   * An upload still being written.
+   */
+  private static class PendingUpload
+  {
+    private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+    private final String contentType;
+
+    private PendingUpload(String contentType)
+    {
+      this.contentType = contentType;
+    }
+  }
+
+  /**
+   * The photos, by id.
+   */
+  private final ConcurrentHashMap<String, StoredPhoto> photos = new ConcurrentHashMap<String, StoredPhoto>();
+
+  /**
+   * Each owner's photos, newest first.
+   */
+  private final ConcurrentHashMap<String, ConcurrentSkipListMap<PageKey, StoredPhoto>> owners =
+      new ConcurrentHashMap<String, ConcurrentSkipListMap<PageKey, StoredPhoto>>();
+
+  /**
+   * The photos with each tag.
+   */
+  private final ConcurrentHashMap<String, Set<StoredPhoto>> tags = new ConcurrentHashMap<String, Set<StoredPhoto>>();
+
+  /**
+   * Each photo's comments, newest first, by photo id.
+   */
+  private final ConcurrentHashMap<String, ConcurrentSkipListMap<PageKey, Comment>> comments =
+      new ConcurrentHashMap<String, ConcurrentSkipListMap<PageKey, Comment>>();
+
+  /**
+   * The stored images and renditions, by id.
+   */
+  private final ConcurrentHashMap<Object, PhotoImage> images = new ConcurrentHashMap<Object, PhotoImage>();
+
+  /**
+   * The distinct images, by content hash (see ImageUpload.getContentHash()).
+   */
+  private final ConcurrentHashMap<String, Content> contents = new ConcurrentHashMap<String, Content>();
+
+  /**
+   * Uploads still being written, by image id.
+   */
+  private final ConcurrentHashMap<Object, PendingUpload> uploads = new ConcurrentHashMap<Object, PendingUpload>();
+
+  /**
+   * Used to find who has a user on their friends list when building their feed.
+   */
+  private UserDAO userDAO;
+
+  /**
+   * Set the user DAO used to find who has a user on their friends list when building their feed.
+   *
+   * @param userDAO  The user DAO, or null to only include the Public photos of the viewer's friends.
+   */
+  public void setUserDAO(UserDAO userDAO)
+  {
+    this.userDAO = userDAO;
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.insertPhoto(Photo photo)
+   */
+  @Override
+  public boolean insertPhoto(Photo photo)
+  {
+    // Default return value to false.
+    boolean success = false;
+
+    byte[] imageData = photo.getImage();
+    storeImage(photo, new ObjectId(), imageData, null, ImageUpload.getContentHash(imageData));
+
+    addPhoto(photo);
+    success = true;
+
+    return success;
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.beginImageUpload(String filename, String mimeType)
+   */
+  @Override
+  public ImageUpload beginImageUpload(String filename, String mimeType)
+  {
+    ObjectId imageId = new ObjectId();
+    PendingUpload pending = new PendingUpload(mimeType);
+    uploads.put(imageId, pending);
+
+    return new ImageUpload(imageId, pending.data);
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.insertPhoto(Photo photo, ImageUpload upload)
+   */
+  @Override
+  public boolean insertPhoto(Photo photo, ImageUpload upload)
+  {
+    // Default return value to false.
+    boolean success = false;
+
+    try
+    {
+      upload.close();
+
+      PendingUpload pending = uploads.remove(upload.getImageId());
+
+      if (pending != null)
+      {
+        storeImage(photo, upload.getImageId(), pending.data.toByteArray(), pending.contentType,
+            upload.getContentHash());
+
+        addPhoto(photo);
+        success = true;
+      }
+    }
+    catch (IOException ex)
+    {
+      // Can't happen writing to memory, but the upload is thrown away all the same.
+      abortImageUpload(upload);
+    }
+
+    return success;
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.abortImageUpload(ImageUpload upload)
+   */
+  @Override
+  public void abortImageUpload(ImageUpload upload)
+  {
+    try
+    {
+      upload.close();
+    }
+    catch (IOException ex)
+    {
+      // Doesn't matter, it's being thrown away.
+    }
+
+    uploads.remove(upload.getImageId());
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.insertPhotos(List<Photo> photos)
+   */
+  @Override
+  public boolean[] insertPhotos(List<Photo> newPhotos)
+  {
+    boolean[] success = new boolean[newPhotos.size()];
+
+    // Nothing to gain from batching in memory, so one at a time.
+    for (int i = 0; i < newPhotos.size(); i++)
+    {
+      success[i] = insertPhoto(newPhotos.get(i));
+    }
+
+    return success;
+  }
+
+  /**
+   * Store a photo's image and its renditions, and record their ids on the photo.
+   *
+   * If the same image is already stored the photo shares it, and nothing is stored.
+   *
+   * @param photo        The photo.
+   * @param imageId      The id to store the image under.
+   * @param imageData    The image data.
+   * @param contentType  MIME type of the image (may be null).
+   * @param contentHash  The hash of the image data.
+   */
+  private void storeImage(Photo photo, Object imageId, byte[] imageData, String contentType, String contentHash)
+  {
+    if (!claimContent(photo, contentHash))
+    {
+      images.put(imageId, createImage(imageData, contentType));
+      photo.setGFSPhotoId(imageId);
+
+      // Store the smaller versions of the image used for display.
+      storeRenditions(photo, imageData);
+
+      recordContent(photo, contentHash);
+    }
+  }
+
+  /**
+   * Share an image that is already stored, if there is one with the same content.
+   *
+   * @param photo        The photo that is to use the image.
+   * @param contentHash  The hash of the image data.
+   *
+   * @return True if the photo now uses the stored image and its renditions, false if there is no such image.
+   */
+  private boolean claimContent(Photo photo, String contentHash)
+  {
+    boolean claimed = false;
+
+    synchronized (contents)
+    {
+      Content content = contents.get(contentHash);
+
+      if (content != null)
+      {
+        content.refs++;
+        useContent(photo, content, contentHash);
+        claimed = true;
+      }
+    }
+
+    return claimed;
+  }
+
+  /**
+   * Record a newly stored image, so later photos with the same content can share it.
+   *
+   * If the same content was recorded in the meantime (the same image uploaded twice at once) the photo's own copy is
+   * removed, and it shares the recorded image instead.
+   *
+   * @param photo        The photo whose image and renditions have been stored.
+   * @param contentHash  The hash of the image data.
+   */
+  private void recordContent(Photo photo, String contentHash)
+  {
+    synchronized (contents)
+    {
+      Content content = contents.get(contentHash);
+
+      if (content == null)
+      {
+        contents.put(contentHash, new Content(photo));
+        photo.setContentHash(contentHash);
+      }
+      else
+      {
+        ArrayList<Object> ownImageIds = getImageIds(photo);
+
+        content.refs++;
+        useContent(photo, content, contentHash);
+        removeImages(ownImageIds);
+      }
+    }
+  }
+
+  /**
+   * Point a photo at a stored image and its renditions.
+   */
+  private static void useContent(Photo photo, Content content, String contentHash)
+  {
+    photo.setGFSPhotoId(content.imageId);
+    photo.setGFSRenditionId(Photo.Rendition.THUMBNAIL, content.thumbnailId);
+    photo.setGFSRenditionId(Photo.Rendition.PREVIEW, content.previewId);
+    photo.setContentHash(contentHash);
+  }
+
+  /**
+   * Give up a photo's use of its stored image. The image and its renditions are removed once no other photo is using
+   * them.
+   *
+   * @param photo  The photo.
+   */
+  private void releaseImages(Photo photo)
+  {
+    String contentHash = photo.getContentHash();
+
+    if (contentHash == null)
+    {
+      // Not shared, so it can go straight away.
+      removeImages(getImageIds(photo));
+    }
+    else
+    {
+      synchronized (contents)
+      {
+        Content content = contents.get(contentHash);
+
+        if (content != null && --content.refs <= 0)
+        {
+          contents.remove(contentHash);
+          removeImages(getImageIds(photo));
+        }
+      }
+    }
+  }
+
+  /**
+   * Get the distinct ids of a photo's image and renditions.
+   *
+   * @param photo  The photo.
+   *
+   * @return The ids (empty if the photo's image hasn't been stored).
+   */
+  private static ArrayList<Object> getImageIds(Photo photo)
+  {
+    ArrayList<Object> ids = new ArrayList<Object>();
+
+    for (Photo.Rendition rendition : Photo.Rendition.values())
+    {
+      Object id = photo.getGFSRenditionId(rendition);
+
+      if (id != null && !ids.contains(id))
+      {
+        ids.add(id);
+      }
+    }
+
+    return ids;
+  }
+
+  /**
+   * Remove stored images.
+   *
+   * @param imageIds  The ids of the images.
+   */
+  private void removeImages(ArrayList<Object> imageIds)
+  {
+    for (Object imageId : imageIds)
+    {
+      images.remove(imageId);
+    }
+  }
+
+  /**
+   * Generate the thumbnail and preview renditions of a photo, store them and record their ids on the photo.
+   *
+   * A rendition is skipped if the original is already small enough, or if the original can't be decoded, in which
+   * case the original is used in its place.
+   *
+   * @param photo      The photo.
+   * @param imageData  The original image data.
+   */
+  private void storeRenditions(Photo photo, byte[] imageData)
+  {
+    try
+    {
+      BufferedImage decoded = PhotoRenditions.decode(new ByteArrayInputStream(imageData));
+
+      if (decoded != null)
+      {
+        for (Photo.Rendition rendition : new Photo.Rendition[] { Photo.Rendition.THUMBNAIL, Photo.Rendition.PREVIEW })
+        {
+          byte[] renditionData = PhotoRenditions.createRendition(decoded, PhotoRenditions.getMaxSize(rendition));
+
+          if (renditionData != null)
+          {
+            ObjectId renditionId = new ObjectId();
+            images.put(renditionId, createImage(renditionData, PhotoRenditions.RENDITION_CONTENT_TYPE));
+
+            photo.setGFSRenditionId(rendition, renditionId);
+          }
+        }
+      }
+    }
+    catch (IOException ex)
+    {
+      // Not fatal - the original will be displayed instead.
+    }
+  }
+
+  /**
+   * Wrap image data up the way it would be served from the database.
+   *
+   * @param imageData    The image data.
+   * @param contentType  MIME type of the image (may be null).
+   */
+  private static PhotoImage createImage(byte[] imageData, String contentType)
+  {
+    String md5;
+
+    try
+    {
+      md5 = ImageUpload.toHex(MessageDigest.getInstance("MD5").digest(imageData));
+    }
+    catch (NoSuchAlgorithmException ex)
+    {
+      // Every JVM has to provide MD5.
+      throw new IllegalStateException(ex);
+    }
+
+    return new PhotoImage(imageData, md5, new Date(), contentType);
+  }
+
+  /**
+   * Store a photo's meta data and add it to the indexes. Its image must already have been stored.
+   *
+   * @param photo  The photo. Its id is set to the one it has been stored under.
+   */
+  private void addPhoto(Photo photo)
+  {
+    ObjectId id = new ObjectId();
+    photo.setId(id.toString());
+
+    // Keyed on the timestamp as Mongo Db stores it, so photos in the same second are ordered the same way.
+    StoredPhoto stored = new StoredPhoto(new PageKey(MongoDbDAOPhoto.toStoredTimestamp(photo.getTimeStamp()), id),
+        copyPhoto(photo));
+
+    synchronized (stored)
+    {
+      photos.put(photo.getId(), stored);
+
+      owners.compute(photo.getOwner(), (owner, ownerPhotos) ->
+      {
+        ConcurrentSkipListMap<PageKey, StoredPhoto> indexed = (ownerPhotos != null) ? ownerPhotos
+            : new ConcurrentSkipListMap<PageKey, StoredPhoto>();
+        indexed.put(stored.key, stored);
+        return indexed;
+      });
+
+      for (String tag : stored.photo.getTags())
+      {
+        indexTag(tag, stored);
+      }
+    }
+  }
+
+  /**
+   * Add a photo to the tag index.
+   */
+  private void indexTag(String tag, StoredPhoto stored)
+  {
+    tags.compute(tag, (key, tagged) ->
+    {
+      Set<StoredPhoto> indexed = (tagged != null) ? tagged : ConcurrentHashMap.<StoredPhoto> newKeySet();
+      indexed.add(stored);
+      return indexed;
+    });
+  }
+
+  /**
+   * Remove a photo from the tag index. Tags nobody uses any more are dropped.
+   */
+  private void unindexTag(String tag, StoredPhoto stored)
+  {
+    tags.computeIfPresent(tag, (key, tagged) ->
+    {
+      tagged.remove(stored);
+      return tagged.isEmpty() ? null : tagged;
+    });
+  }
+
+  /**
+   * Look up the stored copy of a photo.
+   *
+   * @param photo  The photo.
+   *
+   * @return The stored photo, or null if it isn't stored (or has no id).
+   */
+  private StoredPhoto getStored(Photo photo)
+  {
+    return (photo.getId() != null) ? photos.get(photo.getId()) : null;
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.deletePhoto(User user, Photo photo)
+   */
+  @Override
+  public boolean deletePhoto(User user, Photo photo)
+  {
+    // Default return value to false.
+    boolean success = false;
+
+    // Only allowed to delete photo if the user doing the changing is the photo owner.
+    if (user.getUsername().equals(photo.getOwner()))
+    {
+      StoredPhoto stored = getStored(photo);
+
+      if (stored != null)
+      {
+        synchronized (stored)
+        {
+          if (!stored.deleted)
+          {
+            stored.deleted = true;
+            photos.remove(photo.getId());
+
+            owners.computeIfPresent(stored.photo.getOwner(), (owner, ownerPhotos) ->
+            {
+              ownerPhotos.remove(stored.key);
+              return ownerPhotos.isEmpty() ? null : ownerPhotos;
+            });
+
+            for (String tag : stored.photo.getTags())
+            {
+              unindexTag(tag, stored);
+            }
+
+            // Update was successful.
+            success = true;
+          }
+        }
+      }
+
+      if (success)
+      {
+        // The image goes too, unless another photo is sharing it, and so do the comments.
+        releaseImages(stored.photo);
+        comments.remove(photo.getId());
+      }
+    }
+
+    return success;
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.addTag(User user, Photo photo, String newTag)
+   */
+  @Override
+  public boolean addTag(User user, Photo photo, String newTag)
+  {
+    // Default return value to false.
+    boolean success = false;
+
+    // Only allowed to change photo properties if the user doing the changing is the photo owner.
+    if (user.getUsername().equals(photo.getOwner()) && !photo.getTags().contains(newTag))
+    {
+      StoredPhoto stored = getStored(photo);
+
+      if (stored != null)
+      {
+        synchronized (stored)
+        {
+          if (!stored.deleted)
+          {
+            stored.photo.addTag(newTag);
+            indexTag(newTag, stored);
+
+            // Update was successful.
+            success = true;
+          }
+        }
+      }
+
+      if (success)
+      {
+        // Modify the local copy.
+        photo.addTag(newTag);
+      }
+    }
+
+    return success;
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.removeTag(User user, Photo photo, String exTag
+   */
+  @Override
+  public boolean removeTag(User user, Photo photo, String exTag)
+  {
+    // Default return value to false.
+    boolean success = false;
+
+    // Only allowed to change photo properties if the user doing the changing is the photo owner.
+    if (user.getUsername().equals(photo.getOwner()) && photo.getTags().contains(exTag))
+    {
+      StoredPhoto stored = getStored(photo);
+
+      if (stored != null)
+      {
+        synchronized (stored)
+        {
+          // Every copy of the tag goes, and it only counts as a change if there was one.
+          if (!stored.deleted && stored.photo.getTags().removeAll(Collections.singleton(exTag)))
+          {
+            unindexTag(exTag, stored);
+
+            // Update was successful.
+            success = true;
+          }
+        }
+      }
+
+      if (success)
+      {
+        // Update the local copy
+        photo.removeTag(exTag);
+      }
+    }
+
+    return success;
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.addComment(User user, Photo photo, String newComment)
+   */
+  @Override
+  public boolean addComment(User user, Photo photo, String newComment)
+  {
+    // Default return value to false.
+    boolean success = false;
+
+    StoredPhoto stored = getStored(photo);
+
+    if (stored != null)
+    {
+      ObjectId id = new ObjectId();
+
+      Comment comment = new Comment();
+      comment.setId(id.toString());
+      comment.setPhotoId(photo.getId());
+      comment.setAuthor(user.getUsername());
+      comment.setText(newComment);
+      comment.setTimeStamp(new Date());
+
+      synchronized (stored)
+      {
+        if (!stored.deleted)
+        {
+          stored.photo.addComment();
+
+          comments.computeIfAbsent(photo.getId(), photoId -> new ConcurrentSkipListMap<PageKey, Comment>()).put(
+              new PageKey(comment.getTimeStamp().getTime(), id), comment);
+
+          // Update was successful.
+          success = true;
+        }
+      }
+    }
+
+    if (success)
+    {
+      // Modify the local copy.
+      photo.addComment();
+    }
+
+    return success;
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.changeVisibility(User user, Photo photo, Visibility newVisibility)
+   */
+  @Override
+  public boolean changeVisibility(User user, Photo photo, Visibility newVisibility)
+  {
+    // Default return value to false.
+    boolean success = false;
+
+    // Only allowed to change photo properties if the user doing the changing is the photo owner.
+    if (user.getUsername().equals(photo.getOwner()))
+    {
+      StoredPhoto stored = getStored(photo);
+
+      if (stored != null)
+      {
+        synchronized (stored)
+        {
+          // Setting the visibility it already has doesn't count as a change.
+          if (!stored.deleted && stored.photo.getVisibility() != newVisibility)
+          {
+            stored.photo.setVisibility(newVisibility);
+
+            // Update was successful.
+            success = true;
+          }
+        }
+      }
+
+      if (success)
+      {
+        // Update the local copy.
+        photo.setVisibility(newVisibility);
+      }
+    }
+
+    return success;
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.getPhoto(String photoId)
+   */
+  @Override
+  public Photo getPhoto(String photoId)
+  {
+    StoredPhoto stored = (photoId != null) ? photos.get(photoId) : null;
+
+    return (stored != null) ? snapshot(stored) : null;
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.getPhotos(String owner, String tag, Photo.Visibility allowedVisibility)
+   */
+  @Override
+  public ArrayList<Photo> getPhotos(String owner, String tag, Visibility allowedVisibility)
+  {
+    return getPhotos(owner, tag, allowedVisibility, Integer.MAX_VALUE, null).getItems();
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.getPhotos(String owner, String tag, Photo.Visibility allowedVisibility,
+   * int pageSize, String continuationToken)
+   */
+  @Override
+  public ResultPage<Photo> getPhotos(String owner, String tag, Visibility allowedVisibility, int pageSize,
+      String continuationToken)
+  {
+    return getAlbumPage(owner, tag, allowedVisibility, pageSize, continuationToken, Function.identity());
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.getPhotoSummaries(String owner, String tag, Photo.Visibility allowedVisibility,
+   * int pageSize, String continuationToken)
+   */
+  @Override
+  public ResultPage<PhotoSummary> getPhotoSummaries(String owner, String tag, Visibility allowedVisibility,
+      int pageSize, String continuationToken)
+  {
+    return getAlbumPage(owner, tag, allowedVisibility, pageSize, continuationToken,
+        InMemoryPhotoDAO::createPhotoSummary);
+  }
+
+  /**
+   * Read one page of an album query, newest first.
+   *
+   * The owner index is already in page order, so it is read only as far as the page needs. If the tag is rarer than
+   * the owner's photos, the tag index is used instead and its photos sorted.
+   *
+   * @param owner              The owner of the photos to get.
+   * @param tag                The tag to filter the results by (null or empty for all tags).
+   * @param allowedVisibility  The Visibility of photos the requesting party is allowed to see.
+   * @param pageSize           The maximum number of photos to return.
+   * @param continuationToken  The token from the previous page, or null to start from the newest photo.
+   * @param converter          Converts each matching photo into the type held by the page.
+   *
+   * @return The page.
+   */
+  private <T> ResultPage<T> getAlbumPage(String owner, String tag, Visibility allowedVisibility, int pageSize,
+      String continuationToken, Function<Photo, T> converter)
+  {
+    boolean anyTag = (tag == null || "".equals(tag));
+    Predicate<Photo> matches = photo -> owner.equals(photo.getOwner()) && (anyTag || photo.getTags().contains(tag))
+        && photo.getVisibility().ordinal() >= allowedVisibility.ordinal();
+
+    NavigableMap<PageKey, StoredPhoto> candidates = getOwnerPhotos(owner, continuationToken);
+    Set<StoredPhoto> tagged = anyTag ? null : tags.get(tag);
+
+    if (!anyTag && tagged == null)
+    {
+      // Nobody uses the tag.
+      candidates = Collections.emptyNavigableMap();
+    }
+    else if (tagged != null && tagged.size() < candidates.size())
+    {
+      PageKey after = parseContinuationToken(continuationToken);
+      TreeMap<PageKey, StoredPhoto> sorted = new TreeMap<PageKey, StoredPhoto>();
+
+      for (StoredPhoto stored : tagged)
+      {
+        if (after == null || stored.key.compareTo(after) > 0)
+        {
+          sorted.put(stored.key, stored);
+        }
+      }
+
+      candidates = sorted;
+    }
+
+    return getPage(candidates.entrySet(), pageSize, stored ->
+    {
+      Photo photo = select(stored, matches);
+      return (photo != null) ? converter.apply(photo) : null;
+    });
+  }
+
+  /**
+   * Get an owner's photos, newest first.
+   *
+   * @param owner              The owner.
+   * @param continuationToken  The token from the previous page, or null to start from the newest photo.
+   *
+   * @return The photos after the continuation token, a live view of the owner index.
+   */
+  private NavigableMap<PageKey, StoredPhoto> getOwnerPhotos(String owner, String continuationToken)
+  {
+    PageKey after = parseContinuationToken(continuationToken);
+    NavigableMap<PageKey, StoredPhoto> ownerPhotos = owners.get(owner);
+
+    if (ownerPhotos == null)
+    {
+      ownerPhotos = Collections.emptyNavigableMap();
+    }
+
+    return (after != null) ? ownerPhotos.tailMap(after, false) : ownerPhotos;
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.getFeed(User viewer, int pageSize, String continuationToken)
+   */
+  @Override
+  public ResultPage<Photo> getFeed(User viewer, int pageSize, String continuationToken)
+  {
+    // Owners who have the viewer on their friends list - the viewer can see their Friends photos too.
+    HashSet<String> friendOwners = new HashSet<String>();
+
+    if (userDAO != null)
+    {
+      friendOwners.addAll(userDAO.getFollowers(viewer.getUsername()));
+    }
+
+    // Owners on the viewer's friends list who haven't returned the favour - Public photos only.
+    HashSet<String> publicOwners = new HashSet<String>(viewer.getFriends());
+    publicOwners.removeAll(friendOwners);
+    publicOwners.remove(viewer.getUsername());
+
+    Predicate<Photo> matches = photo -> (friendOwners.contains(photo.getOwner()) && photo.getVisibility()
+        .ordinal() >= Visibility.FRIENDS.ordinal()) || (publicOwners.contains(photo.getOwner()) && photo
+        .getVisibility() == Visibility.PUBLIC);
+
+    // Merge the owners' photos by time. No more than a page (and one more, to tell if there's another page) can come
+    // from any one owner, so that's all that is read from each.
+    TreeMap<PageKey, Photo> merged = new TreeMap<PageKey, Photo>();
+    HashSet<String> feedOwners = new HashSet<String>(friendOwners);
+    feedOwners.addAll(publicOwners);
+
+    for (String owner : feedOwners)
+    {
+      int found = 0;
+
+      for (StoredPhoto stored : getOwnerPhotos(owner, continuationToken).values())
+      {
+        Photo photo = select(stored, matches);
+
+        if (photo != null)
+        {
+          merged.put(stored.key, photo);
+
+          if (++found > pageSize)
+          {
+            break;
+          }
+        }
+      }
+    }
+
+    return getPage(merged.entrySet(), pageSize, Function.identity());
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.getComments(String photoId, int pageSize, String continuationToken)
+   */
+  @Override
+  public ResultPage<Comment> getComments(String photoId, int pageSize, String continuationToken)
+  {
+    PageKey after = parseContinuationToken(continuationToken);
+    NavigableMap<PageKey, Comment> photoComments = comments.get(photoId);
+
+    if (photoComments == null)
+    {
+      photoComments = Collections.emptyNavigableMap();
+    }
+
+    if (after != null)
+    {
+      photoComments = photoComments.tailMap(after, false);
+    }
+
+    return getPage(photoComments.entrySet(), pageSize, InMemoryPhotoDAO::copyComment);
+  }
+
+  /**
+   * Read one page from a list of candidates that is already in page order.
+   *
+   * @param candidates  The candidates.
+   * @param pageSize    The maximum number of items to return.
+   * @param converter   Converts each candidate into the type held by the page, or to null to leave it out.
+   *
+   * @return The page.
+   */
+  private static <S, T> ResultPage<T> getPage(Set<Map.Entry<PageKey, S>> candidates, int pageSize,
+      Function<S, T> converter)
+  {
+    ArrayList<T> items = new ArrayList<T>();
+    String nextToken = null;
+    PageKey last = null;
+
+    for (Map.Entry<PageKey, S> candidate : candidates)
+    {
+      T item = converter.apply(candidate.getValue());
+
+      if (item != null)
+      {
+        if (items.size() == pageSize)
+        {
+          // There's at least one more - the next page starts after the last one we kept.
+          nextToken = MongoDbDAOPhoto.createContinuationToken(last.time, last.id);
+          break;
+        }
+
+        items.add(item);
+        last = candidate.getKey();
+      }
+    }
+
+    return new ResultPage<T>(items, nextToken);
+  }
+
+  /**
+   * Convert a continuation token (see MongoDbDAOPhoto.createContinuationToken()) back into the position it marks.
+   *
+   * @param continuationToken  The token, or null.
+   *
+   * @return The position, or null if there is no token.
+   */
+  private static PageKey parseContinuationToken(String continuationToken)
+  {
+    return (continuationToken != null) ? MongoDbDAOPhoto.parseContinuationToken(continuationToken, PageKey::new)
+        : null;
+  }
+
+  /**
+   * Take a copy of a stored photo, if it matches a query.
+   *
+   * @param stored   The stored photo.
+   * @param matches  The query.
+   *
+   * @return The copy, or null if the photo doesn't match or has been deleted.
+   */
+  private Photo select(StoredPhoto stored, Predicate<Photo> matches)
+  {
+    Photo photo = snapshot(stored);
+
+    return (photo != null && matches.test(photo)) ? photo : null;
+  }
+
+  /**
+   * Take a copy of a stored photo.
+   *
+   * @return The copy, or null if the photo has been deleted.
+   */
+  private Photo snapshot(StoredPhoto stored)
+  {
+    Photo photo = null;
+
+    synchronized (stored)
+    {
+      if (!stored.deleted)
+      {
+        photo = copyPhoto(stored.photo);
+      }
+    }
+
+    return photo;
+  }
+
+  /**
+   * Copy a photo's meta data. The copy loads its image data through this DAO.
+   *
+   * @param photo  The photo.
+   */
+  private Photo copyPhoto(Photo photo)
+  {
+    Photo copy = new Photo();
+
+    copy.setId(photo.getId());
+    copy.setGFSPhotoId(photo.getGFSPhotoId());
+    copy.setGFSRenditionId(Photo.Rendition.THUMBNAIL, photo.getGFSRenditionId(Photo.Rendition.THUMBNAIL));
+    copy.setGFSRenditionId(Photo.Rendition.PREVIEW, photo.getGFSRenditionId(Photo.Rendition.PREVIEW));
+    copy.setContentHash(photo.getContentHash());
+    copy.setOwner(photo.getOwner());
+    copy.setTitle(photo.getTitle());
+    copy.setTags(new ArrayList<String>(photo.getTags()));
+    copy.setCommentCount(photo.getCommentCount());
+    copy.setTimeStamp(new Date(photo.getTimeStamp().getTime()));
+    copy.setVisibility(photo.getVisibility());
+    copy.setPhotoDAO(this);
+
+    return copy;
+  }
+
+  /**
+   * Build the summary of a photo.
+   *
+   * @param photo  The photo.
+   */
+  private static PhotoSummary createPhotoSummary(Photo photo)
+  {
+    PhotoSummary summary = new PhotoSummary();
+
+    summary.setId(photo.getId());
+    summary.setOwner(photo.getOwner());
+    summary.setTitle(photo.getTitle());
+    summary.setTags(photo.getTags());
+    summary.setTimeStamp(photo.getTimeStamp());
+    summary.setVisibility(photo.getVisibility());
+    summary.setCommentCount(photo.getCommentCount());
+
+    return summary;
+  }
+
+  /**
+   * Copy a comment. Stored comments are never modified, but the ones handed out can be.
+   *
+   * @param comment  The comment.
+   */
+  private static Comment copyComment(Comment comment)
+  {
+    Comment copy = new Comment();
+
+    copy.setId(comment.getId());
+    copy.setPhotoId(comment.getPhotoId());
+    copy.setAuthor(comment.getAuthor());
+    copy.setText(comment.getText());
+    copy.setTimeStamp(new Date(comment.getTimeStamp().getTime()));
+
+    return copy;
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.getImage(Photo photo)
+   */
+  @Override
+  public byte[] getImage(Photo photo)
+  {
+    PhotoImage photoImage = openImage(photo, Photo.Rendition.ORIGINAL);
+
+    return (photoImage != null) ? photoImage.getData() : null;
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.openImage(Photo photo, Photo.Rendition rendition)
+   */
+  @Override
+  public PhotoImage openImage(Photo photo, Photo.Rendition rendition)
+  {
+    Object imageId = photo.getGFSRenditionId(rendition);
+
+    return (imageId != null) ? images.get(imageId) : null;
+  }
+
+  /**
+   * Get the number of photos.
+   */
+  public int getPhotoCount()
+  {
+    return photos.size();
+  }
+}
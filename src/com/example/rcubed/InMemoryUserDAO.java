@@ -0,0 +1,229 @@
+package com.example.rcubed;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bson.types.ObjectId;
+
+/**
+ * UserDAO that keeps every user in memory, for tests, demos and benchmarks that shouldn't need a database.
+ *
+ * Users are indexed by username, and a FriendGraph answers friend checks and follower lookups. Behaves the same as
+ * MongoDbDAOUser: usernames are unique, ids look like Mongo Db object ids, and getUser() always returns a new User.
+ * Safe to use from any number of threads. Nothing is persisted.
+ */
+public class InMemoryUserDAO implements UserDAO
+{
+  /**
+   * A user as stored. Guarded by its own lock.
+   */
+  private static class StoredUser
+  {
+    private final String id;
+    private final String username;
+    private final ArrayList<String> friends;
+
+    private StoredUser(String id, User user)
+    {
+      this.id = id;
+      this.username = user.getUsername();
+      this.friends = new ArrayList<String>(user.getFriends());
+    }
+  }
+
+  /**
+   * The users, by username.
+   */
+  private final ConcurrentHashMap<String, StoredUser> users = new ConcurrentHashMap<String, StoredUser>();
+
+  /**
+   * Everyone's friends lists, indexed in both directions.
+   */
+  private final FriendGraph friendGraph = new FriendGraph();
+
+  /**
+   * @see com.example.rcubed.UserDAO#insertUser(com.example.rcubed.User)
+   */
+  @Override
+  public boolean insertUser(User user)
+  {
+    // Default return value to false.
+    boolean success = false;
+
+    StoredUser stored = new StoredUser(new ObjectId().toString(), user);
+
+    synchronized (stored)
+    {
+      // Usernames are unique, a second user with the same name is rejected.
+      if (users.putIfAbsent(stored.username, stored) == null)
+      {
+        success = true;
+
+        user.setId(stored.id);
+        friendGraph.setFriends(stored.username, stored.friends);
+      }
+    }
+
+    return success;
+  }
+
+  /**
+   * @see com.example.rcubed.UserDAO#getUser(com.example.rcubed.PhotoDAO, java.lang.String)
+   */
+  @Override
+  public User getUser(PhotoDAO photoDAO, String username)
+  {
+    StoredUser stored = users.get(username);
+    User user = null;
+
+    if (stored != null)
+    {
+      user = new User(photoDAO);
+
+      synchronized (stored)
+      {
+        user.setId(stored.id);
+        user.setUsername(stored.username);
+        user.setFriends(new ArrayList<String>(stored.friends));
+      }
+    }
+
+    return user;
+  }
+
+  /**
+   * @see com.example.rcubed.UserDAO#deleteUser(com.example.rcubed.User)
+   */
+  @Override
+  public boolean deleteUser(User user)
+  {
+    // Default return value to false.
+    boolean success = false;
+
+    StoredUser stored = users.get(user.getUsername());
+
+    // Users are deleted by id, so a newer user who has taken the same name is left alone.
+    if (stored != null && stored.id.equals(user.getId()))
+    {
+      synchronized (stored)
+      {
+        if (users.remove(stored.username, stored))
+        {
+          success = true;
+
+          // The user's friends list has gone with them. Other users' friends lists are untouched.
+          friendGraph.setFriends(stored.username, new ArrayList<String>());
+        }
+      }
+    }
+
+    return success;
+  }
+
+  /**
+   * @see com.example.rcubed.UserDAO#addFriend(com.example.rcubed.User, java.lang.String)
+   */
+  @Override
+  public boolean addFriend(User user, String newFriend)
+  {
+    // Default return value to false.
+    boolean success = false;
+
+    if (!user.hasFriend(newFriend))
+    {
+      StoredUser stored = users.get(user.getUsername());
+
+      if (stored != null)
+      {
+        synchronized (stored)
+        {
+          // Only if the user hasn't been deleted in the meantime. The user object may be out of date, in which case the
+          // name may already be stored and only the user object needs to catch up.
+          if (users.get(stored.username) == stored)
+          {
+            if (!stored.friends.contains(newFriend))
+            {
+              stored.friends.add(newFriend);
+              friendGraph.addFriend(stored.username, newFriend);
+            }
+
+            // Update was successful.
+            success = true;
+          }
+        }
+      }
+
+      if (success)
+      {
+        // Update the user object to reflect the change.
+        user.addFriend(newFriend);
+      }
+    }
+
+    return success;
+  }
+
+  /**
+   * @see com.example.rcubed.UserDAO#removeFriend(com.example.rcubed.User, java.lang.String)
+   */
+  @Override
+  public boolean removeFriend(User user, String exFriend)
+  {
+    // Default return value to false.
+    boolean success = false;
+
+    if (user.hasFriend(exFriend))
+    {
+      StoredUser stored = users.get(user.getUsername());
+
+      if (stored != null)
+      {
+        synchronized (stored)
+        {
+          // Only counts as a change if the name was actually on the stored list.
+          if (users.get(stored.username) == stored && stored.friends.remove(exFriend))
+          {
+            friendGraph.removeFriend(stored.username, exFriend);
+
+            // Update was successful.
+            success = true;
+          }
+        }
+      }
+
+      if (success)
+      {
+        // Update the user object to reflect the change.
+        user.removeFriend(exFriend);
+      }
+    }
+
+    return success;
+  }
+
+  /**
+   * @see com.example.rcubed.UserDAO#isFriend(java.lang.String, java.lang.String)
+   */
+  @Override
+  public boolean isFriend(String username, String candidate)
+  {
+    return friendGraph.isFriend(username, candidate);
+  }
+
+  /**
+   * @see com.example.rcubed.UserDAO#getFollowers(java.lang.String)
+   */
+  @Override
+  public ArrayList<String> getFollowers(String username)
+  {
+    return friendGraph.getFollowers(username);
+  }
+
+  /**
+   * Get the number of users.
+   */
+  public int getUserCount()
+  {
+    return users.size();
+  }
+}
@@ -0,0 +1,384 @@
+package com.example.rcubed;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * PhotoDAO that measures every call made to another PhotoDAO: latency, calls, errors and bytes of image data moved.
+ *
+ * Photos returned are pointed at this DAO rather than the one underneath, so images they load on demand are measured
+ * too. Image data read through openImage() streams is counted as it is read, so a stream abandoned half way (or
+ * skipped over) only counts what was actually sent. The statistics are kept in getMetrics(), which can publish them
+ * over JMX.
+ */
+public class InstrumentedPhotoDAO implements PhotoDAO
+{
+  /**
+   * The names the methods are measured under. The two overloads of insertPhoto() and getPhotos() are measured
+   * separately.
+   */
+  public static final String INSERT_PHOTO = "insertPhoto";
+  public static final String BEGIN_IMAGE_UPLOAD = "beginImageUpload";
+  public static final String INSERT_UPLOADED_PHOTO = "insertUploadedPhoto";
+  public static final String ABORT_IMAGE_UPLOAD = "abortImageUpload";
+  public static final String INSERT_PHOTOS = "insertPhotos";
+  public static final String DELETE_PHOTO = "deletePhoto";
+  public static final String ADD_TAG = "addTag";
+  public static final String REMOVE_TAG = "removeTag";
+  public static final String ADD_COMMENT = "addComment";
+  public static final String CHANGE_VISIBILITY = "changeVisibility";
+  public static final String GET_PHOTO = "getPhoto";
+  public static final String GET_PHOTOS = "getPhotos";
+  public static final String GET_PHOTOS_PAGE = "getPhotosPage";
+  public static final String GET_PHOTO_SUMMARIES = "getPhotoSummaries";
+  public static final String GET_FEED = "getFeed";
+  public static final String GET_COMMENTS = "getComments";
+  public static final String GET_IMAGE = "getImage";
+  public static final String OPEN_IMAGE = "openImage";
+
+  /**
+   * Stream that counts the bytes read through it.
+   */
+  private static class CountingInputStream extends FilterInputStream
+  {
+    private final DaoMethodMetrics metrics;
+
+    private CountingInputStream(InputStream in, DaoMethodMetrics metrics)
+    {
+      super(in);
+      this.metrics = metrics;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+      int b = super.read();
+
+      if (b >= 0)
+      {
+        metrics.addBytes(1);
+      }
+
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+      int count = super.read(b, off, len);
+
+      if (count > 0)
+      {
+        metrics.addBytes(count);
+      }
+
+      return count;
+    }
+  }
+
+  /**
+   * The DAO being measured.
+   */
+  private final PhotoDAO photoDAO;
+
+  /**
+   * Statistics for each method.
+   */
+  private final DaoMetrics metrics = new DaoMetrics("PhotoDAO", INSERT_PHOTO, BEGIN_IMAGE_UPLOAD,
+      INSERT_UPLOADED_PHOTO, ABORT_IMAGE_UPLOAD, INSERT_PHOTOS, DELETE_PHOTO, ADD_TAG, REMOVE_TAG, ADD_COMMENT,
+      CHANGE_VISIBILITY, GET_PHOTO, GET_PHOTOS, GET_PHOTOS_PAGE, GET_PHOTO_SUMMARIES, GET_FEED, GET_COMMENTS, GET_IMAGE,
+      OPEN_IMAGE);
+
+  /**
+   * Constructor
+   *
+   * @param photoDAO  The DAO to measure.
+   */
+  public InstrumentedPhotoDAO(PhotoDAO photoDAO)
+  {
+    this.photoDAO = photoDAO;
+  }
+
+  /**
+   * Get the statistics.
+   */
+  public DaoMetrics getMetrics()
+  {
+    return metrics;
+  }
+
+  /**
+   * Make a call to the DAO being measured.
+   *
+   * @param method  The name the method is measured under.
+   * @param call    The call.
+   */
+  private <T> T time(String method, Supplier<T> call)
+  {
+    return DaoMetrics.time(metrics.get(method), call);
+  }
+
+  /**
+   * Point a photo returned by the DAO being measured at this DAO, so images it loads later are measured.
+   *
+   * @param photo  The photo (may be null).
+   */
+  private Photo adopt(Photo photo)
+  {
+    if (photo != null)
+    {
+      photo.setPhotoDAO(this);
+    }
+
+    return photo;
+  }
+
+  /**
+   * Point every photo in a list at this DAO.
+   *
+   * @param photos  The photos (may be null).
+   */
+  private <L extends List<Photo>> L adoptAll(L photos)
+  {
+    if (photos != null)
+    {
+      for (Photo photo : photos)
+      {
+        adopt(photo);
+      }
+    }
+
+    return photos;
+  }
+
+  /**
+   * Count the image data held by some photos.
+   *
+   * @param method  The name the method is measured under.
+   * @param photos  The photos.
+   */
+  private void countImages(String method, List<Photo> photos)
+  {
+    long count = 0;
+
+    for (Photo photo : photos)
+    {
+      if (photo.getImage() != null)
+      {
+        count += photo.getImage().length;
+      }
+    }
+
+    metrics.get(method).addBytes(count);
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.insertPhoto(Photo)
+   */
+  @Override
+  public boolean insertPhoto(Photo photo)
+  {
+    countImages(INSERT_PHOTO, Collections.singletonList(photo));
+
+    return time(INSERT_PHOTO, () -> photoDAO.insertPhoto(photo));
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.beginImageUpload(String, String)
+   */
+  @Override
+  public ImageUpload beginImageUpload(String filename, String mimeType)
+  {
+    return time(BEGIN_IMAGE_UPLOAD, () -> photoDAO.beginImageUpload(filename, mimeType));
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.insertPhoto(Photo, ImageUpload)
+   */
+  @Override
+  public boolean insertPhoto(Photo photo, ImageUpload upload)
+  {
+    // The image data has been written by now, so it is counted against the call that completes the upload.
+    metrics.get(INSERT_UPLOADED_PHOTO).addBytes(upload.getLength());
+
+    return time(INSERT_UPLOADED_PHOTO, () -> photoDAO.insertPhoto(photo, upload));
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.abortImageUpload(ImageUpload)
+   */
+  @Override
+  public void abortImageUpload(ImageUpload upload)
+  {
+    time(ABORT_IMAGE_UPLOAD, () ->
+    {
+      photoDAO.abortImageUpload(upload);
+      return null;
+    });
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.insertPhotos(List<Photo>)
+   */
+  @Override
+  public boolean[] insertPhotos(List<Photo> photos)
+  {
+    countImages(INSERT_PHOTOS, photos);
+
+    return time(INSERT_PHOTOS, () -> photoDAO.insertPhotos(photos));
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.deletePhoto(User, Photo)
+   */
+  @Override
+  public boolean deletePhoto(User user, Photo photo)
+  {
+    return time(DELETE_PHOTO, () -> photoDAO.deletePhoto(user, photo));
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.addTag(User, Photo, String)
+   */
+  @Override
+  public boolean addTag(User user, Photo photo, String newTag)
+  {
+    return time(ADD_TAG, () -> photoDAO.addTag(user, photo, newTag));
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.removeTag(User, Photo, String)
+   */
+  @Override
+  public boolean removeTag(User user, Photo photo, String exTag)
+  {
+    return time(REMOVE_TAG, () -> photoDAO.removeTag(user, photo, exTag));
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.addComment(User, Photo, String)
+   */
+  @Override
+  public boolean addComment(User user, Photo photo, String newComment)
+  {
+    return time(ADD_COMMENT, () -> photoDAO.addComment(user, photo, newComment));
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.changeVisibility(User, Photo, Photo.Visibility)
+   */
+  @Override
+  public boolean changeVisibility(User user, Photo photo, Photo.Visibility newVisibility)
+  {
+    return time(CHANGE_VISIBILITY, () -> photoDAO.changeVisibility(user, photo, newVisibility));
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.getPhoto(String)
+   */
+  @Override
+  public Photo getPhoto(String photoId)
+  {
+    return adopt(time(GET_PHOTO, () -> photoDAO.getPhoto(photoId)));
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.getPhotos(String, String, Photo.Visibility)
+   */
+  @Override
+  public ArrayList<Photo> getPhotos(String owner, String tag, Photo.Visibility allowedVisibility)
+  {
+    return adoptAll(time(GET_PHOTOS, () -> photoDAO.getPhotos(owner, tag, allowedVisibility)));
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.getPhotos(String, String, Photo.Visibility, int, String)
+   */
+  @Override
+  public ResultPage<Photo> getPhotos(String owner, String tag, Photo.Visibility allowedVisibility, int pageSize,
+      String continuationToken)
+  {
+    ResultPage<Photo> page = time(GET_PHOTOS_PAGE, () -> photoDAO.getPhotos(owner, tag, allowedVisibility, pageSize,
+        continuationToken));
+
+    adoptAll(page.getItems());
+
+    return page;
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.getPhotoSummaries(String, String, Photo.Visibility, int, String)
+   */
+  @Override
+  public ResultPage<PhotoSummary> getPhotoSummaries(String owner, String tag, Photo.Visibility allowedVisibility,
+      int pageSize, String continuationToken)
+  {
+    return time(GET_PHOTO_SUMMARIES, () -> photoDAO.getPhotoSummaries(owner, tag, allowedVisibility, pageSize,
+        continuationToken));
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.getFeed(User, int, String)
+   */
+  @Override
+  public ResultPage<Photo> getFeed(User viewer, int pageSize, String continuationToken)
+  {
+    ResultPage<Photo> page = time(GET_FEED, () -> photoDAO.getFeed(viewer, pageSize, continuationToken));
+
+    adoptAll(page.getItems());
+
+    return page;
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.getComments(String, int, String)
+   */
+  @Override
+  public ResultPage<Comment> getComments(String photoId, int pageSize, String continuationToken)
+  {
+    return time(GET_COMMENTS, () -> photoDAO.getComments(photoId, pageSize, continuationToken));
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.getImage(Photo)
+   */
+  @Override
+  public byte[] getImage(Photo photo)
+  {
+    byte[] image = time(GET_IMAGE, () -> photoDAO.getImage(photo));
+
+    if (image != null)
+    {
+      metrics.get(GET_IMAGE).addBytes(image.length);
+    }
+
+    return image;
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.openImage(Photo, Photo.Rendition)
+   */
+  @Override
+  public PhotoImage openImage(Photo photo, Photo.Rendition rendition)
+  {
+    DaoMethodMetrics openMetrics = metrics.get(OPEN_IMAGE);
+    PhotoImage image = DaoMetrics.time(openMetrics, () -> photoDAO.openImage(photo, rendition));
+
+    if (image != null)
+    {
+      // Count the data as it is sent, whether it is streamed out of the database or already in memory. Nothing is
+      // opened until it is actually read.
+      PhotoImage measured = image;
+
+      image = new PhotoImage(() -> new CountingInputStream(measured.getInputStream(), openMetrics), image.getLength(),
+          image.getMD5(), image.getUploadDate(), image.getContentType());
+    }
+
+    return image;
+  }
+}
@@ -0,0 +1,126 @@
+package com.example.rcubed;
+
+import java.util.ArrayList;
+import java.util.function.Supplier;
+
+/**
+ * UserDAO that measures every call made to another UserDAO: latency, calls and errors.
+ *
+ * The statistics are kept in getMetrics(), which can publish them over JMX.
+ */
+public class InstrumentedUserDAO implements UserDAO
+{
+  /**
+   * The names the methods are measured under.
+   */
+  public static final String INSERT_USER = "insertUser";
+  public static final String GET_USER = "getUser";
+  public static final String DELETE_USER = "deleteUser";
+  public static final String ADD_FRIEND = "addFriend";
+  public static final String REMOVE_FRIEND = "removeFriend";
+  public static final String IS_FRIEND = "isFriend";
+  public static final String GET_FOLLOWERS = "getFollowers";
+
+  /**
+   * The DAO being measured.
+   */
+  private final UserDAO userDAO;
+
+  /**
+   * Statistics for each method.
+   */
+  private final DaoMetrics metrics = new DaoMetrics("UserDAO", INSERT_USER, GET_USER, DELETE_USER, ADD_FRIEND,
+      REMOVE_FRIEND, IS_FRIEND, GET_FOLLOWERS);
+
+  /**
+   * Constructor
+   *
+   * @param userDAO  The DAO to measure.
+   */
+  public InstrumentedUserDAO(UserDAO userDAO)
+  {
+    this.userDAO = userDAO;
+  }
+
+  /**
+   * Get the statistics.
+   */
+  public DaoMetrics getMetrics()
+  {
+    return metrics;
+  }
+
+  /**
+   * Make a call to the DAO being measured.
+   *
+   * @param method  The name the method is measured under.
+   * @param call    The call.
+   */
+  private <T> T time(String method, Supplier<T> call)
+  {
+    return DaoMetrics.time(metrics.get(method), call);
+  }
+
+  /**
+   * @see com.example.rcubed.UserDAO#insertUser(com.example.rcubed.User)
+   */
+  @Override
+  public boolean insertUser(User user)
+  {
+    return time(INSERT_USER, () -> userDAO.insertUser(user));
+  }
+
+  /**
+   * @see com.example.rcubed.UserDAO#getUser(com.example.rcubed.PhotoDAO, java.lang.String)
+   */
+  @Override
+  public User getUser(PhotoDAO photoDAO, String username)
+  {
+    return time(GET_USER, () -> userDAO.getUser(photoDAO, username));
+  }
+
+  /**
+   * @see com.example.rcubed.UserDAO#deleteUser(com.example.rcubed.User)
+   */
+  @Override
+  public boolean deleteUser(User user)
+  {
+    return time(DELETE_USER, () -> userDAO.deleteUser(user));
+  }
+
+  /**
+   * @see com.example.rcubed.UserDAO#addFriend(com.example.rcubed.User, java.lang.String)
+   */
+  @Override
+  public boolean addFriend(User user, String newFriend)
+  {
+    return time(ADD_FRIEND, () -> userDAO.addFriend(user, newFriend));
+  }
+
+  /**
+   * @see com.example.rcubed.UserDAO#removeFriend(com.example.rcubed.User, java.lang.String)
+   */
+  @Override
+  public boolean removeFriend(User user, String exFriend)
+  {
+    return time(REMOVE_FRIEND, () -> userDAO.removeFriend(user, exFriend));
+  }
+
+  /**
+   * @see com.example.rcubed.UserDAO#isFriend(java.lang.String, java.lang.String)
+   */
+  @Override
+  public boolean isFriend(String username, String candidate)
+  {
+    return time(IS_FRIEND, () -> userDAO.isFriend(username, candidate));
+  }
+
+  /**
+   * @see com.example.rcubed.UserDAO#getFollowers(java.lang.String)
+   */
+  @Override
+  public ArrayList<String> getFollowers(String username)
+  {
+    return time(GET_FOLLOWERS, () -> userDAO.getFollowers(username));
+  }
+}
@@ -0,0 +1,176 @@
+package com.example.rcubed;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of operation latencies, for working out percentiles (p50, p99, p99.9...).
+ *
+ * Latencies are counted in log-linear buckets: each power of two is split into SUB_BUCKETS equal buckets, so any
+ * recorded value is known to within about 6% whatever its size, from nanoseconds up to hours, in a fixed 8Kb.
+ *
+ * Recording is lock free (one atomic increment per bucket) so any number of threads can record at once without
+ * getting in each other's way. Reading while recording is going on gives an approximate result, the counts may not
+ * all be from the same instant.
+ */
+public class LatencyHistogram
+{
+  /**
+   * The number of buckets each power of two is split into. Must be a power of two itself.
+   */
+  static final int SUB_BUCKETS = 16;
+  private static final int SUB_BUCKET_BITS = Integer.numberOfTrailingZeros(SUB_BUCKETS);
+
+  /**
+   * Enough buckets for any non negative long.
+   */
+  static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  /**
+   * The number of values recorded in each bucket.
+   */
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+  /**
+   * Statistics.
+   */
+  private final LongAdder count = new LongAdder();
+  private final LongAdder total = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Find the bucket a value is counted in.
+   *
+   * @param value  The value (not negative).
+   */
+  static int getBucket(long value)
+  {
+    int bucket;
+
+    if (value < SUB_BUCKETS)
+    {
+      // Small values get a bucket each.
+      bucket = (int) value;
+    }
+    else
+    {
+      // The power of two, then which slice of it.
+      int exponent = 63 - Long.numberOfLeadingZeros(value);
+      int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+
+      bucket = (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    return bucket;
+  }
+
+  /**
+   * Get the largest value counted in a bucket.
+   *
+   * @param bucket  The bucket.
+   */
+  static long getBucketLimit(int bucket)
+  {
+    long limit;
+
+    if (bucket < SUB_BUCKETS)
+    {
+      limit = bucket;
+    }
+    else
+    {
+      int shift = bucket / SUB_BUCKETS - 1;
+      long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+
+      limit = lowest + (1L << shift) - 1;
+    }
+
+    return limit;
+  }
+
+  /**
+   * Record one latency.
+   *
+   * @param nanos  The latency, in nanoseconds. Negative values (a clock that has gone backwards) count as 0.
+   */
+  public void record(long nanos)
+  {
+    long value = Math.max(nanos, 0);
+
+    counts.incrementAndGet(getBucket(value));
+    count.increment();
+    total.add(value);
+    max.accumulateAndGet(value, Math::max);
+  }
+
+  /**
+   * Get the number of latencies recorded.
+   */
+  public long getCount()
+  {
+    return count.sum();
+  }
+
+  /**
+   * Get the mean latency, in nanoseconds. 0 if nothing has been recorded.
+   */
+  public double getMean()
+  {
+    long n = count.sum();
+
+    return (n > 0) ? (double) total.sum() / n : 0;
+  }
+
+  /**
+   * Get the highest latency recorded, in nanoseconds.
+   */
+  public long getMax()
+  {
+    return max.get();
+  }
+
+  /**
+   * Get a percentile of the recorded latencies.
+   *
+   * @param percentile  The percentile wanted, e.g. 99.9.
+   *
+   * @return The latency that percentile of the recorded latencies were at or below, in nanoseconds (rounded up to the
+   *         top of its bucket, but never more than the highest latency recorded). 0 if nothing has been recorded.
+   */
+  public long getPercentile(double percentile)
+  {
+    long value = 0;
+
+    // Snapshot the buckets first, so the total matches them even if more are being recorded.
+    long[] snapshot = new long[BUCKET_COUNT];
+    long recorded = 0;
+
+    for (int i = 0; i < BUCKET_COUNT; i++)
+    {
+      snapshot[i] = counts.get(i);
+      recorded += snapshot[i];
+    }
+
+    if (recorded > 0)
+    {
+      // The rank of the value wanted, counting from 1. Percentiles such as 99.9 aren't exact in floating point, so
+      // allow for a little error rather than rounding a whole number rank (999 of 1000) up to the next one.
+      long rank = Math.max(1, (long) Math.ceil(percentile / 100 * recorded - 1e-9));
+      long seen = 0;
+
+      for (int i = 0; i < BUCKET_COUNT; i++)
+      {
+        seen += snapshot[i];
+
+        if (seen >= rank)
+        {
+          value = Math.min(getBucketLimit(i), getMax());
+          break;
+        }
+      }
+    }
+
+    return value;
+  }
+}
@@ -1,11 +1,14 @@
 package com.example.rcubed;
 
-import com.mongodb.MongoClient;
-import com.mongodb.client.MongoDatabase;
+import java.util.concurrent.CompletableFuture;
+
+import javax.servlet.ServletContext;
+
 import com.vaadin.data.validator.EmailValidator;
 import com.vaadin.navigator.View;
 import com.vaadin.navigator.ViewChangeListener.ViewChangeEvent;
 import com.vaadin.server.Page;
+import com.vaadin.server.VaadinServlet;
 import com.vaadin.server.VaadinSession;
 import com.vaadin.ui.Button;
 import com.vaadin.ui.Button.ClickEvent;
@@ -24,18 +27,10 @@ import com.vaadin.ui.VerticalLayout;
  */
 public class LoginView extends CustomComponent implements View
 {
-  /**
-   * Handle to the database connection.
-   */
-  private MongoClient mongoClient;
-
-  /**
-   * Handle to the actual database.
-   */
-  private MongoDatabase database;
-
   UserDAO daoUser;
   PhotoDAO daoPhoto;
+  AsyncUserDAO asyncUserDAO;
+  AsyncPhotoDAO asyncPhotoDAO;
 
   /**
    * For Vaadin navigation purposes.
@@ -55,15 +50,18 @@ public class LoginView extends CustomComponent implements View
    */
   public LoginView()
   {
-    // Initialise a connection to the db and the DAOs.
-    mongoClient = new MongoClient("localhost");
-    database = mongoClient.getDatabase("Rcubed");
-    daoPhoto = new MongoDbDAOPhoto(database, mongoClient.getDB("Rcubed"));
-    daoUser = new MongoDbDAOUser(database);
+    // The connection to the db and the DAOs are shared by all sessions and owned by the servlet.
+    ServletContext context = VaadinServlet.getCurrent().getServletContext();
+    daoPhoto = (PhotoDAO) context.getAttribute(RcubedUI.Servlet.ATTRIBUTE_PHOTO_DAO);
+    daoUser = (UserDAO) context.getAttribute(RcubedUI.Servlet.ATTRIBUTE_USER_DAO);
+    asyncPhotoDAO = (AsyncPhotoDAO) context.getAttribute(RcubedUI.Servlet.ATTRIBUTE_ASYNC_PHOTO_DAO);
+    asyncUserDAO = (AsyncUserDAO) context.getAttribute(RcubedUI.Servlet.ATTRIBUTE_ASYNC_USER_DAO);
 
     // Store the DAOs in the session so we can use them in other views.
     VaadinSession.getCurrent().setAttribute("userDAO", daoUser);
     VaadinSession.getCurrent().setAttribute("photoDAO", daoPhoto);
+    VaadinSession.getCurrent().setAttribute("asyncUserDAO", asyncUserDAO);
+    VaadinSession.getCurrent().setAttribute("asyncPhotoDAO", asyncPhotoDAO);
 
     // Make this view take up the full browser window space
     setSizeFull();
@@ -84,26 +82,23 @@ public class LoginView extends CustomComponent implements View
         // RFC compliant.
         if (usernameField.isValid())
         {
-          // Lookup the user.
-          User user = daoUser.getUser(daoPhoto, usernameField.getValue());
-
-          if (user != null)
-          {
-            // Add the user object to this session
-            getSession().setAttribute("user", user);
-
-            // Redirect to album view
-            getUI().getNavigator().navigateTo(AlbumView.NAME);
-          }
-          else
+          // Lookup the user. The page is updated once the database has answered.
+          ((RcubedUI) getUI()).accessWhenDone(asyncUserDAO.getUser(daoPhoto, usernameField.getValue()), user ->
           {
-            // Send an error response indicating unknown user.
-            new Notification("Unknown user: ." + usernameField.getValue(), Notification.Type.WARNING_MESSAGE).show(Page
-                .getCurrent());
-
-            // Return focus to the username field.
-            usernameField.focus();
-          }
+            if (user != null)
+            {
+              logIn(user);
+            }
+            else
+            {
+              // Send an error response indicating unknown user.
+              new Notification("Unknown user: ." + usernameField.getValue(), Notification.Type.WARNING_MESSAGE)
+                  .show(Page.getCurrent());
+
+              // Return focus to the username field.
+              usernameField.focus();
+            }
+          });
         }
       }
     });
@@ -116,29 +111,38 @@ public class LoginView extends CustomComponent implements View
       {
         if (usernameField.isValid())
         {
-          User user = daoUser.getUser(daoPhoto, usernameField.getValue());
+          String username = usernameField.getValue();
 
-          if (user == null)
+          // Add this user to the db, unless the name is already taken. Null if it is.
+          CompletableFuture<User> newUser = asyncUserDAO.getUser(daoPhoto, username).thenCompose(existing ->
           {
-            // Add this user to the db.
-            user = new User(usernameField.getValue(), daoPhoto);
-            daoUser.insertUser(user);
+            CompletableFuture<User> result = CompletableFuture.completedFuture(null);
 
-            // Add the user object to this session
-            getSession().setAttribute("user", user);
+            if (existing == null)
+            {
+              User user = new User(username, daoPhoto);
+              result = asyncUserDAO.insertUser(user).thenApply(inserted -> inserted ? user : null);
+            }
 
-            // Redirect to album view
-            getUI().getNavigator().navigateTo(AlbumView.NAME);
-          }
-          else
-          {
-            // Send an error response indicating unknown user.
-            new Notification("Username \"" + usernameField.getValue() + "\" already in use.",
-                Notification.Type.WARNING_MESSAGE).show(Page.getCurrent());
+            return result;
+          });
 
-            // Return focus to the username field.
-            usernameField.focus();
-          }
+          ((RcubedUI) getUI()).accessWhenDone(newUser, user ->
+          {
+            if (user != null)
+            {
+              logIn(user);
+            }
+            else
+            {
+              // Send an error response indicating unknown user.
+              new Notification("Username \"" + username + "\" already in use.", Notification.Type.WARNING_MESSAGE)
+                  .show(Page.getCurrent());
+
+              // Return focus to the username field.
+              usernameField.focus();
+            }
+          });
         }
       }
     });
@@ -155,6 +159,23 @@ public class LoginView extends CustomComponent implements View
     setCompositionRoot(mainLayout);
   }
 
+  /**
+   * Log a user in and take them to their album.
+   * 
+   * @param user  The user.
+   */
+  private void logIn(User user)
+  {
+    // Add the user object to this session
+    getSession().setAttribute("user", user);
+
+    // Let the image servlet know who is logged in.
+    getSession().getSession().setAttribute(ImageServlet.SESSION_USERNAME, user.getUsername());
+
+    // Redirect to album view
+    getUI().getNavigator().navigateTo(AlbumView.NAME);
+  }
+
   @Override
   public void enter(ViewChangeEvent event)
   {
@@ -0,0 +1,265 @@
+package com.example.rcubed;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * On heap ImageCache limited by the total size of the images it holds, evicting the least recently used first.
+ * 
+ * The cache is split into independently locked segments, each with an equal share of the capacity and its own LRU
+ * order, so concurrent lookups of different images rarely contend and never wait on a cache wide lock.
+ */
+public class LruImageCache implements ImageCache
+{
+  /**
+   * The default number of segments. Must be a power of two.
+   */
+  public static final int DEFAULT_SEGMENTS = 16;
+
+  /**
+   * One independently locked slice of the cache.
+   */
+  private static class Segment
+  {
+    /**
+     * The cached images in least to most recently used order.
+     */
+    private final LinkedHashMap<Object, PhotoImage> images = new LinkedHashMap<Object, PhotoImage>(16, 0.75f, true);
+
+    /**
+     * Total size of the images in this segment.
+     */
+    private long sizeBytes = 0;
+  }
+
+  /**
+   * The segments. An image always lives in the segment chosen by its id's hash code.
+   */
+  private final Segment[] segments;
+
+  /**
+   * The capacity of each segment in bytes.
+   */
+  private final long segmentMaxBytes;
+
+  /**
+   * Statistics.
+   */
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * Constructor
+   * 
+   * @param maxBytes  The maximum total size of the cached images.
+   */
+  public LruImageCache(long maxBytes)
+  {
+    this(maxBytes, DEFAULT_SEGMENTS);
+  }
+
+  /**
+   * Constructor
+   * 
+   * @param maxBytes     The maximum total size of the cached images.
+   * @param segmentCount The number of independently locked segments. Must be a power of two.
+   */
+  public LruImageCache(long maxBytes, int segmentCount)
+  {
+    if (segmentCount <= 0 || Integer.bitCount(segmentCount) != 1)
+    {
+      throw new IllegalArgumentException("Segment count must be a power of two: " + segmentCount);
+    }
+
+    segments = new Segment[segmentCount];
+
+    for (int i = 0; i < segmentCount; i++)
+    {
+      segments[i] = new Segment();
+    }
+
+    segmentMaxBytes = maxBytes / segmentCount;
+  }
+
+  /**
+   * See com.example.rcubed.ImageCache.get(Object imageId)
+   */
+  @Override
+  public PhotoImage get(Object imageId)
+  {
+    Segment segment = segmentFor(imageId);
+    PhotoImage image;
+
+    // A get on an access ordered LinkedHashMap moves the entry, so even lookups need the segment lock.
+    synchronized (segment)
+    {
+      image = segment.images.get(imageId);
+    }
+
+    if (image != null)
+    {
+      hits.increment();
+    }
+    else
+    {
+      misses.increment();
+    }
+
+    return image;
+  }
+
+  /**
+   * See com.example.rcubed.ImageCache.put(Object imageId, PhotoImage image)
+   */
+  @Override
+  public void put(Object imageId, PhotoImage image)
+  {
+    if (image.getData() == null || image.getLength() > segmentMaxBytes)
+    {
+      // Can't be cached.
+      return;
+    }
+
+    Segment segment = segmentFor(imageId);
+
+    synchronized (segment)
+    {
+      PhotoImage previous = segment.images.put(imageId, image);
+
+      if (previous != null)
+      {
+        segment.sizeBytes -= previous.getLength();
+      }
+
+      segment.sizeBytes += image.getLength();
+
+      // Evict from the least recently used end until we fit again.
+      Iterator<Map.Entry<Object, PhotoImage>> eldest = segment.images.entrySet().iterator();
+
+      while (segment.sizeBytes > segmentMaxBytes && eldest.hasNext())
+      {
+        PhotoImage evicted = eldest.next().getValue();
+        eldest.remove();
+
+        segment.sizeBytes -= evicted.getLength();
+        evictions.increment();
+      }
+    }
+  }
+
+  /**
+   * See com.example.rcubed.ImageCache.put(Object imageId, InputStream in, long length, String md5, Date uploadDate,
+   * String contentType)
+   */
+  @Override
+  public PhotoImage put(Object imageId, InputStream in, long length, String md5, Date uploadDate, String contentType)
+      throws IOException
+  {
+    PhotoImage image = null;
+
+    if (length <= segmentMaxBytes)
+    {
+      // The images are kept on the heap anyway, so read the chunks straight into the array that is cached.
+      byte[] data = new byte[(int) length];
+      new DataInputStream(in).readFully(data);
+
+      image = new PhotoImage(data, md5, uploadDate, contentType);
+      put(imageId, image);
+    }
+
+    return image;
+  }
+
+  /**
+   * See com.example.rcubed.ImageCache.remove(Object imageId)
+   */
+  @Override
+  public void remove(Object imageId)
+  {
+    Segment segment = segmentFor(imageId);
+
+    synchronized (segment)
+    {
+      PhotoImage removed = segment.images.remove(imageId);
+
+      if (removed != null)
+      {
+        segment.sizeBytes -= removed.getLength();
+      }
+    }
+  }
+
+  /**
+   * See com.example.rcubed.ImageCache.getMaxEntryBytes()
+   */
+  @Override
+  public long getMaxEntryBytes()
+  {
+    return segmentMaxBytes;
+  }
+
+  /**
+   * See com.example.rcubed.ImageCache.getSizeBytes()
+   */
+  @Override
+  public long getSizeBytes()
+  {
+    long total = 0;
+
+    for (Segment segment : segments)
+    {
+      synchronized (segment)
+      {
+        total += segment.sizeBytes;
+      }
+    }
+
+    return total;
+  }
+
+  /**
+   * See com.example.rcubed.ImageCache.getHitCount()
+   */
+  @Override
+  public long getHitCount()
+  {
+    return hits.sum();
+  }
+
+  /**
+   * See com.example.rcubed.ImageCache.getMissCount()
+   */
+  @Override
+  public long getMissCount()
+  {
+    return misses.sum();
+  }
+
+  /**
+   * See com.example.rcubed.ImageCache.getEvictionCount()
+   */
+  @Override
+  public long getEvictionCount()
+  {
+    return evictions.sum();
+  }
+
+  /**
+   * Pick the segment an image belongs in.
+   */
+  private Segment segmentFor(Object imageId)
+  {
+    // Spread the hash so ids that only differ in their high bits don't all land in the same segment.
+    int hash = imageId.hashCode();
+    hash ^= (hash >>> 16);
+
+    return segments[hash & (segments.length - 1)];
+  }
+}
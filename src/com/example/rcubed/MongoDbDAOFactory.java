@@ -0,0 +1,264 @@
+package com.example.rcubed;
+
+import java.util.ArrayList;
+
+import com.mongodb.DB;
+import com.mongodb.client.MongoDatabase;
+
+/**
+ * Builds the Mongo Db DAOs and everything layered on top of them, wired up the way the app runs them: the friend
+ * graph, image cache, comment write buffer, user cache and metrics.
+ *
+ * Used by the servlet, and by the load test so that what it measures is what the app actually runs. Set any settings
+ * that differ from the defaults, then call create(). The caller still owns the database connection.
+ */
+public class MongoDbDAOFactory
+{
+  /**
+   * Default settings, as used by the servlet when its init parameters aren't set.
+   */
+  public static final int DEFAULT_IMAGE_CACHE_SIZE = 256;
+  public static final int DEFAULT_USER_CACHE_SIZE = 10000;
+  public static final int DEFAULT_USER_CACHE_TTL = 60;
+  public static final int DEFAULT_COMMENT_FLUSH_INTERVAL = 1000;
+  public static final int DEFAULT_COMMENT_BATCH_SIZE = 100;
+
+  /**
+   * The database.
+   */
+  private MongoDatabase database;
+  private DB oldStyleDb;
+
+  /**
+   * Settings.
+   */
+  private int gridFsConcurrency = MongoDbDAOPhoto.DEFAULT_GRIDFS_CONCURRENCY;
+  private long imageCacheBytes = DEFAULT_IMAGE_CACHE_SIZE * 1024L * 1024L;
+  private boolean imageCacheOffHeap = false;
+  private int userCacheSize = DEFAULT_USER_CACHE_SIZE;
+  private long userCacheTtlMillis = DEFAULT_USER_CACHE_TTL * 1000L;
+  private int commentFlushInterval = DEFAULT_COMMENT_FLUSH_INTERVAL;
+  private int commentBatchSize = DEFAULT_COMMENT_BATCH_SIZE;
+  private boolean metricsEnabled = true;
+
+  /**
+   * What create() built.
+   */
+  private MongoDbDAOPhoto daoPhoto;
+  private MongoDbDAOUser daoUser;
+  private FriendGraph friendGraph;
+  private ImageCache imageCache;
+  private CachingUserDAO userCache;
+  private InstrumentedPhotoDAO instrumentedPhotoDAO;
+  private InstrumentedUserDAO instrumentedUserDAO;
+  private PhotoDAO photoDAO;
+  private UserDAO userDAO;
+
+  /**
+   * Constructor
+   *
+   * @param database    The database.
+   * @param oldStyleDb  The same database through the old API, which GridFS still needs.
+   */
+  public MongoDbDAOFactory(MongoDatabase database, DB oldStyleDb)
+  {
+    this.database = database;
+    this.oldStyleDb = oldStyleDb;
+  }
+
+  /**
+   * Set the number of images read from or written to GridFS at once.
+   */
+  public void setGridFsConcurrency(int gridFsConcurrency)
+  {
+    this.gridFsConcurrency = gridFsConcurrency;
+  }
+
+  /**
+   * Set the size of the image cache. 0 turns the cache off.
+   *
+   * @param imageCacheBytes  The most image data to keep in memory, in bytes.
+   * @param offHeap          Whether to keep it off the heap (which needs -XX:MaxDirectMemorySize to be raised to
+   *                         match), so a large cache doesn't slow down garbage collection.
+   */
+  public void setImageCache(long imageCacheBytes, boolean offHeap)
+  {
+    this.imageCacheBytes = imageCacheBytes;
+    this.imageCacheOffHeap = offHeap;
+  }
+
+  /**
+   * Set the size of the user cache. A size of 0 turns the cache off.
+   *
+   * @param maxEntries  The most users to keep.
+   * @param ttlMillis   How long a user is kept before being read again, in milliseconds.
+   */
+  public void setUserCache(int maxEntries, long ttlMillis)
+  {
+    this.userCacheSize = maxEntries;
+    this.userCacheTtlMillis = ttlMillis;
+  }
+
+  /**
+   * Set how comments are batched up. An interval of 0 writes each comment straight away.
+   *
+   * @param flushInterval  The longest a comment waits before being written, in milliseconds.
+   * @param maxBatchSize   The number of comments for one photo that triggers an immediate write.
+   */
+  public void setCommentWriteBehind(int flushInterval, int maxBatchSize)
+  {
+    this.commentFlushInterval = flushInterval;
+    this.commentBatchSize = maxBatchSize;
+  }
+
+  /**
+   * Set whether every call to the DAOs is measured.
+   */
+  public void setMetricsEnabled(boolean metricsEnabled)
+  {
+    this.metricsEnabled = metricsEnabled;
+  }
+
+  /**
+   * Build the DAOs. Loads the friend graph, so this reads every user.
+   */
+  public void create()
+  {
+    daoPhoto = new MongoDbDAOPhoto(database, oldStyleDb, gridFsConcurrency);
+    daoUser = new MongoDbDAOUser(database);
+
+    // Answer friend checks and follower lookups from memory.
+    friendGraph = new FriendGraph();
+    daoUser.setFriendGraph(friendGraph);
+    daoPhoto.setUserDAO(daoUser);
+
+    // Keep recently viewed images in memory.
+    if (imageCacheBytes > 0)
+    {
+      imageCache = imageCacheOffHeap ? new OffHeapImageCache(imageCacheBytes) : new LruImageCache(imageCacheBytes);
+      daoPhoto.setImageCache(imageCache);
+    }
+
+    // Batch up comments, so a busy photo gets one write per batch rather than one per comment.
+    if (commentFlushInterval > 0)
+    {
+      daoPhoto.startCommentWriteBehind(commentFlushInterval, commentBatchSize);
+    }
+
+    // Users are looked up on every login, friend search and friends only image, so keep them in memory too.
+    photoDAO = daoPhoto;
+    userDAO = daoUser;
+
+    if (userCacheSize > 0)
+    {
+      userCache = new CachingUserDAO(daoUser, userCacheSize, userCacheTtlMillis);
+      userDAO = userCache;
+    }
+
+    // Measure every call made to the DAOs.
+    if (metricsEnabled)
+    {
+      instrumentedPhotoDAO = new InstrumentedPhotoDAO(photoDAO);
+      instrumentedUserDAO = new InstrumentedUserDAO(userDAO);
+      photoDAO = instrumentedPhotoDAO;
+      userDAO = instrumentedUserDAO;
+    }
+  }
+
+  /**
+   * Make sure the indexes the DAOs rely on are in place.
+   *
+   * @return A description of each index that is missing or was built differently than expected. Empty if all is well.
+   */
+  public ArrayList<String> ensureIndexes()
+  {
+    ArrayList<String> problems = new ArrayList<String>();
+    problems.addAll(daoPhoto.ensureIndexes());
+    problems.addAll(daoUser.ensureIndexes());
+
+    return problems;
+  }
+
+  /**
+   * Write any buffered comments and stop the DAOs' worker threads, before the database connection is closed.
+   */
+  public void shutdown()
+  {
+    if (daoPhoto != null)
+    {
+      daoPhoto.shutdown();
+    }
+  }
+
+  /**
+   * Get the photo DAO the app should use, with everything layered on top.
+   */
+  public PhotoDAO getPhotoDAO()
+  {
+    return photoDAO;
+  }
+
+  /**
+   * Get the user DAO the app should use, with everything layered on top.
+   */
+  public UserDAO getUserDAO()
+  {
+    return userDAO;
+  }
+
+  /**
+   * Get the Mongo Db photo DAO underneath.
+   */
+  public MongoDbDAOPhoto getMongoPhotoDAO()
+  {
+    return daoPhoto;
+  }
+
+  /**
+   * Get the Mongo Db user DAO underneath.
+   */
+  public MongoDbDAOUser getMongoUserDAO()
+  {
+    return daoUser;
+  }
+
+  /**
+   * Get the friend graph.
+   */
+  public FriendGraph getFriendGraph()
+  {
+    return friendGraph;
+  }
+
+  /**
+   * Get the image cache. Null if the cache is disabled.
+   */
+  public ImageCache getImageCache()
+  {
+    return imageCache;
+  }
+
+  /**
+   * Get the user cache. Null if the cache is disabled.
+   */
+  public CachingUserDAO getUserCache()
+  {
+    return userCache;
+  }
+
+  /**
+   * Get the statistics kept for the photo DAO. Null if metrics are disabled.
+   */
+  public DaoMetrics getPhotoMetrics()
+  {
+    return (instrumentedPhotoDAO != null) ? instrumentedPhotoDAO.getMetrics() : null;
+  }
+
+  /**
+   * Get the statistics kept for the user DAO. Null if metrics are disabled.
+   */
+  public DaoMetrics getUserMetrics()
+  {
+    return (instrumentedUserDAO != null) ? instrumentedUserDAO.getMetrics() : null;
+  }
+}
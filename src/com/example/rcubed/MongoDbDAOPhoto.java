@@ -1,23 +1,56 @@
 package com.example.rcubed;
 
+import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
-
-import java.io.ByteArrayOutputStream;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.lte;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Sorts.descending;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 import org.bson.Document;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.conversions.Bson;
 import org.bson.types.BasicBSONList;
 import org.bson.types.ObjectId;
 
 import com.example.rcubed.Photo.Visibility;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.ReturnDocument;
 import com.mongodb.client.result.DeleteResult;
 import com.mongodb.client.result.UpdateResult;
 import com.mongodb.gridfs.GridFS;
@@ -34,18 +67,100 @@ public class MongoDbDAOPhoto implements PhotoDAO
    */
   private static final String PHOTOS_COLLECTION = "Photos";
 
+  /**
+   * The collection recording each distinct image stored in GridFS, keyed by the hash of its content.
+   */
+  private static final String CONTENT_COLLECTION = "ImageContent";
+
+  /**
+   * The collection containing the comments on all photos.
+   */
+  private static final String COMMENTS_COLLECTION = "Comments";
+
   /**
    * Mongo Db Keys for the various Photo fields.
    */
   public static final String KEY_ID = "_id";
   public static final String KEY_GFS_ID = "gfsid";
+  public static final String KEY_THUMBNAIL_ID = "thumbid";
+  public static final String KEY_PREVIEW_ID = "previewid";
+  public static final String KEY_CONTENT_HASH = "Hash";
   public static final String KEY_OWNER = "Owner";
   public static final String KEY_TITLE = "Title";
   public static final String KEY_TAGS = "Tags";
-  public static final String KEY_COMMENTS = "Comments";
+  public static final String KEY_COMMENT_COUNT = "CommentCount";
   public static final String KEY_TIMESTAMP = "Timestamp";
   public static final String KEY_VISIBILITY = "Visibility";
 
+  /**
+   * Mongo Db Key of the array comments used to be stored in, within the photo document. Only used to move them to the
+   * comments collection (see migrateComments()).
+   */
+  public static final String KEY_COMMENTS = "Comments";
+
+  /**
+   * Mongo Db Keys for the Comment fields.
+   */
+  public static final String KEY_PHOTO_ID = "photoId";
+  public static final String KEY_AUTHOR = "Author";
+  public static final String KEY_TEXT = "Text";
+  public static final String KEY_TIME = "Time";
+
+  /**
+   * Mongo Db Key for the number of photos sharing a stored image (the image ids use the Photo keys).
+   */
+  public static final String KEY_REFS = "Refs";
+
+  /**
+   * The renditions generated when a photo is inserted.
+   */
+  private static final Photo.Rendition[] RENDITIONS = { Photo.Rendition.THUMBNAIL, Photo.Rendition.PREVIEW };
+
+  /**
+   * The fields read for a PhotoSummary. Leaves out the image ids and comment count.
+   */
+  private static final Bson SUMMARY_PROJECTION = include(KEY_ID, KEY_OWNER, KEY_TITLE, KEY_TAGS, KEY_TIMESTAMP,
+      KEY_VISIBILITY, KEY_COMMENT_COUNT);
+
+  /**
+   * Names of the indexes on the Photos and Comments collections.
+   */
+  private static final String INDEX_OWNER = "Owner_Visibility_Timestamp_id";
+  private static final String INDEX_TAGS = "Tags";
+  private static final String INDEX_COMMENTS = "photoId_Time_id";
+
+  /**
+   * Separates the sort value from the _id within a continuation token.
+   */
+  private static final String TOKEN_SEPARATOR = "-";
+
+  /**
+   * The default limit on the number of GridFS operations run in parallel.
+   */
+  public static final int DEFAULT_GRIDFS_CONCURRENCY = 8;
+
+  /**
+   * Convert a photo's timestamp into the value stored in the database, whole seconds since the epoch. Photo queries
+   * are sorted and paged on this value.
+   * 
+   * @param timestamp  The timestamp.
+   */
+  static long toStoredTimestamp(Date timestamp)
+  {
+    return timestamp.toInstant().getEpochSecond();
+  }
+
+  /**
+   * Convert a value stored by toStoredTimestamp() back into a timestamp. toStoredTimestamp() gives back exactly the
+   * value stored for the result.
+   * 
+   * @param stored  The stored value.
+   */
+  static Date fromStoredTimestamp(long stored)
+  {
+    return Date.from(Instant.ofEpochSecond(stored));
+  }
+
   /**
    * Helper function to convert an instance of Photo to a representation suitable for storing in a Mongo Db Collection.
    * 
@@ -57,7 +172,13 @@ public class MongoDbDAOPhoto implements PhotoDAO
   {
     Document doc = new Document();
 
-    doc.append(KEY_GFS_ID, photo.getGFSPhotoId());
+    appendImageIds(doc, photo);
+
+    if (photo.getContentHash() != null)
+    {
+      doc.append(KEY_CONTENT_HASH, photo.getContentHash());
+    }
+
     doc.append(KEY_OWNER, photo.getOwner());
     doc.append(KEY_TITLE, photo.getTitle());
 
@@ -66,12 +187,10 @@ public class MongoDbDAOPhoto implements PhotoDAO
     bsonTags.addAll(photo.getTags());
     doc.append(KEY_TAGS, bsonTags);
 
-    // Convert the comments into a list/array structure suitable for Mongo Db.
-    BasicBSONList bsonComments = new BasicBSONList();
-    bsonComments.addAll(photo.getComments());
-    doc.append(KEY_COMMENTS, bsonComments);
+    // The comments themselves are in the comments collection.
+    doc.append(KEY_COMMENT_COUNT, photo.getCommentCount());
 
-    doc.append(KEY_TIMESTAMP, photo.getTimeStamp().toInstant().getEpochSecond());
+    doc.append(KEY_TIMESTAMP, toStoredTimestamp(photo.getTimeStamp()));
     doc.append(KEY_VISIBILITY, photo.getVisibility().ordinal());
 
     // Only add the id field if we've got it. If it's not present, assume this is a new photo and mongodb will add it
@@ -87,11 +206,15 @@ public class MongoDbDAOPhoto implements PhotoDAO
   /**
    * Helper function to convert a document retrieved from the Photos collection into an instance of Photo.
    * 
-   * @param doc  The document to be converted.
+   * Only the meta data is converted. The image data stays in GridFS until the photo's stream is requested, at which
+   * point it is fetched through photoDAO.
+   * 
+   * @param doc       The document to be converted.
+   * @param photoDAO  The DAO the photo should use to load its image data (may be null).
    *  
    * @return An instance of Photo built from the input document. 
    */
-  public static Photo createPhoto(Document doc, GridFS gfs)
+  public static Photo createPhoto(Document doc, PhotoDAO photoDAO)
   {
     // Create an empty instance of User.
     Photo photo = new Photo();
@@ -103,7 +226,8 @@ public class MongoDbDAOPhoto implements PhotoDAO
     photo.setId(id.toString());
 
     // We dont' bother convierting this objectObject Id must be converted to a string.
-    photo.setGFSPhotoId(doc.get(KEY_GFS_ID));
+    readImageIds(doc, photo);
+    photo.setContentHash(doc.getString(KEY_CONTENT_HASH));
 
     photo.setOwner(doc.getString(KEY_OWNER));
     photo.setTitle(doc.getString(KEY_TITLE));
@@ -112,30 +236,147 @@ public class MongoDbDAOPhoto implements PhotoDAO
     ArrayList<String> tags = (ArrayList<String>) doc.get(KEY_TAGS);
     photo.setTags(tags);
 
-    // Convert the db list representation to an array list.
-    ArrayList<String> comments = (ArrayList<String>) doc.get(KEY_COMMENTS);
-    photo.setComments(comments);
+    // Photos with no comments may not have a count yet.
+    photo.setCommentCount(doc.getInteger(KEY_COMMENT_COUNT, 0));
 
-    photo.setTimeStamp(Date.from(Instant.ofEpochMilli(doc.getLong(KEY_TIMESTAMP))));
+    photo.setTimeStamp(fromStoredTimestamp(doc.getLong(KEY_TIMESTAMP)));
 
     // Visibility must be converted to the relevant enum value.
     photo.setVisibility(Photo.VisibilityValues[(int) doc.get(KEY_VISIBILITY)]);
 
-    // Raw data for the image is accessed through GridFS
-    GridFSDBFile out = gfs.findOne(new BasicDBObject("_id", photo.getGFSPhotoId()));
-    ByteArrayOutputStream imageBuffer = new ByteArrayOutputStream();
+    // Raw data for the image is accessed through GridFS, but only when it's actually needed.
+    photo.setPhotoDAO(photoDAO);
 
-    try
+    return photo;
+  }
+
+  /**
+   * Helper function to create the document stored in the Comments collection for a comment.
+   * 
+   * @param photoId  The database object id of the photo the comment is on.
+   * @param author   The username of the user who left the comment.
+   * @param text     The comment.
+   * @param time     The time the comment was left, in milliseconds since the epoch.
+   * 
+   * @return The document, with its id already assigned.
+   */
+  public static Document createCommentDoc(ObjectId photoId, String author, String text, long time)
+  {
+    Document doc = new Document(KEY_ID, new ObjectId());
+    doc.append(KEY_PHOTO_ID, photoId);
+    doc.append(KEY_AUTHOR, author);
+    doc.append(KEY_TEXT, text);
+    doc.append(KEY_TIME, time);
+
+    return doc;
+  }
+
+  /**
+   * Helper function to convert a document retrieved from the Comments collection into an instance of Comment.
+   * 
+   * @param doc  The document to be converted.
+   * 
+   * @return An instance of Comment built from the input document.
+   */
+  public static Comment createComment(Document doc)
+  {
+    Comment comment = new Comment();
+
+    comment.setId(doc.getObjectId(KEY_ID).toString());
+    comment.setPhotoId(doc.getObjectId(KEY_PHOTO_ID).toString());
+    comment.setAuthor(doc.getString(KEY_AUTHOR));
+    comment.setText(doc.getString(KEY_TEXT));
+    comment.setTimeStamp(new Date(doc.getLong(KEY_TIME)));
+
+    return comment;
+  }
+
+  /**
+   * Add the GridFS ids of a photo's image and renditions to a document.
+   * 
+   * @param doc    The document.
+   * @param photo  The photo.
+   */
+  private static void appendImageIds(Document doc, Photo photo)
+  {
+    doc.append(KEY_GFS_ID, photo.getGFSPhotoId());
+
+    // Only store the rendition ids if the renditions exist, otherwise the original is used in their place.
+    Object thumbnailId = photo.getGFSRenditionId(Photo.Rendition.THUMBNAIL);
+    Object previewId = photo.getGFSRenditionId(Photo.Rendition.PREVIEW);
+
+    if (thumbnailId != null && !thumbnailId.equals(photo.getGFSPhotoId()))
     {
-      out.writeTo(imageBuffer);
-      photo.setImage(imageBuffer.toByteArray());
+      doc.append(KEY_THUMBNAIL_ID, thumbnailId);
     }
-    catch (IOException ex)
+
+    if (previewId != null && !previewId.equals(photo.getGFSPhotoId()))
     {
-      // TODO Probably want to display some default error image.
+      doc.append(KEY_PREVIEW_ID, previewId);
     }
+  }
 
-    return photo;
+  /**
+   * Set the GridFS ids of a photo's image and renditions from a document written with appendImageIds().
+   * 
+   * @param doc    The document.
+   * @param photo  The photo.
+   */
+  private static void readImageIds(Document doc, Photo photo)
+  {
+    photo.setGFSPhotoId(doc.get(KEY_GFS_ID));
+    photo.setGFSRenditionId(Photo.Rendition.THUMBNAIL, doc.get(KEY_THUMBNAIL_ID));
+    photo.setGFSRenditionId(Photo.Rendition.PREVIEW, doc.get(KEY_PREVIEW_ID));
+  }
+
+  /**
+   * Get the distinct GridFS ids of a photo's image and renditions.
+   * 
+   * @param photo  The photo.
+   * 
+   * @return The ids (empty if the photo's image hasn't been stored).
+   */
+  private static ArrayList<Object> getImageIds(Photo photo)
+  {
+    ArrayList<Object> ids = new ArrayList<Object>();
+
+    for (Photo.Rendition rendition : Photo.Rendition.values())
+    {
+      Object id = photo.getGFSRenditionId(rendition);
+
+      if (id != null && !ids.contains(id))
+      {
+        ids.add(id);
+      }
+    }
+
+    return ids;
+  }
+
+  /**
+   * Helper function to convert a document retrieved with SUMMARY_PROJECTION into an instance of PhotoSummary.
+   * 
+   * @param doc  The document to be converted.
+   * 
+   * @return An instance of PhotoSummary built from the input document.
+   */
+  public static PhotoSummary createPhotoSummary(Document doc)
+  {
+    // The driver reads the tags array back as an ArrayList of strings.
+    @SuppressWarnings("unchecked")
+    ArrayList<String> tags = (ArrayList<String>) doc.get(KEY_TAGS);
+
+    PhotoSummary summary = new PhotoSummary();
+
+    summary.setId(doc.getObjectId(KEY_ID).toString());
+    summary.setOwner(doc.getString(KEY_OWNER));
+    summary.setTitle(doc.getString(KEY_TITLE));
+    summary.setTags(tags);
+    summary.setTimeStamp(fromStoredTimestamp(doc.getLong(KEY_TIMESTAMP)));
+    summary.setVisibility(Photo.VisibilityValues[(int) doc.get(KEY_VISIBILITY)]);
+    summary.setCommentCount(doc.getInteger(KEY_COMMENT_COUNT, 0));
+
+    return summary;
   }
 
   /**
@@ -143,11 +384,47 @@ public class MongoDbDAOPhoto implements PhotoDAO
    */
   private MongoCollection<Document> collection;
 
+  /**
+   * The same collection, reading and writing Photos directly (see PhotoCodec).
+   */
+  private MongoCollection<Photo> photoCollection;
+
+  /**
+   * The collection recording the distinct images stored in GridFS, and how many photos share each one.
+   */
+  private MongoCollection<Document> contentCollection;
+
+  /**
+   * The collection in our database which contains the comments on all photos.
+   */
+  private MongoCollection<Document> commentsCollection;
+
   /**
    * Handle to the GridFS object which is used for storing the raw image data in the db.
    */
   private GridFS gfs;
 
+  /**
+   * Thread pool used to run GridFS reads in parallel. Its size is the maximum number of GridFS operations this DAO
+   * will have in flight at once, across all callers.
+   */
+  private ExecutorService gridFsExecutor;
+
+  /**
+   * Cache of image data sitting in front of GridFS. Null if images aren't cached.
+   */
+  private ImageCache imageCache;
+
+  /**
+   * Used to find who has a user on their friends list when building their feed.
+   */
+  private UserDAO userDAO;
+
+  /**
+   * Buffer batching up comments before they are written. Null if comments are written straight away.
+   */
+  private CommentWriteBuffer commentBuffer;
+
   /**
    * Constructor
    * 
@@ -157,187 +434,1029 @@ public class MongoDbDAOPhoto implements PhotoDAO
    *                    MongoDatabase class.
    */
   public MongoDbDAOPhoto(MongoDatabase db, DB oldStyleDb)
+  {
+    this(db, oldStyleDb, DEFAULT_GRIDFS_CONCURRENCY);
+  }
+
+  /**
+   * Constructor
+   * 
+   * @param db                 A handle to the mongo database.
+   * @param oldStyleDb         The older style handle to the database, needed by GridFS.
+   * @param gridFsConcurrency  The maximum number of GridFS operations to run in parallel.
+   */
+  public MongoDbDAOPhoto(MongoDatabase db, DB oldStyleDb, int gridFsConcurrency)
   {
     collection = db.getCollection(PHOTOS_COLLECTION);
+    photoCollection = collection.withDocumentClass(Photo.class).withCodecRegistry(CodecRegistries.fromRegistries(
+        CodecRegistries.fromCodecs(new PhotoCodec(db.getCodecRegistry(), this)), db.getCodecRegistry()));
+    contentCollection = db.getCollection(CONTENT_COLLECTION);
+    commentsCollection = db.getCollection(COMMENTS_COLLECTION);
     gfs = new GridFS(oldStyleDb);
+    gridFsExecutor = Executors.newFixedThreadPool(gridFsConcurrency, new ThreadFactory()
+    {
+      private final AtomicInteger threadCount = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable task)
+      {
+        // Daemon threads, so a forgotten shutdown() can't keep the JVM alive.
+        Thread thread = new Thread(task, "rcubed-gridfs-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
   }
 
   /**
-   * See com.example.rcubed.PhotoDAO.insertPhoto(Photo photo)
+   * Set the cache used to avoid reading the same images from GridFS over and over again.
+   * 
+   * @param imageCache  The cache, or null to always read from GridFS.
    */
-  @Override
-  public boolean insertPhoto(Photo photo)
+  public void setImageCache(ImageCache imageCache)
   {
-    // Default return value to false.
-    boolean success = false;
+    this.imageCache = imageCache;
+  }
+
+  /**
+   * Set the user DAO used to find who has a user on their friends list when building their feed.
+   * 
+   * @param userDAO  The user DAO, or null to only include the Public photos of the viewer's friends.
+   */
+  public void setUserDAO(UserDAO userDAO)
+  {
+    this.userDAO = userDAO;
+  }
 
-    // Because images can be larger than 16Mb (which is a MongoDb limit for single documents) we use GridFS to store the
-    // image data. This actually stores it in a couple of collections which are different from the one with
-    GridFSInputFile in = gfs.createFile(photo.getImage());
-    photo.setGFSPhotoId(in.getId());
-    in.save();
+  /**
+   * Start writing comments in batches rather than one at a time. Should only be called once.
+   * 
+   * @param flushInterval  The longest a comment waits before being written, in milliseconds.
+   * @param maxBatchSize   The number of comments waiting on one photo that triggers an immediate write.
+   */
+  public void startCommentWriteBehind(long flushInterval, int maxBatchSize)
+  {
+    commentBuffer = new CommentWriteBuffer(collection, commentsCollection, flushInterval, maxBatchSize);
+  }
 
-    Document doc = convertToDoc(photo);
+  /**
+   * Get the comment write behind buffer, for monitoring. Null if comments are written straight away.
+   */
+  public CommentWriteBuffer getCommentBuffer()
+  {
+    return commentBuffer;
+  }
 
-    // No return type or exceptions thrown... this must always succeed!
-    collection.insertOne(doc);
-    success = true;
+  /**
+   * Create the indexes the photo queries rely on, and check any that already exist are what we expect.
+   * 
+   *   Owner/Visibility/Timestamp/_id - album and feed queries match an owner and a list of visibilities, and sort
+   *                                    newest first. Each visibility is a separate run of the index already in sort
+   *                                    order, which the database merges rather than sorting the results.
+   *   Tags                           - multikey index for filtering an album by tag.
+   *   Comments photoId/Time/_id      - a photo's comments are read newest first, a page at a time (the id breaks
+   *                                    ties between comments made in the same millisecond).
+   * 
+   * @return A description of each index that is missing or was built differently than expected. Empty if all is well.
+   */
+  public ArrayList<String> ensureIndexes()
+  {
+    ArrayList<String> problems = new ArrayList<String>();
 
-    // Update the photo object with the ID thats been assigned by Mongo Db.
-    ObjectId id = (ObjectId) doc.get(KEY_ID);
-    photo.setId(id.toString());
+    Document ownerKeys = new Document(KEY_OWNER, 1);
+    ownerKeys.append(KEY_VISIBILITY, 1);
+    ownerKeys.append(KEY_TIMESTAMP, -1);
+    ownerKeys.append(KEY_ID, -1);
+    MongoDbIndexes.ensureIndex(collection, INDEX_OWNER, ownerKeys, false, problems);
 
-    return success;
+    MongoDbIndexes.ensureIndex(collection, INDEX_TAGS, new Document(KEY_TAGS, 1), false, problems);
+
+    Document commentKeys = new Document(KEY_PHOTO_ID, 1);
+    commentKeys.append(KEY_TIME, -1);
+    commentKeys.append(KEY_ID, -1);
+    MongoDbIndexes.ensureIndex(commentsCollection, INDEX_COMMENTS, commentKeys, false, problems);
+
+    return problems;
   }
 
   /**
-   * See com.example.rcubed.PhotoDAO.deletePhoto(User user, Photo photo)
+   * Write any buffered comments and stop the worker threads. The DAO should not be used for parallel operations or
+   * comments after this has been called.
+   */
+  public void shutdown()
+  {
+    if (commentBuffer != null)
+    {
+      commentBuffer.shutdown();
+    }
+
+    gridFsExecutor.shutdown();
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.insertPhoto(Photo photo)
    */
   @Override
-  public boolean deletePhoto(User user, Photo photo)
+  public boolean insertPhoto(Photo photo)
   {
     // Default return value to false.
     boolean success = false;
 
-    // Only allowed to delete photo if the user doing the changing is the photo owner.
-    if (user.getUsername().equals(photo.getOwner()))
-    {
-      DeleteResult result = collection.deleteOne(eq(KEY_ID, new ObjectId(photo.getId())));
+    storeImage(photo);
 
-      if (result.getDeletedCount() == 1)
-      {
-        // Update was successful.
-        success = true;
-      }
-    }
+    // No return type or exceptions thrown... this must always succeed! The codec gives the photo its id.
+    photoCollection.insertOne(photo);
+    success = true;
 
     return success;
   }
 
   /**
-   * See com.example.rcubed.PhotoDAO.addTag(User user, Photo photo, String newTag)
+   * See com.example.rcubed.PhotoDAO.beginImageUpload(String filename, String mimeType)
    */
   @Override
-  public boolean addTag(User user, Photo photo, String newTag)
+  public ImageUpload beginImageUpload(String filename, String mimeType)
+  {
+    // GridFS writes each chunk to the database as soon as it fills up, so only one chunk of the upload is ever held in
+    // memory. The file itself is saved when the stream is closed.
+    GridFSInputFile in = gfs.createFile();
+    in.setFilename(filename);
+    in.setContentType(mimeType);
+
+    return new ImageUpload(in.getId(), in.getOutputStream());
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.insertPhoto(Photo photo, ImageUpload upload)
+   */
+  @Override
+  public boolean insertPhoto(Photo photo, ImageUpload upload)
   {
     // Default return value to false.
     boolean success = false;
 
-    // Only allowed to change photo properties if the user doing the changing is the photo owner.
-    if (user.getUsername().equals(photo.getOwner()))
-    {
-      // There is no point in troubling the database if the tag in question is already present.
-      if (!photo.getTags().contains(newTag))
-      {
-        Document match = new Document();
-        match.append(KEY_ID, new ObjectId(photo.getId()));
+    // The codec gives the photo an id as it is inserted. It keeps the one it had if the insert fails.
+    String previousId = photo.getId();
 
-        Document newItem = new Document();
-        newItem.append(KEY_TAGS, newTag);
+    try
+    {
+      // Make sure the last chunk and the file entry have been written.
+      upload.close();
 
-        Document pushQuery = new Document();
-        pushQuery.append("$push", newItem);
+      if (claimContent(photo, upload.getContentHash()))
+      {
+        // The same image is already stored. The hash isn't known until the whole upload has been written, so the copy
+        // has to be written anyway, but there's no need to keep it.
+        abortImageUpload(upload);
+      }
+      else
+      {
+        photo.setGFSPhotoId(upload.getImageId());
 
-        UpdateResult result = collection.updateOne(match, pushQuery);
+        // The image isn't in memory, so the renditions are generated from the stored copy.
+        GridFSDBFile original = gfs.findOne(new BasicDBObject("_id", upload.getImageId()));
 
-        if (result.getMatchedCount() == 1 && result.getModifiedCount() == 1)
+        if (original == null)
         {
-          // Update was successful.
-          success = true;
+          throw new IOException("Uploaded image " + upload.getImageId() + " not found");
+        }
 
-          // Modify the local copy.
-          photo.addTag(newTag);
+        try (InputStream in = original.getInputStream())
+        {
+          storeRenditions(photo, in);
         }
+
+        recordContent(photo, upload.getContentHash());
       }
+
+      photoCollection.insertOne(photo);
+      success = true;
+    }
+    catch (IOException | MongoException ex)
+    {
+      // Dealt with below.
+    }
+
+    if (!success)
+    {
+      photo.setId(previousId);
+
+      // Give up whatever the photo was going to use, and throw the upload away.
+      releaseImages(photo);
+      abortImageUpload(upload);
     }
 
     return success;
   }
 
   /**
-   * See com.example.rcubed.PhotoDAO.removeTag(User user, Photo photo, String exTag
+   * See com.example.rcubed.PhotoDAO.abortImageUpload(ImageUpload upload)
    */
   @Override
-  public boolean removeTag(User user, Photo photo, String exTag)
+  public void abortImageUpload(ImageUpload upload)
   {
-    // Default return value to false.
-    boolean success = false;
-
-    // Only allowed to change photo properties if the user doing the changing is the photo owner.
+    try
+    {
+      upload.close();
+    }
+    catch (IOException ex)
+    {
+      // Doesn't matter, it's being thrown away.
+    }
+
+    // Removes the chunks as well as the file entry, so this also clears up an upload that never completed.
+    gfs.remove((ObjectId) upload.getImageId());
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.insertPhotos(List<Photo> photos)
+   */
+  @Override
+  public boolean[] insertPhotos(List<Photo> photos)
+  {
+    boolean[] success = new boolean[photos.size()];
+
+    // Store all the images first, on the GridFS thread pool so several are written at once. The pool limits how many
+    // are in flight, so a large import can't swamp the database.
+    ArrayList<ImageStore> imageStores = new ArrayList<ImageStore>(photos.size());
+    ArrayList<Future<?>> stores = new ArrayList<Future<?>>(photos.size());
+
+    for (Photo photo : photos)
+    {
+      ImageStore imageStore = new ImageStore(photo);
+      imageStores.add(imageStore);
+      stores.add(gridFsExecutor.submit(imageStore));
+    }
+
+    // Collect the photos whose images were stored, in list order. indexes[i] is the position in photos of inserts[i].
+    ArrayList<Photo> inserts = new ArrayList<Photo>(photos.size());
+    ArrayList<Integer> indexes = new ArrayList<Integer>(photos.size());
+
+    for (int i = 0; i < stores.size(); i++)
+    {
+      try
+      {
+        stores.get(i).get();
+
+        inserts.add(photos.get(i));
+        indexes.add(i);
+      }
+      catch (ExecutionException ex)
+      {
+        // Clear up whatever part of the image made it into GridFS.
+        releaseImages(photos.get(i));
+      }
+      catch (InterruptedException ex)
+      {
+        // Give up on whatever hasn't started, and don't leave any of it behind. Nothing has been inserted yet, so every
+        // photo's images can go, but only once the stores already running have finished writing them.
+        for (int j = 0; j < stores.size(); j++)
+        {
+          stores.get(j).cancel(false);
+
+          if (imageStores.get(j).abandon())
+          {
+            releaseImages(photos.get(j));
+          }
+        }
+
+        Thread.currentThread().interrupt();
+        return success;
+      }
+    }
+
+    if (!inserts.isEmpty())
+    {
+      // The codec gives each photo an id as it is inserted. They keep the ones they had if the insert fails.
+      ArrayList<String> previousIds = new ArrayList<String>(inserts.size());
+
+      for (Photo photo : inserts)
+      {
+        previousIds.add(photo.getId());
+      }
+
+      // Assume every document goes in, then knock out any the database rejects.
+      for (int index : indexes)
+      {
+        success[index] = true;
+      }
+
+      try
+      {
+        // All the meta data goes in one round trip. Unordered, so one bad document doesn't stop the rest.
+        photoCollection.insertMany(inserts, new InsertManyOptions().ordered(false));
+      }
+      catch (MongoBulkWriteException ex)
+      {
+        for (BulkWriteError error : ex.getWriteErrors())
+        {
+          success[indexes.get(error.getIndex())] = false;
+        }
+      }
+      catch (MongoException ex)
+      {
+        // Don't know what did or didn't get written (the connection may have gone after some were inserted), so look
+        // for them.
+        HashSet<String> written = findInserted(inserts);
+
+        for (int i = 0; i < inserts.size(); i++)
+        {
+          success[indexes.get(i)] = (written != null) && written.contains(inserts.get(i).getId());
+        }
+
+        if (written == null)
+        {
+          // Can't tell which went in. Any that did are pointing at their images, so leave the images where they are.
+          for (int i = 0; i < inserts.size(); i++)
+          {
+            inserts.get(i).setId(previousIds.get(i));
+          }
+
+          return success;
+        }
+      }
+
+      for (int i = 0; i < inserts.size(); i++)
+      {
+        Photo photo = inserts.get(i);
+
+        if (!success[indexes.get(i)])
+        {
+          photo.setId(previousIds.get(i));
+          releaseImages(photo);
+        }
+      }
+    }
+
+    return success;
+  }
+
+  /**
+   * Find which of some photos are in the database, after an insert that failed part way.
+   * 
+   * @param photos  The photos, with the ids they were inserted with.
+   * 
+   * @return The ids of the photos that are in the database, or null if that can't be found out either.
+   */
+  private HashSet<String> findInserted(List<Photo> photos)
+  {
+    ArrayList<ObjectId> ids = new ArrayList<ObjectId>(photos.size());
+
+    for (Photo photo : photos)
+    {
+      if (photo.getId() != null)
+      {
+        ids.add(new ObjectId(photo.getId()));
+      }
+    }
+
+    HashSet<String> found = new HashSet<String>();
+
+    try
+    {
+      for (Document doc : collection.find(in(KEY_ID, ids)).projection(include(KEY_ID)))
+      {
+        found.add(doc.getObjectId(KEY_ID).toString());
+      }
+    }
+    catch (MongoException ex)
+    {
+      found = null;
+    }
+
+    return found;
+  }
+
+  /**
+   * Store a photo's image and its renditions in GridFS, and record their ids on the photo.
+   * 
+   * If the same image is already stored the photo shares it, and nothing is written.
+   * 
+   * @param photo  The photo, with its image data set.
+   */
+  private void storeImage(Photo photo)
+  {
+    String contentHash = ImageUpload.getContentHash(photo.getImage());
+
+    if (!claimContent(photo, contentHash))
+    {
+      // Because images can be larger than 16Mb (which is a MongoDb limit for single documents) we use GridFS to store
+      // the image data. This actually stores it in a couple of collections which are different from the one with
+      GridFSInputFile in = gfs.createFile(photo.getImage());
+      photo.setGFSPhotoId(in.getId());
+      in.save();
+
+      // Store the smaller versions of the image used for display.
+      storeRenditions(photo, new ByteArrayInputStream(photo.getImage()));
+
+      recordContent(photo, contentHash);
+    }
+  }
+
+  /**
+   * Share an image that is already stored, if there is one with the same content.
+   * 
+   * @param photo        The photo that is to use the image.
+   * @param contentHash  The hash of the image data.
+   * 
+   * @return True if the photo now uses the stored image and its renditions, false if there is no such image.
+   */
+  private boolean claimContent(Photo photo, String contentHash)
+  {
+    Document content = contentCollection.findOneAndUpdate(eq(KEY_ID, contentHash),
+        new Document("$inc", new Document(KEY_REFS, 1)));
+
+    if (content != null)
+    {
+      readImageIds(content, photo);
+      photo.setContentHash(contentHash);
+    }
+
+    return content != null;
+  }
+
+  /**
+   * Record a newly stored image, so later photos with the same content can share it.
+   * 
+   * If the same content was recorded in the meantime (the same image uploaded twice at once) the photo's own copy is
+   * removed, and it shares the recorded image instead.
+   * 
+   * @param photo        The photo whose image and renditions have been stored.
+   * @param contentHash  The hash of the image data.
+   */
+  private void recordContent(Photo photo, String contentHash)
+  {
+    Document content = new Document(KEY_ID, contentHash);
+    appendImageIds(content, photo);
+    content.append(KEY_REFS, 1);
+
+    boolean recorded = false;
+
+    while (!recorded)
+    {
+      try
+      {
+        contentCollection.insertOne(content);
+        photo.setContentHash(contentHash);
+        recorded = true;
+      }
+      catch (MongoWriteException ex)
+      {
+        if (ex.getError().getCategory() != ErrorCategory.DUPLICATE_KEY)
+        {
+          throw ex;
+        }
+
+        ArrayList<Object> ownImageIds = getImageIds(photo);
+
+        if (claimContent(photo, contentHash))
+        {
+          removeImages(ownImageIds);
+          recorded = true;
+        }
+
+        // Otherwise the other copy was released again before we could claim it, so try recording ours again.
+      }
+    }
+  }
+
+  /**
+   * Give up a photo's use of its stored image. The image and its renditions are removed from GridFS once no other
+   * photo is using them.
+   * 
+   * @param photo  The photo.
+   */
+  private void releaseImages(Photo photo)
+  {
+    String contentHash = photo.getContentHash();
+
+    if (contentHash == null)
+    {
+      // Not shared, so it can go straight away.
+      removeImages(getImageIds(photo));
+    }
+    else
+    {
+      Document content = contentCollection.findOneAndUpdate(eq(KEY_ID, contentHash),
+          new Document("$inc", new Document(KEY_REFS, -1)),
+          new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER));
+
+      // Only delete the record if nobody has claimed the image since, and only remove the image if we deleted it.
+      if (content != null && content.getInteger(KEY_REFS) <= 0)
+      {
+        DeleteResult result = contentCollection.deleteOne(and(eq(KEY_ID, contentHash), lte(KEY_REFS, 0)));
+
+        if (result.getDeletedCount() == 1)
+        {
+          removeImages(getImageIds(photo));
+        }
+      }
+    }
+  }
+
+  /**
+   * Remove images from GridFS (and the cache).
+   * 
+   * @param gfsIds  The ids of the images.
+   */
+  private void removeImages(ArrayList<Object> gfsIds)
+  {
+    for (Object gfsId : gfsIds)
+    {
+      if (gfsId instanceof ObjectId)
+      {
+        gfs.remove((ObjectId) gfsId);
+
+        if (imageCache != null)
+        {
+          imageCache.remove(gfsId);
+        }
+      }
+    }
+  }
+
+  /**
+   * Stores one photo's image for insertPhotos(), on the GridFS thread pool.
+   * 
+   * Cancelling the task's Future only stops it if it hasn't started, and a cancelled Future reports that straight
+   * away even if the store is still running. abandon() settles which happened, so the caller knows when it is safe to
+   * release the photo's images.
+   */
+  private class ImageStore implements Runnable
+  {
+    private final Photo photo;
+
+    /**
+     * Set by whichever comes first: the store starting, or the caller abandoning it.
+     */
+    private final AtomicBoolean claimed = new AtomicBoolean();
+
+    /**
+     * Counted down once a store that started has finished, however it finished.
+     */
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    private ImageStore(Photo photo)
+    {
+      this.photo = photo;
+    }
+
+    @Override
+    public void run()
+    {
+      if (claimed.compareAndSet(false, true))
+      {
+        try
+        {
+          storeImage(photo);
+        }
+        finally
+        {
+          finished.countDown();
+        }
+      }
+    }
+
+    /**
+     * Stop the store from starting, or wait for it to finish if it already has. The caller is expected to be dealing
+     * with an interrupt already, so further interrupts don't stop the wait.
+     * 
+     * @return True if the store ran, so the photo may have images to release.
+     */
+    private boolean abandon()
+    {
+      boolean started = !claimed.compareAndSet(false, true);
+
+      if (started)
+      {
+        boolean waited = false;
+
+        while (!waited)
+        {
+          try
+          {
+            finished.await();
+            waited = true;
+          }
+          catch (InterruptedException ex)
+          {
+            // Keep waiting, the images can't be released while they are being written.
+          }
+        }
+      }
+
+      return started;
+    }
+  }
+
+  /**
+   * Generate the thumbnail and preview renditions of a photo, store them in GridFS and record their ids on the photo.
+   * 
+   * A rendition is skipped if the original is already small enough, or if the original can't be decoded, in which
+   * case the original is used in its place.
+   * 
+   * @param photo     The photo.
+   * @param original  Stream over the original image data.
+   */
+  private void storeRenditions(Photo photo, InputStream original)
+  {
+    try
+    {
+      BufferedImage decoded = PhotoRenditions.decode(original);
+
+      if (decoded != null)
+      {
+        for (Photo.Rendition rendition : RENDITIONS)
+        {
+          byte[] renditionData = PhotoRenditions.createRendition(decoded, PhotoRenditions.getMaxSize(rendition));
+
+          if (renditionData != null)
+          {
+            GridFSInputFile renditionFile = gfs.createFile(renditionData);
+            renditionFile.setContentType(PhotoRenditions.RENDITION_CONTENT_TYPE);
+            renditionFile.save();
+
+            photo.setGFSRenditionId(rendition, renditionFile.getId());
+          }
+        }
+      }
+    }
+    catch (IOException ex)
+    {
+      // Not fatal - the original will be displayed instead.
+    }
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.deletePhoto(User user, Photo photo)
+   */
+  @Override
+  public boolean deletePhoto(User user, Photo photo)
+  {
+    // Default return value to false.
+    boolean success = false;
+
+    // Only allowed to delete photo if the user doing the changing is the photo owner.
     if (user.getUsername().equals(photo.getOwner()))
     {
-      // There is no point in troubling the database if the tag in question isn't present.
-      if (photo.getTags().contains(exTag))
-      {
-        Document match = new Document();
-        match.append(KEY_ID, new ObjectId(photo.getId()));
+      DeleteResult result = collection.deleteOne(eq(KEY_ID, new ObjectId(photo.getId())));
+
+      if (result.getDeletedCount() == 1)
+      {
+        // Update was successful.
+        success = true;
+
+        // The image goes too, unless another photo is sharing it, and so do the comments.
+        releaseImages(photo);
+        commentsCollection.deleteMany(eq(KEY_PHOTO_ID, new ObjectId(photo.getId())));
+      }
+    }
+
+    return success;
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.addTag(User user, Photo photo, String newTag)
+   */
+  @Override
+  public boolean addTag(User user, Photo photo, String newTag)
+  {
+    // Default return value to false.
+    boolean success = false;
+
+    // Only allowed to change photo properties if the user doing the changing is the photo owner.
+    if (user.getUsername().equals(photo.getOwner()))
+    {
+      // There is no point in troubling the database if the tag in question is already present.
+      if (!photo.getTags().contains(newTag))
+      {
+        Document match = new Document();
+        match.append(KEY_ID, new ObjectId(photo.getId()));
+
+        Document newItem = new Document();
+        newItem.append(KEY_TAGS, newTag);
+
+        Document pushQuery = new Document();
+        pushQuery.append("$push", newItem);
+
+        UpdateResult result = collection.updateOne(match, pushQuery);
+
+        if (result.getMatchedCount() == 1 && result.getModifiedCount() == 1)
+        {
+          // Update was successful.
+          success = true;
+
+          // Modify the local copy.
+          photo.addTag(newTag);
+        }
+      }
+    }
+
+    return success;
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.removeTag(User user, Photo photo, String exTag
+   */
+  @Override
+  public boolean removeTag(User user, Photo photo, String exTag)
+  {
+    // Default return value to false.
+    boolean success = false;
+
+    // Only allowed to change photo properties if the user doing the changing is the photo owner.
+    if (user.getUsername().equals(photo.getOwner()))
+    {
+      // There is no point in troubling the database if the tag in question isn't present.
+      if (photo.getTags().contains(exTag))
+      {
+        Document match = new Document();
+        match.append(KEY_ID, new ObjectId(photo.getId()));
+
+        Document removals = new Document();
+        removals.append(KEY_TAGS, exTag);
+
+        Document pullQuery = new Document();
+        pullQuery.append("$pull", removals);
+
+        UpdateResult result = collection.updateOne(match, pullQuery);
+
+        if (result.getMatchedCount() == 1 && result.getModifiedCount() == 1)
+        {
+          // Update was successful.
+          success = true;
+
+          // Update the local copy
+          photo.removeTag(exTag);
+        }
+      }
+    }
+
+    return success;
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.addComment(User user, Photo photo, String newComment)
+   */
+  @Override
+  public boolean addComment(User user, Photo photo, String newComment)
+  {
+    // Default return value to false.
+    boolean success = false;
+
+    ObjectId photoId = new ObjectId(photo.getId());
+    Document comment = createCommentDoc(photoId, user.getUsername(), newComment, System.currentTimeMillis());
+
+    if (commentBuffer != null)
+    {
+      // Written in the background, along with any other comments on the photo.
+      commentBuffer.add(photoId, comment);
+      photo.addComment();
+      success = true;
+    }
+    else
+    {
+      // Count the comment first, that way there's no comment left behind if the photo has gone.
+      Document match = new Document();
+      match.append(KEY_ID, photoId);
+
+      Document incQuery = new Document();
+      incQuery.append("$inc", new Document(KEY_COMMENT_COUNT, 1));
+
+      UpdateResult result = collection.updateOne(match, incQuery);
+
+      if (result.getMatchedCount() == 1 && result.getModifiedCount() == 1)
+      {
+        commentsCollection.insertOne(comment);
+
+        // Update was successful.
+        success = true;
+
+        // Modify the local copy.
+        photo.addComment();
+      }
+    }
+
+    return success;
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.getPhoto(String photoId)
+   */
+  @Override
+  public Photo getPhoto(String photoId)
+  {
+    Photo photo = null;
+
+    // Anything that isn't a valid object id can't be a photo.
+    if (ObjectId.isValid(photoId))
+    {
+      photo = photoCollection.find(eq(KEY_ID, new ObjectId(photoId))).first();
+    }
+
+    return photo;
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.getPhotos(String owner, String tag, Photo.Visibility allowedVisibility)
+   */
+  @Override
+  public ArrayList<Photo> getPhotos(String owner, String tag, Photo.Visibility allowedVisibility)
+  {
+    // Structure to hold the data pulled from the db.
+    ArrayList<Photo> photos = new ArrayList<Photo>();
+
+    // Generate the query.
+    Document query = createPhotoQuery(owner, tag, allowedVisibility);
+
+    // Run the query.
+    MongoCursor<Photo> cursor = photoCollection.find(query).iterator();
+
+    // Iterate over the results.
+    try
+    {
+      while (cursor.hasNext())
+      {
+        photos.add(cursor.next());
+      }
+    }
+    finally
+    {
+      cursor.close();
+    }
+
+    return photos;
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.getPhotos(String owner, String tag, Photo.Visibility allowedVisibility,
+   * int pageSize, String continuationToken)
+   */
+  @Override
+  public ResultPage<Photo> getPhotos(String owner, String tag, Photo.Visibility allowedVisibility, int pageSize,
+      String continuationToken)
+  {
+    Document query = createPhotoQuery(owner, tag, allowedVisibility);
+
+    return getPage(photoCollection, KEY_TIMESTAMP, query, null, pageSize, continuationToken, photo -> photo,
+        MongoDbDAOPhoto::createContinuationToken);
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.getPhotoSummaries(String owner, String tag, Photo.Visibility allowedVisibility,
+   * int pageSize, String continuationToken)
+   */
+  @Override
+  public ResultPage<PhotoSummary> getPhotoSummaries(String owner, String tag, Photo.Visibility allowedVisibility,
+      int pageSize, String continuationToken)
+  {
+    Document query = createPhotoQuery(owner, tag, allowedVisibility);
+
+    return getPage(collection, KEY_TIMESTAMP, query, SUMMARY_PROJECTION, pageSize, continuationToken,
+        MongoDbDAOPhoto::createPhotoSummary);
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.getFeed(User viewer, int pageSize, String continuationToken)
+   */
+  @Override
+  public ResultPage<Photo> getFeed(User viewer, int pageSize, String continuationToken)
+  {
+    // Owners who have the viewer on their friends list - the viewer can see their Friends photos too.
+    HashSet<String> friendOwners = new HashSet<String>();
+
+    if (userDAO != null)
+    {
+      friendOwners.addAll(userDAO.getFollowers(viewer.getUsername()));
+    }
 
-        Document removals = new Document();
-        removals.append(KEY_TAGS, exTag);
+    // Owners on the viewer's friends list who haven't returned the favour - Public photos only.
+    HashSet<String> publicOwners = new HashSet<String>(viewer.getFriends());
+    publicOwners.removeAll(friendOwners);
+    publicOwners.remove(viewer.getUsername());
 
-        Document pullQuery = new Document();
-        pullQuery.append("$pull", removals);
+    // One query covering every owner, rather than one per owner. The database merges the owners' photos by time.
+    BasicBSONList owners = new BasicBSONList();
 
-        UpdateResult result = collection.updateOne(match, pullQuery);
+    if (!friendOwners.isEmpty())
+    {
+      Document friendsClause = new Document(KEY_OWNER, new Document("$in", new ArrayList<String>(friendOwners)));
+      friendsClause.append(KEY_VISIBILITY, new Document("$in", getVisibleValues(Visibility.FRIENDS)));
+      owners.add(friendsClause);
+    }
 
-        if (result.getMatchedCount() == 1 && result.getModifiedCount() == 1)
-        {
-          // Update was successful.
-          success = true;
+    if (!publicOwners.isEmpty())
+    {
+      Document publicClause = new Document(KEY_OWNER, new Document("$in", new ArrayList<String>(publicOwners)));
+      publicClause.append(KEY_VISIBILITY, new Document("$in", getVisibleValues(Visibility.PUBLIC)));
+      owners.add(publicClause);
+    }
 
-          // Update the local copy
-          photo.removeTag(exTag);
-        }
-      }
+    ResultPage<Photo> page;
+
+    if (owners.isEmpty())
+    {
+      // No friends, no feed.
+      page = new ResultPage<Photo>(new ArrayList<Photo>(), null);
+    }
+    else
+    {
+      Document query = new Document("$or", owners);
+      page = getPage(photoCollection, KEY_TIMESTAMP, query, null, pageSize, continuationToken, photo -> photo,
+          MongoDbDAOPhoto::createContinuationToken);
     }
 
-    return success;
+    return page;
   }
 
   /**
-   * See com.example.rcubed.PhotoDAO.addComment(User user, Photo photo, String newComment)
+   * See com.example.rcubed.PhotoDAO.getComments(String photoId, int pageSize, String continuationToken)
    */
   @Override
-  public boolean addComment(User user, Photo photo, String newComment)
+  public ResultPage<Comment> getComments(String photoId, int pageSize, String continuationToken)
   {
-    // Default return value to false.
-    boolean success = false;
+    Document query = new Document(KEY_PHOTO_ID, new ObjectId(photoId));
+
+    return getPage(commentsCollection, KEY_TIME, query, null, pageSize, continuationToken,
+        MongoDbDAOPhoto::createComment);
+  }
+
+  /**
+   * Move comments from the array they used to be stored in within each photo document into the comments collection.
+   * Photos that have already been moved are left alone, so this is safe to run every time the application starts.
+   * 
+   * The old comments were stored without a time, so they are given the photo's creation time plus one millisecond per
+   * comment, to keep them in order.
+   * 
+   * @return The number of photos whose comments were moved.
+   */
+  public int migrateComments()
+  {
+    int migrated = 0;
 
-    String commentWithUser = user.getUsername() + ": " + newComment;
+    MongoCursor<Document> cursor = collection.find(exists(KEY_COMMENTS)).projection(include(KEY_ID, KEY_COMMENTS))
+        .iterator();
 
-    Document match = new Document();
-    match.append(KEY_ID, new ObjectId(photo.getId()));
+    try
+    {
+      while (cursor.hasNext())
+      {
+        Document doc = cursor.next();
+        ObjectId photoId = doc.getObjectId(KEY_ID);
+        @SuppressWarnings("unchecked")
+        ArrayList<String> oldComments = (ArrayList<String>) doc.get(KEY_COMMENTS);
+        long firstTime = photoId.getDate().getTime();
 
-    Document newItem = new Document();
-    newItem.append(KEY_COMMENTS, commentWithUser);
+        // If an earlier run was interrupted part way through this photo, remove what it managed to copy. The times
+        // given to the old comments are so close to the photo's creation that nothing added since can clash.
+        commentsCollection.deleteMany(and(eq(KEY_PHOTO_ID, photoId), lt(KEY_TIME, firstTime + oldComments.size())));
 
-    Document pushQuery = new Document();
-    pushQuery.append("$push", newItem);
+        ArrayList<Document> comments = new ArrayList<Document>(oldComments.size());
 
-    UpdateResult result = collection.updateOne(match, pushQuery);
+        for (int i = 0; i < oldComments.size(); i++)
+        {
+          // Old comments were stored as "author: text".
+          String oldComment = oldComments.get(i);
+          int separator = oldComment.indexOf(": ");
+          String author = (separator < 0) ? null : oldComment.substring(0, separator);
+          String text = (separator < 0) ? oldComment : oldComment.substring(separator + 2);
 
-    if (result.getMatchedCount() == 1 && result.getModifiedCount() == 1)
-    {
-      // Update was successful.
-      success = true;
+          comments.add(createCommentDoc(photoId, author, text, firstTime + i));
+        }
+
+        if (!comments.isEmpty())
+        {
+          commentsCollection.insertMany(comments);
+        }
 
-      // Modify the local copy.
-      photo.addComment(commentWithUser);
+        // Only now the comments are safely copied is the array removed. Comments added since the array stopped being
+        // used have already been counted, so the old ones are added on top.
+        Document update = new Document("$unset", new Document(KEY_COMMENTS, ""));
+        update.append("$inc", new Document(KEY_COMMENT_COUNT, comments.size()));
+        collection.updateOne(eq(KEY_ID, photoId), update);
+
+        migrated++;
+      }
+    }
+    finally
+    {
+      cursor.close();
     }
 
-    return success;
+    return migrated;
   }
 
   /**
-   * See com.example.rcubed.PhotoDAO.getPhotos(String owner, String tag, Photo.Visibility allowedVisibility)
+   * Build the query used to find photos by owner, tag and visibility.
+   * 
+   * @param owner              The owner of the photos to get.
+   * @param tag                The tag to filter the results by (null or empty for all tags).
+   * @param allowedVisibility  The Visibility of photos the requesting party is allowed to see.
+   * 
+   * @return The query document.
    */
-  @Override
-  public ArrayList<Photo> getPhotos(String owner, String tag, Photo.Visibility allowedVisibility)
+  private static Document createPhotoQuery(String owner, String tag, Photo.Visibility allowedVisibility)
   {
-    // Structure to hold the data pulled from the db.
-    ArrayList<Photo> photos = new ArrayList<Photo>();
-
-    // Generate the query.
     Document query = new Document();
     query.append(KEY_OWNER, owner);
 
@@ -347,21 +1466,117 @@ public class MongoDbDAOPhoto implements PhotoDAO
       query.append(KEY_TAGS, tag);
     }
 
-    // Only allowed to see documents above the specified visibility level.
+    // Only allowed to see documents at or above the specified visibility level. Listed rather than a range, so the
+    // owner index can serve the sort on the fields after it.
     Document visibilityCheck = new Document();
-    visibilityCheck.append("$gte", allowedVisibility.ordinal());
+    visibilityCheck.append("$in", getVisibleValues(allowedVisibility));
     query.append(KEY_VISIBILITY, visibilityCheck);
 
-    // Run the query.
-    MongoCursor<Document> cursor = collection.find(query).iterator();
+    return query;
+  }
+
+  /**
+   * List the stored values of every visibility at or above a level.
+   * 
+   * A range on Visibility leaves the index unable to give the photos in Timestamp order, so they would all be read and
+   * sorted for every page. With the values listed the database reads each visibility's photos in order and merges
+   * them.
+   * 
+   * @param allowedVisibility  The lowest visibility to include.
+   */
+  private static ArrayList<Integer> getVisibleValues(Photo.Visibility allowedVisibility)
+  {
+    ArrayList<Integer> values = new ArrayList<Integer>();
+
+    for (int i = allowedVisibility.ordinal(); i < Photo.VisibilityValues.length; i++)
+    {
+      values.add(i);
+    }
+
+    return values;
+  }
+
+  /**
+   * Run a photo (or comment) query one page at a time, newest first.
+   * 
+   * Paging is done on the (Timestamp, _id) pair rather than with skip() so that every page costs the same no matter
+   * how deep into the album we are. The _id breaks ties between photos uploaded within the same second.
+   * 
+   * @param pageCollection     The collection to query.
+   * @param sortKey            The time the results are sorted on.
+   * @param query              The query to run. Modified to start after the continuation token.
+   * @param projection         The fields to read, or null for the whole document.
+   * @param pageSize           The maximum number of photos to return.
+   * @param continuationToken  The token from the previous page, or null to start from the newest photo.
+   * @param converter          Converts each document into the type held by the page.
+   * 
+   * @return The page of results.
+   */
+  private <T> ResultPage<T> getPage(MongoCollection<Document> pageCollection, String sortKey, Document query,
+      Bson projection, int pageSize, String continuationToken, Function<Document, T> converter)
+  {
+    return getPage(pageCollection, sortKey, query, projection, pageSize, continuationToken, converter,
+        doc -> createContinuationToken(doc.getLong(sortKey), doc.getObjectId(KEY_ID)));
+  }
+
+  /**
+   * Run a query one page at a time, newest first, on a collection that decodes straight into something other than a
+   * Document (see getPage() above).
+   * 
+   * @param tokenizer  Creates the continuation token for the position after a decoded document.
+   */
+  private <D, T> ResultPage<T> getPage(MongoCollection<D> pageCollection, String sortKey, Document query,
+      Bson projection, int pageSize, String continuationToken, Function<D, T> converter,
+      Function<D, String> tokenizer)
+  {
+    ArrayList<T> items = new ArrayList<T>();
+    String nextToken = null;
+
+    if (continuationToken != null)
+    {
+      Document keyset = new Document("$or", createKeysetFilter(sortKey, continuationToken));
+
+      if (query.containsKey("$or"))
+      {
+        // The query has its own $or, so both have to be combined under an $and.
+        BasicBSONList clauses = new BasicBSONList();
+        clauses.add(keyset);
+        query.append("$and", clauses);
+      }
+      else
+      {
+        query.putAll(keyset);
+      }
+    }
+
+    // Ask for one more than we need, that's the cheapest way of finding out if there's another page.
+    FindIterable<D> find = pageCollection.find(query).sort(descending(sortKey, KEY_ID))
+        .limit(pageSize + 1);
+
+    if (projection != null)
+    {
+      find.projection(projection);
+    }
+
+    MongoCursor<D> cursor = find.iterator();
 
-    // Iterate over the results.
     try
     {
+      D last = null;
+
       while (cursor.hasNext())
       {
-        Photo photo = createPhoto(cursor.next(), gfs);
-        photos.add(photo);
+        D doc = cursor.next();
+
+        if (items.size() == pageSize)
+        {
+          // There's at least one more photo - the next page starts after the last one we kept.
+          nextToken = tokenizer.apply(last);
+          break;
+        }
+
+        items.add(converter.apply(doc));
+        last = doc;
       }
     }
     finally
@@ -369,7 +1584,97 @@ public class MongoDbDAOPhoto implements PhotoDAO
       cursor.close();
     }
 
-    return photos;
+    return new ResultPage<T>(items, nextToken);
+  }
+
+  /**
+   * Create a continuation token for a keyset paginated query sorted by (sortValue, _id) descending.
+   * 
+   * @param sortValue  The sort key value of the last document returned.
+   * @param id         The _id of the last document returned.
+   * 
+   * @return An opaque token identifying the position after that document.
+   */
+  static String createContinuationToken(long sortValue, ObjectId id)
+  {
+    return Long.toHexString(sortValue) + TOKEN_SEPARATOR + id.toHexString();
+  }
+
+  /**
+   * Create a continuation token for the position after a photo read by PhotoCodec, in a query sorted by
+   * (Timestamp, _id) descending.
+   * 
+   * @param photo  The last photo returned.
+   * 
+   * @return An opaque token identifying the position after that photo.
+   */
+  static String createContinuationToken(Photo photo)
+  {
+    // The photo's timestamp was read with fromStoredTimestamp(), so this is exactly the value in the database.
+    return createContinuationToken(toStoredTimestamp(photo.getTimeStamp()), new ObjectId(photo.getId()));
+  }
+
+  /**
+   * Convert a continuation token into the $or clauses matching everything after it in (sortKey, _id) descending
+   * order.
+   * 
+   * @param sortKey            The key the query is sorted on.
+   * @param continuationToken  The token created by createContinuationToken().
+   * 
+   * @return The list of clauses, suitable for use with $or.
+   */
+  static BasicBSONList createKeysetFilter(String sortKey, String continuationToken)
+  {
+    return parseContinuationToken(continuationToken, (sortValue, id) ->
+    {
+      // Anything strictly older...
+      Document before = new Document(sortKey, new Document("$lt", sortValue));
+
+      // ... or with the same sort value but a lower id.
+      Document sameValue = new Document(sortKey, sortValue);
+      sameValue.append(KEY_ID, new Document("$lt", id));
+
+      BasicBSONList clauses = new BasicBSONList();
+      clauses.add(before);
+      clauses.add(sameValue);
+
+      return clauses;
+    });
+  }
+
+  /**
+   * Split a continuation token created by createContinuationToken() back into the sort value and id it was made from.
+   * 
+   * @param continuationToken  The token.
+   * @param position           Builds whatever the caller needs from the sort value and id.
+   * 
+   * @return What position built.
+   * 
+   * @throws IllegalArgumentException if the token isn't one createContinuationToken() could have made.
+   */
+  static <T> T parseContinuationToken(String continuationToken, BiFunction<Long, ObjectId, T> position)
+  {
+    int separator = continuationToken.indexOf(TOKEN_SEPARATOR);
+
+    if (separator < 0)
+    {
+      throw new IllegalArgumentException("Invalid continuation token: " + continuationToken);
+    }
+
+    long sortValue;
+    ObjectId id;
+
+    try
+    {
+      sortValue = Long.parseUnsignedLong(continuationToken.substring(0, separator), 16);
+      id = new ObjectId(continuationToken.substring(separator + TOKEN_SEPARATOR.length()));
+    }
+    catch (IllegalArgumentException ex)
+    {
+      throw new IllegalArgumentException("Invalid continuation token: " + continuationToken, ex);
+    }
+
+    return position.apply(sortValue, id);
   }
 
   /**
@@ -407,4 +1712,155 @@ public class MongoDbDAOPhoto implements PhotoDAO
 
     return success;
   }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.getImage(Photo photo)
+   */
+  @Override
+  public byte[] getImage(Photo photo)
+  {
+    byte[] imageData = null;
+    PhotoImage photoImage = openImage(photo, Photo.Rendition.ORIGINAL);
+
+    if (photoImage != null)
+    {
+      imageData = photoImage.getData();
+
+      if (imageData == null)
+      {
+        try (InputStream in = photoImage.getInputStream())
+        {
+          imageData = readFully(in, photoImage.getLength());
+        }
+        catch (IOException ex)
+        {
+          // TODO Probably want to display some default error image.
+          imageData = null;
+        }
+      }
+    }
+
+    return imageData;
+  }
+
+  /**
+   * See com.example.rcubed.PhotoDAO.openImage(Photo photo, Photo.Rendition rendition)
+   */
+  @Override
+  public PhotoImage openImage(Photo photo, Photo.Rendition rendition)
+  {
+    Object imageId = photo.getGFSRenditionId(rendition);
+
+    if (imageId == null)
+    {
+      // The photo has no stored image (it hasn't been inserted yet).
+      return null;
+    }
+
+    PhotoImage photoImage = null;
+    PhotoImage cached = (imageCache != null) ? imageCache.get(imageId) : null;
+
+    if (cached != null)
+    {
+      photoImage = new PhotoImage(() -> openCachedImage(imageId, cached), cached.getLength(), cached.getMD5(), cached
+          .getUploadDate(), cached.getContentType());
+    }
+    else
+    {
+      // Only the file entry is read here, which has everything needed to answer a conditional request. The chunks
+      // aren't fetched until the data is opened.
+      GridFSDBFile file = gfs.findOne(new BasicDBObject("_id", imageId));
+
+      if (file != null)
+      {
+        photoImage = new PhotoImage(() -> openStoredImage(imageId, file), file.getLength(), file.getMD5(), file
+            .getUploadDate(), file.getContentType());
+      }
+    }
+
+    return photoImage;
+  }
+
+  /**
+   * Open the data of a cached image.
+   * 
+   * The cache only holds on to the data once it is opened, so if the image has been evicted since it was looked up it
+   * is read from GridFS after all.
+   */
+  private InputStream openCachedImage(Object imageId, PhotoImage cached) throws IOException
+  {
+    InputStream in;
+
+    try
+    {
+      in = cached.getInputStream();
+    }
+    catch (IOException ex)
+    {
+      GridFSDBFile file = gfs.findOne(new BasicDBObject("_id", imageId));
+
+      if (file == null)
+      {
+        throw new IOException("Image " + imageId + " not found");
+      }
+
+      in = openStoredImage(imageId, file);
+    }
+
+    return in;
+  }
+
+  /**
+   * Open the data of an image stored in GridFS, adding it to the cache if it is small enough.
+   */
+  private InputStream openStoredImage(Object imageId, GridFSDBFile file) throws IOException
+  {
+    InputStream in = null;
+    PhotoImage cached = null;
+
+    if (imageCache != null && file.getLength() <= imageCache.getMaxEntryBytes())
+    {
+      // Small enough to cache, so the chunks are copied straight into the cache and the image read back out of it.
+      try (InputStream stored = file.getInputStream())
+      {
+        cached = imageCache.put(imageId, stored, file.getLength(), file.getMD5(), file.getUploadDate(), file
+            .getContentType());
+      }
+    }
+
+    if (cached != null)
+    {
+      try
+      {
+        in = cached.getInputStream();
+      }
+      catch (IOException ex)
+      {
+        // Evicted again already, so read it straight from GridFS below.
+        in = null;
+      }
+    }
+
+    if (in == null)
+    {
+      // GridFS fetches the chunks one at a time as the stream is read, so only one chunk is ever held in memory.
+      in = file.getInputStream();
+    }
+
+    return in;
+  }
+
+  /**
+   * Read an image of known size into a byte array.
+   * 
+   * We know the size up front, so read the chunks straight into the final array rather than going through a growable
+   * buffer and copying it again at the end.
+   */
+  private static byte[] readFully(InputStream in, long length) throws IOException
+  {
+    byte[] imageData = new byte[(int) length];
+    new DataInputStream(in).readFully(imageData);
+
+    return imageData;
+  }
 }
@@ -1,14 +1,20 @@
 package com.example.rcubed;
 
+import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Projections.include;
 
 import java.util.ArrayList;
 
 import org.bson.Document;
+import org.bson.codecs.configuration.CodecRegistries;
 import org.bson.types.BasicBSONList;
 import org.bson.types.ObjectId;
 
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoWriteException;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.result.DeleteResult;
 import com.mongodb.client.result.UpdateResult;
@@ -30,6 +36,12 @@ public class MongoDbDAOUser implements UserDAO
   public static final String KEY_USERNAME = "Username";
   public static final String KEY_FRIENDS_LIST = "Friends";
 
+  /**
+   * Names of the indexes on the Users collection.
+   */
+  private static final String INDEX_USERNAME = "Username";
+  private static final String INDEX_FRIENDS = "Friends";
+
   /**
    * Helper function to convert an instance of User to a representation suitable for storing in a Mongo Db Collection.
    * 
@@ -77,13 +89,73 @@ public class MongoDbDAOUser implements UserDAO
   }
 
   /**
-   * The collection in our database which contains all the photos.
+   * The collection in our database which contains all the users.
    */
   private MongoCollection<Document> collection;
 
+  /**
+   * The same collection, reading and writing Users directly (see UserCodec).
+   */
+  private MongoCollection<User> userCollection;
+
+  /**
+   * In memory copy of everyone's friends lists. Null if not in use, in which case friend queries go to the database.
+   */
+  private FriendGraph friendGraph;
+
   public MongoDbDAOUser(MongoDatabase db)
   {
     collection = db.getCollection(USERS_COLLECTION);
+    userCollection = collection.withDocumentClass(User.class).withCodecRegistry(CodecRegistries.fromRegistries(
+        CodecRegistries.fromCodecs(new UserCodec()), db.getCodecRegistry()));
+  }
+
+  /**
+   * Start answering friend queries from an in memory friend graph, and keep it in sync with every change made through
+   * this DAO.
+   * 
+   * The graph is loaded with every user's friends list from the database.
+   * 
+   * @param friendGraph  The (empty) friend graph.
+   */
+  public void setFriendGraph(FriendGraph friendGraph)
+  {
+    // Only the fields the graph needs.
+    MongoCursor<User> cursor = userCollection.find().projection(include(KEY_USERNAME, KEY_FRIENDS_LIST)).iterator();
+
+    try
+    {
+      while (cursor.hasNext())
+      {
+        User user = cursor.next();
+
+        friendGraph.setFriends(user.getUsername(), user.getFriends());
+      }
+    }
+    finally
+    {
+      cursor.close();
+    }
+
+    this.friendGraph = friendGraph;
+  }
+
+  /**
+   * Create the indexes the user queries rely on, and check any that already exist are what we expect.
+   * 
+   *   Username - unique, every login and friend lookup is by username.
+   *   Friends  - multikey, for finding who has a user on their friends list without the friend graph.
+   * 
+   * @return A description of each index that is missing or was built differently than expected. Empty if all is well.
+   */
+  public ArrayList<String> ensureIndexes()
+  {
+    ArrayList<String> problems = new ArrayList<String>();
+
+    MongoDbIndexes.ensureIndex(collection, INDEX_USERNAME, new Document(KEY_USERNAME, 1), true, problems);
+    MongoDbIndexes.ensureIndex(collection, INDEX_FRIENDS, new Document(KEY_FRIENDS_LIST, 1), false, problems);
+
+    return problems;
   }
 
   /**
@@ -95,14 +167,34 @@ public class MongoDbDAOUser implements UserDAO
     // Default return value to false.
     boolean success = false;
 
-    Document doc = convertToDoc(user);
-    // @@@ JAS what, no exceptions to handle??? or error cases to deal with?
-    collection.insertOne(doc);
-    success = true;
+    // The codec gives the user an id as it is inserted. They keep the one they had if the insert fails.
+    String previousId = user.getId();
 
-    // Update the photo object with the ID thats been assigned by Mongo Db.
-    ObjectId id = (ObjectId) doc.get(KEY_ID);
-    user.setId(id.toString());
+    try
+    {
+      userCollection.insertOne(user);
+      success = true;
+
+      if (friendGraph != null)
+      {
+        friendGraph.setFriends(user.getUsername(), user.getFriends());
+      }
+    }
+    catch (MongoWriteException ex)
+    {
+      // The unique index on Username rejects a second user with the same name.
+      if (ex.getError().getCategory() != ErrorCategory.DUPLICATE_KEY)
+      {
+        throw ex;
+      }
+    }
+    finally
+    {
+      if (!success)
+      {
+        user.setId(previousId);
+      }
+    }
 
     return success;
   }
@@ -113,12 +205,11 @@ public class MongoDbDAOUser implements UserDAO
   @Override
   public User getUser(PhotoDAO photoDAO, String username)
   {
-    Document result = collection.find(eq(KEY_USERNAME, username)).first();
-    User user = null;
+    User user = userCollection.find(eq(KEY_USERNAME, username)).first();
 
-    if (result != null)
+    if (user != null)
     {
-      user = createUser(photoDAO, result);
+      user.setPhotoDAO(photoDAO);
     }
 
     return user;
@@ -139,6 +230,12 @@ public class MongoDbDAOUser implements UserDAO
     {
       // Update was successful.
       success = true;
+
+      // The user's friends list has gone with them. Other users' friends lists are untouched.
+      if (friendGraph != null)
+      {
+        friendGraph.setFriends(user.getUsername(), new ArrayList<String>());
+      }
     }
 
     return success;
@@ -153,7 +250,7 @@ public class MongoDbDAOUser implements UserDAO
     // Default return value to false.
     boolean success = false;
 
-    if (!user.getFriends().contains(newFriend))
+    if (!user.hasFriend(newFriend))
     {
       Document match = new Document();
       match.append(KEY_USERNAME, user.getUsername());
@@ -161,18 +258,26 @@ public class MongoDbDAOUser implements UserDAO
       Document newItem = new Document();
       newItem.append(KEY_FRIENDS_LIST, newFriend);
 
+      // Not $push - the user object may be out of date, and a name already on the stored list isn't added twice.
       Document pushQuery = new Document();
-      pushQuery.append("$push", newItem);
+      pushQuery.append("$addToSet", newItem);
 
       UpdateResult result = collection.updateOne(match, pushQuery);
 
-      if (result.getMatchedCount() == 1 && result.getModifiedCount() == 1)
+      // Nothing is modified if the name was already stored, but then it's the user object and friend graph that were
+      // out of date, and they still need to catch up.
+      if (result.getMatchedCount() == 1)
       {
         // Update was successful.
         success = true;
 
         // Update the user object to reflect the change pushed to the db.
         user.addFriend(newFriend);
+
+        if (friendGraph != null)
+        {
+          friendGraph.addFriend(user.getUsername(), newFriend);
+        }
       }
     }
 
@@ -188,7 +293,7 @@ public class MongoDbDAOUser implements UserDAO
     // Default return value to false.
     boolean success = false;
 
-    if (user.getFriends().contains(exFriend))
+    if (user.hasFriend(exFriend))
     {
       Document match = new Document();
       match.append(KEY_USERNAME, user.getUsername());
@@ -208,10 +313,69 @@ public class MongoDbDAOUser implements UserDAO
 
         // Update the user object to reflect the change pushed to the db.
         user.removeFriend(exFriend);
+
+        if (friendGraph != null)
+        {
+          friendGraph.removeFriend(user.getUsername(), exFriend);
+        }
       }
 
     }
 
     return success;
   }
+
+  /**
+   * @see com.example.rcubed.UserDAO#isFriend(java.lang.String, java.lang.String)
+   */
+  @Override
+  public boolean isFriend(String username, String candidate)
+  {
+    boolean friend;
+
+    if (friendGraph != null)
+    {
+      friend = friendGraph.isFriend(username, candidate);
+    }
+    else
+    {
+      friend = collection.count(and(eq(KEY_USERNAME, username), eq(KEY_FRIENDS_LIST, candidate))) > 0;
+    }
+
+    return friend;
+  }
+
+  /**
+   * @see com.example.rcubed.UserDAO#getFollowers(java.lang.String)
+   */
+  @Override
+  public ArrayList<String> getFollowers(String username)
+  {
+    ArrayList<String> followers;
+
+    if (friendGraph != null)
+    {
+      followers = friendGraph.getFollowers(username);
+    }
+    else
+    {
+      followers = new ArrayList<String>();
+      MongoCursor<Document> cursor = collection.find(eq(KEY_FRIENDS_LIST, username))
+          .projection(include(KEY_USERNAME)).iterator();
+
+      try
+      {
+        while (cursor.hasNext())
+        {
+          followers.add(cursor.next().getString(KEY_USERNAME));
+        }
+      }
+      finally
+      {
+        cursor.close();
+      }
+    }
+
+    return followers;
+  }
 }
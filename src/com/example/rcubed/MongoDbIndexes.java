@@ -0,0 +1,129 @@
+package com.example.rcubed;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+import org.bson.Document;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.IndexOptions;
+
+/**
+ * Helper for creating and verifying the indexes the MongoDb DAOs rely on.
+ */
+public class MongoDbIndexes
+{
+  /**
+   * Create an index if it doesn't already exist, then check the index in the database is the one we asked for.
+   * 
+   * An index that already exists with the same name but different keys or options is left alone (rebuilding it could
+   * take a long time on a big collection) but is reported as a problem.
+   * 
+   * @param collection  The collection to index.
+   * @param name        The name of the index.
+   * @param keys        The index keys, in order, mapped to 1 (ascending) or -1 (descending).
+   * @param unique      Whether the index should enforce uniqueness.
+   * @param problems    A description of any problem found with the index is added to this list.
+   */
+  public static void ensureIndex(MongoCollection<Document> collection, String name, Document keys, boolean unique,
+      ArrayList<String> problems)
+  {
+    String collectionName = collection.getNamespace().getCollectionName();
+
+    try
+    {
+      // This is a no-op if an identical index already exists.
+      collection.createIndex(keys, new IndexOptions().name(name).unique(unique).background(true));
+    }
+    catch (MongoException ex)
+    {
+      // Typically an index with this name but different options, or duplicate values preventing a unique index.
+      problems.add(collectionName + "." + name + ": could not be created: " + ex.getMessage());
+    }
+
+    // Whether or not that worked, check what's actually in the database.
+    Document existing = findIndex(collection, name);
+
+    if (existing == null)
+    {
+      problems.add(collectionName + "." + name + ": missing, expected " + keys.toJson() + (unique ? " (unique)" : ""));
+    }
+    else
+    {
+      Document existingKeys = (Document) existing.get("key");
+      boolean existingUnique = Boolean.TRUE.equals(existing.get("unique"));
+
+      if (!keysMatch(keys, existingKeys) || existingUnique != unique)
+      {
+        problems.add(collectionName + "." + name + ": expected " + keys.toJson() + (unique ? " (unique)" : "")
+            + " but found " + existingKeys.toJson() + (existingUnique ? " (unique)" : ""));
+      }
+    }
+  }
+
+  /**
+   * Look up an index by name.
+   * 
+   * @param collection  The collection to search.
+   * @param name        The name of the index.
+   * 
+   * @return The index description as returned by the server, or null if there is no such index.
+   */
+  private static Document findIndex(MongoCollection<Document> collection, String name)
+  {
+    Document index = null;
+    MongoCursor<Document> cursor = collection.listIndexes().iterator();
+
+    try
+    {
+      while (index == null && cursor.hasNext())
+      {
+        Document candidate = cursor.next();
+
+        if (name.equals(candidate.getString("name")))
+        {
+          index = candidate;
+        }
+      }
+    }
+    finally
+    {
+      cursor.close();
+    }
+
+    return index;
+  }
+
+  /**
+   * Compare two index key documents.
+   * 
+   * Key order matters for a compound index, and the server may hand the directions back as doubles, so we can't just
+   * use Document.equals().
+   */
+  private static boolean keysMatch(Document expected, Document actual)
+  {
+    boolean match = (actual != null) && (expected.size() == actual.size());
+
+    if (match)
+    {
+      ArrayList<Map.Entry<String, Object>> actualEntries = new ArrayList<Map.Entry<String, Object>>(actual.entrySet());
+      int i = 0;
+
+      for (Map.Entry<String, Object> entry : expected.entrySet())
+      {
+        Map.Entry<String, Object> other = actualEntries.get(i++);
+
+        if (!entry.getKey().equals(other.getKey()) || !(other.getValue() instanceof Number)
+            || ((Number) entry.getValue()).intValue() != ((Number) other.getValue()).intValue())
+        {
+          match = false;
+          break;
+        }
+      }
+    }
+
+    return match;
+  }
+}
@@ -0,0 +1,694 @@
+package com.example.rcubed;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ImageCache that keeps the image data outside the Java heap, so the amount cached has no effect on garbage collection
+ * pauses.
+ * 
+ * Memory is allocated from the OS in large direct ByteBuffer slabs which are carved into fixed size blocks. An image
+ * occupies as many blocks as it needs (they don't have to be contiguous), and its blocks go back on the free list when
+ * it is evicted. The total allocated never exceeds the size of the cache - a segment's last slab is cut short if a
+ * whole one would take it over its share. Images are read straight out of the slabs through an InputStream, so a cache
+ * hit never copies the image onto the heap.
+ * 
+ * Like LruImageCache the cache is split into independently locked segments, each with its own slabs, free list and
+ * LRU order.
+ * 
+ * The JVM's direct memory limit (-XX:MaxDirectMemorySize) must be at least the size of the cache.
+ */
+public class OffHeapImageCache implements ImageCache
+{
+  /**
+   * Default size of the blocks images are stored in.
+   */
+  public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+  /**
+   * Default size of each slab allocated from the OS.
+   */
+  public static final int DEFAULT_SLAB_SIZE = 64 * 1024 * 1024;
+
+  /**
+   * Size of the buffer used to copy a stream into the blocks.
+   */
+  private static final int COPY_BUFFER_SIZE = 8 * 1024;
+
+  /**
+   * A cached image. The entry is reference counted - the cache holds one reference and every open stream holds
+   * another - so its blocks are only reused once the last reader has finished with them.
+   */
+  private static class Entry
+  {
+    private final int[] blocks;
+    private final long length;
+    private final String md5;
+    private final Date uploadDate;
+    private final String contentType;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private Entry(int[] blocks, long length, String md5, Date uploadDate, String contentType)
+    {
+      this.blocks = blocks;
+      this.length = length;
+      this.md5 = md5;
+      this.uploadDate = uploadDate;
+      this.contentType = contentType;
+    }
+  }
+
+  /**
+   * One independently locked slice of the cache.
+   */
+  private class Segment
+  {
+    /**
+     * The slabs allocated so far. Allocated on demand, until the segment has maxBlocks blocks.
+     */
+    private final ArrayList<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+    private final int maxBlocks;
+    private int allocatedBlocks = 0;
+
+    /**
+     * Stack of free block numbers.
+     */
+    private int[] freeBlocks = new int[0];
+    private int freeCount = 0;
+
+    /**
+     * The cached images in least to most recently used order.
+     */
+    private final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<Object, Entry>(16, 0.75f, true);
+
+    /**
+     * Total size of the images in this segment.
+     */
+    private long sizeBytes = 0;
+
+    private Segment(int maxBlocks)
+    {
+      this.maxBlocks = maxBlocks;
+    }
+
+    /**
+     * Allocate the given number of blocks, evicting images if needed. Must hold the segment lock.
+     * 
+     * @return The block numbers, or null if there isn't enough free space (e.g. evicted images are still being read).
+     */
+    private int[] allocate(int count)
+    {
+      Iterator<Map.Entry<Object, Entry>> eldest = entries.entrySet().iterator();
+
+      while (freeCount < count)
+      {
+        if (allocatedBlocks < maxBlocks)
+        {
+          addSlab();
+        }
+        else if (eldest.hasNext())
+        {
+          Entry evicted = eldest.next().getValue();
+          eldest.remove();
+
+          sizeBytes -= evicted.length;
+          evictions.increment();
+          release(evicted);
+        }
+        else
+        {
+          return null;
+        }
+      }
+
+      int[] blocks = Arrays.copyOfRange(freeBlocks, freeCount - count, freeCount);
+      freeCount -= count;
+
+      return blocks;
+    }
+
+    /**
+     * Allocate another slab from the OS and put its blocks on the free list. Must hold the segment lock.
+     * 
+     * Only the last slab can be short, so block numbers still map to slabs by dividing by blocksPerSlab.
+     */
+    private void addSlab()
+    {
+      int firstBlock = slabs.size() * blocksPerSlab;
+      int count = Math.min(blocksPerSlab, maxBlocks - allocatedBlocks);
+
+      slabs.add(ByteBuffer.allocateDirect(count * blockSize));
+      allocatedBlocks += count;
+
+      freeBlocks = Arrays.copyOf(freeBlocks, freeBlocks.length + count);
+
+      for (int i = count - 1; i >= 0; i--)
+      {
+        freeBlocks[freeCount++] = firstBlock + i;
+      }
+    }
+
+    /**
+     * Drop a reference to an entry, returning its blocks to the free list if that was the last one. Must hold the
+     * segment lock.
+     */
+    private void release(Entry entry)
+    {
+      if (entry.references.decrementAndGet() == 0)
+      {
+        for (int block : entry.blocks)
+        {
+          freeBlocks[freeCount++] = block;
+        }
+      }
+    }
+
+    /**
+     * Get a private view of the block, positioned at its start. Slabs are never released, so no lock is needed.
+     */
+    private ByteBuffer block(int block)
+    {
+      ByteBuffer view = slabs.get(block / blocksPerSlab).duplicate();
+      view.position((block % blocksPerSlab) * blockSize);
+
+      return view;
+    }
+  }
+
+  /**
+   * Stream over a cached image, reading directly from the slabs.
+   */
+  private class BlockInputStream extends InputStream
+  {
+    private final Segment segment;
+    private final Entry entry;
+    private final ArrayList<ByteBuffer> slabs;
+    private long position = 0;
+    private volatile boolean closed = false;
+    private final AtomicBoolean released = new AtomicBoolean(false);
+
+    private BlockInputStream(Segment segment, Entry entry)
+    {
+      this.segment = segment;
+      this.entry = entry;
+
+      // Snapshot the slab list under the lock so reads don't race with addSlab().
+      synchronized (segment)
+      {
+        this.slabs = new ArrayList<ByteBuffer>(segment.slabs);
+      }
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+      byte[] single = new byte[1];
+
+      return (read(single, 0, 1) < 0) ? -1 : (single[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException
+    {
+      if (closed)
+      {
+        throw new IOException("Stream closed");
+      }
+
+      if (position >= entry.length)
+      {
+        // Let the blocks go as soon as we're done with them, even if the caller forgets to close us. Further reads
+        // keep returning -1 until we are closed.
+        releaseBlocks();
+        return -1;
+      }
+
+      int block = entry.blocks[(int) (position / blockSize)];
+      int offsetInBlock = (int) (position % blockSize);
+      int count = (int) Math.min(Math.min(length, blockSize - offsetInBlock), entry.length - position);
+
+      ByteBuffer view = slabs.get(block / blocksPerSlab).duplicate();
+      view.position((block % blocksPerSlab) * blockSize + offsetInBlock);
+      view.get(buffer, offset, count);
+
+      position += count;
+
+      return count;
+    }
+
+    @Override
+    public long skip(long n)
+    {
+      long skipped = Math.max(0, Math.min(n, entry.length - position));
+      position += skipped;
+
+      return skipped;
+    }
+
+    @Override
+    public int available()
+    {
+      return (int) Math.min(Integer.MAX_VALUE, entry.length - position);
+    }
+
+    @Override
+    public void close()
+    {
+      closed = true;
+      releaseBlocks();
+    }
+
+    /**
+     * Drop our reference to the entry, the first time only.
+     */
+    private void releaseBlocks()
+    {
+      if (released.compareAndSet(false, true))
+      {
+        synchronized (segment)
+        {
+          segment.release(entry);
+        }
+      }
+    }
+  }
+
+  /**
+   * The segments. An image always lives in the segment chosen by its id's hash code.
+   */
+  private final Segment[] segments;
+
+  /**
+   * Block and slab geometry.
+   */
+  private final int blockSize;
+  private final int blocksPerSlab;
+
+  /**
+   * The capacity of each segment in bytes.
+   */
+  private final long segmentMaxBytes;
+
+  /**
+   * Statistics.
+   */
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * Constructor
+   * 
+   * @param maxBytes  The maximum amount of memory to use.
+   */
+  public OffHeapImageCache(long maxBytes)
+  {
+    this(maxBytes, LruImageCache.DEFAULT_SEGMENTS, DEFAULT_SLAB_SIZE, DEFAULT_BLOCK_SIZE);
+  }
+
+  /**
+   * Constructor
+   * 
+   * @param maxBytes      The maximum amount of memory to use. Each segment gets an equal share, rounded down to a
+   *                      multiple of blockSize.
+   * @param segmentCount  The number of independently locked segments. Must be a power of two.
+   * @param slabSize      The size of each slab allocated from the OS. Rounded down to a multiple of blockSize.
+   * @param blockSize     The size of the blocks images are stored in.
+   * 
+   * @throws IllegalArgumentException if maxBytes isn't enough for at least one block per segment.
+   */
+  public OffHeapImageCache(long maxBytes, int segmentCount, int slabSize, int blockSize)
+  {
+    if (segmentCount <= 0 || Integer.bitCount(segmentCount) != 1)
+    {
+      throw new IllegalArgumentException("Segment count must be a power of two: " + segmentCount);
+    }
+
+    if (blockSize <= 0 || slabSize < blockSize)
+    {
+      throw new IllegalArgumentException("Slab size must be at least the block size");
+    }
+
+    long blocksPerSegment = (maxBytes / segmentCount) / blockSize;
+
+    if (blocksPerSegment < 1)
+    {
+      throw new IllegalArgumentException("Cache size must be at least " + segmentCount + " blocks of " + blockSize
+          + " bytes: " + maxBytes);
+    }
+
+    if (blocksPerSegment > Integer.MAX_VALUE)
+    {
+      throw new IllegalArgumentException("Too many blocks per segment, use larger blocks or more segments");
+    }
+
+    this.blockSize = blockSize;
+    this.blocksPerSlab = slabSize / blockSize;
+
+    segmentMaxBytes = blocksPerSegment * blockSize;
+    segments = new Segment[segmentCount];
+
+    for (int i = 0; i < segmentCount; i++)
+    {
+      segments[i] = new Segment((int) blocksPerSegment);
+    }
+  }
+
+  /**
+   * See com.example.rcubed.ImageCache.get(Object imageId)
+   */
+  @Override
+  public PhotoImage get(Object imageId)
+  {
+    Segment segment = segmentFor(imageId);
+    Entry entry;
+
+    synchronized (segment)
+    {
+      entry = segment.entries.get(imageId);
+    }
+
+    PhotoImage image = null;
+
+    if (entry != null)
+    {
+      hits.increment();
+      image = createImage(segment, entry);
+    }
+    else
+    {
+      misses.increment();
+    }
+
+    return image;
+  }
+
+  /**
+   * Build the image handed out for an entry.
+   * 
+   * The blocks aren't held on to until the data is actually read, so a lookup that only needs the image's details (e.g.
+   * to answer a conditional request) has nothing to release.
+   */
+  private PhotoImage createImage(Segment segment, Entry entry)
+  {
+    return new PhotoImage(() -> open(segment, entry), entry.length, entry.md5, entry.uploadDate, entry.contentType);
+  }
+
+  /**
+   * Open a stream over a cached image, holding on to its blocks until the stream is closed.
+   * 
+   * @throws IOException if the image has been evicted and its blocks released since it was looked up.
+   */
+  private InputStream open(Segment segment, Entry entry) throws IOException
+  {
+    synchronized (segment)
+    {
+      // Once the last reference has gone the blocks may already belong to another image.
+      if (entry.references.get() == 0)
+      {
+        throw new IOException("Image evicted from the cache before it was read");
+      }
+
+      entry.references.incrementAndGet();
+    }
+
+    return new BlockInputStream(segment, entry);
+  }
+
+  /**
+   * See com.example.rcubed.ImageCache.put(Object imageId, PhotoImage image)
+   */
+  @Override
+  public void put(Object imageId, PhotoImage image)
+  {
+    byte[] data = image.getData();
+
+    if (data == null || data.length > segmentMaxBytes)
+    {
+      // Can't be cached.
+      return;
+    }
+
+    Segment segment = segmentFor(imageId);
+    int blockCount = Math.max(1, (data.length + blockSize - 1) / blockSize);
+
+    synchronized (segment)
+    {
+      if (segment.entries.containsKey(imageId))
+      {
+        // Images never change, so there's nothing to update.
+        return;
+      }
+
+      int[] blocks = segment.allocate(blockCount);
+
+      if (blocks == null)
+      {
+        // Everything we could evict is still being read.
+        return;
+      }
+
+      for (int i = 0; i < blocks.length; i++)
+      {
+        int offset = i * blockSize;
+        segment.block(blocks[i]).put(data, offset, Math.min(blockSize, data.length - offset));
+      }
+
+      segment.entries.put(imageId, new Entry(blocks, data.length, image.getMD5(), image.getUploadDate(), image
+          .getContentType()));
+      segment.sizeBytes += data.length;
+    }
+  }
+
+  /**
+   * See com.example.rcubed.ImageCache.put(Object imageId, InputStream in, long length, String md5, Date uploadDate,
+   * String contentType)
+   */
+  @Override
+  public PhotoImage put(Object imageId, InputStream in, long length, String md5, Date uploadDate, String contentType)
+      throws IOException
+  {
+    if (length > segmentMaxBytes)
+    {
+      // Can't be cached.
+      return null;
+    }
+
+    Segment segment = segmentFor(imageId);
+    int blockCount = (int) Math.max(1, (length + blockSize - 1) / blockSize);
+    ByteBuffer[] targets;
+    Entry entry;
+
+    synchronized (segment)
+    {
+      Entry existing = segment.entries.get(imageId);
+
+      if (existing != null)
+      {
+        // Images never change, so the copy already cached will do.
+        return createImage(segment, existing);
+      }
+
+      int[] blocks = segment.allocate(blockCount);
+
+      if (blocks == null)
+      {
+        // Everything we could evict is still being read.
+        return null;
+      }
+
+      // Views of the blocks to fill, taken while the slab list can't change under us.
+      targets = new ByteBuffer[blocks.length];
+
+      for (int i = 0; i < blocks.length; i++)
+      {
+        targets[i] = segment.block(blocks[i]);
+      }
+
+      entry = new Entry(blocks, length, md5, uploadDate, contentType);
+    }
+
+    // The blocks are off the free list, so nobody else can touch them. Fill them without holding the lock, reading
+    // from the database may take a while.
+    boolean filled = false;
+
+    try
+    {
+      fill(targets, in, length);
+      filled = true;
+    }
+    finally
+    {
+      if (!filled)
+      {
+        synchronized (segment)
+        {
+          segment.release(entry);
+        }
+      }
+    }
+
+    synchronized (segment)
+    {
+      Entry existing = segment.entries.get(imageId);
+
+      if (existing != null)
+      {
+        // Someone else cached it while we were reading, keep theirs.
+        segment.release(entry);
+        entry = existing;
+      }
+      else
+      {
+        segment.entries.put(imageId, entry);
+        segment.sizeBytes += length;
+      }
+    }
+
+    return createImage(segment, entry);
+  }
+
+  /**
+   * Copy an image from a stream into its blocks.
+   */
+  private void fill(ByteBuffer[] targets, InputStream in, long length) throws IOException
+  {
+    byte[] buffer = new byte[Math.min(COPY_BUFFER_SIZE, blockSize)];
+    long remaining = length;
+
+    for (ByteBuffer target : targets)
+    {
+      int count = (int) Math.min(blockSize, remaining);
+      remaining -= count;
+
+      while (count > 0)
+      {
+        int read = in.read(buffer, 0, Math.min(buffer.length, count));
+
+        if (read < 0)
+        {
+          throw new EOFException("Image data ended early");
+        }
+
+        target.put(buffer, 0, read);
+        count -= read;
+      }
+    }
+  }
+
+  /**
+   * See com.example.rcubed.ImageCache.remove(Object imageId)
+   */
+  @Override
+  public void remove(Object imageId)
+  {
+    Segment segment = segmentFor(imageId);
+
+    synchronized (segment)
+    {
+      Entry removed = segment.entries.remove(imageId);
+
+      if (removed != null)
+      {
+        segment.sizeBytes -= removed.length;
+        segment.release(removed);
+      }
+    }
+  }
+
+  /**
+   * See com.example.rcubed.ImageCache.getMaxEntryBytes()
+   */
+  @Override
+  public long getMaxEntryBytes()
+  {
+    return segmentMaxBytes;
+  }
+
+  /**
+   * See com.example.rcubed.ImageCache.getSizeBytes()
+   */
+  @Override
+  public long getSizeBytes()
+  {
+    long total = 0;
+
+    for (Segment segment : segments)
+    {
+      synchronized (segment)
+      {
+        total += segment.sizeBytes;
+      }
+    }
+
+    return total;
+  }
+
+  /**
+   * Get the amount of direct memory allocated for slabs so far. Never more than the size the cache was created with.
+   */
+  public long getAllocatedBytes()
+  {
+    long total = 0;
+
+    for (Segment segment : segments)
+    {
+      synchronized (segment)
+      {
+        total += (long) segment.allocatedBlocks * blockSize;
+      }
+    }
+
+    return total;
+  }
+
+  /**
+   * See com.example.rcubed.ImageCache.getHitCount()
+   */
+  @Override
+  public long getHitCount()
+  {
+    return hits.sum();
+  }
+
+  /**
+   * See com.example.rcubed.ImageCache.getMissCount()
+   */
+  @Override
+  public long getMissCount()
+  {
+    return misses.sum();
+  }
+
+  /**
+   * See com.example.rcubed.ImageCache.getEvictionCount()
+   */
+  @Override
+  public long getEvictionCount()
+  {
+    return evictions.sum();
+  }
+
+  /**
+   * Pick the segment an image belongs in.
+   */
+  private Segment segmentFor(Object imageId)
+  {
+    // Spread the hash so ids that only differ in their high bits don't all land in the same segment.
+    int hash = imageId.hashCode();
+    hash ^= (hash >>> 16);
+
+    return segments[hash & (segments.length - 1)];
+  }
+}
@@ -1,6 +1,7 @@
 package com.example.rcubed;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Date;
@@ -29,6 +30,20 @@ public class Photo implements StreamSource
    */
   private Object gfsid;
 
+  /**
+   * The ids used to store and retrieve the reduced size renditions of the image.
+   * Null if the rendition was not generated (e.g. the original was already small enough), in which case the original
+   * is used in its place.
+   */
+  private Object thumbnailId;
+  private Object previewId;
+
+  /**
+   * Hash of the image data. Photos with the same image share the stored image, which is only removed once the last of
+   * them is deleted. Null for photos stored before images were shared.
+   */
+  private String contentHash;
+
   /**
    * The username of the owner of this photograph.
    */
@@ -45,9 +60,10 @@ public class Photo implements StreamSource
   private ArrayList<String> tags;
 
   /**
-   * Any comments that have been left by users about the photo.
+   * The number of comments that have been left by users about the photo. The comments themselves are fetched a page at
+   * a time (see PhotoDAO.getComments()).
    */
-  private ArrayList<String> comments;
+  private int commentCount;
 
   /**
    * The time the photo was uploaded.
@@ -56,9 +72,19 @@ public class Photo implements StreamSource
 
   /**
    * A buffer containing the image data.
+   * 
+   * Photos read back from the database only carry the GridFS id, so this is null until somebody explicitly sets it.
    */
   private byte[] image;
 
+  /**
+   * Access point for fetching the image data on demand.
+   * 
+   * Set by the DAO when a photo is built from the database so that getStream() can stream the bytes only when Vaadin
+   * actually asks for them.
+   */
+  private PhotoDAO photoDAO;
+
   /**
    * The visibility of this Photo - determines who is able to view it.
    * One of:
@@ -89,6 +115,19 @@ public class Photo implements StreamSource
    */
   public static final Visibility[] VisibilityValues = Visibility.values();
 
+  /**
+   * The sizes the image is stored in.
+   *   THUMBNAIL - Small, for lists and grids of photos.
+   *   PREVIEW   - Big enough to fill the album's photo panel.
+   *   ORIGINAL  - The image exactly as it was uploaded.
+   */
+  public enum Rendition
+  {
+    THUMBNAIL,
+    PREVIEW,
+    ORIGINAL,
+  }
+
   /**
    * Empty Constructor.
    */
@@ -96,12 +135,16 @@ public class Photo implements StreamSource
   {
     this.id = null;
     this.gfsid = null;
+    this.thumbnailId = null;
+    this.previewId = null;
+    this.contentHash = null;
     this.owner = null;
     this.title = null;
     this.tags = null;
-    this.comments = null;
+    this.commentCount = 0;
     this.timestamp = null;
     this.image = null;
+    this.photoDAO = null;
     this.visibility = null;
   }
 
@@ -119,17 +162,21 @@ public class Photo implements StreamSource
     // id and gfsid are generated once the image has been saved to the database.
     this.id = null;
     this.gfsid = null;
+    this.thumbnailId = null;
+    this.previewId = null;
+    this.contentHash = null;
 
     this.owner = owner;
     this.title = title;
     this.tags = tags;
 
     // User can't set comments when uploading the photo.
-    this.comments = new ArrayList<String>();
+    this.commentCount = 0;
 
     // Set the timestamp to the current time.
     this.timestamp = new Date();
     this.image = imageData;
+    this.photoDAO = null;
     this.visibility = visibility;
   }
 
@@ -154,13 +201,11 @@ public class Photo implements StreamSource
   }
 
   /**
-   * Add a comment to this photo.
-   * 
-   * @param newTag
+   * Count a new comment on this photo.
    */
-  public void addComment(String newComment)
+  public void addComment()
   {
-    comments.add(newComment);
+    commentCount++;
   }
 
   /**
@@ -183,6 +228,34 @@ public class Photo implements StreamSource
     this.gfsid = gfsid;
   }
 
+  /**
+   * Set the GridFS ID of one of the reduced size renditions of this photo.
+   * 
+   * @param rendition  THUMBNAIL or PREVIEW.
+   * @param id         The GridFS ID, or null if the rendition doesn't exist.
+   */
+  public void setGFSRenditionId(Rendition rendition, Object id)
+  {
+    if (rendition == Rendition.THUMBNAIL)
+    {
+      thumbnailId = id;
+    }
+    else if (rendition == Rendition.PREVIEW)
+    {
+      previewId = id;
+    }
+  }
+
+  /**
+   * Set the hash of this photo's image data.
+   * 
+   * @param contentHash
+   */
+  public void setContentHash(String contentHash)
+  {
+    this.contentHash = contentHash;
+  }
+
   /**
    * Set the owner of this Photo.
    * 
@@ -214,13 +287,13 @@ public class Photo implements StreamSource
   }
 
   /**
-   * Set the comments for this Photo.
+   * Set the number of comments on this Photo.
    * 
-   * @param tags
+   * @param commentCount
    */
-  public void setComments(ArrayList<String> comments)
+  public void setCommentCount(int commentCount)
   {
-    this.comments = comments;
+    this.commentCount = commentCount;
   }
 
   /**
@@ -253,6 +326,16 @@ public class Photo implements StreamSource
     image = imageData;
   }
 
+  /**
+   * Set the DAO used to load the image data when it is first needed.
+   * 
+   * @param photoDAO
+   */
+  public void setPhotoDAO(PhotoDAO photoDAO)
+  {
+    this.photoDAO = photoDAO;
+  }
+
   /**
    * Get the database object id of this photo.
    */
@@ -269,6 +352,37 @@ public class Photo implements StreamSource
     return gfsid;
   }
 
+  /**
+   * Get the GridFS Id of one of the renditions of this photo.
+   * 
+   * @param rendition  The rendition wanted.
+   * 
+   * @return The id of that rendition, falling back to the original if the rendition doesn't exist.
+   */
+  public Object getGFSRenditionId(Rendition rendition)
+  {
+    Object renditionId = null;
+
+    if (rendition == Rendition.THUMBNAIL)
+    {
+      renditionId = thumbnailId;
+    }
+    else if (rendition == Rendition.PREVIEW)
+    {
+      renditionId = previewId;
+    }
+
+    return (renditionId != null) ? renditionId : gfsid;
+  }
+
+  /**
+   * Get the hash of this photo's image data.
+   */
+  public String getContentHash()
+  {
+    return contentHash;
+  }
+
   /**
    * Get the owner of this photo.
    */
@@ -294,11 +408,11 @@ public class Photo implements StreamSource
   }
 
   /**
-   * Get the comments for this photo.
+   * Get the number of comments on this photo.
    */
-  public ArrayList<String> getComments()
+  public int getCommentCount()
   {
-    return comments;
+    return commentCount;
   }
 
   /**
@@ -327,10 +441,68 @@ public class Photo implements StreamSource
 
   /**
    * See com.vaadin.server.StreamResource.StreamSource.getStream()
+   * 
+   * Streams the original image.
    */
   @Override
   public InputStream getStream()
   {
-    return new ByteArrayInputStream(image);
+    return getStream(Rendition.ORIGINAL);
+  }
+
+  /**
+   * Get a StreamSource for one of the renditions of this photo, for use in a Vaadin StreamResource.
+   * 
+   * @param rendition  The rendition wanted.
+   */
+  public StreamSource getStreamSource(Rendition rendition)
+  {
+    return new StreamSource()
+    {
+      @Override
+      public InputStream getStream()
+      {
+        return Photo.this.getStream(rendition);
+      }
+    };
+  }
+
+  /**
+   * Open a stream over one of the renditions of this photo.
+   * 
+   * @param rendition  The rendition wanted.
+   * 
+   * @return The stream, or null if the image data isn't available.
+   */
+  private InputStream getStream(Rendition rendition)
+  {
+    InputStream stream = null;
+
+    if (image != null && rendition == Rendition.ORIGINAL)
+    {
+      stream = new ByteArrayInputStream(image);
+    }
+    else if (photoDAO != null)
+    {
+      // Metadata only photo - stream the image straight out of the database now that someone actually wants it.
+      // Vaadin closes the stream once it has been written to the response.
+      PhotoImage photoImage = photoDAO.openImage(this, rendition);
+
+      if (photoImage != null)
+      {
+        try
+        {
+          stream = photoImage.getInputStream();
+        }
+        catch (IOException ex)
+        {
+          // Treated as not available, the image just isn't shown.
+          stream = null;
+        }
+      }
+    }
+
+    // Vaadin treats a null stream as "nothing to send".
+    return stream;
   }
 }
@@ -0,0 +1,323 @@
+package com.example.rcubed;
+
+import java.util.ArrayList;
+
+import org.bson.BsonObjectId;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonValue;
+import org.bson.BsonWriter;
+import org.bson.codecs.BsonTypeClassMap;
+import org.bson.codecs.Codec;
+import org.bson.codecs.CollectibleCodec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.types.ObjectId;
+
+/**
+ * Reads and writes Photos straight from and to BSON, without building a Document in between.
+ *
+ * Produces exactly the same documents as MongoDbDAOPhoto.convertToDoc(), and reads them back the same way as
+ * MongoDbDAOPhoto.createPhoto(), so photos written either way can be read either way. Fields it doesn't know about are
+ * skipped.
+ */
+public class PhotoCodec implements CollectibleCodec<Photo>
+{
+  /**
+   * Codecs for the GridFS ids, which can be of any type.
+   */
+  private final CodecRegistry registry;
+  private final BsonTypeClassMap bsonTypeClassMap = new BsonTypeClassMap();
+
+  /**
+   * The DAO the photos read should use to load their image data (may be null).
+   */
+  private final PhotoDAO photoDAO;
+
+  /**
+   * Constructor
+   *
+   * @param registry  Codecs for the GridFS ids, normally the database's codec registry.
+   * @param photoDAO  The DAO the photos read should use to load their image data (may be null).
+   */
+  public PhotoCodec(CodecRegistry registry, PhotoDAO photoDAO)
+  {
+    this.registry = registry;
+    this.photoDAO = photoDAO;
+  }
+
+  @Override
+  public Class<Photo> getEncoderClass()
+  {
+    return Photo.class;
+  }
+
+  @Override
+  public void encode(BsonWriter writer, Photo photo, EncoderContext encoderContext)
+  {
+    writer.writeStartDocument();
+
+    // The id goes first, as the driver does for documents it is storing.
+    if (photo.getId() != null)
+    {
+      writer.writeObjectId(MongoDbDAOPhoto.KEY_ID, new ObjectId(photo.getId()));
+    }
+
+    writer.writeName(MongoDbDAOPhoto.KEY_GFS_ID);
+    writeValue(writer, photo.getGFSPhotoId(), encoderContext);
+
+    // Only store the rendition ids if the renditions exist, otherwise the original is used in their place.
+    Object thumbnailId = photo.getGFSRenditionId(Photo.Rendition.THUMBNAIL);
+    Object previewId = photo.getGFSRenditionId(Photo.Rendition.PREVIEW);
+
+    if (thumbnailId != null && !thumbnailId.equals(photo.getGFSPhotoId()))
+    {
+      writer.writeName(MongoDbDAOPhoto.KEY_THUMBNAIL_ID);
+      writeValue(writer, thumbnailId, encoderContext);
+    }
+
+    if (previewId != null && !previewId.equals(photo.getGFSPhotoId()))
+    {
+      writer.writeName(MongoDbDAOPhoto.KEY_PREVIEW_ID);
+      writeValue(writer, previewId, encoderContext);
+    }
+
+    if (photo.getContentHash() != null)
+    {
+      writer.writeString(MongoDbDAOPhoto.KEY_CONTENT_HASH, photo.getContentHash());
+    }
+
+    writer.writeName(MongoDbDAOPhoto.KEY_OWNER);
+    writeString(writer, photo.getOwner());
+    writer.writeName(MongoDbDAOPhoto.KEY_TITLE);
+    writeString(writer, photo.getTitle());
+
+    writer.writeStartArray(MongoDbDAOPhoto.KEY_TAGS);
+
+    if (photo.getTags() != null)
+    {
+      for (String tag : photo.getTags())
+      {
+        writeString(writer, tag);
+      }
+    }
+
+    writer.writeEndArray();
+
+    // The comments themselves are in the comments collection.
+    writer.writeInt32(MongoDbDAOPhoto.KEY_COMMENT_COUNT, photo.getCommentCount());
+
+    writer.writeInt64(MongoDbDAOPhoto.KEY_TIMESTAMP, MongoDbDAOPhoto.toStoredTimestamp(photo.getTimeStamp()));
+    writer.writeInt32(MongoDbDAOPhoto.KEY_VISIBILITY, photo.getVisibility().ordinal());
+
+    writer.writeEndDocument();
+  }
+
+  @Override
+  public Photo decode(BsonReader reader, DecoderContext decoderContext)
+  {
+    Photo photo = new Photo();
+
+    reader.readStartDocument();
+
+    while (reader.readBsonType() != BsonType.END_OF_DOCUMENT)
+    {
+      String name = reader.readName();
+
+      switch (name)
+      {
+        case MongoDbDAOPhoto.KEY_ID:
+          photo.setId(readObjectIdString(reader));
+          break;
+
+        case MongoDbDAOPhoto.KEY_GFS_ID:
+          photo.setGFSPhotoId(readValue(reader, decoderContext));
+          break;
+
+        case MongoDbDAOPhoto.KEY_THUMBNAIL_ID:
+          photo.setGFSRenditionId(Photo.Rendition.THUMBNAIL, readValue(reader, decoderContext));
+          break;
+
+        case MongoDbDAOPhoto.KEY_PREVIEW_ID:
+          photo.setGFSRenditionId(Photo.Rendition.PREVIEW, readValue(reader, decoderContext));
+          break;
+
+        case MongoDbDAOPhoto.KEY_CONTENT_HASH:
+          photo.setContentHash(readString(reader));
+          break;
+
+        case MongoDbDAOPhoto.KEY_OWNER:
+          photo.setOwner(readString(reader));
+          break;
+
+        case MongoDbDAOPhoto.KEY_TITLE:
+          photo.setTitle(readString(reader));
+          break;
+
+        case MongoDbDAOPhoto.KEY_TAGS:
+          photo.setTags(readStrings(reader));
+          break;
+
+        case MongoDbDAOPhoto.KEY_COMMENT_COUNT:
+          photo.setCommentCount((int) readLong(reader));
+          break;
+
+        case MongoDbDAOPhoto.KEY_TIMESTAMP:
+          photo.setTimeStamp(MongoDbDAOPhoto.fromStoredTimestamp(readLong(reader)));
+          break;
+
+        case MongoDbDAOPhoto.KEY_VISIBILITY:
+          // Visibility must be converted to the relevant enum value.
+          photo.setVisibility(Photo.VisibilityValues[(int) readLong(reader)]);
+          break;
+
+        default:
+          reader.skipValue();
+          break;
+      }
+    }
+
+    reader.readEndDocument();
+
+    // Raw data for the image is accessed through GridFS, but only when it's actually needed.
+    photo.setPhotoDAO(photoDAO);
+
+    return photo;
+  }
+
+  @Override
+  public Photo generateIdIfAbsentFromDocument(Photo photo)
+  {
+    if (photo.getId() == null)
+    {
+      photo.setId(new ObjectId().toString());
+    }
+
+    return photo;
+  }
+
+  @Override
+  public boolean documentHasId(Photo photo)
+  {
+    return photo.getId() != null;
+  }
+
+  @Override
+  public BsonValue getDocumentId(Photo photo)
+  {
+    if (photo.getId() == null)
+    {
+      throw new IllegalStateException("The photo does not have an id");
+    }
+
+    return new BsonObjectId(new ObjectId(photo.getId()));
+  }
+
+  /**
+   * Write a value of any type, using the codec registered for its class.
+   */
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private void writeValue(BsonWriter writer, Object value, EncoderContext encoderContext)
+  {
+    if (value == null)
+    {
+      writer.writeNull();
+    }
+    else
+    {
+      Codec codec = registry.get(value.getClass());
+      encoderContext.encodeWithChildContext(codec, writer, value);
+    }
+  }
+
+  /**
+   * Read a value of any type, using the codec registered for the class its BSON type maps to.
+   */
+  private Object readValue(BsonReader reader, DecoderContext decoderContext)
+  {
+    Object value = null;
+
+    if (reader.getCurrentBsonType() == BsonType.NULL)
+    {
+      reader.readNull();
+    }
+    else
+    {
+      value = registry.get(bsonTypeClassMap.get(reader.getCurrentBsonType())).decode(reader, decoderContext);
+    }
+
+    return value;
+  }
+
+  /**
+   * Read an object id, as a string.
+   */
+  static String readObjectIdString(BsonReader reader)
+  {
+    // Same as ObjectId.toHexString(), which formats each byte separately and allocates more than the rest of the
+    // photo put together.
+    return ImageUpload.toHex(reader.readObjectId().toByteArray());
+  }
+
+  /**
+   * Write a string that may be null.
+   */
+  static void writeString(BsonWriter writer, String value)
+  {
+    if (value == null)
+    {
+      writer.writeNull();
+    }
+    else
+    {
+      writer.writeString(value);
+    }
+  }
+
+  /**
+   * Read a string that may be null.
+   */
+  static String readString(BsonReader reader)
+  {
+    String value = null;
+
+    if (reader.getCurrentBsonType() == BsonType.NULL)
+    {
+      reader.readNull();
+    }
+    else
+    {
+      value = reader.readString();
+    }
+
+    return value;
+  }
+
+  /**
+   * Read an array of strings.
+   */
+  static ArrayList<String> readStrings(BsonReader reader)
+  {
+    ArrayList<String> values = new ArrayList<String>();
+
+    reader.readStartArray();
+
+    while (reader.readBsonType() != BsonType.END_OF_DOCUMENT)
+    {
+      values.add(readString(reader));
+    }
+
+    reader.readEndArray();
+
+    return values;
+  }
+
+  /**
+   * Read a whole number, whether it was stored as a 32 or 64 bit integer.
+   */
+  private static long readLong(BsonReader reader)
+  {
+    return (reader.getCurrentBsonType() == BsonType.INT32) ? reader.readInt32() : reader.readInt64();
+  }
+}
@@ -1,6 +1,7 @@
 package com.example.rcubed;
 
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * DAO Interface for manipulating/querying photos in the database.
@@ -11,15 +12,64 @@ public interface PhotoDAO
   /**
    * Add the input photo to the database.
    * 
+   * Thumbnail and preview renditions of the image are generated and stored alongside the original.
+   * 
    * @param photo  The photo to add.
    * 
    * @return True if the database operation was successful, otherwise false.
    */
   public abstract boolean insertPhoto(Photo photo);
 
+  /**
+   * Start storing an image as it is uploaded, without holding the whole image in memory.
+   * 
+   * The image data is written to the upload's output stream. Once the upload is complete it is attached to a photo
+   * with insertPhoto(Photo, ImageUpload), or if it failed it is thrown away with abortImageUpload().
+   * 
+   * @param filename  The name of the uploaded file.
+   * @param mimeType  The MIME type of the uploaded file (may be null).
+   * 
+   * @return The upload.
+   */
+  public abstract ImageUpload beginImageUpload(String filename, String mimeType);
+
+  /**
+   * Add the input photo to the database, using an image that has already been uploaded.
+   * 
+   * Thumbnail and preview renditions of the image are generated and stored alongside the original. The upload is
+   * thrown away if the photo can't be added.
+   * 
+   * @param photo   The photo to add. Its image data is ignored.
+   * @param upload  The completed upload of the photo's image.
+   * 
+   * @return True if the database operation was successful, otherwise false.
+   */
+  public abstract boolean insertPhoto(Photo photo, ImageUpload upload);
+
+  /**
+   * Throw away an upload that failed or was never attached to a photo, along with any image data already stored.
+   * 
+   * @param upload  The upload.
+   */
+  public abstract void abortImageUpload(ImageUpload upload);
+
+  /**
+   * Add several photos to the database in one go, as if insertPhoto() had been called for each of them.
+   * 
+   * Implementations are free to batch and parallelise the work, so a failure to insert one photo does not stop the
+   * others. Nothing is left behind in the database for a photo that fails.
+   * 
+   * @param photos  The photos to add.
+   * 
+   * @return The outcome for each photo, in the same order as the list: true if it was added, otherwise false.
+   */
+  public abstract boolean[] insertPhotos(List<Photo> photos);
+
   /**
    * Remove this photo from the database.
    * 
+   * The image is removed too, unless another photo with the same image is still using it.
+   * 
    * @param user   The user performing the operation (only the owner can delete)
    * @param photo  The photo to remove.
    * 
@@ -50,7 +100,9 @@ public interface PhotoDAO
   public abstract boolean removeTag(User user, Photo photo, String exTag);
 
   /**
-   * Add a comment to the photo.
+   * Add a comment to the photo, and count it in the photo's comment count.
+   * 
+   * Implementations may buffer comments and write them shortly after this returns.
    * 
    * @param user        The user performing the operation (only the owner of a photo can modify it's properties)
    * @param photo       The photo to add a the comment to.
@@ -72,6 +124,15 @@ public interface PhotoDAO
    */
   public abstract boolean changeVisibility(User user, Photo photo, Photo.Visibility newVisibility);
 
+  /**
+   * Retrieve a single photo from the database.
+   * 
+   * @param photoId  The database object id of the photo.
+   * 
+   * @return The photo (meta data only), or null if there is no such photo.
+   */
+  public abstract Photo getPhoto(String photoId);
+
   /**
    * Retrieve a set of photos from the databse.
    * 
@@ -80,6 +141,91 @@ public interface PhotoDAO
    * @param allowedVisibility  The Visibility of photos the requesting party is allowed to see.
    *  
    * @return A list of photos owned by "owner" tagged with "tag" of the appropriate Visibility level or higher.
+   *         Only the meta data is loaded, the image data is fetched on demand (see getImage()).
    */
   public abstract ArrayList<Photo> getPhotos(String owner, String tag, Photo.Visibility allowedVisibility);
+
+  /**
+   * Retrieve a single page of photos from the database, newest first.
+   * 
+   * @param owner              The owner of the photos to get.
+   * @param tag                The tag to filter the results by.
+   * @param allowedVisibility  The Visibility of photos the requesting party is allowed to see.
+   * @param pageSize           The maximum number of photos to return.
+   * @param continuationToken  The token from the previous page, or null to start from the newest photo.
+   * 
+   * @return A page of photos owned by "owner" tagged with "tag" of the appropriate Visibility level or higher, along
+   *         with the token needed to retrieve the next page.
+   */
+  public abstract ResultPage<Photo> getPhotos(String owner, String tag, Photo.Visibility allowedVisibility,
+      int pageSize, String continuationToken);
+
+  /**
+   * Retrieve a single page of photo summaries from the database, newest first.
+   * 
+   * Same as getPhotos(), but only the fields needed for a listing are read from the database.
+   * 
+   * @param owner              The owner of the photos to get.
+   * @param tag                The tag to filter the results by.
+   * @param allowedVisibility  The Visibility of photos the requesting party is allowed to see.
+   * @param pageSize           The maximum number of photos to return.
+   * @param continuationToken  The token from the previous page, or null to start from the newest photo.
+   * 
+   * @return A page of summaries of the photos owned by "owner" tagged with "tag" of the appropriate Visibility level
+   *         or higher, along with the token needed to retrieve the next page.
+   */
+  public abstract ResultPage<PhotoSummary> getPhotoSummaries(String owner, String tag,
+      Photo.Visibility allowedVisibility, int pageSize, String continuationToken);
+
+  /**
+   * Retrieve a single page of a user's feed, newest first.
+   * 
+   * The feed merges the photos of everyone who has the viewer on their friends list (Friends and Public photos) with
+   * the Public photos of everyone on the viewer's own friends list.
+   * 
+   * @param viewer             The user whose feed is wanted.
+   * @param pageSize           The maximum number of photos to return.
+   * @param continuationToken  The token from the previous page, or null to start from the newest photo.
+   * 
+   * @return A page of photos from the viewer's feed, along with the token needed to retrieve the next page.
+   */
+  public abstract ResultPage<Photo> getFeed(User viewer, int pageSize, String continuationToken);
+
+  /**
+   * Retrieve a single page of the comments on a photo, newest first.
+   * 
+   * Only the photo's id is needed, so a listing can show the latest comments without fetching each photo in full.
+   * 
+   * @param photoId            The id of the photo.
+   * @param pageSize           The maximum number of comments to return.
+   * @param continuationToken  The token from the previous page, or null to start from the newest comment.
+   * 
+   * @return A page of comments, along with the token needed to retrieve the next page.
+   */
+  public abstract ResultPage<Comment> getComments(String photoId, int pageSize, String continuationToken);
+
+  /**
+   * Retrieve the raw image data for a photo.
+   * 
+   * @param photo  The photo whose image data is wanted.
+   * 
+   * @return The image data, or null if it could not be read from the database. The array may be shared with a cache,
+   *         so it must not be modified.
+   */
+  public abstract byte[] getImage(Photo photo);
+
+  /**
+   * Look up one of the renditions of a photo's image.
+   * 
+   * Unlike getImage() the data is not necessarily buffered, it may be read from the database as the image's stream is
+   * consumed. The image's details (length, MD5, upload date) are available straight away, but the data need not be
+   * fetched until the stream is opened, so callers that may not need it should only open the stream once they do. The
+   * caller is responsible for closing that stream.
+   * 
+   * @param photo      The photo whose image data is wanted.
+   * @param rendition  The rendition wanted. The original is used if the photo doesn't have that rendition.
+   * 
+   * @return The image, or null if it could not be found.
+   */
+  public abstract PhotoImage openImage(Photo photo, Photo.Rendition rendition);
 }
\ No newline at end of file
@@ -0,0 +1,187 @@
+package com.example.rcubed;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+
+/**
+ * The stored image data for one rendition of a photo, along with the details needed to serve it over HTTP.
+ * 
+ * The data is either held in memory, read from a stream that is opened when the image is looked up, or read from a
+ * stream that is only opened when the data is first asked for, so the details can be checked (e.g. to answer a
+ * conditional request) without fetching any of it. A stream backed image can only be read once, and whoever reads it is
+ * responsible for closing the stream.
+ */
+public class PhotoImage
+{
+  /**
+   * Opens the image data when it is first asked for.
+   */
+  public interface Opener
+  {
+    /**
+     * Open a stream over the image data.
+     */
+    public abstract InputStream open() throws IOException;
+  }
+
+  /**
+   * The image data, if it is held in memory.
+   */
+  private byte[] data;
+
+  /**
+   * Stream over the image data, if it isn't held in memory.
+   */
+  private InputStream stream;
+
+  /**
+   * Opens the image data, if it is neither held in memory nor already open.
+   */
+  private Opener opener;
+
+  /**
+   * The size of the image in bytes.
+   */
+  private long length;
+
+  /**
+   * MD5 hash of the image data (as a hex string).
+   */
+  private String md5;
+
+  /**
+   * The time the image was stored.
+   */
+  private Date uploadDate;
+
+  /**
+   * MIME type of the image. Null if unknown.
+   */
+  private String contentType;
+
+  /**
+   * Constructor for an image held in memory.
+   * 
+   * @param data         The image data.
+   * @param md5          MD5 hash of the image data.
+   * @param uploadDate   The time the image was stored.
+   * @param contentType  MIME type of the image (may be null).
+   */
+  public PhotoImage(byte[] data, String md5, Date uploadDate, String contentType)
+  {
+    this.data = data;
+    this.stream = null;
+    this.opener = null;
+    this.length = data.length;
+    this.md5 = md5;
+    this.uploadDate = uploadDate;
+    this.contentType = contentType;
+  }
+
+  /**
+   * Constructor for an image read from a stream.
+   * 
+   * @param stream       Stream over the image data.
+   * @param length       The size of the image in bytes.
+   * @param md5          MD5 hash of the image data.
+   * @param uploadDate   The time the image was stored.
+   * @param contentType  MIME type of the image (may be null).
+   */
+  public PhotoImage(InputStream stream, long length, String md5, Date uploadDate, String contentType)
+  {
+    this.data = null;
+    this.stream = stream;
+    this.opener = null;
+    this.length = length;
+    this.md5 = md5;
+    this.uploadDate = uploadDate;
+    this.contentType = contentType;
+  }
+
+  /**
+   * Constructor for an image whose data is only opened when it is asked for.
+   * 
+   * @param opener       Opens a stream over the image data.
+   * @param length       The size of the image in bytes.
+   * @param md5          MD5 hash of the image data.
+   * @param uploadDate   The time the image was stored.
+   * @param contentType  MIME type of the image (may be null).
+   */
+  public PhotoImage(Opener opener, long length, String md5, Date uploadDate, String contentType)
+  {
+    this.data = null;
+    this.stream = null;
+    this.opener = opener;
+    this.length = length;
+    this.md5 = md5;
+    this.uploadDate = uploadDate;
+    this.contentType = contentType;
+  }
+
+  /**
+   * Get a stream over the image data, opening it if it isn't open yet.
+   * 
+   * @throws IOException if the image data can't be opened.
+   */
+  public InputStream getInputStream() throws IOException
+  {
+    InputStream in;
+
+    if (data != null)
+    {
+      in = new ByteArrayInputStream(data);
+    }
+    else if (stream != null)
+    {
+      in = stream;
+    }
+    else
+    {
+      in = opener.open();
+    }
+
+    return in;
+  }
+
+  /**
+   * Get the image data if it is held in memory, otherwise null.
+   */
+  public byte[] getData()
+  {
+    return data;
+  }
+
+  /**
+   * Get the size of the image in bytes.
+   */
+  public long getLength()
+  {
+    return length;
+  }
+
+  /**
+   * Get the MD5 hash of the image data.
+   */
+  public String getMD5()
+  {
+    return md5;
+  }
+
+  /**
+   * Get the time the image was stored.
+   */
+  public Date getUploadDate()
+  {
+    return uploadDate;
+  }
+
+  /**
+   * Get the MIME type of the image. Null if unknown.
+   */
+  public String getContentType()
+  {
+    return contentType;
+  }
+}
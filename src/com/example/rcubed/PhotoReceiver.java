@@ -1,12 +1,13 @@
 package com.example.rcubed;
 
-import java.io.ByteArrayOutputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 
 import com.vaadin.server.Page;
 import com.vaadin.ui.Notification;
 import com.vaadin.ui.TextField;
+import com.vaadin.ui.Upload.FailedEvent;
+import com.vaadin.ui.Upload.FailedListener;
 import com.vaadin.ui.Upload.Receiver;
 import com.vaadin.ui.Upload.SucceededEvent;
 import com.vaadin.ui.Upload.SucceededListener;
@@ -14,12 +15,12 @@ import com.vaadin.ui.Upload.SucceededListener;
 /**
  * Handles upload of images to the server.
  */
-public class PhotoReceiver implements Receiver, SucceededListener
+public class PhotoReceiver implements Receiver, SucceededListener, FailedListener
 {
   /**
-   * The output stream which stores the file once uploaded.
+   * The upload in progress. The image data is written straight to the database as it arrives.
    */
-  private ByteArrayOutputStream fileBuffer;
+  private ImageUpload upload;
 
   /**
    * The name of the user uploading this file.
@@ -56,7 +57,7 @@ public class PhotoReceiver implements Receiver, SucceededListener
    */
   public PhotoReceiver(String owner, TextField titleField, TextField tagsField, int visibilityField, PhotoDAO photoDAO)
   {
-    fileBuffer = null;
+    upload = null;
     this.owner = owner;
     this.titleField = titleField;
     this.tagsField = tagsField;
@@ -70,10 +71,13 @@ public class PhotoReceiver implements Receiver, SucceededListener
   @Override
   public OutputStream receiveUpload(String filename, String mimeType)
   {
+    OutputStream out = null;
+
     try
     {
-      // Create a buffer to store the image data.
-      fileBuffer = new ByteArrayOutputStream();
+      // Start storing the image data in the database.
+      upload = photoDAO.beginImageUpload(filename, mimeType);
+      out = upload.getOutputStream();
     }
     catch (Exception ex)
     {
@@ -81,7 +85,7 @@ public class PhotoReceiver implements Receiver, SucceededListener
       new Notification("Exception" + ex.getStackTrace(), Notification.Type.ERROR_MESSAGE).show(Page.getCurrent());
     }
 
-    return fileBuffer;
+    return out;
   }
 
   /**
@@ -99,18 +103,43 @@ public class PhotoReceiver implements Receiver, SucceededListener
       tags.add(tag);
     }
 
-    Photo photo = new Photo(owner, titleField.getValue(), tags, Photo.VisibilityValues[visibilityField],
-        fileBuffer.toByteArray());
+    // The image data is already in the database, so the photo doesn't carry it.
+    Photo photo = new Photo(owner, titleField.getValue(), tags, Photo.VisibilityValues[visibilityField], null);
 
     // Save the photo to the database.
-    photoDAO.insertPhoto(photo);
+    boolean success = photoDAO.insertPhoto(photo, upload);
+    upload = null;
+
+    if (success)
+    {
+      // Clear the new photo info fields.
+      titleField.setValue("");
+      tagsField.setValue("");
 
-    // Clear the new photo info fields.
-    titleField.setValue("");
-    tagsField.setValue("");
+      // Alert the user of the successful upload.
+      new Notification("Success", Notification.Type.WARNING_MESSAGE).show(Page.getCurrent());
+    }
+    else
+    {
+      new Notification("Unable to save " + event.getFilename(), Notification.Type.ERROR_MESSAGE).show(Page
+          .getCurrent());
+    }
+  }
 
-    // Alert the user of the successful upload.
-    new Notification("Success", Notification.Type.WARNING_MESSAGE).show(Page.getCurrent());
+  /**
+   * See com.vaadin.ui.Upload.FailedListener.uploadFailed(FailedEvent event)
+   */
+  @Override
+  public void uploadFailed(FailedEvent event)
+  {
+    // Throw away whatever part of the image made it to the database.
+    if (upload != null)
+    {
+      photoDAO.abortImageUpload(upload);
+      upload = null;
+    }
 
+    new Notification("Upload of " + event.getFilename() + " failed", Notification.Type.ERROR_MESSAGE).show(Page
+        .getCurrent());
   }
 }
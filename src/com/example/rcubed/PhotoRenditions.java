@@ -0,0 +1,158 @@
+package com.example.rcubed;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Generates the reduced size renditions of a photo that are stored alongside the original.
+ */
+public class PhotoRenditions
+{
+  /**
+   * Maximum width/height in pixels of each rendition.
+   */
+  public static final int THUMBNAIL_SIZE = 160;
+  public static final int PREVIEW_SIZE = 500;
+
+  /**
+   * Format the renditions are stored in.
+   */
+  public static final String RENDITION_FORMAT = "jpg";
+  public static final String RENDITION_CONTENT_TYPE = "image/jpeg";
+
+  /**
+   * Get the maximum width/height of a rendition.
+   * 
+   * @param rendition  The rendition (must not be ORIGINAL).
+   */
+  public static int getMaxSize(Photo.Rendition rendition)
+  {
+    return (rendition == Photo.Rendition.THUMBNAIL) ? THUMBNAIL_SIZE : PREVIEW_SIZE;
+  }
+
+  /**
+   * Decode an uploaded image, at no more resolution than the renditions need.
+   * 
+   * A full size decode of a large photo takes several hundred Mb of heap, so big images are subsampled as they are read
+   * (only every nth pixel of every nth row is decoded) and the full resolution bitmap is never held in memory. The
+   * result is still at least twice the size of the largest rendition, so scaling it down loses nothing, and it is only
+   * ever larger than a rendition's size if the original was.
+   * 
+   * @param imageData  Stream over the raw image data.
+   * 
+   * @return The decoded image, or null if the data isn't in a format we can read.
+   * 
+   * @throws IOException if the stream can't be read.
+   */
+  public static BufferedImage decode(InputStream imageData) throws IOException
+  {
+    BufferedImage decoded = null;
+
+    try (ImageInputStream in = ImageIO.createImageInputStream(imageData))
+    {
+      Iterator<ImageReader> readers = (in != null) ? ImageIO.getImageReaders(in) : null;
+
+      if (readers != null && readers.hasNext())
+      {
+        ImageReader reader = readers.next();
+
+        try
+        {
+          reader.setInput(in, true, true);
+
+          // The header gives the size without decoding any pixels.
+          int longestSide = Math.max(reader.getWidth(0), reader.getHeight(0));
+          int subsampling = Math.max(1, longestSide / (2 * PREVIEW_SIZE));
+
+          ImageReadParam param = reader.getDefaultReadParam();
+          param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+
+          decoded = reader.read(0, param);
+        }
+        finally
+        {
+          reader.dispose();
+        }
+      }
+    }
+
+    return decoded;
+  }
+
+  /**
+   * Create a rendition of an image that fits within maxSize x maxSize, preserving the aspect ratio.
+   * 
+   * @param original  The decoded original image.
+   * @param maxSize   The maximum width and height of the rendition.
+   * 
+   * @return The encoded rendition, or null if the original already fits (there's no point storing a copy of it).
+   * 
+   * @throws IOException if the rendition can't be encoded.
+   */
+  public static byte[] createRendition(BufferedImage original, int maxSize) throws IOException
+  {
+    byte[] rendition = null;
+
+    int width = original.getWidth();
+    int height = original.getHeight();
+
+    if (width > maxSize || height > maxSize)
+    {
+      double scale = Math.min((double) maxSize / width, (double) maxSize / height);
+      int targetWidth = Math.max(1, (int) Math.round(width * scale));
+      int targetHeight = Math.max(1, (int) Math.round(height * scale));
+
+      // Bilinear scaling only looks at neighbouring pixels, so shrinking a big image in one go throws away most of the
+      // detail. Halving repeatedly until we're close to the target size gives a much smoother result.
+      BufferedImage current = original;
+
+      while (current.getWidth() / 2 >= targetWidth && current.getHeight() / 2 >= targetHeight)
+      {
+        current = scale(current, current.getWidth() / 2, current.getHeight() / 2);
+      }
+
+      current = scale(current, targetWidth, targetHeight);
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      ImageIO.write(current, RENDITION_FORMAT, out);
+      rendition = out.toByteArray();
+    }
+
+    return rendition;
+  }
+
+  /**
+   * Scale an image to the given size.
+   * 
+   * The result is always RGB - JPEG can't hold an alpha channel, so any transparency is flattened onto white.
+   */
+  private static BufferedImage scale(BufferedImage source, int width, int height)
+  {
+    BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    Graphics2D graphics = scaled.createGraphics();
+
+    try
+    {
+      graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+      graphics.drawImage(source, 0, 0, width, height, Color.WHITE, null);
+    }
+    finally
+    {
+      graphics.dispose();
+    }
+
+    return scaled;
+  }
+}
@@ -0,0 +1,204 @@
+package com.example.rcubed;
+
+import java.util.ArrayList;
+import java.util.Date;
+
+/**
+ * Lightweight, read only view of a photo for list and grid displays.
+ * 
+ * Carries just the meta data needed to show a photo in a listing - no image data, and only the number of comments -
+ * so the database only has to send those fields.
+ */
+public class PhotoSummary
+{
+  /**
+   * The unique id that identifies the photograph in the database.
+   */
+  private String id;
+
+  /**
+   * The username of the owner of the photograph.
+   */
+  private String owner;
+
+  /**
+   * A title the user has attached to the photo.
+   */
+  private String title;
+
+  /**
+   * A list of tags that the owner has attached to the photograph.
+   */
+  private ArrayList<String> tags;
+
+  /**
+   * The time the photo was uploaded.
+   */
+  private Date timestamp;
+
+  /**
+   * The visibility of the Photo.
+   */
+  private Photo.Visibility visibility;
+
+  /**
+   * The number of comments on the photo.
+   */
+  private int commentCount;
+
+  /**
+   * Empty Constructor.
+   */
+  public PhotoSummary()
+  {
+    this.id = null;
+    this.owner = null;
+    this.title = null;
+    this.tags = null;
+    this.timestamp = null;
+    this.visibility = null;
+    this.commentCount = 0;
+  }
+
+  /**
+   * Constructor. Summarises a photo that has already been read in full.
+   * 
+   * @param photo  The photo.
+   */
+  public PhotoSummary(Photo photo)
+  {
+    this.id = photo.getId();
+    this.owner = photo.getOwner();
+    this.title = photo.getTitle();
+    this.tags = photo.getTags();
+    this.timestamp = photo.getTimeStamp();
+    this.visibility = photo.getVisibility();
+    this.commentCount = photo.getCommentCount();
+  }
+
+  /**
+   * Set the database object id.
+   * 
+   * @param id
+   */
+  public void setId(String id)
+  {
+    this.id = id;
+  }
+
+  /**
+   * Set the owner.
+   * 
+   * @param owner
+   */
+  public void setOwner(String owner)
+  {
+    this.owner = owner;
+  }
+
+  /**
+   * Set the title.
+   * 
+   * @param title
+   */
+  public void setTitle(String title)
+  {
+    this.title = title;
+  }
+
+  /**
+   * Set the tags.
+   * 
+   * @param tags
+   */
+  public void setTags(ArrayList<String> tags)
+  {
+    this.tags = tags;
+  }
+
+  /**
+   * Set the upload time.
+   * 
+   * @param timestamp
+   */
+  public void setTimeStamp(Date timestamp)
+  {
+    this.timestamp = timestamp;
+  }
+
+  /**
+   * Set the visibility.
+   * 
+   * @param visibility
+   */
+  public void setVisibility(Photo.Visibility visibility)
+  {
+    this.visibility = visibility;
+  }
+
+  /**
+   * Set the number of comments.
+   * 
+   * @param commentCount
+   */
+  public void setCommentCount(int commentCount)
+  {
+    this.commentCount = commentCount;
+  }
+
+  /**
+   * Get the database object id of the photo.
+   */
+  public String getId()
+  {
+    return id;
+  }
+
+  /**
+   * Get the owner of the photo.
+   */
+  public String getOwner()
+  {
+    return owner;
+  }
+
+  /**
+   * Get the title of the photo.
+   */
+  public String getTitle()
+  {
+    return title;
+  }
+
+  /**
+   * Get the tags for the photo.
+   */
+  public ArrayList<String> getTags()
+  {
+    return tags;
+  }
+
+  /**
+   * Get the upload time of the photo.
+   */
+  public Date getTimeStamp()
+  {
+    return timestamp;
+  }
+
+  /**
+   * Get the visibility of the photo.
+   */
+  public Photo.Visibility getVisibility()
+  {
+    return visibility;
+  }
+
+  /**
+   * Get the number of comments on the photo.
+   */
+  public int getCommentCount()
+  {
+    return commentCount;
+  }
+}
@@ -1,13 +1,36 @@
 package com.example.rcubed;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoDatabase;
+import com.vaadin.annotations.Push;
 import com.vaadin.annotations.Theme;
 import com.vaadin.annotations.VaadinServletConfiguration;
 import com.vaadin.navigator.Navigator;
 import com.vaadin.navigator.ViewChangeListener;
+import com.vaadin.server.Page;
 import com.vaadin.server.VaadinRequest;
 import com.vaadin.server.VaadinServlet;
+import com.vaadin.server.VaadinServletService;
+import com.vaadin.ui.Notification;
 import com.vaadin.ui.UI;
 
 /**
@@ -17,16 +40,381 @@ import com.vaadin.ui.UI;
  */
 @SuppressWarnings("serial")
 @Theme("rcubed")
+@Push
 public class RcubedUI extends UI
 {
   /**
    * Constructor
+   * 
+   * The servlet owns the connection to the database and the DAOs built on top of it. They are shared by every session
+   * and published as servlet context attributes so the views can find them.
    */
-  @WebServlet(value = "/*", asyncSupported = true)
+  @WebServlet(value = "/*", asyncSupported = true, loadOnStartup = 1)
   @VaadinServletConfiguration(productionMode = false, ui = RcubedUI.class)
   public static class Servlet extends VaadinServlet
   {
+    /**
+     * Servlet context attributes holding the shared DAOs.
+     */
+    public static final String ATTRIBUTE_USER_DAO = "userDAO";
+    public static final String ATTRIBUTE_PHOTO_DAO = "photoDAO";
+    public static final String ATTRIBUTE_ASYNC_USER_DAO = "asyncUserDAO";
+    public static final String ATTRIBUTE_ASYNC_PHOTO_DAO = "asyncPhotoDAO";
+
+    /**
+     * Init parameters (settable in web.xml) used to configure the database connection, with their defaults.
+     */
+    public static final String PARAM_MONGO_HOST = "mongo.host";
+    public static final String PARAM_MONGO_PORT = "mongo.port";
+    public static final String PARAM_MONGO_DATABASE = "mongo.database";
+    public static final String PARAM_POOL_SIZE = "mongo.poolSize";
+    public static final String PARAM_WAIT_QUEUE_MULTIPLIER = "mongo.waitQueueMultiplier";
+    public static final String PARAM_MAX_WAIT_TIME = "mongo.maxWaitTimeMs";
+    public static final String PARAM_CONNECT_TIMEOUT = "mongo.connectTimeoutMs";
+    public static final String PARAM_SOCKET_TIMEOUT = "mongo.socketTimeoutMs";
+    public static final String PARAM_GRIDFS_CONCURRENCY = "gridfs.concurrency";
+    public static final String PARAM_IMAGE_CACHE_SIZE = "imageCache.maxMegabytes";
+    public static final String PARAM_IMAGE_CACHE_TIER = "imageCache.tier";
+    public static final String PARAM_USER_CACHE_SIZE = "userCache.maxEntries";
+    public static final String PARAM_USER_CACHE_TTL = "userCache.ttlSeconds";
+    public static final String PARAM_ASYNC_THREADS = "async.threads";
+    public static final String PARAM_ASYNC_QUEUE_SIZE = "async.queueSize";
+    public static final String PARAM_COMMENT_FLUSH_INTERVAL = "comments.flushIntervalMs";
+    public static final String PARAM_COMMENT_BATCH_SIZE = "comments.maxBatchSize";
+    public static final String PARAM_METRICS_ENABLED = "metrics.enabled";
+
+    private static final String DEFAULT_MONGO_HOST = "localhost";
+    private static final int DEFAULT_MONGO_PORT = 27017;
+    private static final String DEFAULT_MONGO_DATABASE = "Rcubed";
+    private static final int DEFAULT_POOL_SIZE = 100;
+    private static final int DEFAULT_WAIT_QUEUE_MULTIPLIER = 5;
+    private static final int DEFAULT_MAX_WAIT_TIME = 10000;
+    private static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    private static final int DEFAULT_SOCKET_TIMEOUT = 30000;
+    private static final int DEFAULT_ASYNC_THREADS = 32;
+    private static final int DEFAULT_ASYNC_QUEUE_SIZE = 1000;
+    private static final String DEFAULT_METRICS_ENABLED = "true";
+
+    /**
+     * Values of the image cache tier parameter - where the cached image data is kept.
+     */
+    public static final String IMAGE_CACHE_TIER_HEAP = "heap";
+    public static final String IMAGE_CACHE_TIER_OFF_HEAP = "offheap";
+
+    /**
+     * Handle to the database connection pool.
+     */
+    private MongoClient mongoClient;
+
+    /**
+     * The shared DAOs, with the caches and metrics layered on them.
+     */
+    private MongoDbDAOFactory daos;
+
+    /**
+     * Thread pool running the calls made through the asynchronous DAOs.
+     */
+    private ThreadPoolExecutor asyncExecutor;
+
+    @Override
+    protected void servletInitialized() throws ServletException
+    {
+      super.servletInitialized();
+
+      // Configure the connection pool. The wait queue is the number of threads allowed to block waiting for a
+      // connection, expressed as a multiple of the pool size.
+      MongoClientOptions options = MongoClientOptions.builder()
+          .connectionsPerHost(getIntParameter(PARAM_POOL_SIZE, DEFAULT_POOL_SIZE))
+          .threadsAllowedToBlockForConnectionMultiplier(
+              getIntParameter(PARAM_WAIT_QUEUE_MULTIPLIER, DEFAULT_WAIT_QUEUE_MULTIPLIER))
+          .maxWaitTime(getIntParameter(PARAM_MAX_WAIT_TIME, DEFAULT_MAX_WAIT_TIME))
+          .connectTimeout(getIntParameter(PARAM_CONNECT_TIMEOUT, DEFAULT_CONNECT_TIMEOUT))
+          .socketTimeout(getIntParameter(PARAM_SOCKET_TIMEOUT, DEFAULT_SOCKET_TIMEOUT))
+          .build();
+
+      ServerAddress address = new ServerAddress(getStringParameter(PARAM_MONGO_HOST, DEFAULT_MONGO_HOST),
+          getIntParameter(PARAM_MONGO_PORT, DEFAULT_MONGO_PORT));
+
+      // Initialise a connection to the db and the DAOs.
+      mongoClient = new MongoClient(address, options);
+
+      String databaseName = getStringParameter(PARAM_MONGO_DATABASE, DEFAULT_MONGO_DATABASE);
+      MongoDatabase database = mongoClient.getDatabase(databaseName);
+
+      // Build the DAOs and everything layered on them.
+      daos = new MongoDbDAOFactory(database, mongoClient.getDB(databaseName));
+      daos.setGridFsConcurrency(getIntParameter(PARAM_GRIDFS_CONCURRENCY, MongoDbDAOPhoto.DEFAULT_GRIDFS_CONCURRENCY));
+
+      // Keep recently viewed images in memory. A size of 0 turns the cache off. Large caches should be kept off heap
+      // (which needs -XX:MaxDirectMemorySize to be raised to match) so they don't slow down garbage collection.
+      long imageCacheBytes = getIntParameter(PARAM_IMAGE_CACHE_SIZE, MongoDbDAOFactory.DEFAULT_IMAGE_CACHE_SIZE) * 1024L
+          * 1024L;
+      String imageCacheTier = getStringParameter(PARAM_IMAGE_CACHE_TIER, IMAGE_CACHE_TIER_HEAP);
+
+      if (!IMAGE_CACHE_TIER_OFF_HEAP.equals(imageCacheTier) && !IMAGE_CACHE_TIER_HEAP.equals(imageCacheTier))
+      {
+        throw new ServletException("Init parameter " + PARAM_IMAGE_CACHE_TIER + " must be " + IMAGE_CACHE_TIER_HEAP
+            + " or " + IMAGE_CACHE_TIER_OFF_HEAP + ": " + imageCacheTier);
+      }
+
+      daos.setImageCache(imageCacheBytes, IMAGE_CACHE_TIER_OFF_HEAP.equals(imageCacheTier));
+
+      // Batch up comments, so a busy photo gets one write per batch rather than one per comment. An interval of 0
+      // writes each comment straight away.
+      daos.setCommentWriteBehind(getIntParameter(PARAM_COMMENT_FLUSH_INTERVAL,
+          MongoDbDAOFactory.DEFAULT_COMMENT_FLUSH_INTERVAL), getIntParameter(PARAM_COMMENT_BATCH_SIZE,
+          MongoDbDAOFactory.DEFAULT_COMMENT_BATCH_SIZE));
+
+      // Users are looked up on every login, friend search and friends only image, so keep them in memory too. A size
+      // of 0 turns the cache off.
+      daos.setUserCache(getIntParameter(PARAM_USER_CACHE_SIZE, MongoDbDAOFactory.DEFAULT_USER_CACHE_SIZE),
+          getIntParameter(PARAM_USER_CACHE_TTL, MongoDbDAOFactory.DEFAULT_USER_CACHE_TTL) * 1000L);
+
+      // Measure every call the app makes to the DAOs, and publish the figures over JMX.
+      daos.setMetricsEnabled(Boolean.parseBoolean(getStringParameter(PARAM_METRICS_ENABLED,
+          DEFAULT_METRICS_ENABLED)));
+
+      daos.create();
+      log("Friend graph loaded: " + daos.getFriendGraph().getNameCount() + " names.");
+
+      // Make sure the indexes the DAOs rely on are in place, and report any that aren't as expected.
+      ArrayList<String> indexProblems = daos.ensureIndexes();
+
+      for (String problem : indexProblems)
+      {
+        log("Index problem: " + problem);
+      }
+
+      if (indexProblems.isEmpty())
+      {
+        log("All database indexes present and correct.");
+      }
+
+      // Photos stored before comments had their own collection. Safe to rerun if it was interrupted.
+      int migrated = daos.getMongoPhotoDAO().migrateComments();
+
+      if (migrated > 0)
+      {
+        log("Comments moved to their own collection for " + migrated + " photos.");
+      }
+
+      if (daos.getPhotoMetrics() != null)
+      {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        try
+        {
+          String contextPath = getServletContext().getContextPath();
+          daos.getPhotoMetrics().register(server, contextPath);
+          daos.getUserMetrics().register(server, contextPath);
+        }
+        catch (JMException ex)
+        {
+          // The figures are still collected, they just can't be seen from outside.
+          log("Unable to publish DAO metrics over JMX", ex);
+        }
+      }
+
+      // The views make their database calls on a separate pool of threads, so the request threads aren't tied up
+      // waiting for the database. Both the pool and its queue are bounded - once they are full, calls fail straight
+      // away rather than piling up behind a slow database.
+      int asyncThreads = getIntParameter(PARAM_ASYNC_THREADS, DEFAULT_ASYNC_THREADS);
+      asyncExecutor = new ThreadPoolExecutor(asyncThreads, asyncThreads, 0L, TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<Runnable>(getIntParameter(PARAM_ASYNC_QUEUE_SIZE, DEFAULT_ASYNC_QUEUE_SIZE)),
+          new ThreadFactory()
+          {
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable task)
+            {
+              Thread thread = new Thread(task, "rcubed-dao-" + threadCount.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+
+      // Make the DAOs available to every session.
+      PhotoDAO sharedPhotoDAO = daos.getPhotoDAO();
+      UserDAO sharedUserDAO = daos.getUserDAO();
+      getServletContext().setAttribute(ATTRIBUTE_PHOTO_DAO, sharedPhotoDAO);
+      getServletContext().setAttribute(ATTRIBUTE_USER_DAO, sharedUserDAO);
+      getServletContext().setAttribute(ATTRIBUTE_ASYNC_PHOTO_DAO, new AsyncPhotoDAO(sharedPhotoDAO, asyncExecutor));
+      getServletContext().setAttribute(ATTRIBUTE_ASYNC_USER_DAO, new AsyncUserDAO(sharedUserDAO, asyncExecutor));
+    }
+
+    /**
+     * Get the image cache, for monitoring. Null if the cache is disabled.
+     */
+    public ImageCache getImageCache()
+    {
+      return (daos != null) ? daos.getImageCache() : null;
+    }
+
+    /**
+     * Get the friend graph.
+     */
+    public FriendGraph getFriendGraph()
+    {
+      return (daos != null) ? daos.getFriendGraph() : null;
+    }
+
+    /**
+     * Get the user cache, for monitoring. Null if the cache is disabled.
+     */
+    public CachingUserDAO getUserCache()
+    {
+      return (daos != null) ? daos.getUserCache() : null;
+    }
+
+    /**
+     * Get the statistics kept for the photo DAO. Null if metrics are disabled.
+     */
+    public DaoMetrics getPhotoMetrics()
+    {
+      return (daos != null) ? daos.getPhotoMetrics() : null;
+    }
 
+    /**
+     * Get the statistics kept for the user DAO. Null if metrics are disabled.
+     */
+    public DaoMetrics getUserMetrics()
+    {
+      return (daos != null) ? daos.getUserMetrics() : null;
+    }
+
+    @Override
+    public void destroy()
+    {
+      super.destroy();
+
+      getServletContext().removeAttribute(ATTRIBUTE_PHOTO_DAO);
+      getServletContext().removeAttribute(ATTRIBUTE_USER_DAO);
+      getServletContext().removeAttribute(ATTRIBUTE_ASYNC_PHOTO_DAO);
+      getServletContext().removeAttribute(ATTRIBUTE_ASYNC_USER_DAO);
+
+      // Don't leave MBeans behind holding on to this app once it has been undeployed.
+      for (DaoMetrics metrics : new DaoMetrics[] { getPhotoMetrics(), getUserMetrics() })
+      {
+        if (metrics != null)
+        {
+          try
+          {
+            metrics.unregister();
+          }
+          catch (JMException ex)
+          {
+            log("Unable to remove " + metrics.getType() + " metrics from JMX", ex);
+          }
+        }
+      }
+
+      // Stop the DAO's worker threads (writing any buffered comments) before the connections they use go away.
+      if (asyncExecutor != null)
+      {
+        // Let queued calls finish, so comments they add make it into the final flush.
+        asyncExecutor.shutdown();
+
+        try
+        {
+          asyncExecutor.awaitTermination(30, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException ex)
+        {
+          Thread.currentThread().interrupt();
+        }
+      }
+
+      if (daos != null)
+      {
+        daos.shutdown();
+      }
+
+      if (mongoClient != null)
+      {
+        mongoClient.close();
+      }
+    }
+
+    /**
+     * Read a string init parameter.
+     * 
+     * @param name          The name of the parameter.
+     * @param defaultValue  The value to use if the parameter has not been set.
+     */
+    private String getStringParameter(String name, String defaultValue)
+    {
+      String value = getInitParameter(name);
+
+      return (value == null || "".equals(value.trim())) ? defaultValue : value.trim();
+    }
+
+    /**
+     * Read an integer init parameter.
+     * 
+     * @param name          The name of the parameter.
+     * @param defaultValue  The value to use if the parameter has not been set.
+     * 
+     * @throws ServletException if the parameter is set to something that isn't a number.
+     */
+    private int getIntParameter(String name, int defaultValue) throws ServletException
+    {
+      String value = getStringParameter(name, null);
+      int result = defaultValue;
+
+      if (value != null)
+      {
+        try
+        {
+          result = Integer.parseInt(value);
+        }
+        catch (NumberFormatException ex)
+        {
+          throw new ServletException("Init parameter " + name + " must be a number: " + value, ex);
+        }
+      }
+
+      return result;
+    }
+  }
+
+  /**
+   * Update the UI once an asynchronous DAO call has finished.
+   * 
+   * The update is pushed to the browser, so the request that started the call doesn't have to wait for it. If the call
+   * failed the failure is logged and the user is told, and the update is skipped.
+   * 
+   * @param result  The eventual result of the DAO call.
+   * @param update  Updates the UI with the result. Runs with the session locked, like a listener.
+   */
+  public <T> void accessWhenDone(CompletableFuture<T> result, Consumer<T> update)
+  {
+    result.whenComplete((value, ex) -> access(() ->
+    {
+      if (ex == null)
+      {
+        update.accept(value);
+      }
+      else
+      {
+        // Exceptions thrown by the call itself arrive wrapped.
+        Throwable cause = (ex instanceof CompletionException && ex.getCause() != null) ? ex.getCause() : ex;
+        String message;
+
+        if (cause instanceof RejectedExecutionException)
+        {
+          // The database is fine, but too many calls are already waiting for it.
+          message = "The server is busy, please try again in a moment.";
+        }
+        else
+        {
+          message = "Unable to reach the database, please try again.";
+        }
+
+        ((VaadinServletService) getSession().getService()).getServlet().log(message, cause);
+        new Notification(message, Notification.Type.ERROR_MESSAGE).show(Page.getCurrent());
+      }
+    }));
   }
 
   @Override
@@ -0,0 +1,61 @@
+package com.example.rcubed;
+
+import java.util.ArrayList;
+
+/**
+ * A single page of results from a paginated query.
+ * 
+ * The continuation token is opaque to the caller - it should simply be handed back to the same query to get the next
+ * page.
+ *
+ * @param <T> The type of the items in the page.
+ */
+public class ResultPage<T>
+{
+  /**
+   * The items in this page, in query order.
+   */
+  private ArrayList<T> items;
+
+  /**
+   * Token identifying where the next page starts. Null if this is the last page.
+   */
+  private String continuationToken;
+
+  /**
+   * Constructor
+   * 
+   * @param items              The items in this page.
+   * @param continuationToken  Token for retrieving the next page, or null if there are no more results.
+   */
+  public ResultPage(ArrayList<T> items, String continuationToken)
+  {
+    this.items = items;
+    this.continuationToken = continuationToken;
+  }
+
+  /**
+   * Get the items in this page.
+   */
+  public ArrayList<T> getItems()
+  {
+    return items;
+  }
+
+  /**
+   * Get the token to pass back to the query to retrieve the next page.
+   * Will be null if this is the last page.
+   */
+  public String getContinuationToken()
+  {
+    return continuationToken;
+  }
+
+  /**
+   * Are there more results after this page?
+   */
+  public boolean hasMore()
+  {
+    return continuationToken != null;
+  }
+}
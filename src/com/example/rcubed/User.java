@@ -1,6 +1,7 @@
 package com.example.rcubed;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 
 import com.example.rcubed.Photo.Visibility;
 
@@ -27,6 +28,11 @@ public class User
    */
   private ArrayList<String> friendsList;
 
+  /**
+   * The same names as friendsList, for quick lookups.
+   */
+  private HashSet<String> friendsIndex;
+
   /**
    * Access point for retrieving/adding/modifying this user's photos. 
    */
@@ -42,6 +48,7 @@ public class User
     this.id = null;
     this.username = null;
     this.friendsList = null;
+    this.friendsIndex = null;
     this.photoDAO = photoDAO;
   }
 
@@ -56,6 +63,7 @@ public class User
     this.id = null;
     this.username = username;
     this.friendsList = new ArrayList<String>();
+    this.friendsIndex = new HashSet<String>();
     this.photoDAO = photoDAO;
   }
 
@@ -87,6 +95,17 @@ public class User
   public void setFriends(ArrayList<String> friendsList)
   {
     this.friendsList = friendsList;
+    this.friendsIndex = new HashSet<String>(friendsList);
+  }
+
+  /**
+   * Set the access point for this user's photos.
+   * 
+   * @param photoDAO
+   */
+  public void setPhotoDAO(PhotoDAO photoDAO)
+  {
+    this.photoDAO = photoDAO;
   }
 
   /**
@@ -97,7 +116,7 @@ public class User
    */
   public void addFriend(String newFriend)
   {
-    if (!friendsList.contains(newFriend))
+    if (friendsIndex.add(newFriend))
     {
       // No point in adding the friend if they are already there!
       friendsList.add(newFriend);
@@ -112,7 +131,20 @@ public class User
    */
   public void removeFriend(String exFriend)
   {
-    friendsList.remove(exFriend);
+    if (friendsIndex.remove(exFriend))
+    {
+      friendsList.remove(exFriend);
+    }
+  }
+
+  /**
+   * Is a name on this user's friends list?
+   * 
+   * @param name  The name to look for.
+   */
+  public boolean hasFriend(String name)
+  {
+    return friendsIndex.contains(name);
   }
 
   /**
@@ -146,6 +178,66 @@ public class User
    *         (The Visibility is calculated based on whether or not the requester is on the photoOwner's friend list)
    */
   public ArrayList<Photo> getPhotos(User photoOwner, String tag)
+  {
+    ArrayList<Photo> photos = photoDAO.getPhotos(photoOwner.getUsername(), tag, getAllowedVisibility(photoOwner));
+    return photos;
+  }
+
+  /**
+   * Get a page of photos, newest first.
+   * 
+   * @param photoOwner         The owner of the photographs to get.
+   * @param tag                A tag (can be null/empty string) to filter the photos by.
+   * @param pageSize           The maximum number of photos to return.
+   * @param continuationToken  The token from the previous page, or null for the first page.
+   * 
+   * @return A page of photos owned by "photoOwner" tagged with "tag" of the appropriate Visibility level or higher.
+   *         (The Visibility is calculated based on whether or not the requester is on the photoOwner's friend list)
+   */
+  public ResultPage<Photo> getPhotos(User photoOwner, String tag, int pageSize, String continuationToken)
+  {
+    return photoDAO.getPhotos(photoOwner.getUsername(), tag, getAllowedVisibility(photoOwner), pageSize,
+        continuationToken);
+  }
+
+  /**
+   * Get a page of photo summaries, newest first. Cheaper than getPhotos() when only the meta data is to be displayed.
+   * 
+   * @param photoOwner         The owner of the photographs to get.
+   * @param tag                A tag (can be null/empty string) to filter the photos by.
+   * @param pageSize           The maximum number of photos to return.
+   * @param continuationToken  The token from the previous page, or null for the first page.
+   * 
+   * @return A page of summaries of the photos this user is allowed to see.
+   */
+  public ResultPage<PhotoSummary> getPhotoSummaries(User photoOwner, String tag, int pageSize,
+      String continuationToken)
+  {
+    return photoDAO.getPhotoSummaries(photoOwner.getUsername(), tag, getAllowedVisibility(photoOwner), pageSize,
+        continuationToken);
+  }
+
+  /**
+   * Get a page of this user's feed, newest first: the photos of their friends that they are allowed to see.
+   * 
+   * @param pageSize           The maximum number of photos to return.
+   * @param continuationToken  The token from the previous page, or null for the first page.
+   * 
+   * @return A page of photos from this user's feed.
+   */
+  public ResultPage<Photo> getFeed(int pageSize, String continuationToken)
+  {
+    return photoDAO.getFeed(this, pageSize, continuationToken);
+  }
+
+  /**
+   * Work out which photos of photoOwner this user is allowed to see.
+   * 
+   * @param photoOwner  The owner of the photographs.
+   * 
+   * @return The least secure Visibility this user is allowed to see.
+   */
+  public Photo.Visibility getAllowedVisibility(User photoOwner)
   {
     // Default the visibility setting to the least secure.
     Photo.Visibility allowedVisibility = Visibility.PUBLIC;
@@ -158,13 +250,12 @@ public class User
       // This user is the owner so is allowed to see the most secure photos.
       allowedVisibility = Visibility.PRIVATE;
     }
-    else if (photoOwner.getFriends().contains(username))
+    else if (photoOwner.hasFriend(username))
     {
       // This user is on the photograph owner's friends list.
       allowedVisibility = Visibility.FRIENDS;
     }
 
-    ArrayList<Photo> photos = photoDAO.getPhotos(ownersName, tag, allowedVisibility);
-    return photos;
+    return allowedVisibility;
   }
 }
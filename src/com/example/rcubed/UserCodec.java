@@ -0,0 +1,123 @@
+package com.example.rcubed;
+
+import java.util.ArrayList;
+
+import org.bson.BsonObjectId;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonValue;
+import org.bson.BsonWriter;
+import org.bson.codecs.CollectibleCodec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.types.ObjectId;
+
+/**
+ * Reads and writes Users straight from and to BSON, without building a Document in between.
+ *
+ * Produces exactly the same documents as MongoDbDAOUser.convertToDoc(), and reads them back the same way as
+ * MongoDbDAOUser.createUser(). Users read have no photo DAO, the caller sets the one they should use. Fields it doesn't
+ * know about are skipped.
+ */
+public class UserCodec implements CollectibleCodec<User>
+{
+  @Override
+  public Class<User> getEncoderClass()
+  {
+    return User.class;
+  }
+
+  @Override
+  public void encode(BsonWriter writer, User user, EncoderContext encoderContext)
+  {
+    writer.writeStartDocument();
+
+    // The id goes first, as the driver does for documents it is storing.
+    if (user.getId() != null)
+    {
+      writer.writeObjectId(MongoDbDAOUser.KEY_ID, new ObjectId(user.getId()));
+    }
+
+    writer.writeName(MongoDbDAOUser.KEY_USERNAME);
+    PhotoCodec.writeString(writer, user.getUsername());
+
+    writer.writeStartArray(MongoDbDAOUser.KEY_FRIENDS_LIST);
+
+    for (String friend : user.getFriends())
+    {
+      PhotoCodec.writeString(writer, friend);
+    }
+
+    writer.writeEndArray();
+
+    writer.writeEndDocument();
+  }
+
+  @Override
+  public User decode(BsonReader reader, DecoderContext decoderContext)
+  {
+    User user = new User(null);
+    ArrayList<String> friends = null;
+
+    reader.readStartDocument();
+
+    while (reader.readBsonType() != BsonType.END_OF_DOCUMENT)
+    {
+      String name = reader.readName();
+
+      switch (name)
+      {
+        case MongoDbDAOUser.KEY_ID:
+          user.setId(PhotoCodec.readObjectIdString(reader));
+          break;
+
+        case MongoDbDAOUser.KEY_USERNAME:
+          user.setUsername(PhotoCodec.readString(reader));
+          break;
+
+        case MongoDbDAOUser.KEY_FRIENDS_LIST:
+          friends = PhotoCodec.readStrings(reader);
+          break;
+
+        default:
+          reader.skipValue();
+          break;
+      }
+    }
+
+    reader.readEndDocument();
+
+    // A user stored without a friends list has no friends.
+    user.setFriends((friends != null) ? friends : new ArrayList<String>());
+
+    return user;
+  }
+
+  @Override
+  public User generateIdIfAbsentFromDocument(User user)
+  {
+    if (user.getId() == null)
+    {
+      user.setId(new ObjectId().toString());
+    }
+
+    return user;
+  }
+
+  @Override
+  public boolean documentHasId(User user)
+  {
+    return user.getId() != null;
+  }
+
+  @Override
+  public BsonValue getDocumentId(User user)
+  {
+    if (user.getId() == null)
+    {
+      throw new IllegalStateException("The user does not have an id");
+    }
+
+    return new BsonObjectId(new ObjectId(user.getId()));
+  }
+}
@@ -1,5 +1,7 @@
 package com.example.rcubed;
 
+import java.util.ArrayList;
+
 /**
  * DAO Interface for manipulating/querying Users in the database.
  */
@@ -37,6 +39,9 @@ public interface UserDAO
   /**
    * Add a name to the user's friend list.
    * 
+   * If the name is already on the stored list but not on the user object (the object is out of date), nothing is
+   * stored twice. The user object is brought up to date and true is returned, as the name is on the list either way.
+   * 
    * @param user       The user to add the friend to.
    * @param newFriend  The name of the friend to add.
    * 
@@ -54,4 +59,23 @@ public interface UserDAO
    */
   public abstract boolean removeFriend(User user, String exFriend);
 
+  /**
+   * Check whether a name is on a user's friend list.
+   * 
+   * @param username   The user whose friend list is checked.
+   * @param candidate  The name to look for.
+   * 
+   * @return True if "candidate" is on "username"'s friend list.
+   */
+  public abstract boolean isFriend(String username, String candidate);
+
+  /**
+   * Find the users who have a name on their friend list.
+   * 
+   * @param username  The name to look for.
+   * 
+   * @return The names of the users with "username" on their friend list.
+   */
+  public abstract ArrayList<String> getFollowers(String username);
+
 }
\ No newline at end of file
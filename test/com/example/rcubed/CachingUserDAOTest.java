@@ -0,0 +1,134 @@
+package com.example.rcubed;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Unit tests for CachingUserDAO.
+ */
+public class CachingUserDAOTest
+{
+  /**
+   * UserDAO that can hold a lookup up after it has read the user, to line it up with a change.
+   */
+  private static class SlowUserDAO extends InMemoryUserDAO
+  {
+    private volatile CountDownLatch read;
+    private volatile CountDownLatch release;
+
+    /**
+     * Hold up the next lookup once it has read the user.
+     */
+    private void holdNextLookup()
+    {
+      read = new CountDownLatch(1);
+      release = new CountDownLatch(1);
+    }
+
+    @Override
+    public User getUser(PhotoDAO photoDAO, String username)
+    {
+      User user = super.getUser(photoDAO, username);
+      CountDownLatch held = release;
+
+      if (held != null)
+      {
+        release = null;
+        read.countDown();
+
+        try
+        {
+          held.await(10, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException ex)
+        {
+          Thread.currentThread().interrupt();
+        }
+      }
+
+      return user;
+    }
+  }
+
+  private final SlowUserDAO userDAO = new SlowUserDAO();
+  private final CachingUserDAO cache = new CachingUserDAO(userDAO, 100, 60000);
+  private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+  @After
+  public void tearDown()
+  {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void lookupsAreCachedUntilTheUserChanges()
+  {
+    User alice = new User("alice@example.com", null);
+    assertTrue(userDAO.insertUser(alice));
+
+    cache.getUser(null, "alice@example.com");
+    cache.getUser(null, "alice@example.com");
+    assertEquals(1, cache.getMissCount());
+    assertEquals(1, cache.getHitCount());
+
+    assertTrue(cache.addFriend(alice, "bob@example.com"));
+
+    User reread = cache.getUser(null, "alice@example.com");
+    assertEquals(2, cache.getMissCount());
+    assertEquals(Arrays.asList("bob@example.com"), reread.getFriends());
+  }
+
+  @Test
+  public void lookupThatRacesADeleteIsNotCached() throws Exception
+  {
+    User alice = new User("alice@example.com", null);
+    assertTrue(userDAO.insertUser(alice));
+
+    // Read Alice, but hold on to her until she has been deleted.
+    userDAO.holdNextLookup();
+    CountDownLatch read = userDAO.read;
+    CountDownLatch release = userDAO.release;
+    Future<User> lookup = executor.submit(() -> cache.getUser(null, "alice@example.com"));
+
+    assertTrue(read.await(10, TimeUnit.SECONDS));
+    assertTrue(cache.deleteUser(alice));
+    release.countDown();
+
+    assertNotNull(lookup.get(10, TimeUnit.SECONDS));
+
+    // The copy read before the delete wasn't kept.
+    assertEquals(0, cache.getSize());
+    assertNull(cache.getUser(null, "alice@example.com"));
+  }
+
+  @Test
+  public void lookupThatRacesAFriendChangeIsNotCached() throws Exception
+  {
+    User alice = new User("alice@example.com", null);
+    assertTrue(userDAO.insertUser(alice));
+
+    userDAO.holdNextLookup();
+    CountDownLatch read = userDAO.read;
+    CountDownLatch release = userDAO.release;
+    Future<User> lookup = executor.submit(() -> cache.getUser(null, "alice@example.com"));
+
+    assertTrue(read.await(10, TimeUnit.SECONDS));
+    assertTrue(cache.addFriend(alice, "bob@example.com"));
+    release.countDown();
+
+    assertEquals(0, lookup.get(10, TimeUnit.SECONDS).getFriends().size());
+    assertEquals(Arrays.asList("bob@example.com"), cache.getUser(null, "alice@example.com").getFriends());
+  }
+}
@@ -0,0 +1,192 @@
+package com.example.rcubed;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for FriendGraph.
+ */
+public class FriendGraphTest
+{
+  /**
+   * Sort a list of names, so they can be compared whatever order ids were given out in.
+   */
+  private static ArrayList<String> sorted(ArrayList<String> names)
+  {
+    Collections.sort(names);
+    return names;
+  }
+
+  @Test
+  public void setFriendsIndexesBothDirections()
+  {
+    FriendGraph graph = new FriendGraph();
+
+    graph.setFriends("alice", Arrays.asList("carol", "bob"));
+    graph.setFriends("bob", Arrays.asList("carol"));
+
+    assertTrue(graph.isFriend("alice", "bob"));
+    assertTrue(graph.isFriend("alice", "carol"));
+    assertTrue(graph.isFriend("bob", "carol"));
+    assertFalse(graph.isFriend("bob", "alice"));
+    assertFalse(graph.isFriend("carol", "alice"));
+
+    assertEquals(Arrays.asList("bob", "carol"), sorted(graph.getFriends("alice")));
+    assertEquals(Arrays.asList("alice", "bob"), sorted(graph.getFollowers("carol")));
+    assertEquals(Arrays.asList("alice"), graph.getFollowers("bob"));
+    assertEquals(0, graph.getFollowers("alice").size());
+    assertEquals(3, graph.getNameCount());
+  }
+
+  @Test
+  public void setFriendsIgnoresRepeatedNames()
+  {
+    FriendGraph graph = new FriendGraph();
+
+    graph.setFriends("alice", Arrays.asList("bob", "carol", "bob", "bob"));
+
+    assertEquals(Arrays.asList("bob", "carol"), sorted(graph.getFriends("alice")));
+    assertEquals(Arrays.asList("alice"), graph.getFollowers("bob"));
+  }
+
+  @Test
+  public void setFriendsReplacesTheOldList()
+  {
+    FriendGraph graph = new FriendGraph();
+
+    graph.setFriends("alice", Arrays.asList("bob", "carol"));
+    graph.setFriends("dave", Arrays.asList("carol"));
+    graph.setFriends("alice", Arrays.asList("carol", "erin"));
+
+    assertFalse(graph.isFriend("alice", "bob"));
+    assertTrue(graph.isFriend("alice", "carol"));
+    assertTrue(graph.isFriend("alice", "erin"));
+
+    assertEquals(0, graph.getFollowers("bob").size());
+    assertEquals(Arrays.asList("alice", "dave"), sorted(graph.getFollowers("carol")));
+    assertEquals(Arrays.asList("alice"), graph.getFollowers("erin"));
+
+    graph.setFriends("alice", Collections.<String>emptyList());
+
+    assertEquals(0, graph.getFriends("alice").size());
+    assertEquals(Arrays.asList("dave"), graph.getFollowers("carol"));
+    assertEquals(0, graph.getFollowers("erin").size());
+  }
+
+  @Test
+  public void addAndRemoveFriend()
+  {
+    FriendGraph graph = new FriendGraph();
+
+    graph.addFriend("alice", "bob");
+    graph.addFriend("alice", "bob");
+    graph.addFriend("carol", "bob");
+
+    assertTrue(graph.isFriend("alice", "bob"));
+    assertEquals(Arrays.asList("bob"), graph.getFriends("alice"));
+    assertEquals(Arrays.asList("alice", "carol"), sorted(graph.getFollowers("bob")));
+
+    graph.removeFriend("alice", "bob");
+
+    assertFalse(graph.isFriend("alice", "bob"));
+    assertEquals(0, graph.getFriends("alice").size());
+    assertEquals(Arrays.asList("carol"), graph.getFollowers("bob"));
+
+    // Removing someone who isn't a friend, or who has never been seen, changes nothing.
+    graph.removeFriend("alice", "bob");
+    graph.removeFriend("alice", "zoe");
+    assertEquals(Arrays.asList("carol"), graph.getFollowers("bob"));
+  }
+
+  @Test
+  public void unknownNamesHaveNoEdges()
+  {
+    FriendGraph graph = new FriendGraph();
+
+    graph.addFriend("alice", "bob");
+
+    assertFalse(graph.isFriend("zoe", "bob"));
+    assertFalse(graph.isFriend("alice", "zoe"));
+    assertEquals(0, graph.getFriends("zoe").size());
+    assertEquals(0, graph.getFollowers("zoe").size());
+  }
+
+  @Test
+  public void matchesAPlainSetOfEdges()
+  {
+    // Enough names to make the adjacency arrays grow several times.
+    FriendGraph graph = new FriendGraph();
+    HashSet<String> edges = new HashSet<String>();
+    Random random = new Random(42);
+
+    for (int i = 0; i < 2000; i++)
+    {
+      String user = "user" + random.nextInt(50);
+      String friend = "user" + random.nextInt(50);
+
+      switch (random.nextInt(3))
+      {
+        case 0:
+          graph.addFriend(user, friend);
+          edges.add(user + ">" + friend);
+          break;
+
+        case 1:
+          graph.removeFriend(user, friend);
+          edges.remove(user + ">" + friend);
+          break;
+
+        default:
+          ArrayList<String> list = new ArrayList<String>();
+
+          for (int j = random.nextInt(8); j > 0; j--)
+          {
+            list.add("user" + random.nextInt(50));
+          }
+
+          graph.setFriends(user, list);
+          edges.removeIf(edge -> edge.startsWith(user + ">"));
+
+          for (String name : list)
+          {
+            edges.add(user + ">" + name);
+          }
+
+          break;
+      }
+    }
+
+    for (int a = 0; a < 50; a++)
+    {
+      String user = "user" + a;
+
+      for (String follower : graph.getFollowers(user))
+      {
+        assertTrue(edges.contains(follower + ">" + user));
+      }
+
+      for (int b = 0; b < 50; b++)
+      {
+        assertEquals(edges.contains(user + ">user" + b), graph.isFriend(user, "user" + b));
+      }
+    }
+
+    int followerCount = 0;
+
+    for (int a = 0; a < 50; a++)
+    {
+      followerCount += graph.getFollowers("user" + a).size();
+    }
+
+    assertEquals(edges.size(), followerCount);
+  }
+}
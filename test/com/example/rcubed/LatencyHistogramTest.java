@@ -0,0 +1,144 @@
+package com.example.rcubed;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for LatencyHistogram.
+ */
+public class LatencyHistogramTest
+{
+  @Test
+  public void smallValuesGetABucketEach()
+  {
+    for (int value = 0; value < LatencyHistogram.SUB_BUCKETS; value++)
+    {
+      assertEquals(value, LatencyHistogram.getBucket(value));
+      assertEquals(value, LatencyHistogram.getBucketLimit(value));
+    }
+  }
+
+  @Test
+  public void bucketsCoverEveryValueWithoutGaps()
+  {
+    // Each bucket starts one past where the previous one ended.
+    long previousLimit = -1;
+
+    for (int bucket = 0; bucket < LatencyHistogram.BUCKET_COUNT; bucket++)
+    {
+      long limit = LatencyHistogram.getBucketLimit(bucket);
+
+      assertEquals(bucket, LatencyHistogram.getBucket(previousLimit + 1));
+      assertEquals(bucket, LatencyHistogram.getBucket(limit));
+      assertTrue(limit > previousLimit);
+
+      previousLimit = limit;
+    }
+
+    assertEquals(Long.MAX_VALUE, previousLimit);
+  }
+
+  @Test
+  public void bucketsAreWithinAboutSixPercent()
+  {
+    for (int bucket = LatencyHistogram.SUB_BUCKETS; bucket < LatencyHistogram.BUCKET_COUNT; bucket++)
+    {
+      double lowest = LatencyHistogram.getBucketLimit(bucket - 1) + 1;
+      double limit = LatencyHistogram.getBucketLimit(bucket);
+
+      assertTrue((limit - lowest) / lowest <= 1.0 / LatencyHistogram.SUB_BUCKETS);
+    }
+  }
+
+  @Test
+  public void emptyHistogramReportsZero()
+  {
+    LatencyHistogram histogram = new LatencyHistogram();
+
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMean(), 0);
+    assertEquals(0, histogram.getMax());
+    assertEquals(0, histogram.getPercentile(50));
+    assertEquals(0, histogram.getPercentile(99.9));
+  }
+
+  @Test
+  public void negativeValuesCountAsZero()
+  {
+    LatencyHistogram histogram = new LatencyHistogram();
+
+    histogram.record(-5);
+
+    assertEquals(1, histogram.getCount());
+    assertEquals(0, histogram.getMax());
+    assertEquals(0, histogram.getPercentile(100));
+  }
+
+  @Test
+  public void percentilesPickTheRightRank()
+  {
+    // 1..1000, so the nth percentile is 10n, to within a bucket.
+    LatencyHistogram histogram = new LatencyHistogram();
+
+    for (int value = 1; value <= 1000; value++)
+    {
+      histogram.record(value);
+    }
+
+    assertEquals(1000, histogram.getCount());
+    assertEquals(500.5, histogram.getMean(), 0.0001);
+    assertEquals(1000, histogram.getMax());
+
+    assertBucketOf(500, histogram, 50);
+    assertBucketOf(990, histogram, 99);
+    assertBucketOf(999, histogram, 99.9);
+
+    // The lowest percentiles are the first value, and the highest never go past the maximum recorded.
+    assertEquals(1, histogram.getPercentile(0));
+    assertEquals(1, histogram.getPercentile(0.1));
+    assertEquals(1000, histogram.getPercentile(100));
+  }
+
+  @Test
+  public void percentileIsCappedAtTheMax()
+  {
+    // 1000 sits near the bottom of its bucket, so the bucket limit alone would overstate it.
+    LatencyHistogram histogram = new LatencyHistogram();
+
+    histogram.record(1000);
+
+    assertTrue(LatencyHistogram.getBucketLimit(LatencyHistogram.getBucket(1000)) > 1000);
+    assertEquals(1000, histogram.getPercentile(50));
+    assertEquals(1000, histogram.getPercentile(100));
+  }
+
+  @Test
+  public void singleOutlierOnlyShowsInTheTail()
+  {
+    LatencyHistogram histogram = new LatencyHistogram();
+
+    for (int i = 0; i < 999; i++)
+    {
+      histogram.record(10);
+    }
+
+    histogram.record(1000000);
+
+    assertEquals(10, histogram.getPercentile(50));
+    assertEquals(10, histogram.getPercentile(99.9));
+    assertEquals(1000000, histogram.getPercentile(99.95));
+    assertEquals(1000000, histogram.getMax());
+  }
+
+  /**
+   * Check that a percentile is the top of the bucket a value is counted in, or the max if that is lower.
+   */
+  private static void assertBucketOf(long expected, LatencyHistogram histogram, double percentile)
+  {
+    long limit = LatencyHistogram.getBucketLimit(LatencyHistogram.getBucket(expected));
+
+    assertEquals(Math.min(limit, histogram.getMax()), histogram.getPercentile(percentile));
+  }
+}
@@ -0,0 +1,177 @@
+package com.example.rcubed;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Date;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for LruImageCache.
+ */
+public class LruImageCacheTest
+{
+  /**
+   * Build an image of the given size.
+   */
+  private static PhotoImage createImage(int length)
+  {
+    return new PhotoImage(new byte[length], "md5", new Date(), "image/jpeg");
+  }
+
+  @Test
+  public void evictsByBytesNotEntries()
+  {
+    LruImageCache cache = new LruImageCache(1000, 1);
+
+    cache.put("a", createImage(400));
+    cache.put("b", createImage(100));
+    cache.put("c", createImage(100));
+    cache.put("d", createImage(100));
+
+    // Evicting the one large image is enough to make room.
+    cache.put("e", createImage(500));
+    assertEquals(800, cache.getSizeBytes());
+    assertEquals(1, cache.getEvictionCount());
+
+    cache.put("f", createImage(300));
+    assertEquals(1000, cache.getSizeBytes());
+    assertEquals(2, cache.getEvictionCount());
+
+    assertNull(cache.get("a"));
+    assertNull(cache.get("b"));
+    assertNotNull(cache.get("c"));
+    assertNotNull(cache.get("d"));
+    assertNotNull(cache.get("e"));
+    assertNotNull(cache.get("f"));
+  }
+
+  @Test
+  public void aLargeImageEvictsSeveralSmallOnes()
+  {
+    LruImageCache cache = new LruImageCache(1000, 1);
+
+    cache.put("a", createImage(300));
+    cache.put("b", createImage(300));
+    cache.put("c", createImage(300));
+
+    cache.put("d", createImage(700));
+    assertEquals(2, cache.getEvictionCount());
+    assertEquals(1000, cache.getSizeBytes());
+
+    assertNull(cache.get("a"));
+    assertNull(cache.get("b"));
+    assertNotNull(cache.get("c"));
+    assertNotNull(cache.get("d"));
+  }
+
+  @Test
+  public void lookupsRefreshAnImage()
+  {
+    LruImageCache cache = new LruImageCache(1000, 1);
+
+    cache.put("a", createImage(300));
+    cache.put("b", createImage(300));
+    cache.put("c", createImage(300));
+
+    // a is now the most recently used, leaving b to go first.
+    assertNotNull(cache.get("a"));
+    cache.put("d", createImage(300));
+
+    assertNull(cache.get("b"));
+    assertNotNull(cache.get("a"));
+    assertNotNull(cache.get("c"));
+    assertNotNull(cache.get("d"));
+  }
+
+  @Test
+  public void replacingAnImageOnlyCountsItOnce()
+  {
+    LruImageCache cache = new LruImageCache(1000, 1);
+
+    cache.put("a", createImage(600));
+    cache.put("a", createImage(400));
+
+    assertEquals(400, cache.getSizeBytes());
+    assertEquals(0, cache.getEvictionCount());
+    assertEquals(400, cache.get("a").getLength());
+  }
+
+  @Test
+  public void imagesLargerThanMaxEntryAreNotCached()
+  {
+    LruImageCache cache = new LruImageCache(4000, 4);
+    assertEquals(1000, cache.getMaxEntryBytes());
+
+    cache.put("small", createImage(10));
+    cache.put("big", createImage(1001));
+
+    // Turning the large image away must not push anything else out.
+    assertNull(cache.get("big"));
+    assertNotNull(cache.get("small"));
+    assertEquals(10, cache.getSizeBytes());
+    assertEquals(0, cache.getEvictionCount());
+
+    cache.put("exact", createImage(1000));
+    assertNotNull(cache.get("exact"));
+  }
+
+  @Test
+  public void imagesLargerThanMaxEntryAreNotReadFromAStream() throws IOException
+  {
+    LruImageCache cache = new LruImageCache(1000, 1);
+    ByteArrayInputStream in = new ByteArrayInputStream(new byte[1001]);
+
+    assertNull(cache.put("big", in, 1001, "md5", new Date(), "image/jpeg"));
+    assertEquals(1001, in.available());
+    assertNull(cache.get("big"));
+  }
+
+  @Test
+  public void imagesCanBeCachedStraightFromAStream() throws IOException
+  {
+    LruImageCache cache = new LruImageCache(1000, 1);
+    byte[] data = new byte[500];
+
+    for (int i = 0; i < data.length; i++)
+    {
+      data[i] = (byte) i;
+    }
+
+    PhotoImage image = cache.put("a", new ByteArrayInputStream(data), data.length, "md5", new Date(), "image/jpeg");
+    assertNotNull(image);
+    assertArrayEquals(data, image.getData());
+    assertArrayEquals(data, cache.get("a").getData());
+    assertEquals(500, cache.getSizeBytes());
+  }
+
+  @Test
+  public void countsHitsAndMisses()
+  {
+    LruImageCache cache = new LruImageCache(1000, 1);
+
+    assertNull(cache.get("a"));
+    cache.put("a", createImage(100));
+    assertNotNull(cache.get("a"));
+    assertNotNull(cache.get("a"));
+    assertNull(cache.get("b"));
+
+    assertEquals(2, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+
+    // Evicted and removed images miss again.
+    cache.put("b", createImage(1000));
+    assertNull(cache.get("a"));
+    cache.remove("b");
+    assertNull(cache.get("b"));
+
+    assertEquals(2, cache.getHitCount());
+    assertEquals(4, cache.getMissCount());
+    assertEquals(0, cache.getSizeBytes());
+  }
+}
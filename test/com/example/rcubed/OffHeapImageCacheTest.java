@@ -0,0 +1,290 @@
+package com.example.rcubed;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for OffHeapImageCache.
+ */
+public class OffHeapImageCacheTest
+{
+  private static final int BLOCK_SIZE = 1024;
+
+  /**
+   * Build an image of the given size.
+   */
+  private static PhotoImage createImage(int length, int seed)
+  {
+    byte[] data = new byte[length];
+
+    for (int i = 0; i < length; i++)
+    {
+      data[i] = (byte) (seed + i);
+    }
+
+    return new PhotoImage(data, "md5", new Date(), "image/jpeg");
+  }
+
+  /**
+   * Read the whole of a stream.
+   */
+  private static byte[] readAll(InputStream in) throws IOException
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[333];
+    int count;
+
+    while ((count = in.read(buffer)) >= 0)
+    {
+      out.write(buffer, 0, count);
+    }
+
+    return out.toByteArray();
+  }
+
+  @Test
+  public void allocationNeverExceedsMaxBytes()
+  {
+    // 2.5 slabs worth per segment - the last slab has to be cut short.
+    long maxBytes = 4 * 10 * BLOCK_SIZE;
+    OffHeapImageCache cache = new OffHeapImageCache(maxBytes, 4, 4 * BLOCK_SIZE, BLOCK_SIZE);
+
+    for (int i = 0; i < 200; i++)
+    {
+      cache.put(i, createImage(3 * BLOCK_SIZE - 7, i));
+      assertTrue(cache.getAllocatedBytes() <= maxBytes);
+      assertTrue(cache.getSizeBytes() <= maxBytes);
+    }
+
+    assertEquals(maxBytes, cache.getAllocatedBytes());
+    assertEquals(10 * BLOCK_SIZE, cache.getMaxEntryBytes());
+  }
+
+  @Test
+  public void sizeIsRoundedDownToWholeBlocks()
+  {
+    OffHeapImageCache cache = new OffHeapImageCache(2 * (5 * BLOCK_SIZE + 100), 2, 64 * BLOCK_SIZE, BLOCK_SIZE);
+
+    for (int i = 0; i < 50; i++)
+    {
+      cache.put(i, createImage(BLOCK_SIZE, i));
+    }
+
+    assertEquals(2 * 5 * BLOCK_SIZE, cache.getAllocatedBytes());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void tooSmallForOneBlockPerSegmentIsRejected()
+  {
+    new OffHeapImageCache(4 * BLOCK_SIZE - 1, 4, 4 * BLOCK_SIZE, BLOCK_SIZE);
+  }
+
+  @Test
+  public void imagesTooLargeForASegmentAreNotCached()
+  {
+    OffHeapImageCache cache = new OffHeapImageCache(2 * 4 * BLOCK_SIZE, 2, 4 * BLOCK_SIZE, BLOCK_SIZE);
+
+    cache.put("big", createImage(4 * BLOCK_SIZE + 1, 0));
+
+    assertNull(cache.get("big"));
+    assertEquals(0, cache.getAllocatedBytes());
+  }
+
+  @Test
+  public void readsBackWhatWasPut() throws IOException
+  {
+    OffHeapImageCache cache = new OffHeapImageCache(16 * BLOCK_SIZE, 1, 4 * BLOCK_SIZE, BLOCK_SIZE);
+    PhotoImage image = createImage(5 * BLOCK_SIZE + 17, 3);
+
+    cache.put("a", image);
+
+    PhotoImage cached = cache.get("a");
+    assertNotNull(cached);
+    assertEquals(image.getLength(), cached.getLength());
+
+    try (InputStream in = cached.getInputStream())
+    {
+      assertArrayEquals(image.getData(), readAll(in));
+    }
+  }
+
+  @Test
+  public void imagesCanBeCachedStraightFromAStream() throws IOException
+  {
+    OffHeapImageCache cache = new OffHeapImageCache(16 * BLOCK_SIZE, 1, 4 * BLOCK_SIZE, BLOCK_SIZE);
+    PhotoImage image = createImage(5 * BLOCK_SIZE + 17, 3);
+
+    PhotoImage cached = cache.put("a", new ByteArrayInputStream(image.getData()), image.getLength(), image.getMD5(),
+        image.getUploadDate(), image.getContentType());
+
+    assertNotNull(cached);
+    assertEquals(image.getMD5(), cached.getMD5());
+    assertEquals(image.getLength(), cache.getSizeBytes());
+
+    try (InputStream in = cached.getInputStream(); InputStream again = cache.get("a").getInputStream())
+    {
+      assertArrayEquals(image.getData(), readAll(in));
+      assertArrayEquals(image.getData(), readAll(again));
+    }
+  }
+
+  @Test
+  public void aStreamThatEndsEarlyCachesNothing()
+  {
+    // Room for exactly one image.
+    OffHeapImageCache cache = new OffHeapImageCache(4 * BLOCK_SIZE, 1, 4 * BLOCK_SIZE, BLOCK_SIZE);
+    PhotoImage image = createImage(2 * BLOCK_SIZE, 1);
+
+    try
+    {
+      cache.put("short", new ByteArrayInputStream(image.getData()), 4 * BLOCK_SIZE, "md5", new Date(), null);
+      fail("Expected the short stream to be rejected");
+    }
+    catch (IOException ex)
+    {
+      // Expected.
+    }
+
+    assertNull(cache.get("short"));
+    assertEquals(0, cache.getSizeBytes());
+
+    // The blocks went back on the free list, so a full size image still fits without evicting anything.
+    cache.put("full", createImage(4 * BLOCK_SIZE, 2));
+    assertNotNull(cache.get("full"));
+    assertEquals(0, cache.getEvictionCount());
+  }
+
+  @Test
+  public void blocksAreOnlyReusedOnceTheStreamIsClosed() throws IOException
+  {
+    // Room for exactly one image.
+    OffHeapImageCache cache = new OffHeapImageCache(4 * BLOCK_SIZE, 1, 4 * BLOCK_SIZE, BLOCK_SIZE);
+    PhotoImage first = createImage(4 * BLOCK_SIZE, 1);
+    PhotoImage second = createImage(4 * BLOCK_SIZE, 2);
+
+    cache.put("first", first);
+    InputStream reading = cache.get("first").getInputStream();
+
+    // The first image is evicted, but its blocks are still being read so the second can't have them.
+    cache.put("second", second);
+    assertNull(cache.get("first"));
+    assertNull(cache.get("second"));
+    assertEquals(1, cache.getEvictionCount());
+
+    // The stream still sees the original data.
+    assertArrayEquals(first.getData(), readAll(reading));
+    reading.close();
+
+    // Now the blocks are free again.
+    cache.put("second", second);
+
+    try (InputStream in = cache.get("second").getInputStream())
+    {
+      assertArrayEquals(second.getData(), readAll(in));
+    }
+  }
+
+  @Test
+  public void lookingUpWithoutReadingHoldsNoBlocks()
+  {
+    // Room for exactly one image.
+    OffHeapImageCache cache = new OffHeapImageCache(4 * BLOCK_SIZE, 1, 4 * BLOCK_SIZE, BLOCK_SIZE);
+
+    cache.put("first", createImage(4 * BLOCK_SIZE, 1));
+    assertNotNull(cache.get("first"));
+
+    // Nothing was opened, so the first image's blocks can go straight to the second.
+    cache.put("second", createImage(4 * BLOCK_SIZE, 2));
+
+    assertNull(cache.get("first"));
+    assertNotNull(cache.get("second"));
+  }
+
+  @Test(expected = IOException.class)
+  public void openingAnImageEvictedSinceTheLookupFails() throws IOException
+  {
+    OffHeapImageCache cache = new OffHeapImageCache(4 * BLOCK_SIZE, 1, 4 * BLOCK_SIZE, BLOCK_SIZE);
+
+    cache.put("first", createImage(4 * BLOCK_SIZE, 1));
+    PhotoImage first = cache.get("first");
+
+    cache.put("second", createImage(4 * BLOCK_SIZE, 2));
+
+    // The blocks now hold the second image.
+    first.getInputStream();
+  }
+
+  @Test
+  public void readingPastTheEndKeepsReturningEndOfStream() throws IOException
+  {
+    // Room for exactly one image.
+    OffHeapImageCache cache = new OffHeapImageCache(4 * BLOCK_SIZE, 1, 4 * BLOCK_SIZE, BLOCK_SIZE);
+    PhotoImage first = createImage(4 * BLOCK_SIZE, 1);
+
+    cache.put("first", first);
+    InputStream in = cache.get("first").getInputStream();
+
+    assertArrayEquals(first.getData(), readAll(in));
+    assertEquals(-1, in.read());
+    assertEquals(-1, in.read(new byte[10], 0, 10));
+
+    // The blocks were let go at the end, so the second image can have them even before the stream is closed.
+    cache.put("second", createImage(4 * BLOCK_SIZE, 2));
+    assertNotNull(cache.get("second"));
+    assertEquals(-1, in.read());
+
+    in.close();
+  }
+
+  @Test(expected = IOException.class)
+  public void readingAfterCloseFails() throws IOException
+  {
+    OffHeapImageCache cache = new OffHeapImageCache(4 * BLOCK_SIZE, 1, 4 * BLOCK_SIZE, BLOCK_SIZE);
+
+    cache.put("first", createImage(BLOCK_SIZE, 1));
+    InputStream in = cache.get("first").getInputStream();
+
+    in.close();
+    in.read();
+  }
+
+  @Test
+  public void closingTwiceOnlyReleasesOnce() throws IOException
+  {
+    // Room for two images.
+    OffHeapImageCache cache = new OffHeapImageCache(4 * BLOCK_SIZE, 1, 4 * BLOCK_SIZE, BLOCK_SIZE);
+    PhotoImage second = createImage(2 * BLOCK_SIZE, 2);
+    PhotoImage third = createImage(2 * BLOCK_SIZE, 3);
+
+    cache.put("first", createImage(2 * BLOCK_SIZE, 1));
+
+    InputStream in = cache.get("first").getInputStream();
+    in.close();
+    in.close();
+
+    // If the second close had freed the first image's blocks, the third would be given them without evicting it.
+    cache.put("second", second);
+    cache.put("third", third);
+
+    assertEquals(1, cache.getEvictionCount());
+    assertNull(cache.get("first"));
+
+    try (InputStream b = cache.get("second").getInputStream(); InputStream c = cache.get("third").getInputStream())
+    {
+      assertArrayEquals(second.getData(), readAll(b));
+      assertArrayEquals(third.getData(), readAll(c));
+    }
+  }
+}
@@ -0,0 +1,167 @@
+package com.example.rcubed;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.bson.BsonBinaryReader;
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.codecs.Decoder;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.Encoder;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import com.mongodb.MongoClient;
+
+/**
+ * Unit tests for PhotoCodec, and that it agrees with the Document conversions in MongoDbDAOPhoto.
+ */
+public class PhotoCodecTest
+{
+  /**
+   * A time with a fraction of a second, which isn't stored.
+   */
+  private static final long TIME_MILLIS = 1435312345678L;
+  private static final long TIME_SECONDS = 1435312345L;
+
+  private final PhotoCodec photoCodec = new PhotoCodec(MongoClient.getDefaultCodecRegistry(), null);
+  private final DocumentCodec documentCodec = new DocumentCodec();
+
+  /**
+   * Build a photo with every field set.
+   */
+  private static Photo createPhoto()
+  {
+    Photo photo = new Photo();
+
+    photo.setId(new ObjectId().toString());
+    photo.setGFSPhotoId(new ObjectId());
+    photo.setGFSRenditionId(Photo.Rendition.THUMBNAIL, new ObjectId());
+    photo.setGFSRenditionId(Photo.Rendition.PREVIEW, new ObjectId());
+    photo.setContentHash("0123456789abcdef");
+    photo.setOwner("alice");
+    photo.setTitle("Beach");
+    photo.setTags(new ArrayList<String>(Arrays.asList("sea", "sand")));
+    photo.setCommentCount(3);
+    photo.setTimeStamp(new Date(TIME_MILLIS));
+    photo.setVisibility(Photo.Visibility.FRIENDS);
+
+    return photo;
+  }
+
+  /**
+   * Write a value as BSON, as it would be stored.
+   */
+  private static <T> byte[] encode(Encoder<T> encoder, T value)
+  {
+    BasicOutputBuffer buffer = new BasicOutputBuffer();
+    encoder.encode(new BsonBinaryWriter(buffer), value, EncoderContext.builder().isEncodingCollectibleDocument(true)
+        .build());
+
+    return buffer.toByteArray();
+  }
+
+  /**
+   * Read a value back from BSON.
+   */
+  private static <T> T decode(Decoder<T> decoder, byte[] bson)
+  {
+    return decoder.decode(new BsonBinaryReader(ByteBuffer.wrap(bson)), DecoderContext.builder().build());
+  }
+
+  /**
+   * Check two photos have the same stored fields.
+   */
+  private static void assertSamePhoto(Photo expected, Photo actual)
+  {
+    assertEquals(expected.getId(), actual.getId());
+    assertEquals(expected.getGFSPhotoId(), actual.getGFSPhotoId());
+    assertEquals(expected.getGFSRenditionId(Photo.Rendition.THUMBNAIL), actual.getGFSRenditionId(
+        Photo.Rendition.THUMBNAIL));
+    assertEquals(expected.getGFSRenditionId(Photo.Rendition.PREVIEW), actual.getGFSRenditionId(
+        Photo.Rendition.PREVIEW));
+    assertEquals(expected.getContentHash(), actual.getContentHash());
+    assertEquals(expected.getOwner(), actual.getOwner());
+    assertEquals(expected.getTitle(), actual.getTitle());
+    assertEquals(expected.getTags(), actual.getTags());
+    assertEquals(expected.getCommentCount(), actual.getCommentCount());
+    assertEquals(expected.getTimeStamp(), actual.getTimeStamp());
+    assertEquals(expected.getVisibility(), actual.getVisibility());
+  }
+
+  @Test
+  public void timestampIsStoredInSeconds()
+  {
+    Document doc = decode(documentCodec, encode(photoCodec, createPhoto()));
+
+    assertEquals(TIME_SECONDS, (long) doc.getLong(MongoDbDAOPhoto.KEY_TIMESTAMP));
+    assertEquals(TIME_SECONDS, (long) MongoDbDAOPhoto.convertToDoc(createPhoto()).getLong(
+        MongoDbDAOPhoto.KEY_TIMESTAMP));
+  }
+
+  @Test
+  public void codecRoundTrip()
+  {
+    Photo photo = createPhoto();
+    Photo decoded = decode(photoCodec, encode(photoCodec, photo));
+
+    // Everything survives apart from the fraction of a second.
+    photo.setTimeStamp(new Date(TIME_SECONDS * 1000));
+    assertSamePhoto(photo, decoded);
+  }
+
+  @Test
+  public void codecWritesTheSameBsonAsConvertToDoc()
+  {
+    Photo photo = createPhoto();
+
+    assertArrayEquals(encode(documentCodec, MongoDbDAOPhoto.convertToDoc(photo)), encode(photoCodec, photo));
+  }
+
+  @Test
+  public void documentAndCodecReadTheSamePhoto()
+  {
+    Photo photo = createPhoto();
+
+    // Written through a Document, read both ways.
+    byte[] fromDocument = encode(documentCodec, MongoDbDAOPhoto.convertToDoc(photo));
+    assertSamePhoto(MongoDbDAOPhoto.createPhoto(decode(documentCodec, fromDocument), null), decode(photoCodec,
+        fromDocument));
+
+    // Written by the codec, read both ways.
+    byte[] fromCodec = encode(photoCodec, photo);
+    Photo viaDocument = MongoDbDAOPhoto.createPhoto(decode(documentCodec, fromCodec), null);
+    assertSamePhoto(viaDocument, decode(photoCodec, fromCodec));
+    assertEquals(TIME_SECONDS * 1000, viaDocument.getTimeStamp().getTime());
+  }
+
+  @Test
+  public void summaryReadsTheSameTimestamp()
+  {
+    Photo photo = createPhoto();
+    PhotoSummary summary = MongoDbDAOPhoto.createPhotoSummary(decode(documentCodec, encode(photoCodec, photo)));
+
+    assertEquals(photo.getId(), summary.getId());
+    assertEquals(new Date(TIME_SECONDS * 1000), summary.getTimeStamp());
+  }
+
+  @Test
+  public void continuationTokenUsesTheStoredTimestamp()
+  {
+    Photo photo = createPhoto();
+    byte[] bson = encode(photoCodec, photo);
+    Document doc = decode(documentCodec, bson);
+
+    assertEquals(MongoDbDAOPhoto.createContinuationToken(doc.getLong(MongoDbDAOPhoto.KEY_TIMESTAMP), doc.getObjectId(
+        MongoDbDAOPhoto.KEY_ID)), MongoDbDAOPhoto.createContinuationToken(decode(photoCodec, bson)));
+  }
+}
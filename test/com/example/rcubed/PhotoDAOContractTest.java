@@ -0,0 +1,473 @@
+package com.example.rcubed;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNoException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoException;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoDatabase;
+
+/**
+ * Behaviour every PhotoDAO must share: who may change a photo, who may see it, and how results are paged. Run against
+ * the in memory DAOs and the Mongo Db DAOs.
+ *
+ * The Mongo Db run needs a server on localhost (or wherever the rcubed.test.mongo.host system property says), and is
+ * skipped if there isn't one. It uses a scratch database, which is dropped before and after each test.
+ */
+@RunWith(Parameterized.class)
+public class PhotoDAOContractTest
+{
+  private static final String MONGO_HOST = System.getProperty("rcubed.test.mongo.host", "localhost");
+  private static final String MONGO_DATABASE = "RcubedContractTest";
+
+  /**
+   * One set of DAOs to test.
+   */
+  private interface Fixture
+  {
+    /**
+     * Create the DAOs, or skip the test if they can't be.
+     */
+    void setUp();
+
+    PhotoDAO getPhotoDAO();
+
+    UserDAO getUserDAO();
+
+    void tearDown();
+  }
+
+  private static class InMemoryFixture implements Fixture
+  {
+    private InMemoryPhotoDAO photoDAO;
+    private InMemoryUserDAO userDAO;
+
+    @Override
+    public void setUp()
+    {
+      userDAO = new InMemoryUserDAO();
+      photoDAO = new InMemoryPhotoDAO();
+      photoDAO.setUserDAO(userDAO);
+    }
+
+    @Override
+    public PhotoDAO getPhotoDAO()
+    {
+      return photoDAO;
+    }
+
+    @Override
+    public UserDAO getUserDAO()
+    {
+      return userDAO;
+    }
+
+    @Override
+    public void tearDown()
+    {
+    }
+
+    @Override
+    public String toString()
+    {
+      return "in memory";
+    }
+  }
+
+  private static class MongoDbFixture implements Fixture
+  {
+    /**
+     * Set once the server has been found not to be there, so the remaining tests don't each wait for it.
+     */
+    private static MongoException unreachable;
+
+    private MongoClient mongoClient;
+    private MongoDbDAOPhoto photoDAO;
+    private MongoDbDAOUser userDAO;
+
+    @Override
+    public void setUp()
+    {
+      if (unreachable != null)
+      {
+        assumeNoException("No Mongo Db server on " + MONGO_HOST, unreachable);
+      }
+
+      // Don't wait long for a server that isn't there.
+      mongoClient = new MongoClient(new ServerAddress(MONGO_HOST), MongoClientOptions.builder()
+          .serverSelectionTimeout(2000).build());
+      MongoDatabase database = mongoClient.getDatabase(MONGO_DATABASE);
+
+      try
+      {
+        database.runCommand(new Document("ping", 1));
+      }
+      catch (MongoException ex)
+      {
+        mongoClient.close();
+        mongoClient = null;
+        unreachable = ex;
+        assumeNoException("No Mongo Db server on " + MONGO_HOST, ex);
+      }
+
+      database.drop();
+
+      userDAO = new MongoDbDAOUser(database);
+      userDAO.setFriendGraph(new FriendGraph());
+      userDAO.ensureIndexes();
+
+      photoDAO = new MongoDbDAOPhoto(database, mongoClient.getDB(MONGO_DATABASE));
+      photoDAO.setUserDAO(userDAO);
+      photoDAO.ensureIndexes();
+    }
+
+    @Override
+    public PhotoDAO getPhotoDAO()
+    {
+      return photoDAO;
+    }
+
+    @Override
+    public UserDAO getUserDAO()
+    {
+      return userDAO;
+    }
+
+    @Override
+    public void tearDown()
+    {
+      if (mongoClient != null)
+      {
+        photoDAO.shutdown();
+        mongoClient.getDatabase(MONGO_DATABASE).drop();
+        mongoClient.close();
+      }
+    }
+
+    @Override
+    public String toString()
+    {
+      return "Mongo Db";
+    }
+  }
+
+  @Parameters(name = "{0}")
+  public static Collection<Object[]> fixtures()
+  {
+    return Arrays.asList(new Object[] { new InMemoryFixture() }, new Object[] { new MongoDbFixture() });
+  }
+
+  private final Fixture fixture;
+  private PhotoDAO photoDAO;
+  private UserDAO userDAO;
+
+  /**
+   * Whole seconds, as that's all the database keeps.
+   */
+  private long nextTime = 1435312345000L;
+
+  public PhotoDAOContractTest(Fixture fixture)
+  {
+    this.fixture = fixture;
+  }
+
+  @Before
+  public void setUp()
+  {
+    fixture.setUp();
+    photoDAO = fixture.getPhotoDAO();
+    userDAO = fixture.getUserDAO();
+  }
+
+  @After
+  public void tearDown()
+  {
+    fixture.tearDown();
+  }
+
+  /**
+   * Create and store a user.
+   */
+  private User createUser(String username, String... friends)
+  {
+    User user = new User(username, photoDAO);
+    assertTrue(userDAO.insertUser(user));
+
+    for (String friend : friends)
+    {
+      assertTrue(userDAO.addFriend(user, friend));
+    }
+
+    return user;
+  }
+
+  /**
+   * Create and store a photo, a second newer than the last one.
+   */
+  private Photo createPhoto(User owner, Photo.Visibility visibility, String... tags)
+  {
+    return createPhoto(owner, visibility, new Date(nextTime += 1000), tags);
+  }
+
+  /**
+   * Create and store a photo.
+   */
+  private Photo createPhoto(User owner, Photo.Visibility visibility, Date timestamp, String... tags)
+  {
+    Photo photo = new Photo(owner.getUsername(), "Photo", new ArrayList<String>(Arrays.asList(tags)), visibility,
+        new byte[] { 1, 2, 3, (byte) nextTime });
+    photo.setTimeStamp(timestamp);
+    assertTrue(photoDAO.insertPhoto(photo));
+    assertNotNull(photo.getId());
+
+    return photo;
+  }
+
+  /**
+   * Get the ids of some photos, in order.
+   */
+  private static ArrayList<String> getIds(List<Photo> photos)
+  {
+    ArrayList<String> ids = new ArrayList<String>();
+
+    for (Photo photo : photos)
+    {
+      ids.add(photo.getId());
+    }
+
+    return ids;
+  }
+
+  /**
+   * Read every page of an album.
+   */
+  private ArrayList<String> readAllPages(String owner, String tag, Photo.Visibility allowedVisibility, int pageSize)
+  {
+    ArrayList<String> ids = new ArrayList<String>();
+    String token = null;
+
+    do
+    {
+      ResultPage<Photo> page = photoDAO.getPhotos(owner, tag, allowedVisibility, pageSize, token);
+      assertTrue(page.getItems().size() <= pageSize);
+      assertEquals(page.hasMore(), page.getContinuationToken() != null);
+
+      ids.addAll(getIds(page.getItems()));
+      token = page.getContinuationToken();
+    }
+    while (token != null);
+
+    return ids;
+  }
+
+  @Test
+  public void onlyTheOwnerCanChangeAPhoto()
+  {
+    User alice = createUser("alice@example.com");
+    User bob = createUser("bob@example.com");
+    Photo photo = createPhoto(alice, Photo.Visibility.PUBLIC, "beach");
+
+    assertFalse(photoDAO.addTag(bob, photo, "sand"));
+    assertFalse(photoDAO.removeTag(bob, photo, "beach"));
+    assertFalse(photoDAO.changeVisibility(bob, photo, Photo.Visibility.PRIVATE));
+    assertFalse(photoDAO.deletePhoto(bob, photo));
+
+    Photo stored = photoDAO.getPhoto(photo.getId());
+    assertEquals(Arrays.asList("beach"), stored.getTags());
+    assertEquals(Photo.Visibility.PUBLIC, stored.getVisibility());
+
+    assertTrue(photoDAO.addTag(alice, photo, "sand"));
+    assertTrue(photoDAO.changeVisibility(alice, photo, Photo.Visibility.FRIENDS));
+
+    stored = photoDAO.getPhoto(photo.getId());
+    assertEquals(Arrays.asList("beach", "sand"), stored.getTags());
+    assertEquals(Photo.Visibility.FRIENDS, stored.getVisibility());
+
+    assertTrue(photoDAO.deletePhoto(alice, photo));
+    assertNull(photoDAO.getPhoto(photo.getId()));
+    assertFalse(photoDAO.deletePhoto(alice, photo));
+  }
+
+  @Test
+  public void albumsOnlyShowWhatTheViewerMaySee()
+  {
+    User alice = createUser("alice@example.com", "bob@example.com");
+    User bob = createUser("bob@example.com");
+    User carol = createUser("carol@example.com");
+
+    Photo privatePhoto = createPhoto(alice, Photo.Visibility.PRIVATE);
+    Photo friendsPhoto = createPhoto(alice, Photo.Visibility.FRIENDS);
+    Photo publicPhoto = createPhoto(alice, Photo.Visibility.PUBLIC);
+
+    // Newest first.
+    assertEquals(Arrays.asList(publicPhoto.getId(), friendsPhoto.getId(), privatePhoto.getId()), getIds(alice
+        .getPhotos(alice, null, 10, null).getItems()));
+    assertEquals(Arrays.asList(publicPhoto.getId(), friendsPhoto.getId()), getIds(bob.getPhotos(alice, null, 10, null)
+        .getItems()));
+    assertEquals(Arrays.asList(publicPhoto.getId()), getIds(carol.getPhotos(alice, null, 10, null).getItems()));
+
+    // The unpaged query and the summaries apply the same rules.
+    assertEquals(new HashSet<String>(Arrays.asList(publicPhoto.getId(), friendsPhoto.getId())), new HashSet<String>(
+        getIds(bob.getPhotos(alice, null))));
+    assertEquals(1, carol.getPhotoSummaries(alice, null, 10, null).getItems().size());
+  }
+
+  @Test
+  public void feedOnlyShowsWhatTheViewerMaySee()
+  {
+    // Alice counts Bob as a friend, Bob follows Alice and Carol, but Carol doesn't count Bob as a friend.
+    User alice = createUser("alice@example.com", "bob@example.com");
+    User bob = createUser("bob@example.com", "alice@example.com", "carol@example.com");
+    User carol = createUser("carol@example.com");
+
+    createPhoto(alice, Photo.Visibility.PRIVATE);
+    Photo aliceFriends = createPhoto(alice, Photo.Visibility.FRIENDS);
+    Photo alicePublic = createPhoto(alice, Photo.Visibility.PUBLIC);
+    createPhoto(carol, Photo.Visibility.FRIENDS);
+    Photo carolPublic = createPhoto(carol, Photo.Visibility.PUBLIC);
+    Photo bobPublic = createPhoto(bob, Photo.Visibility.PUBLIC);
+
+    // Bob's own photos aren't in his feed.
+    assertEquals(Arrays.asList(carolPublic.getId(), alicePublic.getId(), aliceFriends.getId()), getIds(photoDAO
+        .getFeed(bob, 10, null).getItems()));
+
+    // Carol has no friends of her own, but is on Bob's friends list so sees his Friends photos.
+    assertEquals(Arrays.asList(bobPublic.getId()), getIds(photoDAO.getFeed(carol, 10, null).getItems()));
+
+    // Dave follows Alice and Carol but isn't on either's list, so only sees their Public photos.
+    User dave = createUser("dave@example.com", "alice@example.com", "carol@example.com");
+    assertEquals(Arrays.asList(carolPublic.getId(), alicePublic.getId()), getIds(photoDAO.getFeed(dave, 10, null)
+        .getItems()));
+  }
+
+  @Test
+  public void pagesCoverEveryPhotoOnceNewestFirst()
+  {
+    User alice = createUser("alice@example.com");
+    ArrayList<Photo> photos = new ArrayList<Photo>();
+
+    // Several in the same second, so pages have to break ties on the id.
+    Date sameTime = new Date(nextTime += 1000);
+
+    for (int i = 0; i < 4; i++)
+    {
+      photos.add(createPhoto(alice, Photo.Visibility.PUBLIC, sameTime, (i % 2 == 0) ? "even" : "odd"));
+    }
+
+    for (int i = 4; i < 9; i++)
+    {
+      photos.add(createPhoto(alice, Photo.Visibility.PUBLIC, (i % 2 == 0) ? "even" : "odd"));
+    }
+
+    // The whole album in one page is the expected order.
+    ArrayList<String> expected = getIds(photoDAO.getPhotos(alice.getUsername(), null, Photo.Visibility.PRIVATE, 100,
+        null).getItems());
+    assertEquals(photos.size(), expected.size());
+    assertEquals(photos.get(photos.size() - 1).getId(), expected.get(0));
+
+    // Same timestamp, so newest id first.
+    ArrayList<String> tied = new ArrayList<String>(expected.subList(5, 9));
+    ArrayList<ObjectId> tiedIds = new ArrayList<ObjectId>();
+
+    for (String id : tied)
+    {
+      tiedIds.add(new ObjectId(id));
+    }
+
+    for (int i = 1; i < tiedIds.size(); i++)
+    {
+      assertTrue(tiedIds.get(i - 1).compareTo(tiedIds.get(i)) > 0);
+    }
+
+    for (int pageSize = 1; pageSize <= 10; pageSize++)
+    {
+      assertEquals("Page size " + pageSize, expected, readAllPages(alice.getUsername(), null,
+          Photo.Visibility.PRIVATE, pageSize));
+    }
+
+    // Paging a tag gives the same order, just with the other photos left out.
+    ArrayList<String> even = new ArrayList<String>();
+
+    for (String id : expected)
+    {
+      if (photoDAO.getPhoto(id).getTags().contains("even"))
+      {
+        even.add(id);
+      }
+    }
+
+    assertEquals(5, even.size());
+    assertEquals(even, readAllPages(alice.getUsername(), "even", Photo.Visibility.PRIVATE, 2));
+  }
+
+  @Test
+  public void pagesStayConsistentWhenPhotosAreAdded()
+  {
+    User alice = createUser("alice@example.com");
+
+    for (int i = 0; i < 4; i++)
+    {
+      createPhoto(alice, Photo.Visibility.PUBLIC);
+    }
+
+    ResultPage<Photo> first = photoDAO.getPhotos(alice.getUsername(), null, Photo.Visibility.PRIVATE, 2, null);
+
+    // A new photo is newer than everything, so it doesn't push anything onto the next page.
+    createPhoto(alice, Photo.Visibility.PUBLIC);
+
+    ResultPage<Photo> second = photoDAO.getPhotos(alice.getUsername(), null, Photo.Visibility.PRIVATE, 2, first
+        .getContinuationToken());
+
+    assertEquals(2, second.getItems().size());
+    assertFalse(second.hasMore());
+    assertFalse(getIds(first.getItems()).contains(second.getItems().get(0).getId()));
+  }
+
+  @Test
+  public void addingAFriendAlreadyStoredOnlyUpdatesTheUserObject()
+  {
+    User alice = createUser("alice@example.com", "bob@example.com");
+
+    // A copy of Alice read before Bob was added doesn't know about him, so it is brought up to date.
+    User stale = new User("alice@example.com", photoDAO);
+
+    assertTrue(userDAO.addFriend(stale, "bob@example.com"));
+    assertEquals(Arrays.asList("bob@example.com"), stale.getFriends());
+
+    // A copy that already has him is left alone.
+    assertFalse(userDAO.addFriend(alice, "bob@example.com"));
+
+    // Either way he is only stored once.
+    assertEquals(Arrays.asList("bob@example.com"), userDAO.getUser(photoDAO, "alice@example.com").getFriends());
+    assertTrue(userDAO.isFriend("alice@example.com", "bob@example.com"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidContinuationTokenIsRejected()
+  {
+    User alice = createUser("alice@example.com");
+    photoDAO.getPhotos(alice.getUsername(), null, Photo.Visibility.PRIVATE, 2, "not a token");
+  }
+}
@@ -0,0 +1,103 @@
+package com.example.rcubed;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for PhotoRenditions.
+ */
+public class PhotoRenditionsTest
+{
+  /**
+   * Build an encoded JPEG of the given size.
+   */
+  private static byte[] createJpeg(int width, int height) throws IOException
+  {
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    Graphics2D graphics = image.createGraphics();
+
+    try
+    {
+      graphics.setColor(Color.BLUE);
+      graphics.fillRect(0, 0, width / 2, height);
+    }
+    finally
+    {
+      graphics.dispose();
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(image, "jpg", out);
+
+    return out.toByteArray();
+  }
+
+  /**
+   * Decode a rendition.
+   */
+  private static BufferedImage read(byte[] data) throws IOException
+  {
+    return ImageIO.read(new ByteArrayInputStream(data));
+  }
+
+  @Test
+  public void largeImagesAreSubsampledAsTheyAreDecoded() throws IOException
+  {
+    BufferedImage decoded = PhotoRenditions.decode(new ByteArrayInputStream(createJpeg(4000, 3000)));
+
+    assertNotNull(decoded);
+    assertEquals(1000, decoded.getWidth());
+    assertEquals(750, decoded.getHeight());
+  }
+
+  @Test
+  public void smallImagesAreDecodedAtFullSize() throws IOException
+  {
+    BufferedImage decoded = PhotoRenditions.decode(new ByteArrayInputStream(createJpeg(1500, 400)));
+
+    assertEquals(1500, decoded.getWidth());
+    assertEquals(400, decoded.getHeight());
+  }
+
+  @Test
+  public void renditionsOfASubsampledImageFitTheirSize() throws IOException
+  {
+    BufferedImage decoded = PhotoRenditions.decode(new ByteArrayInputStream(createJpeg(4000, 3000)));
+
+    BufferedImage preview = read(PhotoRenditions.createRendition(decoded, PhotoRenditions.PREVIEW_SIZE));
+    assertEquals(PhotoRenditions.PREVIEW_SIZE, preview.getWidth());
+    assertEquals(375, preview.getHeight());
+
+    BufferedImage thumbnail = read(PhotoRenditions.createRendition(decoded, PhotoRenditions.THUMBNAIL_SIZE));
+    assertEquals(PhotoRenditions.THUMBNAIL_SIZE, thumbnail.getWidth());
+    assertEquals(120, thumbnail.getHeight());
+  }
+
+  @Test
+  public void noRenditionIsMadeOfAnImageThatAlreadyFits() throws IOException
+  {
+    BufferedImage decoded = PhotoRenditions.decode(new ByteArrayInputStream(createJpeg(400, 300)));
+
+    assertNull(PhotoRenditions.createRendition(decoded, PhotoRenditions.PREVIEW_SIZE));
+    assertTrue(PhotoRenditions.createRendition(decoded, PhotoRenditions.THUMBNAIL_SIZE).length > 0);
+  }
+
+  @Test
+  public void dataThatIsNotAnImageDecodesToNull() throws IOException
+  {
+    assertNull(PhotoRenditions.decode(new ByteArrayInputStream("not an image".getBytes("UTF-8"))));
+  }
+}